@@ -0,0 +1,44 @@
+package postoffice.benchmark;
+
+/**
+ * A single benchmark run by the {@link Harness}. The harness calls {@link #setUp()} once
+ * per trial, then calls {@link #operation(int)} in a tight loop from every benchmark
+ * thread through the warmup and measurement iterations, then calls {@link #tearDown()}.
+ */
+public abstract class Benchmark {
+
+	/**
+	 * @return A name unique within the suite, including any parameters.
+	 */
+	public abstract String getName();
+
+	/**
+	 * @return How many threads call {@link #operation(int)} concurrently.
+	 */
+	public int getThreads(){
+
+		return 1;
+	}
+
+	/**
+	 * @return True if every call to {@link #operation(int)} should be timed, for
+	 * benchmarks slow enough that the timer does not distort them.
+	 */
+	public boolean recordsLatency(){
+
+		return false;
+	}
+
+	public void setUp() throws Exception {}
+
+	/**
+	 * Performs the work being measured.
+	 *
+	 * @param thread The index of the calling benchmark thread.
+	 * @return The number of operations performed, for benchmarks that batch them.
+	 * @throws Exception Thrown if the operation fails, which aborts the benchmark.
+	 */
+	public abstract int operation(int thread) throws Exception;
+
+	public void tearDown() throws Exception {}
+}
@@ -0,0 +1,288 @@
+package postoffice.benchmark;
+
+import java.io.File;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import postoffice.client.AsyncPostOfficeClient;
+import postoffice.client.MailFuture;
+import postoffice.client.MailSubscriber;
+import postoffice.client.MailSubscription;
+import postoffice.client.PostOfficeClient;
+import postoffice.daemon.PostOffice;
+import postoffice.daemon.PostOfficeConfig;
+import postoffice.daemon.PostOfficeConfig.Engine;
+import postoffice.datatypes.CommFlags;
+import postoffice.testing.StringMessage;
+
+/**
+ * Runs a daemon on a free loopback port and passes letters between two clients, end
+ * to end through the sockets, clerks and mailboxes. The clients connect over TCP, through
+ * the daemon's Unix domain socket, or over TCP and then into shared memory, to compare
+ * the three.
+ */
+public class ClientBenchmark extends Benchmark {
+
+	/**
+	 * How the letters are passed.
+	 */
+	public static enum Mode {
+
+		/** One letter is sent and then fetched before the next, timing each round trip. */
+		ROUND_TRIP,
+
+		/** A batch of letters is pipelined and then drained in one go (framed protocol only). */
+		PIPELINED,
+
+		/**
+		 * A batch of letters is sent from one thread through {@link AsyncPostOfficeClient}
+		 * and pushed to a subscriber as it arrives (framed protocol only).
+		 */
+		ASYNC
+	}
+
+	/**
+	 * How the clients reach the daemon.
+	 */
+	public static enum Transport {
+
+		/** Over loopback TCP. */
+		TCP,
+
+		/** Through the daemon's Unix domain socket. */
+		UNIX,
+
+		/** Over loopback TCP, moved into shared memory rings once connected. */
+		SHARED_MEMORY
+	}
+
+	private static final int PAYLOAD_SIZE = 128;
+	private static final int BATCH = 256;
+	private static final int TIMEOUT = 5000;
+	private static final int RING_CAPACITY = 1024 * 1024;
+
+	private Engine engine;
+	private int protocol;
+	private Mode mode;
+	private Transport transport;
+
+	private PostOffice postOffice;
+	private File socketFile;
+
+	private PostOfficeClient<StringMessage> sender;
+	private PostOfficeClient<StringMessage> recipient;
+
+	private AsyncPostOfficeClient<StringMessage> asyncSender;
+	private AsyncPostOfficeClient<StringMessage> asyncRecipient;
+
+	// Released once for every letter pushed to the asynchronous recipient.
+	private Semaphore pushed = new Semaphore(0);
+
+	private StringMessage message;
+
+	/**
+	 * @param engine The daemon engine.
+	 * @param protocol The protocol both clients speak.
+	 * @param mode How the letters are passed.
+	 */
+	public ClientBenchmark(Engine engine, int protocol, Mode mode){
+
+		this(engine, protocol, mode, Transport.TCP);
+	}
+
+	/**
+	 * @param engine The daemon engine.
+	 * @param protocol The protocol both clients speak.
+	 * @param mode How the letters are passed.
+	 * @param transport How the clients reach the daemon.
+	 */
+	public ClientBenchmark(Engine engine, int protocol, Mode mode, Transport transport){
+
+		if(mode != Mode.ROUND_TRIP && protocol == CommFlags.PROTOCOL_LEGACY)
+			throw new IllegalArgumentException("Pipelining requires the framed protocol.");
+
+		if(mode == Mode.ASYNC && protocol == CommFlags.PROTOCOL_COMPACT)
+			throw new IllegalArgumentException("The asynchronous client does not speak the compact framing.");
+
+		if(mode == Mode.ASYNC && transport != Transport.TCP)
+			throw new IllegalArgumentException("The asynchronous client only connects over TCP.");
+
+		this.engine = engine;
+		this.protocol = protocol;
+		this.mode = mode;
+		this.transport = transport;
+	}
+
+	@Override
+	public String getName(){
+
+		String name = mode == Mode.ROUND_TRIP ? "roundTrip" : mode == Mode.PIPELINED ? "pipelined" : "async";
+
+		return "client." + name + " engine=" + engine
+				+ " protocol=" + (protocol == CommFlags.PROTOCOL_COMPACT ? "compact" : protocol == CommFlags.PROTOCOL_FRAMED ? "framed" : "legacy")
+				+ " transport=" + (transport == Transport.SHARED_MEMORY ? "shm" : transport.name().toLowerCase());
+	}
+
+	@Override
+	public boolean recordsLatency(){
+
+		return mode == Mode.ROUND_TRIP;
+	}
+
+	@Override
+	public void setUp() throws Exception {
+
+		PostOfficeConfig config = new PostOfficeConfig();
+		config.setPort(0);
+		config.setEngine(engine);
+		config.setSharedMemory(transport == Transport.SHARED_MEMORY);
+
+		if(transport == Transport.UNIX){
+
+			// The daemon creates the socket file itself, so only its name is taken here.
+			socketFile = File.createTempFile("postoffice-bench", ".sock");
+			socketFile.delete();
+
+			config.setUnixSocketFile(socketFile);
+		}
+
+		postOffice = PostOffice.createPostOffice(config);
+
+		if(mode == Mode.ASYNC){
+
+			asyncSender = connectAsync("bench-sender");
+			asyncRecipient = connectAsync("bench-recipient");
+
+			asyncRecipient.receiveMail(new MailSubscriber<StringMessage>() {
+
+				private MailSubscription subscription;
+
+				@Override
+				public void onSubscribe(MailSubscription subscription){
+
+					this.subscription = subscription;
+
+					subscription.request(BATCH);
+				}
+
+				@Override
+				public void onMessage(StringMessage message){
+
+					pushed.release();
+					subscription.request(1);
+				}
+
+				@Override
+				public void onError(Exception cause){}
+
+				@Override
+				public void onComplete(){}
+			});
+		}
+		else {
+
+			sender = connect("bench-sender");
+			recipient = connect("bench-recipient");
+		}
+
+		StringBuilder sb = new StringBuilder();
+
+		for(int i = 0; i < PAYLOAD_SIZE; i++)
+			sb.append((char) ('a' + i % 26));
+
+		message = new StringMessage();
+		message.setMessage(sb.toString());
+	}
+
+	private PostOfficeClient<StringMessage> connect(String mailbox) throws Exception {
+
+		PostOfficeClient<StringMessage> client = new PostOfficeClient<StringMessage>(StringMessage.class);
+
+		if(transport == Transport.SHARED_MEMORY)
+			client.setSharedMemory(RING_CAPACITY);
+
+		if(transport == Transport.UNIX)
+			client.connect(socketFile, TIMEOUT, protocol);
+		else
+			client.connect("127.0.0.1", postOffice.getLocalPort(), TIMEOUT, protocol);
+
+		if(client.isSharingMemory() != (transport == Transport.SHARED_MEMORY) || client.isCompact() != (protocol == CommFlags.PROTOCOL_COMPACT))
+			throw new IllegalStateException("The connection was not set up as asked.");
+
+		client.createMailbox(mailbox, "password");
+		client.checkoutMailbox(mailbox, "password");
+
+		return client;
+	}
+
+	private AsyncPostOfficeClient<StringMessage> connectAsync(String mailbox) throws Exception {
+
+		AsyncPostOfficeClient<StringMessage> client = new AsyncPostOfficeClient<StringMessage>(StringMessage.class);
+
+		client.connect("127.0.0.1", postOffice.getLocalPort(), TIMEOUT);
+		client.createMailbox(mailbox, "password");
+		client.checkoutMailbox(mailbox, "password").get();
+
+		return client;
+	}
+
+	@Override
+	public int operation(int thread) throws Exception {
+
+		if(mode == Mode.ASYNC){
+
+			MailFuture<Void> last = null;
+
+			for(int i = 0; i < BATCH; i++)
+				last = asyncSender.sendMessage("bench-recipient", message);
+
+			// The server answers a connection's sends in order.
+			last.get();
+
+			if(!pushed.tryAcquire(BATCH, TIMEOUT, TimeUnit.MILLISECONDS))
+				throw new IllegalStateException("Letters went missing.");
+
+			return BATCH;
+		}
+
+		if(mode == Mode.ROUND_TRIP){
+
+			sender.sendMessage("bench-recipient", message);
+
+			Harness.consume(recipient.getMessage(TIMEOUT).getMessage().length());
+
+			return 1;
+		}
+
+		for(int i = 0; i < BATCH; i++)
+			sender.pipelineMessage("bench-recipient", message);
+
+		sender.flushPipeline();
+
+		int received = 0;
+
+		while(received < BATCH)
+			received += recipient.getMessages(BATCH - received, 0, TIMEOUT).size();
+
+		Harness.consume(received);
+
+		return BATCH;
+	}
+
+	@Override
+	public void tearDown() throws Exception {
+
+		if(mode == Mode.ASYNC){
+
+			asyncSender.disconnect().get();
+			asyncRecipient.disconnect().get();
+		}
+		else {
+
+			sender.disconnect();
+			recipient.disconnect();
+		}
+
+		postOffice.shutdown();
+	}
+}
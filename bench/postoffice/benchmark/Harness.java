@@ -0,0 +1,334 @@
+package postoffice.benchmark;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a {@link Benchmark} through a fixed number of timed warmup and measurement
+ * iterations, in the manner of JMH. Each iteration reports the operations completed
+ * per second across all benchmark threads; benchmarks that record latency also get
+ * percentiles of the time taken by each call.
+ */
+public class Harness {
+
+	// Most latency samples kept per thread and iteration; later calls go unrecorded.
+	private static final int MAX_SAMPLES = 1 << 20;
+
+	private static volatile long sink;
+
+	private int warmupIterations;
+	private int measurementIterations;
+	private long iterationTime;
+
+	private PrintStream out;
+
+	/**
+	 * @param warmupIterations The number of iterations run before measuring.
+	 * @param measurementIterations The number of iterations measured.
+	 * @param iterationTime The length of each iteration in milliseconds.
+	 * @param out Where progress is reported.
+	 */
+	public Harness(int warmupIterations, int measurementIterations, long iterationTime, PrintStream out){
+
+		this.warmupIterations = warmupIterations;
+		this.measurementIterations = measurementIterations;
+		this.iterationTime = iterationTime;
+		this.out = out;
+	}
+
+	/**
+	 * Keeps a result alive so that the work producing it cannot be optimised away.
+	 *
+	 * @param value The result.
+	 */
+	public static void consume(long value){
+
+		sink = value;
+	}
+
+	/**
+	 * Runs a benchmark from set up to tear down.
+	 *
+	 * @param benchmark The benchmark to run.
+	 * @return The measured result.
+	 * @throws Exception Thrown if the benchmark fails.
+	 */
+	public Result run(Benchmark benchmark) throws Exception {
+
+		out.println("# Benchmark: " + benchmark.getName());
+		out.println("# Threads: " + benchmark.getThreads() + ", warmup: " + warmupIterations + " x " + iterationTime
+				+ " ms, measurement: " + measurementIterations + " x " + iterationTime + " ms");
+
+		benchmark.setUp();
+
+		try {
+
+			for(int i = 0; i < warmupIterations; i++){
+
+				Iteration iteration = iterate(benchmark);
+				out.println(String.format("Warmup iteration %2d: %,.0f ops/s", i + 1, iteration.throughput));
+			}
+
+			double[] throughput = new double[measurementIterations];
+			long[][] samples = new long[measurementIterations][];
+
+			for(int i = 0; i < measurementIterations; i++){
+
+				Iteration iteration = iterate(benchmark);
+
+				throughput[i] = iteration.throughput;
+				samples[i] = iteration.samples;
+
+				out.println(String.format("Iteration %2d: %,.0f ops/s", i + 1, iteration.throughput));
+			}
+
+			Result result = new Result(benchmark.getName(), throughput, benchmark.recordsLatency() ? merge(samples) : null);
+
+			out.println(result.describe());
+			out.println();
+
+			return result;
+
+		} finally {
+
+			benchmark.tearDown();
+		}
+	}
+
+	private Iteration iterate(final Benchmark benchmark) throws Exception {
+
+		final int threads = benchmark.getThreads();
+		final boolean timed = benchmark.recordsLatency();
+
+		final CyclicBarrier start = new CyclicBarrier(threads + 1);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		final long[] operations = new long[threads];
+		final long[] elapsed = new long[threads];
+		final long[][] samples = new long[threads][];
+		final int[] sampleCounts = new int[threads];
+
+		final Iteration iteration = new Iteration();
+
+		Thread[] workers = new Thread[threads];
+
+		for(int t = 0; t < threads; t++){
+
+			final int index = t;
+
+			workers[t] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+
+					long count = 0;
+					long[] recorded = timed ? new long[1024] : null;
+					int recordedCount = 0;
+
+					try {
+
+						start.await();
+
+						long begin = System.nanoTime();
+
+						while(!iteration.stopped){
+
+							if(timed){
+
+								long before = System.nanoTime();
+								count += benchmark.operation(index);
+								long taken = System.nanoTime() - before;
+
+								if(recordedCount == recorded.length && recorded.length < MAX_SAMPLES)
+									recorded = Arrays.copyOf(recorded, recorded.length * 2);
+
+								if(recordedCount < recorded.length)
+									recorded[recordedCount++] = taken;
+							}
+							else
+								count += benchmark.operation(index);
+						}
+
+						elapsed[index] = System.nanoTime() - begin;
+
+					} catch (Throwable e) {
+
+						failure.compareAndSet(null, e);
+						iteration.stopped = true;
+					}
+
+					operations[index] = count;
+					samples[index] = recorded;
+					sampleCounts[index] = recordedCount;
+				}
+			}, "benchmark-" + t);
+
+			workers[t].start();
+		}
+
+		start.await();
+
+		Thread.sleep(iterationTime);
+		iteration.stopped = true;
+
+		for(Thread worker : workers)
+			worker.join();
+
+		if(failure.get() != null)
+			throw new Exception("Benchmark '" + benchmark.getName() + "' failed.", failure.get());
+
+		long total = 0;
+		long longest = 1;
+
+		for(int t = 0; t < threads; t++){
+
+			total += operations[t];
+			longest = Math.max(longest, elapsed[t]);
+		}
+
+		iteration.throughput = total * 1e9 / longest;
+
+		if(timed){
+
+			long[][] trimmed = new long[threads][];
+
+			for(int t = 0; t < threads; t++)
+				trimmed[t] = Arrays.copyOf(samples[t], sampleCounts[t]);
+
+			iteration.samples = merge(trimmed);
+		}
+
+		return iteration;
+	}
+
+	private static long[] merge(long[][] parts){
+
+		int length = 0;
+
+		for(long[] part : parts)
+			length += part.length;
+
+		long[] merged = new long[length];
+		int position = 0;
+
+		for(long[] part : parts){
+
+			System.arraycopy(part, 0, merged, position, part.length);
+			position += part.length;
+		}
+
+		Arrays.sort(merged);
+
+		return merged;
+	}
+
+	private static class Iteration {
+
+		volatile boolean stopped = false;
+
+		double throughput;
+		long[] samples;
+	}
+
+	/**
+	 * The measured outcome of one benchmark trial.
+	 */
+	public static class Result {
+
+		private String name;
+		private double[] throughput;
+		private long[] latencies;
+
+		Result(String name, double[] throughput, long[] latencies){
+
+			this.name = name;
+			this.throughput = throughput;
+			this.latencies = latencies;
+		}
+
+		public String getName(){
+
+			return name;
+		}
+
+		/**
+		 * @return The mean throughput over the measurement iterations, in operations per second.
+		 */
+		public double getMean(){
+
+			double sum = 0;
+
+			for(double value : throughput)
+				sum += value;
+
+			return sum / throughput.length;
+		}
+
+		/**
+		 * @return The standard deviation of the throughput between measurement iterations.
+		 */
+		public double getDeviation(){
+
+			if(throughput.length < 2)
+				return 0;
+
+			double mean = getMean();
+			double squares = 0;
+
+			for(double value : throughput)
+				squares += (value - mean) * (value - mean);
+
+			return Math.sqrt(squares / (throughput.length - 1));
+		}
+
+		/**
+		 * @param quantile A quantile between zero and one.
+		 * @return The latency at that quantile in nanoseconds, or -1 if latency was not recorded.
+		 */
+		public long getLatency(double quantile){
+
+			if(latencies == null || latencies.length == 0)
+				return -1;
+
+			return latencies[(int) Math.min(latencies.length - 1, Math.floor(quantile * latencies.length))];
+		}
+
+		String describe(){
+
+			StringBuilder sb = new StringBuilder();
+
+			sb.append(String.format("Result: %,.0f +- %,.0f ops/s (mean +- stddev of %d iterations)",
+					getMean(), getDeviation(), throughput.length));
+
+			if(latencies != null && latencies.length > 0){
+
+				sb.append(String.format("%nLatency: p50 %s, p90 %s, p99 %s, p99.9 %s, max %s (%,d samples)",
+						micros(getLatency(0.5)), micros(getLatency(0.9)), micros(getLatency(0.99)),
+						micros(getLatency(0.999)), micros(latencies[latencies.length - 1]), latencies.length));
+			}
+
+			return sb.toString();
+		}
+
+		/**
+		 * @return The result as a row of the summary table.
+		 */
+		String summarize(){
+
+			return String.format("%-56s %16.0f %14.0f %12s %12s", name, getMean(), getDeviation(),
+					latencies == null ? "" : micros(getLatency(0.5)), latencies == null ? "" : micros(getLatency(0.99)));
+		}
+
+		static String summaryHeader(){
+
+			return String.format("%-56s %16s %14s %12s %12s", "Benchmark", "ops/s", "stddev", "p50", "p99");
+		}
+
+		private static String micros(long nanos){
+
+			return String.format("%.1f us", nanos / 1000.0);
+		}
+	}
+}
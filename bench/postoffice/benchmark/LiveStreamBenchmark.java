@@ -0,0 +1,222 @@
+package postoffice.benchmark;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import postoffice.client.PostOfficeClient;
+import postoffice.daemon.PostOffice;
+import postoffice.daemon.PostOfficeConfig;
+import postoffice.datatypes.LiveStreamMessage;
+import postoffice.testing.StringMessage;
+
+/**
+ * Streams bytes one way through a number of live streams at once, relayed by a daemon,
+ * brokered by one, or over plain loopback connections for comparison, so the difference
+ * is the cost of the relay. Each benchmark thread feeds one stream and a thread of its
+ * own drains the other end. An operation is one mebibyte written, so the score is in MiB/s.
+ */
+public class LiveStreamBenchmark extends Benchmark {
+
+	/**
+	 * How the streams are set up.
+	 */
+	public static enum Mode {
+
+		/** Through the daemon's relay. */
+		RELAYED,
+
+		/** Brokered by the daemon, with the participants connected to each other. */
+		BROKERED,
+
+		/** Over connections made without a daemon. */
+		LOOPBACK
+	}
+
+	private static final int CHUNK = 1024 * 1024;
+	private static final int TIMEOUT = 5000;
+
+	private int streams;
+	private Mode mode;
+
+	private PostOffice postOffice;
+	private ServerSocketChannel direct;
+
+	private SocketChannel[] sources;
+	private SocketChannel[] sinks;
+
+	private ByteBuffer[] chunks;
+
+	/**
+	 * @param streams The number of streams fed concurrently.
+	 * @param mode How the streams are set up.
+	 */
+	public LiveStreamBenchmark(int streams, Mode mode){
+
+		this.streams = streams;
+		this.mode = mode;
+	}
+
+	@Override
+	public String getName(){
+
+		return "liveStream." + mode.name().toLowerCase() + " streams=" + streams;
+	}
+
+	@Override
+	public int getThreads(){
+
+		return streams;
+	}
+
+	@Override
+	public void setUp() throws Exception {
+
+		sources = new SocketChannel[streams];
+		sinks = new SocketChannel[streams];
+		chunks = new ByteBuffer[streams];
+
+		if(mode != Mode.LOOPBACK){
+
+			PostOfficeConfig config = new PostOfficeConfig();
+			config.setPort(0);
+
+			postOffice = PostOffice.createPostOffice(config);
+
+			for(int i = 0; i < streams; i++)
+				open(i);
+		}
+		else {
+
+			direct = ServerSocketChannel.open();
+			direct.bind(new InetSocketAddress("127.0.0.1", 0));
+
+			for(int i = 0; i < streams; i++){
+
+				sources[i] = SocketChannel.open(direct.getLocalAddress());
+				sinks[i] = direct.accept();
+			}
+		}
+
+		for(int i = 0; i < streams; i++){
+
+			chunks[i] = ByteBuffer.allocateDirect(CHUNK);
+
+			final SocketChannel sink = sinks[i];
+
+			Thread drain = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+
+					ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+
+					try {
+
+						while(sink.read(buffer) >= 0)
+							buffer.clear();
+
+					} catch (Exception e) {} // The stream was closed by tearDown().
+				}
+			}, "bench-drain-" + i);
+
+			drain.setDaemon(true);
+			drain.start();
+		}
+	}
+
+	private void open(int index) throws Exception {
+
+		final String requester = "bench-source-" + index;
+		final String partner = "bench-sink-" + index;
+
+		final PostOfficeClient<StringMessage> a = connect(requester);
+		final PostOfficeClient<StringMessage> b = connect(partner);
+
+		final SocketChannel[] opened = new SocketChannel[1];
+		final Exception[] failure = new Exception[1];
+
+		// Opening waits for the partner, so the requester opens from a thread of its own.
+		Thread t = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+
+				try {
+
+					if(mode == Mode.BROKERED)
+						opened[0] = a.openLiveStream(partner, "password", TIMEOUT);
+					else
+						opened[0] = a.joinLiveStream(a.requestLiveStream(partner), requester, "password");
+
+				} catch (Exception e) {
+
+					failure[0] = e;
+				}
+			}
+		});
+
+		t.start();
+
+		LiveStreamMessage announcement = LiveStreamMessage.from(b.getMessage(TIMEOUT));
+
+		if(announcement.isBrokered() != (mode == Mode.BROKERED))
+			throw new IllegalStateException("The live stream was not set up as asked.");
+
+		if(mode == Mode.BROKERED)
+			sinks[index] = b.joinLiveStream(announcement, partner, "password", TIMEOUT);
+		else
+			sinks[index] = b.joinLiveStream(announcement.getLiveStreamId(), partner, "password");
+
+		t.join();
+
+		if(failure[0] != null)
+			throw failure[0];
+
+		sources[index] = opened[0];
+
+		a.disconnect();
+		b.disconnect();
+	}
+
+	private PostOfficeClient<StringMessage> connect(String mailbox) throws Exception {
+
+		PostOfficeClient<StringMessage> client = new PostOfficeClient<StringMessage>(StringMessage.class);
+
+		client.connect("127.0.0.1", postOffice.getLocalPort(), TIMEOUT);
+		client.createMailbox(mailbox, "password");
+		client.checkoutMailbox(mailbox, "password");
+
+		return client;
+	}
+
+	@Override
+	public int operation(int thread) throws Exception {
+
+		ByteBuffer chunk = chunks[thread];
+
+		chunk.clear();
+
+		while(chunk.hasRemaining())
+			sources[thread].write(chunk);
+
+		return 1;
+	}
+
+	@Override
+	public void tearDown() throws Exception {
+
+		for(int i = 0; i < streams; i++){
+
+			sources[i].close();
+			sinks[i].close();
+		}
+
+		if(postOffice != null)
+			postOffice.shutdown();
+
+		if(direct != null)
+			direct.close();
+	}
+}
@@ -0,0 +1,42 @@
+package postoffice.benchmark;
+
+import java.util.UUID;
+
+import postoffice.datatypes.LiveStreamMessage;
+
+/**
+ * Marshals a live stream control message and demarshals it into a fresh one, as the
+ * daemon and both participants do for every stream set up.
+ */
+public class LiveStreamMessageBenchmark extends Benchmark {
+
+	private LiveStreamMessage message;
+
+	@Override
+	public String getName(){
+
+		return "liveStreamMessage.marshalDemarshal";
+	}
+
+	@Override
+	public void setUp(){
+
+		// Fixed so that every run marshals the same bytes.
+		UUID id = new UUID(0x5eed5eed5eed5eedL, 0x0123456789abcdefL);
+
+		message = new LiveStreamMessage(id, "participant-a", "participant-b");
+	}
+
+	@Override
+	public int operation(int thread){
+
+		byte[] data = message.marshal();
+
+		LiveStreamMessage copy = new LiveStreamMessage(null, null, null);
+		copy.demarshal(data);
+
+		Harness.consume(data.length + copy.hashCode());
+
+		return 1;
+	}
+}
@@ -0,0 +1,78 @@
+package postoffice.benchmark;
+
+import postoffice.daemon.PostOfficeConfig.LetterStorage;
+import postoffice.datatypes.Letter;
+import postoffice.datatypes.MailQuota;
+import postoffice.datatypes.Mailbox;
+import postoffice.datatypes.SlabPool;
+
+/**
+ * Every thread delivers a letter to one shared mailbox and takes a letter back out, so
+ * the threads contend on the same queue.
+ */
+public class MailboxBenchmark extends Benchmark {
+
+	private static final int PAYLOAD_SIZE = 128;
+
+	private int threads;
+	private LetterStorage storage;
+	private boolean limited;
+
+	private Mailbox mailbox;
+	private Letter[] letters;
+
+	/**
+	 * @param threads The number of contending threads.
+	 * @param storage Where queued letters are kept.
+	 * @param limited True to give the mailbox a quota, measuring its accounting.
+	 */
+	public MailboxBenchmark(int threads, LetterStorage storage, boolean limited){
+
+		this.threads = threads;
+		this.storage = storage;
+		this.limited = limited;
+	}
+
+	@Override
+	public String getName(){
+
+		return "mailbox.deliverPop storage=" + storage + (limited ? " quota" : "") + " threads=" + threads;
+	}
+
+	@Override
+	public int getThreads(){
+
+		return threads;
+	}
+
+	@Override
+	public void setUp(){
+
+		SlabPool slabs = storage == LetterStorage.OFF_HEAP ? new SlabPool(256 * 1024, 4) : null;
+		MailQuota limits = limited ? new MailQuota(1024, 1024 * 1024, MailQuota.Policy.REJECT) : null;
+
+		mailbox = new Mailbox("bench", new byte[16], null, slabs, limits, null);
+		letters = new Letter[threads];
+
+		for(int t = 0; t < threads; t++)
+			letters[t] = new Letter("sender-" + t, "bench", new byte[PAYLOAD_SIZE]);
+	}
+
+	@Override
+	public int operation(int thread) throws Exception {
+
+		mailbox.offer(letters[thread], null);
+
+		Letter letter = mailbox.popMessage();
+
+		Harness.consume(letter == null ? 0 : letter.getPayloadLength());
+
+		return 1;
+	}
+
+	@Override
+	public void tearDown(){
+
+		mailbox.destroy();
+	}
+}
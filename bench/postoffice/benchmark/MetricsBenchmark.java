@@ -0,0 +1,87 @@
+package postoffice.benchmark;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import postoffice.metrics.LatencyHistogram;
+import postoffice.metrics.StripedCounter;
+
+/**
+ * Every thread records into one shared metric, as clerks do for every letter they
+ * handle. A single atomic counter is measured alongside for comparison.
+ */
+public class MetricsBenchmark extends Benchmark {
+
+	public static enum Kind {
+
+		ATOMIC,
+		STRIPED,
+		HISTOGRAM
+	}
+
+	private Kind kind;
+	private int threads;
+
+	private AtomicLong atomic;
+	private StripedCounter counter;
+	private LatencyHistogram histogram;
+
+	/**
+	 * @param kind The metric recorded into.
+	 * @param threads The number of contending threads.
+	 */
+	public MetricsBenchmark(Kind kind, int threads){
+
+		this.kind = kind;
+		this.threads = threads;
+	}
+
+	@Override
+	public String getName(){
+
+		return "metrics.record kind=" + kind + " threads=" + threads;
+	}
+
+	@Override
+	public int getThreads(){
+
+		return threads;
+	}
+
+	@Override
+	public void setUp(){
+
+		atomic = new AtomicLong();
+		counter = new StripedCounter();
+		histogram = new LatencyHistogram();
+	}
+
+	@Override
+	public int operation(int thread){
+
+		switch(kind){
+
+			case ATOMIC:
+
+				atomic.incrementAndGet();
+				break;
+
+			case STRIPED:
+
+				counter.increment();
+				break;
+
+			default:
+
+				// Timing a request reads the clock anyway; the low bits spread values up to a millisecond.
+				histogram.record(System.nanoTime() & 0xFFFFF);
+		}
+
+		return 1;
+	}
+
+	@Override
+	public void tearDown(){
+
+		Harness.consume(atomic.get() + counter.sum() + histogram.snapshot().getCount());
+	}
+}
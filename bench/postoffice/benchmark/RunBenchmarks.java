@@ -0,0 +1,228 @@
+package postoffice.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.varia.NullAppender;
+
+import postoffice.daemon.ClerkLogBenchmark;
+import postoffice.daemon.PostOfficeConfig.Engine;
+import postoffice.daemon.PostOfficeConfig.LetterStorage;
+import postoffice.daemon.PublishBenchmark;
+import postoffice.daemon.RouteBenchmark;
+import postoffice.daemon.SendLetterBenchmark;
+import postoffice.datatypes.CommFlags;
+import postoffice.datatypes.SharedMemorySocket;
+import postoffice.datatypes.UnixDomainSocket;
+
+/**
+ * Runs the benchmark suite. Like JMH, every benchmark is run in a fresh JVM by default
+ * so that code compiled for one does not skew the next.
+ *
+ * Usage: RunBenchmarks [-wi warmups] [-i iterations] [-r millis] [-f forks] [-l] [regex]
+ */
+public class RunBenchmarks {
+
+	// Marks the lines a forked JVM reports its result on.
+	private static final String SUMMARY_PREFIX = "# summary: ";
+
+	private static List<Benchmark> suite(){
+
+		List<Benchmark> suite = new ArrayList<Benchmark>();
+
+		for(LetterStorage storage : LetterStorage.values()){
+
+			suite.add(new MailboxBenchmark(1, storage, false));
+			suite.add(new MailboxBenchmark(4, storage, false));
+		}
+
+		suite.add(new MailboxBenchmark(4, LetterStorage.HEAP, true));
+
+		for(LetterStorage storage : LetterStorage.values()){
+
+			suite.add(new SelectiveReceiveBenchmark(storage, true));
+			suite.add(new SelectiveReceiveBenchmark(storage, false));
+		}
+
+		suite.add(new SendLetterBenchmark(1));
+		suite.add(new SendLetterBenchmark(4));
+		suite.add(new PublishBenchmark(1000, true));
+		suite.add(new PublishBenchmark(1000, false));
+		suite.add(new RouteBenchmark(true));
+		suite.add(new RouteBenchmark(false));
+
+		suite.add(new LiveStreamMessageBenchmark());
+
+		for(ClerkLogBenchmark.Style style : ClerkLogBenchmark.Style.values())
+			suite.add(new ClerkLogBenchmark(style));
+
+		for(MetricsBenchmark.Kind kind : MetricsBenchmark.Kind.values()){
+
+			suite.add(new MetricsBenchmark(kind, 1));
+			suite.add(new MetricsBenchmark(kind, 4));
+		}
+
+		for(Engine engine : new Engine[] { Engine.THREAD_PER_CLERK, Engine.SELECTOR }){
+
+			suite.add(new ClientBenchmark(engine, CommFlags.PROTOCOL_LEGACY, ClientBenchmark.Mode.ROUND_TRIP));
+			suite.add(new ClientBenchmark(engine, CommFlags.PROTOCOL_FRAMED, ClientBenchmark.Mode.ROUND_TRIP));
+			suite.add(new ClientBenchmark(engine, CommFlags.PROTOCOL_FRAMED, ClientBenchmark.Mode.PIPELINED));
+			suite.add(new ClientBenchmark(engine, CommFlags.PROTOCOL_FRAMED, ClientBenchmark.Mode.ASYNC));
+			suite.add(new ClientBenchmark(engine, CommFlags.PROTOCOL_COMPACT, ClientBenchmark.Mode.ROUND_TRIP));
+			suite.add(new ClientBenchmark(engine, CommFlags.PROTOCOL_COMPACT, ClientBenchmark.Mode.PIPELINED));
+
+			if(UnixDomainSocket.isSupported()){
+
+				suite.add(new ClientBenchmark(engine, CommFlags.PROTOCOL_FRAMED, ClientBenchmark.Mode.ROUND_TRIP, ClientBenchmark.Transport.UNIX));
+				suite.add(new ClientBenchmark(engine, CommFlags.PROTOCOL_FRAMED, ClientBenchmark.Mode.PIPELINED, ClientBenchmark.Transport.UNIX));
+				suite.add(new ClientBenchmark(engine, CommFlags.PROTOCOL_COMPACT, ClientBenchmark.Mode.PIPELINED, ClientBenchmark.Transport.UNIX));
+			}
+
+			// The selector engine declines shared memory, as its connections share threads.
+			if(engine == Engine.THREAD_PER_CLERK && SharedMemorySocket.isSupported()){
+
+				suite.add(new ClientBenchmark(engine, CommFlags.PROTOCOL_FRAMED, ClientBenchmark.Mode.ROUND_TRIP, ClientBenchmark.Transport.SHARED_MEMORY));
+				suite.add(new ClientBenchmark(engine, CommFlags.PROTOCOL_FRAMED, ClientBenchmark.Mode.PIPELINED, ClientBenchmark.Transport.SHARED_MEMORY));
+			}
+		}
+
+		for(int streams : new int[] { 1, 8 }){
+
+			suite.add(new LiveStreamBenchmark(streams, LiveStreamBenchmark.Mode.RELAYED));
+			suite.add(new LiveStreamBenchmark(streams, LiveStreamBenchmark.Mode.BROKERED));
+			suite.add(new LiveStreamBenchmark(streams, LiveStreamBenchmark.Mode.LOOPBACK));
+		}
+
+		return suite;
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		int warmups = 3;
+		int iterations = 5;
+		long iterationTime = 1000;
+		int forks = 1;
+		boolean list = false;
+		Pattern filter = Pattern.compile(".*");
+
+		for(int i = 0; i < args.length; i++){
+
+			if(args[i].equals("-wi"))
+				warmups = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-i"))
+				iterations = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-r"))
+				iterationTime = Long.parseLong(args[++i]);
+			else if(args[i].equals("-f"))
+				forks = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-l"))
+				list = true;
+			else
+				filter = Pattern.compile(args[i]);
+		}
+
+		// The daemon's debug logging would dominate what is being measured.
+		Logger.getRootLogger().removeAllAppenders();
+		Logger.getRootLogger().addAppender(new NullAppender());
+		Logger.getRootLogger().setLevel(Level.WARN);
+
+		List<Benchmark> selected = new ArrayList<Benchmark>();
+
+		for(Benchmark benchmark : suite()){
+
+			if(filter.matcher(benchmark.getName()).find())
+				selected.add(benchmark);
+		}
+
+		if(list){
+
+			for(Benchmark benchmark : selected)
+				System.out.println(benchmark.getName());
+
+			return;
+		}
+
+		List<String> summary = new ArrayList<String>();
+
+		if(forks <= 0){
+
+			Harness harness = new Harness(warmups, iterations, iterationTime, System.out);
+
+			for(Benchmark benchmark : selected){
+
+				Harness.Result result = harness.run(benchmark);
+				System.out.println(SUMMARY_PREFIX + result.summarize());
+			}
+
+			// Stray clerk threads of the benchmarked daemons must not keep the JVM alive.
+			System.exit(0);
+		}
+
+		System.out.println("# JVM: " + System.getProperty("java.vm.name") + " " + System.getProperty("java.version"));
+		System.out.println("# Processors: " + Runtime.getRuntime().availableProcessors());
+		System.out.println();
+
+		for(Benchmark benchmark : selected){
+
+			for(int fork = 0; fork < forks; fork++)
+				summary.addAll(fork(benchmark, warmups, iterations, iterationTime));
+		}
+
+		System.out.println(Harness.Result.summaryHeader());
+
+		for(String line : summary)
+			System.out.println(line);
+	}
+
+	/**
+	 * Runs a single benchmark in a new JVM started with this one's settings.
+	 *
+	 * @return The summary lines it reported.
+	 */
+	private static List<String> fork(Benchmark benchmark, int warmups, int iterations, long iterationTime) throws Exception {
+
+		List<String> command = new ArrayList<String>();
+
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(RunBenchmarks.class.getName());
+		command.add("-f");
+		command.add("0");
+		command.add("-wi");
+		command.add(String.valueOf(warmups));
+		command.add("-i");
+		command.add(String.valueOf(iterations));
+		command.add("-r");
+		command.add(String.valueOf(iterationTime));
+		command.add("^" + Pattern.quote(benchmark.getName()) + "$");
+
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+
+		List<String> summary = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+
+		String line;
+
+		while((line = reader.readLine()) != null){
+
+			if(line.startsWith(SUMMARY_PREFIX))
+				summary.add(line.substring(SUMMARY_PREFIX.length()));
+			else
+				System.out.println(line);
+		}
+
+		if(process.waitFor() != 0)
+			throw new Exception("The forked JVM running '" + benchmark.getName() + "' failed.");
+
+		return summary;
+	}
+}
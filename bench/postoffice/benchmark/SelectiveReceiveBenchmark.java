@@ -0,0 +1,90 @@
+package postoffice.benchmark;
+
+import postoffice.daemon.PostOfficeConfig.LetterStorage;
+import postoffice.datatypes.Letter;
+import postoffice.datatypes.Mailbox;
+import postoffice.datatypes.SenderFilter;
+import postoffice.datatypes.SlabPool;
+
+/**
+ * Takes letters from one sender at a time out of a mailbox holding a large backlog from
+ * many others. Each operation delivers a letter from a sender picked at random and
+ * then takes the oldest letter from that sender, so the backlog stays the same size.
+ */
+public class SelectiveReceiveBenchmark extends Benchmark {
+
+	private static final int SENDERS = 100;
+	private static final int BACKLOG = 10000;
+	private static final int PAYLOAD_SIZE = 128;
+
+	private LetterStorage storage;
+	private boolean exact;
+
+	private Mailbox mailbox;
+
+	private String[] senders;
+	private SenderFilter[] filters;
+
+	private byte[] payload = new byte[PAYLOAD_SIZE];
+	private long seed = 0x9e3779b97f4a7c15L;
+
+	/**
+	 * @param storage Where queued letters are kept.
+	 * @param exact True to name the sender exactly, false to use a general expression.
+	 */
+	public SelectiveReceiveBenchmark(LetterStorage storage, boolean exact){
+
+		this.storage = storage;
+		this.exact = exact;
+	}
+
+	@Override
+	public String getName(){
+
+		return "mailbox.selectivePop storage=" + storage + " filter=" + (exact ? "exact" : "pattern");
+	}
+
+	@Override
+	public void setUp() throws Exception {
+
+		SlabPool slabs = storage == LetterStorage.OFF_HEAP ? new SlabPool(256 * 1024, 4) : null;
+
+		mailbox = new Mailbox("bench", new byte[16], null, slabs, null, null);
+
+		senders = new String[SENDERS];
+		filters = new SenderFilter[SENDERS];
+
+		for(int i = 0; i < SENDERS; i++){
+
+			senders[i] = "sender" + i;
+			filters[i] = SenderFilter.compile(exact ? SenderFilter.exactly(senders[i]) : "^" + senders[i] + "$");
+		}
+
+		for(int i = 0; i < BACKLOG; i++)
+			mailbox.offer(new Letter(senders[i % SENDERS], "bench", payload), null);
+	}
+
+	@Override
+	public int operation(int thread) throws Exception {
+
+		seed ^= seed << 13;
+		seed ^= seed >>> 7;
+		seed ^= seed << 17;
+
+		int sender = (int) ((seed >>> 1) % SENDERS);
+
+		mailbox.offer(new Letter(senders[sender], "bench", payload), null);
+
+		Letter letter = mailbox.popMessage(filters[sender]);
+
+		Harness.consume(letter.getPayloadLength());
+
+		return 1;
+	}
+
+	@Override
+	public void tearDown(){
+
+		mailbox.destroy();
+	}
+}
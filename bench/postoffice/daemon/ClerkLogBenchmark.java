@@ -0,0 +1,103 @@
+package postoffice.daemon;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.Priority;
+
+import postoffice.benchmark.Benchmark;
+import postoffice.benchmark.Harness;
+import postoffice.datatypes.CommFlags.REQ;
+import postoffice.datatypes.Mailbox;
+
+/**
+ * Makes the logging calls a clerk makes for one letter sent and picked up over the
+ * original protocol, with DEBUG disabled as in production. The concatenated style is
+ * how clerks used to log, building every message before log4j checked the level; the
+ * parameterized style is {@link ClerkLog}.
+ *
+ * Lives in the daemon package to reach the clerks' logger.
+ */
+public class ClerkLogBenchmark extends Benchmark {
+
+	public static enum Style {
+
+		CONCATENATED,
+		PARAMETERIZED
+	}
+
+	private static Logger logger = Logger.getLogger(MailClerk.class);
+
+	private Style style;
+
+	private ClerkLog log;
+	private int id = 42;
+
+	private Mailbox mailbox;
+	private String recipient = "recipient";
+
+	/**
+	 * @param style How messages are logged.
+	 */
+	public ClerkLogBenchmark(Style style){
+
+		this.style = style;
+	}
+
+	@Override
+	public String getName(){
+
+		return "clerk.logPerLetter style=" + style;
+	}
+
+	@Override
+	public void setUp(){
+
+		log = new ClerkLog(logger, id);
+		mailbox = new Mailbox(recipient, new byte[16]);
+	}
+
+	@Override
+	public int operation(int thread){
+
+		if(style == Style.CONCATENATED){
+
+			concatenated(Level.DEBUG, "Received command " + REQ.SENDLETTER.name());
+			concatenated(Level.DEBUG, "Message sent to '" + recipient + "'.");
+			concatenated(Level.DEBUG, "Command " + REQ.SENDLETTER.name() + " completed.");
+
+			concatenated(Level.DEBUG, "Received command " + REQ.GETMAIL.name());
+			concatenated(Level.DEBUG, "Requesting mail from a mailbox storing " + mailbox.getQueueSize() + " messages.");
+			concatenated(Level.DEBUG, "Client requesting next letter.");
+			concatenated(Level.DEBUG, "Sending message to socket...");
+			concatenated(Level.DEBUG, "Sending complete.");
+			concatenated(Level.DEBUG, "Client indicates satiation.");
+			concatenated(Level.DEBUG, "Command " + REQ.GETMAIL.name() + " completed.");
+		}
+		else {
+
+			log.debug("Received command {}", REQ.SENDLETTER);
+			log.debug("Message sent to '{}'.", recipient);
+			log.debug("Command {} completed.", REQ.SENDLETTER);
+
+			log.debug("Received command {}", REQ.GETMAIL);
+
+			if(log.isDebugEnabled())
+				log.debug("Requesting mail from a mailbox storing {} messages.", mailbox.getQueueSize());
+
+			log.debug("Client requesting next letter.");
+			log.debug("Sending message to socket...");
+			log.debug("Sending complete.");
+			log.debug("Client indicates satiation.");
+			log.debug("Command {} completed.", REQ.GETMAIL);
+		}
+
+		Harness.consume(id);
+
+		return 1;
+	}
+
+	private void concatenated(Priority priority, String message){
+
+		logger.log(priority, "[ID: " + id + "] " + message);
+	}
+}
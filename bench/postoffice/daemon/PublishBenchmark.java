@@ -0,0 +1,102 @@
+package postoffice.daemon;
+
+import postoffice.benchmark.Benchmark;
+import postoffice.benchmark.Harness;
+import postoffice.datatypes.Letter;
+import postoffice.datatypes.Mailbox;
+
+/**
+ * Delivers one letter to every mailbox in a group, either with a single publish to a
+ * topic they all subscribe to or with one {@link PostOffice#sendLetter(Letter)} per
+ * mailbox, measuring the server side of the fan-out without any network in the way.
+ * Every copy is taken back out of its mailbox so the queues stay short, and each
+ * operation counts one delivered copy.
+ *
+ * Lives in the daemon package to reach the post office's internal API.
+ */
+public class PublishBenchmark extends Benchmark {
+
+	private static final int PAYLOAD_SIZE = 1024;
+
+	private int subscribers;
+	private boolean topic;
+
+	private PostOffice postOffice;
+
+	private String[] ids;
+	private Mailbox[] boxes;
+
+	private byte[] payload = new byte[PAYLOAD_SIZE];
+
+	/**
+	 * @param subscribers The number of mailboxes each letter goes to.
+	 * @param topic True to publish to a topic, false to send each copy separately.
+	 */
+	public PublishBenchmark(int subscribers, boolean topic){
+
+		this.subscribers = subscribers;
+		this.topic = topic;
+	}
+
+	@Override
+	public String getName(){
+
+		return "postOffice." + (topic ? "publish" : "sendEach") + " subscribers=" + subscribers;
+	}
+
+	@Override
+	public void setUp() throws Exception {
+
+		PostOfficeConfig config = new PostOfficeConfig();
+		config.setPort(0);
+
+		postOffice = PostOffice.createPostOffice(config);
+
+		ids = new String[subscribers];
+		boxes = new Mailbox[subscribers];
+
+		byte[] passwordHash = new byte[16];
+
+		for(int i = 0; i < subscribers; i++){
+
+			ids[i] = "subscriber-" + i;
+
+			postOffice.createMailbox(ids[i], passwordHash);
+			boxes[i] = postOffice.checkoutMailbox(ids[i], passwordHash, this);
+
+			postOffice.subscribe(boxes[i], "bench");
+		}
+	}
+
+	@Override
+	public int operation(int thread) throws Exception {
+
+		if(topic)
+			postOffice.publish("bench", new Letter("publisher", "bench", payload));
+		else {
+
+			for(String id : ids)
+				postOffice.sendLetter(new Letter("publisher", id, payload));
+		}
+
+		long received = 0;
+
+		for(Mailbox box : boxes){
+
+			Letter letter = box.popMessage();
+
+			received += letter.getPayloadLength();
+			letter.release();
+		}
+
+		Harness.consume(received);
+
+		return subscribers;
+	}
+
+	@Override
+	public void tearDown(){
+
+		postOffice.shutdown();
+	}
+}
@@ -0,0 +1,98 @@
+package postoffice.daemon;
+
+import postoffice.benchmark.Benchmark;
+import postoffice.benchmark.Harness;
+import postoffice.datatypes.Mailbox;
+
+/**
+ * Resolves routing patterns against a directory of 200,000 mailboxes addressed
+ * {@code regionR.siteS.sensorK}, either through the post office, which remembers each
+ * pattern's matches, or by matching the address trie afresh every time.
+ *
+ * Lives in the daemon package to reach the post office's internal API.
+ */
+public class RouteBenchmark extends Benchmark {
+
+	private static final int REGIONS = 20;
+	private static final int SITES = 100;
+	private static final int SENSORS = 100;
+
+	private boolean cached;
+
+	private PostOffice postOffice;
+	private AddressTrie directory;
+
+	private String[] patterns;
+	private int next = 0;
+
+	/**
+	 * @param cached True to resolve through the post office's cache, false to match the trie each time.
+	 */
+	public RouteBenchmark(boolean cached){
+
+		this.cached = cached;
+	}
+
+	@Override
+	public String getName(){
+
+		return "postOffice.resolve mailboxes=" + REGIONS * SITES * SENSORS + " cached=" + cached;
+	}
+
+	@Override
+	public void setUp() throws Exception {
+
+		PostOfficeConfig config = new PostOfficeConfig();
+		config.setPort(0);
+
+		postOffice = PostOffice.createPostOffice(config);
+		directory = new AddressTrie();
+
+		byte[] passwordHash = new byte[16];
+
+		for(int r = 0; r < REGIONS; r++){
+
+			for(int s = 0; s < SITES; s++){
+
+				for(int k = 0; k < SENSORS; k++){
+
+					String id = "region" + r + ".site" + s + ".sensor" + k;
+
+					postOffice.createMailbox(id, passwordHash);
+					directory.add(new Mailbox(id, passwordHash));
+				}
+			}
+		}
+
+		// A spread of narrow patterns, each matching one site's sensors or one sensor
+		// across a region's sites.
+		patterns = new String[64];
+
+		for(int i = 0; i < patterns.length; i++){
+
+			if(i % 2 == 0)
+				patterns[i] = "region" + (i % REGIONS) + ".site" + (i * 7 % SITES) + ".*";
+			else
+				patterns[i] = "region" + (i % REGIONS) + ".#.sensor" + (i * 13 % SENSORS);
+		}
+	}
+
+	@Override
+	public int operation(int thread) throws Exception {
+
+		String pattern = patterns[next++ & (patterns.length - 1)];
+
+		if(cached)
+			Harness.consume(postOffice.resolve(pattern).length);
+		else
+			Harness.consume(directory.match(pattern).size());
+
+		return 1;
+	}
+
+	@Override
+	public void tearDown(){
+
+		postOffice.shutdown();
+	}
+}
@@ -0,0 +1,107 @@
+package postoffice.daemon;
+
+import postoffice.benchmark.Benchmark;
+import postoffice.benchmark.Harness;
+import postoffice.datatypes.Letter;
+import postoffice.datatypes.Mailbox;
+
+/**
+ * Sends letters straight through {@link PostOffice#sendLetter(Letter)} to recipients
+ * picked at random from a large directory of mailboxes, measuring the lookup and
+ * delivery without any network in the way. Each letter is taken back out of its
+ * mailbox so the queues stay short.
+ *
+ * Lives in the daemon package to reach the post office's internal API.
+ */
+public class SendLetterBenchmark extends Benchmark {
+
+	private static final int MAILBOXES = 10000;
+	private static final int PAYLOAD_SIZE = 128;
+
+	private int threads;
+
+	private PostOffice postOffice;
+
+	private String[] ids;
+	private Mailbox[] boxes;
+
+	private long[] seeds;
+	private byte[] payload = new byte[PAYLOAD_SIZE];
+
+	/**
+	 * @param threads The number of concurrent senders.
+	 */
+	public SendLetterBenchmark(int threads){
+
+		this.threads = threads;
+	}
+
+	@Override
+	public String getName(){
+
+		return "postOffice.sendLetter mailboxes=" + MAILBOXES + " threads=" + threads;
+	}
+
+	@Override
+	public int getThreads(){
+
+		return threads;
+	}
+
+	@Override
+	public void setUp() throws Exception {
+
+		PostOfficeConfig config = new PostOfficeConfig();
+		config.setPort(0);
+
+		postOffice = PostOffice.createPostOffice(config);
+
+		ids = new String[MAILBOXES];
+		boxes = new Mailbox[MAILBOXES];
+
+		byte[] passwordHash = new byte[16];
+
+		for(int i = 0; i < MAILBOXES; i++){
+
+			ids[i] = "mailbox-" + i;
+
+			postOffice.createMailbox(ids[i], passwordHash);
+			boxes[i] = postOffice.checkoutMailbox(ids[i], passwordHash, this);
+		}
+
+		// Fixed seeds, so every run visits the mailboxes in the same order. Each thread's
+		// seed sits on its own cache line.
+		seeds = new long[threads * 8];
+
+		for(int t = 0; t < threads; t++)
+			seeds[t * 8] = 0x9e3779b97f4a7c15L * (t + 1);
+	}
+
+	@Override
+	public int operation(int thread) throws Exception {
+
+		long x = seeds[thread * 8];
+
+		x ^= x << 13;
+		x ^= x >>> 7;
+		x ^= x << 17;
+
+		seeds[thread * 8] = x;
+
+		int recipient = (int) ((x >>> 1) % MAILBOXES);
+
+		postOffice.sendLetter(new Letter("bench", ids[recipient], payload));
+
+		Letter letter = boxes[recipient].popMessage();
+
+		Harness.consume(letter == null ? 0 : letter.getPayloadLength());
+
+		return 1;
+	}
+
+	@Override
+	public void tearDown(){
+
+		postOffice.shutdown();
+	}
+}
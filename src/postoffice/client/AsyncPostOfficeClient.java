@@ -0,0 +1,1084 @@
+package postoffice.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+import postoffice.datatypes.CommFlags;
+import postoffice.datatypes.CommFlags.REQ;
+import postoffice.datatypes.CommFlags.RESP;
+import postoffice.datatypes.Frame;
+import postoffice.datatypes.Letter;
+import postoffice.datatypes.Message;
+import postoffice.datatypes.SenderFilter;
+import postoffice.exception.PostOfficeException;
+import postoffice.exception.comm.DeliveryFailureException;
+import postoffice.exception.comm.MailboxFullException;
+import postoffice.exception.mailbox.ExistentMailboxException;
+import postoffice.exception.mailbox.ExistingMailboxConnectionException;
+import postoffice.exception.mailbox.MailboxDisconnectedException;
+import postoffice.exception.mailbox.MailboxInUseException;
+import postoffice.exception.mailbox.NoMailException;
+import postoffice.exception.mailbox.NonExistentMailboxException;
+import postoffice.exception.mailbox.UnauthorizedActionException;
+
+/**
+ * A client that never blocks the threads using it. Requests are written to a single
+ * non-blocking channel and return a {@link MailFuture} straight away, and a thread of
+ * the client's own reads the responses and completes the futures, so a single
+ * application thread can keep thousands of requests outstanding on one connection.
+ * Mail can also be pushed to a {@link MailSubscriber} as it arrives, instead of being
+ * asked for letter by letter.
+ *
+ * The requests, and the exceptions they fail with, are those of {@link PostOfficeClient}.
+ * Requests are sent over the framed protocol ({@link CommFlags#PROTOCOL_FRAMED}) in the
+ * order they are made, and the server handles them in that order; their responses may
+ * arrive in any order. Servers that only speak the original protocol are refused when
+ * connecting.
+ *
+ * @param <T> The message type.
+ */
+public class AsyncPostOfficeClient<T extends Message> {
+
+	private static Logger logger = Logger.getLogger(AsyncPostOfficeClient.class);
+
+	// The most frames handed to a single gather write.
+	private static final int GATHER_LIMIT = 64;
+
+	// The initial size of the read buffer, which grows to fit larger frames.
+	private static final int READ_BUFFER = 64 * 1024;
+
+	// How long a subscription's drain may go without mail before it is reopened.
+	private static final int DRAIN_IDLE = 60000;
+
+	private Class<T> messageClass;
+
+	private SocketChannel sc = null;
+	private Selector selector;
+	private SelectionKey key;
+
+	private volatile String mailboxId = null;
+
+	private AtomicInteger nextRequestId = new AtomicInteger();
+
+	// Requests awaiting a response, by request id.
+	private Map<Integer, Pending> pending = new ConcurrentHashMap<Integer, Pending>();
+
+	// Frames queued by any thread for the I/O thread to write.
+	private Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	// Set while the I/O thread has been woken and has yet to look at the queue.
+	private AtomicBoolean woken = new AtomicBoolean();
+
+	// Only touched by the I/O thread.
+	private Deque<ByteBuffer> writing = new ArrayDeque<ByteBuffer>();
+	private ByteBuffer[] gather = new ByteBuffer[GATHER_LIMIT];
+	private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER);
+
+	private volatile boolean closed = false;
+	private volatile boolean disconnecting = false;
+
+	// Guarded by the client itself.
+	private Subscription subscription = null;
+
+	public AsyncPostOfficeClient(Class<T> messageClass){
+
+		this.messageClass = messageClass;
+	}
+
+	public String getMailboxId(){
+
+		return mailboxId;
+	}
+
+	/**
+	 * @return The number of requests sent that have yet to be answered, which an
+	 * application can use to bound its own backlog.
+	 */
+	public int getPendingRequests(){
+
+		return pending.size();
+	}
+
+	/**
+	 * Connects to a post office and negotiates the framed protocol. This is the only call
+	 * that blocks. A client connects once; after disconnecting, a new one is needed.
+	 *
+	 * @param address The address of the server.
+	 * @param port The port of the server.
+	 * @param timeout How long to wait for the connection to be set up, in milliseconds.
+	 * @throws IOException Thrown if the connection cannot be established, or if the
+	 * server does not support the framed protocol.
+	 */
+	public void connect(String address, int port, int timeout) throws IOException {
+
+		if(sc != null)
+			throw new IOException("This client has already been connected. Create a new one to connect again.");
+
+		SocketChannel channel = SocketChannel.open();
+
+		try {
+
+			channel.socket().connect(new InetSocketAddress(address, port), timeout);
+			channel.socket().setSoTimeout(timeout);
+
+			// Frames are already coalesced by the gather writes.
+			channel.socket().setTcpNoDelay(true);
+
+			negotiateFraming(channel.socket());
+
+			channel.configureBlocking(false);
+
+			selector = Selector.open();
+			key = channel.register(selector, SelectionKey.OP_READ);
+
+		} catch (IOException e) {
+
+			channel.close();
+
+			throw new IOException("Problem establishing post office connection.", e);
+		}
+
+		sc = channel;
+
+		Thread thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+
+				loop();
+			}
+
+		}, "postoffice-client-" + port);
+
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Switches the connection to the framed protocol, as {@link PostOfficeClient} does,
+	 * before it is made non-blocking.
+	 */
+	private static void negotiateFraming(Socket s) throws IOException {
+
+		DataInputStream is = new DataInputStream(s.getInputStream());
+		OutputStream os = s.getOutputStream();
+
+		os.write(REQ.PROTOCOL.ordinal());
+
+		if(is.read() == RESP.REQDATA.ordinal()){
+
+			os.write(ByteBuffer.allocate(4).putInt(CommFlags.PROTOCOL_FRAMED).array());
+
+			if(is.read() == RESP.REQGRANTED.ordinal())
+				return;
+		}
+
+		throw new IOException("The server does not support the framed protocol, which the asynchronous client requires.");
+	}
+
+	/**
+	 * Asks the server to end the session, then closes the connection. Requests still
+	 * outstanding are answered first, since the server handles requests in order; any
+	 * subscription is completed.
+	 *
+	 * @return The outcome of the request.
+	 */
+	public MailFuture<Void> disconnect(){
+
+		disconnecting = true;
+
+		return call(REQ.DISCONNECT, new Body(), new Call<Void>(RESP.REQGRANTED) {
+
+			@Override
+			public boolean received(Frame frame) throws IOException {
+
+				super.received(frame);
+
+				close();
+
+				return true;
+			}
+
+			@Override
+			Void result(RESP response, DataInputStream body){
+
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Closes the connection straight away. Outstanding requests fail with an
+	 * {@link IOException}, and any subscription ends with an error unless the client was
+	 * disconnecting.
+	 */
+	public void close(){
+
+		shutdown(new IOException("The connection to the post office has been closed."));
+	}
+
+	public MailFuture<Void> createMailbox(final String identifier, String password){
+
+		Body body = new Body().putUTF(identifier).put(md5Hash(password));
+
+		return call(REQ.CREATEBOX, body, new Call<Void>(RESP.REQGRANTED, RESP.BOXEXISTS, RESP.BADCOMMAND) {
+
+			@Override
+			Void result(RESP response, DataInputStream body) throws PostOfficeException {
+
+				if(response == RESP.BOXEXISTS)
+					throw new ExistentMailboxException("A mailbox with the identifier '" + identifier + "' already exists.");
+
+				if(response == RESP.BADCOMMAND)
+					throw new IllegalArgumentException("A mailbox identifier cannot have '*' or '#' as a segment: '" + identifier + "'.");
+
+				return null;
+			}
+		});
+	}
+
+	public MailFuture<Void> checkoutMailbox(final String identifier, String password){
+
+		Body body = new Body().putUTF(identifier).put(md5Hash(password));
+
+		return call(REQ.REQBOX, body, new Call<Void>(RESP.REQGRANTED, RESP.ALREADYCONN, RESP.NONEXISTBOX, RESP.BOXINUSE, RESP.NOAUTH) {
+
+			@Override
+			Void result(RESP response, DataInputStream body) throws PostOfficeException {
+
+				switch(response){
+
+					case ALREADYCONN:
+						throw new ExistingMailboxConnectionException("A connection to mailbox already exists. Disconnect before checking out a different one.");
+
+					case NONEXISTBOX:
+						throw new NonExistentMailboxException("The mailbox with the identifier '"
+								+ identifier + "' does not exist, and therefore cannot be checked out.");
+
+					case BOXINUSE:
+						throw new MailboxInUseException("The mailbox with the identifier '"
+								+ identifier + "' has already been checked out by someone else.");
+
+					case NOAUTH:
+						throw new UnauthorizedActionException("Bad credentials for mailbox '" + identifier + "'.");
+
+					default:
+
+						mailboxId = identifier;
+
+						return null;
+				}
+			}
+		});
+	}
+
+	public MailFuture<Void> returnMailbox(){
+
+		return call(REQ.RETBOX, new Body(), new MailboxCall("Cannot disconnect from the present mailbox as there is no connection.", true));
+	}
+
+	public MailFuture<Void> deleteMailbox(){
+
+		return call(REQ.REMOVEBOX, new Body(), new MailboxCall("Cannot delete the current mailbox as no mailbox has been checked out.", true));
+	}
+
+	public MailFuture<Void> emptyMailQueue(){
+
+		return call(REQ.EMPTYBOX, new Body(), new MailboxCall("Cannot empty the mail queue as there is no connection.", false));
+	}
+
+	/**
+	 * Subscribes the checked out mailbox to a topic.
+	 *
+	 * @param topic The topic name.
+	 * @return The outcome of the request.
+	 * @see PostOfficeClient#subscribe(String)
+	 */
+	public MailFuture<Void> subscribe(String topic){
+
+		return call(REQ.SUBSCRIBE, new Body().putUTF(topic), new MailboxCall("Cannot change subscriptions as there is no mailbox connection.", false));
+	}
+
+	/**
+	 * Unsubscribes the checked out mailbox from a topic.
+	 *
+	 * @param topic The topic name.
+	 * @return The outcome of the request.
+	 * @see PostOfficeClient#unsubscribe(String)
+	 */
+	public MailFuture<Void> unsubscribe(String topic){
+
+		return call(REQ.UNSUBSCRIBE, new Body().putUTF(topic), new MailboxCall("Cannot change subscriptions as there is no mailbox connection.", false));
+	}
+
+	/**
+	 * Sends a letter.
+	 *
+	 * @param recipient The recipient mailbox.
+	 * @param message The message to send.
+	 * @return The outcome of the request.
+	 * @see PostOfficeClient#sendMessage(String, Message)
+	 */
+	public MailFuture<Void> sendMessage(String recipient, T message){
+
+		return sendMessage(recipient, message, 0, Letter.Priority.NORMAL);
+	}
+
+	/**
+	 * Sends a letter that expires unless it is picked up within a time to live.
+	 *
+	 * @param recipient The recipient mailbox.
+	 * @param message The message to send.
+	 * @param timeToLive The time to live in milliseconds, or zero to never expire.
+	 * @return The outcome of the request.
+	 * @see PostOfficeClient#sendMessage(String, Message, int)
+	 */
+	public MailFuture<Void> sendMessage(String recipient, T message, int timeToLive){
+
+		return sendMessage(recipient, message, timeToLive, Letter.Priority.NORMAL);
+	}
+
+	/**
+	 * Sends a letter with a time to live and a priority. The future completes once the
+	 * server has accepted the letter, and fails with a {@link MailboxFullException} or a
+	 * {@link DeliveryFailureException} if it was refused.
+	 *
+	 * @param recipient The recipient mailbox.
+	 * @param message The message to send.
+	 * @param timeToLive The time to live in milliseconds, or zero to never expire.
+	 * @param priority The priority of the letter.
+	 * @return The outcome of the request.
+	 * @see PostOfficeClient#sendMessage(String, Message, int, Letter.Priority)
+	 */
+	public MailFuture<Void> sendMessage(final String recipient, T message, int timeToLive, Letter.Priority priority){
+
+		if(timeToLive < 0)
+			throw new IllegalArgumentException("The time to live cannot be negative.");
+
+		Body body = new Body().putLetter(recipient, message.marshal());
+
+		// Sent after the letter, where servers that predate them ignore them.
+		if(timeToLive > 0 || priority != Letter.Priority.NORMAL)
+			body.putInt(timeToLive);
+
+		if(priority != Letter.Priority.NORMAL)
+			body.putByte(priority.ordinal());
+
+		return call(REQ.SENDLETTER, body, new Call<Void>(RESP.REQGRANTED, RESP.DELFAIL, RESP.MAILBOXFULL, RESP.NOBOXCONN) {
+
+			@Override
+			Void result(RESP response, DataInputStream body) throws PostOfficeException {
+
+				if(response == RESP.NOBOXCONN)
+					throw new MailboxDisconnectedException("Cannot send a message as there is no mailbox connection.");
+
+				if(response == RESP.MAILBOXFULL)
+					throw new MailboxFullException("The mailbox of the recipient '" + recipient + "' is full.");
+
+				if(response != RESP.REQGRANTED)
+					throw new DeliveryFailureException("The recipient '" + recipient + "' does not exist.");
+
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Publishes a letter to every mailbox subscribed to a topic.
+	 *
+	 * @param topic The topic name.
+	 * @param message The message to publish.
+	 * @return The number of subscribers the letter was delivered to.
+	 * @see PostOfficeClient#publish(String, Message)
+	 */
+	public MailFuture<Integer> publish(String topic, T message){
+
+		return call(REQ.PUBLISH, new Body().putLetter(topic, message.marshal()), new Call<Integer>(RESP.REQGRANTED, RESP.NOBOXCONN) {
+
+			@Override
+			Integer result(RESP response, DataInputStream body) throws PostOfficeException, IOException {
+
+				if(response == RESP.NOBOXCONN)
+					throw new MailboxDisconnectedException("Cannot publish a message as there is no mailbox connection.");
+
+				return body.readInt();
+			}
+		});
+	}
+
+	/**
+	 * Retrieves the next letter, waiting on the server rather than on the caller.
+	 *
+	 * @param waitTime How long the server may wait for a letter, in milliseconds.
+	 * @return The message, or a failure with a {@link NoMailException} if none arrived in time.
+	 */
+	public MailFuture<T> getMessage(int waitTime){
+
+		return getMessage(null, waitTime);
+	}
+
+	/**
+	 * Retrieves the next letter from a sender matching a filter. The server only hands out
+	 * matching letters and keeps the rest queued for later.
+	 *
+	 * @param filter A regular expression found in the sender of the letter wanted, or null for any sender.
+	 * @param waitTime How long the server may wait for a matching letter, in milliseconds.
+	 * @return The message, or a failure with a {@link NoMailException} if none arrived in time.
+	 * @see PostOfficeClient#getMessage(String, int)
+	 */
+	public MailFuture<T> getMessage(String filter, final int waitTime){
+
+		// A malformed filter would be refused by the server; better to find out here.
+		if(filter != null)
+			Pattern.compile(filter);
+
+		Body body = new Body().putInt(Math.max(waitTime, 0));
+
+		if(filter != null)
+			body.putUTF(filter);
+
+		return call(REQ.GETMAIL, body, new Call<T>(RESP.INMAIL, RESP.MAILTIMEOUT, RESP.NOBOXCONN) {
+
+			@Override
+			T result(RESP response, DataInputStream body) throws PostOfficeException, IOException {
+
+				if(response == RESP.NOBOXCONN)
+					throw new MailboxDisconnectedException("No mailbox connection exists to receive mail from.");
+
+				if(response == RESP.MAILTIMEOUT){
+
+					if(waitTime <= 0)
+						throw new NoMailException("There is no mail matching the specified filter in the mailbox.");
+					else
+						throw new NoMailException("The waiting period has been exceeded, no messages matching the pattern discovered.");
+				}
+
+				return readMessage(body);
+			}
+		});
+	}
+
+	/**
+	 * Retrieves a letter from one sender.
+	 *
+	 * @param sender The sender's mailbox identifier.
+	 * @param waitTime How long the server may wait for a letter from the sender, in milliseconds.
+	 * @return The message, or a failure with a {@link NoMailException} if none arrived in time.
+	 */
+	public MailFuture<T> getMessageFrom(String sender, int waitTime){
+
+		return getMessage(SenderFilter.exactly(sender), waitTime);
+	}
+
+	/**
+	 * Pushes the checked out mailbox's mail to a subscriber as it arrives. The letters
+	 * are streamed over the framed protocol's credit-based drain, so the server sends no
+	 * more than the subscriber has {@link MailSubscription#request(int) requested}. Only
+	 * one subscriber may receive mail at a time; another may subscribe once it has ended.
+	 *
+	 * @param subscriber The subscriber.
+	 * @return The subscription, which has also been passed to the subscriber.
+	 * @throws IllegalStateException Thrown if another subscriber is receiving mail.
+	 */
+	public MailSubscription receiveMail(MailSubscriber<? super T> subscriber){
+
+		Subscription created;
+
+		synchronized(this){
+
+			if(subscription != null)
+				throw new IllegalStateException("Mail is already being pushed to a subscriber.");
+
+			created = new Subscription(subscriber);
+			subscription = created;
+		}
+
+		subscriber.onSubscribe(created);
+
+		// The connection may have closed before the subscription was known to it.
+		if(closed)
+			created.failed(new IOException("The connection to the post office has been closed."));
+
+		return created;
+	}
+
+	private synchronized void subscriptionEnded(Subscription ended){
+
+		if(subscription == ended)
+			subscription = null;
+	}
+
+	/**
+	 * Registers a request and queues its frame for the I/O thread.
+	 */
+	private <V> MailFuture<V> call(REQ req, Body body, Call<V> call){
+
+		send(req, body, call);
+
+		return call.future;
+	}
+
+	/**
+	 * @return The id assigned to the request.
+	 */
+	private int send(REQ req, Body body, Pending handler){
+
+		int requestId = nextRequestId.getAndIncrement();
+
+		if(handler != null)
+			pending.put(requestId, handler);
+
+		// The handler is failed here or by the shutdown, whichever gets to it first.
+		if(closed){
+
+			if(handler != null && pending.remove(requestId) != null)
+				handler.failed(new IOException("The connection to the post office has been closed."));
+
+			return requestId;
+		}
+
+		outbound.add(ByteBuffer.wrap(new Frame(requestId, req.ordinal(), body.toByteArray()).toBytes()));
+
+		if(woken.compareAndSet(false, true))
+			selector.wakeup();
+
+		return requestId;
+	}
+
+	private void loop(){
+
+		try {
+
+			while(!closed){
+
+				selector.select();
+
+				woken.set(false);
+
+				if(selector.selectedKeys().remove(key) && key.isReadable())
+					read();
+
+				write();
+			}
+
+		} catch (IOException e) {
+
+			shutdown(e);
+
+		} finally {
+
+			try {
+
+				selector.close();
+
+			} catch (IOException e) {} // Nothing more can be done.
+		}
+	}
+
+	private void write() throws IOException {
+
+		while(true){
+
+			int count = 0;
+
+			// Frames partly written go first, then those queued since.
+			for(ByteBuffer buffer : writing){
+
+				if(count == GATHER_LIMIT)
+					break;
+
+				gather[count++] = buffer;
+			}
+
+			ByteBuffer buffer;
+
+			while(count < GATHER_LIMIT && (buffer = outbound.poll()) != null){
+
+				writing.add(buffer);
+				gather[count++] = buffer;
+			}
+
+			if(count == 0)
+				break;
+
+			sc.write(gather, 0, count);
+
+			Arrays.fill(gather, 0, count, null);
+
+			while(!writing.isEmpty() && !writing.peek().hasRemaining())
+				writing.poll();
+
+			// The socket is full.
+			if(!writing.isEmpty())
+				break;
+		}
+
+		if(key.isValid())
+			key.interestOps(writing.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	private void read() throws IOException {
+
+		if(sc.read(in) < 0)
+			throw new EOFException("The post office closed the connection.");
+
+		in.flip();
+
+		while(in.remaining() >= 4){
+
+			int length = Frame.checkLength(in.getInt(in.position()));
+
+			if(in.remaining() < 4 + length){
+
+				if(in.capacity() < 4 + length){
+
+					ByteBuffer larger = ByteBuffer.allocate(4 + length);
+					larger.put(in);
+					larger.flip();
+
+					in = larger;
+				}
+
+				break;
+			}
+
+			in.getInt();
+
+			int requestId = in.getInt();
+			int code = in.get() & 0xFF;
+
+			byte[] body = new byte[length - Frame.HEADER_LENGTH];
+			in.get(body);
+
+			received(new Frame(requestId, code, body));
+		}
+
+		in.compact();
+	}
+
+	private void received(Frame frame) throws IOException {
+
+		Pending handler = pending.get(frame.getRequestId());
+
+		if(handler == null)
+			throw new IOException("Received a response to unknown request " + frame.getRequestId() + ". Likely, the client and server are out of sync.");
+
+		boolean answered;
+
+		try {
+
+			answered = handler.received(frame);
+
+		} catch (RuntimeException e) {
+
+			// Thrown by application code in a callback; the response itself was handled.
+			logger.error("A callback failed handling the response to request " + frame.getRequestId() + ".", e);
+
+			answered = true;
+		}
+
+		if(answered)
+			pending.remove(frame.getRequestId());
+	}
+
+	private void shutdown(IOException cause){
+
+		synchronized(this){
+
+			if(closed)
+				return;
+
+			closed = true;
+		}
+
+		try {
+
+			sc.close();
+
+		} catch (IOException e) {} // Nothing more can be done.
+
+		selector.wakeup();
+
+		for(Integer requestId : new ArrayList<Integer>(pending.keySet())){
+
+			Pending handler = pending.remove(requestId);
+
+			if(handler != null)
+				handler.failed(cause);
+		}
+
+		Subscription current;
+
+		synchronized(this){
+
+			current = subscription;
+		}
+
+		if(current != null)
+			current.failed(cause);
+	}
+
+	private T readMessage(DataInputStream data) throws IOException {
+
+		String sender = data.readUTF();
+
+		byte[] messageData = new byte[data.readInt()];
+		data.readFully(messageData);
+
+		return PostOfficeClient.newMessage(messageClass, sender, messageData);
+	}
+
+	private static byte[] md5Hash(String password){
+
+		try {
+
+			return MessageDigest.getInstance("MD5").digest(password.getBytes("UTF-8"));
+
+		} catch (NoSuchAlgorithmException | IOException e) {} // This won't ever happen, so who cares.
+
+		return null;
+	}
+
+	/**
+	 * Something waiting on the responses to a request.
+	 */
+	private interface Pending {
+
+		/**
+		 * Handles a response, on the I/O thread.
+		 *
+		 * @param frame The response.
+		 * @return True once the request has been answered in full.
+		 * @throws IOException Thrown if the response cannot belong to the request.
+		 */
+		boolean received(Frame frame) throws IOException;
+
+		/**
+		 * Called instead if the connection fails before the request is answered.
+		 *
+		 * @param cause The failure.
+		 */
+		void failed(IOException cause);
+	}
+
+	/**
+	 * A request answered by a single response, which completes its future.
+	 */
+	private abstract class Call<V> implements Pending {
+
+		MailFuture<V> future = new MailFuture<V>();
+
+		private RESP[] expected;
+
+		Call(RESP... expected){
+
+			this.expected = expected;
+		}
+
+		@Override
+		public boolean received(Frame frame) throws IOException {
+
+			RESP response = CommFlags.getRespByCode(frame.getCode());
+
+			if(!Arrays.asList(expected).contains(response)){
+
+				List<String> names = new LinkedList<String>();
+
+				for(RESP r : expected)
+					names.add(r.name());
+
+				throw new IOException("Unexpected response '"
+					+ response + "'. Expected  element of " + names + ". Likely, the client and server are out of sync.");
+			}
+
+			V result;
+
+			try {
+
+				result = result(response, frame.getBodyReader());
+
+			} catch (PostOfficeException | IllegalArgumentException e) {
+
+				future.fail(e);
+
+				return true;
+			}
+
+			future.complete(result);
+
+			return true;
+		}
+
+		@Override
+		public void failed(IOException cause){
+
+			future.fail(cause);
+		}
+
+		/**
+		 * Interprets an expected response.
+		 *
+		 * @return The result the future completes with.
+		 * @throws PostOfficeException Thrown if the response refuses the request.
+		 * @throws IllegalArgumentException Thrown if the response rejects what the request asked for.
+		 * @throws IOException Thrown if the response body is malformed.
+		 */
+		abstract V result(RESP response, DataInputStream body) throws PostOfficeException, IOException;
+	}
+
+	/**
+	 * A request on the checked out mailbox, answered with REQGRANTED or NOBOXCONN.
+	 */
+	private class MailboxCall extends Call<Void> {
+
+		private String refusal;
+		private boolean releases;
+
+		/**
+		 * @param refusal The message of the exception thrown without a mailbox.
+		 * @param releases Whether the mailbox is no longer checked out afterwards.
+		 */
+		MailboxCall(String refusal, boolean releases){
+
+			super(RESP.REQGRANTED, RESP.NOBOXCONN);
+
+			this.refusal = refusal;
+			this.releases = releases;
+		}
+
+		@Override
+		Void result(RESP response, DataInputStream body) throws PostOfficeException {
+
+			if(response != RESP.REQGRANTED)
+				throw new MailboxDisconnectedException(refusal);
+
+			if(releases)
+				mailboxId = null;
+
+			return null;
+		}
+	}
+
+	/**
+	 * Mail pushed to a subscriber through a DRAINMAIL request. The server ends a drain
+	 * once it has gone a while without mail, so it is reopened with whatever credit the
+	 * subscriber has left for as long as the subscription lasts.
+	 */
+	private class Subscription implements MailSubscription, Pending {
+
+		private MailSubscriber<? super T> subscriber;
+
+		// Letters requested but not yet received.
+		private long credit = 0;
+
+		private int drainId;
+		private boolean open = false;
+
+		private boolean cancelled = false;
+		private boolean ended = false;
+
+		Subscription(MailSubscriber<? super T> subscriber){
+
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public synchronized void request(int letters){
+
+			if(letters <= 0)
+				throw new IllegalArgumentException("At least one letter must be requested.");
+
+			if(cancelled || ended)
+				return;
+
+			// The server counts its credit in an int.
+			int granted = (int) Math.min(letters, Integer.MAX_VALUE - credit);
+
+			if(granted == 0)
+				return;
+
+			credit += granted;
+
+			if(open)
+				send(REQ.CREDIT, new Body().putInt(drainId).putInt(granted).putInt(0), null);
+			else
+				open();
+		}
+
+		@Override
+		public synchronized void cancel(){
+
+			if(cancelled || ended)
+				return;
+
+			cancelled = true;
+
+			// Negative credit closes the drain, which the server confirms.
+			if(open)
+				send(REQ.CREDIT, new Body().putInt(drainId).putInt(-1).putInt(0), null);
+			else
+				end(null);
+		}
+
+		private void open(){
+
+			open = true;
+			drainId = send(REQ.DRAINMAIL, new Body().putInt(DRAIN_IDLE).putInt((int) credit).putInt(0), this);
+		}
+
+		@Override
+		public boolean received(Frame frame) throws IOException {
+
+			RESP response = CommFlags.getRespByCode(frame.getCode());
+
+			if(response == RESP.INMAIL){
+
+				DataInputStream data = frame.getBodyReader();
+
+				int count = data.readInt();
+
+				List<T> messages = new ArrayList<T>(count);
+
+				for(int i = 0; i < count; i++)
+					messages.add(readMessage(data));
+
+				synchronized(this){
+
+					credit -= count;
+				}
+
+				for(T message : messages)
+					subscriber.onMessage(message);
+
+				return false;
+			}
+
+			synchronized(this){
+
+				open = false;
+
+				if(response == RESP.NOBOXCONN)
+					end(new MailboxDisconnectedException("No mailbox connection exists to receive mail from."));
+				else if(response == RESP.REQGRANTED || cancelled || disconnecting)
+					end(null);
+				else if(response != RESP.MAILTIMEOUT)
+					throw new IOException("Unexpected response '" + response + "' to a mail drain. Likely, the client and server are out of sync.");
+				else if(credit > 0)
+					open();
+			}
+
+			return true;
+		}
+
+		@Override
+		public synchronized void failed(IOException cause){
+
+			open = false;
+
+			end(disconnecting ? null : cause);
+		}
+
+		/**
+		 * Signals the end of the subscription, with an error unless it is null.
+		 */
+		private void end(Exception cause){
+
+			if(ended)
+				return;
+
+			ended = true;
+
+			subscriptionEnded(this);
+
+			if(cause == null)
+				subscriber.onComplete();
+			else
+				subscriber.onError(cause);
+		}
+	}
+
+	/**
+	 * Builds the body of a request frame.
+	 */
+	private static class Body {
+
+		private ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		private DataOutputStream dos = new DataOutputStream(bos);
+
+		Body putInt(int value){
+
+			try {
+
+				dos.writeInt(value);
+
+			} catch (IOException e) {} // Cannot happen.
+
+			return this;
+		}
+
+		Body putByte(int value){
+
+			bos.write(value);
+
+			return this;
+		}
+
+		Body putUTF(String value){
+
+			try {
+
+				dos.writeUTF(value);
+
+			} catch (IOException e) {} // Cannot happen.
+
+			return this;
+		}
+
+		Body put(byte[] data){
+
+			bos.write(data, 0, data.length);
+
+			return this;
+		}
+
+		/**
+		 * Adds a letter in the format <RECIPIENT><LENGTH><-- PAYLOAD BYTES -->.
+		 */
+		Body putLetter(String recipient, byte[] payload){
+
+			return putUTF(recipient).putInt(payload.length).put(payload);
+		}
+
+		byte[] toByteArray(){
+
+			return bos.toByteArray();
+		}
+	}
+}
@@ -0,0 +1,287 @@
+package postoffice.client;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.UUID;
+
+import postoffice.datatypes.CommFlags.REQ;
+import postoffice.datatypes.Letter;
+import postoffice.datatypes.Message;
+import postoffice.exception.comm.DeliveryFailureException;
+import postoffice.exception.comm.MailboxFullException;
+import postoffice.exception.mailbox.MailboxDisconnectedException;
+import postoffice.exception.mailbox.NoMailException;
+import postoffice.exception.mailbox.NonExistentMailboxException;
+
+/**
+ * A mailbox attached to a {@link PostOfficeClient} with
+ * {@link PostOfficeClient#attachMailbox(String, String)}. Its requests travel over the
+ * client's connection, addressed to the mailbox by the handle the server gave it, and
+ * behave as the client's own requests do on the mailbox it checked out. Like the
+ * client, it is not safe for use by several threads at once.
+ *
+ * @param <T> The message type.
+ */
+public class AttachedMailbox<T extends Message> {
+
+	private PostOfficeClient<T> client;
+
+	private String mailboxId;
+	private int handle;
+
+	AttachedMailbox(PostOfficeClient<T> client, String mailboxId, int handle){
+
+		this.client = client;
+		this.mailboxId = mailboxId;
+		this.handle = handle;
+	}
+
+	public String getMailboxId(){
+
+		return mailboxId;
+	}
+
+	/**
+	 * @return The handle the server addresses the mailbox by on this connection.
+	 */
+	public int getHandle(){
+
+		return handle;
+	}
+
+	/**
+	 * @see PostOfficeClient#sendMessage(String, Message)
+	 */
+	public void sendMessage(String recipient, T message) throws MailboxDisconnectedException, IOException, DeliveryFailureException {
+
+		sendMessage(recipient, message, 0, Letter.Priority.NORMAL);
+	}
+
+	/**
+	 * @see PostOfficeClient#sendMessage(String, Message, int)
+	 */
+	public void sendMessage(String recipient, T message, int timeToLive) throws MailboxDisconnectedException, IOException, DeliveryFailureException {
+
+		sendMessage(recipient, message, timeToLive, Letter.Priority.NORMAL);
+	}
+
+	/**
+	 * Sends a letter from this mailbox.
+	 *
+	 * @param recipient The recipient mailbox.
+	 * @param message The message to send.
+	 * @param timeToLive The time to live in milliseconds, or zero to never expire.
+	 * @param priority The priority of the letter.
+	 * @throws MailboxDisconnectedException Thrown if the mailbox is no longer attached.
+	 * @throws IOException Thrown if the connection fails.
+	 * @throws MailboxFullException Thrown if the recipient's mailbox has no room for the letter.
+	 * @throws DeliveryFailureException Thrown if the recipient does not exist.
+	 * @see PostOfficeClient#sendMessage(String, Message, int, Letter.Priority)
+	 */
+	public void sendMessage(String recipient, T message, int timeToLive, Letter.Priority priority) throws MailboxDisconnectedException, IOException, DeliveryFailureException {
+
+		client.direct(handle);
+
+		try {
+
+			client.sendMessage(recipient, message, timeToLive, priority);
+
+		} finally {
+
+			client.direct(0);
+		}
+	}
+
+	/**
+	 * @see PostOfficeClient#sendMessages(List)
+	 */
+	public boolean[] sendMessages(List<? extends Entry<String, T>> letters) throws MailboxDisconnectedException, IOException {
+
+		client.direct(handle);
+
+		try {
+
+			return client.sendMessages(letters);
+
+		} finally {
+
+			client.direct(0);
+		}
+	}
+
+	/**
+	 * Sends a letter from this mailbox without waiting for the server to confirm
+	 * delivery. Its outcome is collected by the client's {@link PostOfficeClient#flushPipeline()}
+	 * along with those of every other pipelined letter on the connection.
+	 *
+	 * @see PostOfficeClient#pipelineMessage(String, Message)
+	 */
+	public void pipelineMessage(String recipient, T message) throws MailboxDisconnectedException, IOException {
+
+		client.direct(handle);
+
+		try {
+
+			client.pipelineMessage(recipient, message);
+
+		} finally {
+
+			client.direct(0);
+		}
+	}
+
+	/**
+	 * @see PostOfficeClient#getMessage(int)
+	 */
+	public T getMessage(int waitTime) throws IOException, MailboxDisconnectedException, NoMailException {
+
+		return getMessage(null, waitTime);
+	}
+
+	/**
+	 * @see PostOfficeClient#getMessageFrom(String, int)
+	 */
+	public T getMessageFrom(String sender, int waitTime) throws IOException, MailboxDisconnectedException, NoMailException {
+
+		client.direct(handle);
+
+		try {
+
+			return client.getMessageFrom(sender, waitTime);
+
+		} finally {
+
+			client.direct(0);
+		}
+	}
+
+	/**
+	 * @see PostOfficeClient#getMessage(String, int)
+	 */
+	public T getMessage(String filter, int waitTime) throws IOException, MailboxDisconnectedException, NoMailException {
+
+		client.direct(handle);
+
+		try {
+
+			return client.getMessage(filter, waitTime);
+
+		} finally {
+
+			client.direct(0);
+		}
+	}
+
+	/**
+	 * @see PostOfficeClient#getMessages(int, int, int)
+	 */
+	public List<T> getMessages(int maxLetters, int maxBytes, int waitTime) throws MailboxDisconnectedException, IOException {
+
+		client.direct(handle);
+
+		try {
+
+			return client.getMessages(maxLetters, maxBytes, waitTime);
+
+		} finally {
+
+			client.direct(0);
+		}
+	}
+
+	/**
+	 * @see PostOfficeClient#subscribe(String)
+	 */
+	public void subscribe(String topic) throws MailboxDisconnectedException, IOException {
+
+		client.direct(handle);
+
+		try {
+
+			client.subscribe(topic);
+
+		} finally {
+
+			client.direct(0);
+		}
+	}
+
+	/**
+	 * @see PostOfficeClient#unsubscribe(String)
+	 */
+	public void unsubscribe(String topic) throws MailboxDisconnectedException, IOException {
+
+		client.direct(handle);
+
+		try {
+
+			client.unsubscribe(topic);
+
+		} finally {
+
+			client.direct(0);
+		}
+	}
+
+	/**
+	 * @see PostOfficeClient#publish(String, Message)
+	 */
+	public int publish(String topic, T message) throws MailboxDisconnectedException, IOException {
+
+		client.direct(handle);
+
+		try {
+
+			return client.publish(topic, message);
+
+		} finally {
+
+			client.direct(0);
+		}
+	}
+
+	/**
+	 * @see PostOfficeClient#requestLiveStream(String)
+	 */
+	public UUID requestLiveStream(String correspondent) throws MailboxDisconnectedException, NonExistentMailboxException, MailboxFullException, IOException {
+
+		client.direct(handle);
+
+		try {
+
+			return client.requestLiveStream(correspondent);
+
+		} finally {
+
+			client.direct(0);
+		}
+	}
+
+	public void emptyMailQueue() throws MailboxDisconnectedException, IOException {
+
+		client.attachedRequest(handle, REQ.EMPTYBOX, "Cannot empty the mail queue as the mailbox is no longer attached.");
+	}
+
+	/**
+	 * Returns the mailbox, so that it can be checked out again, here or elsewhere.
+	 *
+	 * @throws MailboxDisconnectedException Thrown if the mailbox is no longer attached.
+	 * @throws IOException Thrown if the connection fails.
+	 */
+	public void returnMailbox() throws MailboxDisconnectedException, IOException {
+
+		client.attachedRequest(handle, REQ.RETBOX, "Cannot return the mailbox as it is no longer attached.");
+	}
+
+	/**
+	 * Deletes the mailbox and any mail in it.
+	 *
+	 * @throws MailboxDisconnectedException Thrown if the mailbox is no longer attached.
+	 * @throws IOException Thrown if the connection fails.
+	 */
+	public void deleteMailbox() throws MailboxDisconnectedException, IOException {
+
+		client.attachedRequest(handle, REQ.REMOVEBOX, "Cannot delete the mailbox as it is no longer attached.");
+	}
+}
@@ -0,0 +1,27 @@
+package postoffice.client;
+
+/**
+ * Receives the outcome of a request made through an {@link AsyncPostOfficeClient}.
+ *
+ * Callbacks run on the client's I/O thread, which reads every response on the
+ * connection, so implementations should hand any real work off rather than performing
+ * it inline.
+ *
+ * @param <V> The type of the result.
+ */
+public interface MailCallback<V> {
+
+	/**
+	 * Called once the server has granted the request.
+	 *
+	 * @param result The result of the request, or null for requests without one.
+	 */
+	public void completed(V result);
+
+	/**
+	 * Called once the request has been refused or the connection has failed.
+	 *
+	 * @param cause The exception the synchronous {@link PostOfficeClient} would have thrown.
+	 */
+	public void failed(Exception cause);
+}
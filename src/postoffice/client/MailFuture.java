@@ -0,0 +1,147 @@
+package postoffice.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending result of a request made through an {@link AsyncPostOfficeClient}. It
+ * completes once the server answers the request, or fails with the exception the
+ * synchronous {@link PostOfficeClient} would have thrown, wrapped in an
+ * {@link ExecutionException} by {@link #get()}.
+ *
+ * A request cannot be called back once it has been sent, so futures cannot be cancelled.
+ *
+ * @param <V> The type of the result.
+ */
+public class MailFuture<V> implements Future<V> {
+
+	private boolean done = false;
+
+	private V result = null;
+	private Exception failure = null;
+
+	private List<MailCallback<? super V>> callbacks = new ArrayList<MailCallback<? super V>>(1);
+
+	MailFuture(){}
+
+	/**
+	 * Adds a callback for the outcome of the request. If the request has already
+	 * completed, the callback runs straight away on the calling thread; otherwise it runs
+	 * on the client's I/O thread.
+	 *
+	 * @param callback The callback.
+	 */
+	public void addCallback(MailCallback<? super V> callback){
+
+		synchronized(this){
+
+			if(!done){
+
+				callbacks.add(callback);
+				return;
+			}
+		}
+
+		notify(callback);
+	}
+
+	void complete(V result){
+
+		finish(result, null);
+	}
+
+	void fail(Exception failure){
+
+		finish(null, failure);
+	}
+
+	private void finish(V result, Exception failure){
+
+		List<MailCallback<? super V>> waiting;
+
+		synchronized(this){
+
+			// A connection failing while the response is handled may try again.
+			if(done)
+				return;
+
+			this.result = result;
+			this.failure = failure;
+
+			done = true;
+
+			waiting = callbacks;
+			callbacks = null;
+
+			notifyAll();
+		}
+
+		for(MailCallback<? super V> callback : waiting)
+			notify(callback);
+	}
+
+	private void notify(MailCallback<? super V> callback){
+
+		if(failure == null)
+			callback.completed(result);
+		else
+			callback.failed(failure);
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning){
+
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled(){
+
+		return false;
+	}
+
+	@Override
+	public synchronized boolean isDone(){
+
+		return done;
+	}
+
+	@Override
+	public synchronized V get() throws InterruptedException, ExecutionException {
+
+		while(!done)
+			wait();
+
+		return result();
+	}
+
+	@Override
+	public synchronized V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+		while(!done){
+
+			long remaining = deadline - System.nanoTime();
+
+			if(remaining <= 0)
+				throw new TimeoutException("The server has not answered the request yet.");
+
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+
+		return result();
+	}
+
+	private V result() throws ExecutionException {
+
+		if(failure != null)
+			throw new ExecutionException(failure);
+
+		return result;
+	}
+}
@@ -0,0 +1,47 @@
+package postoffice.client;
+
+import postoffice.datatypes.Message;
+
+/**
+ * Receives the mail pushed to an {@link AsyncPostOfficeClient} by
+ * {@link AsyncPostOfficeClient#receiveMail(MailSubscriber)}. The server only sends as
+ * many letters as the subscriber has asked for through its {@link MailSubscription},
+ * in the manner of a reactive streams subscriber, so a slow subscriber holds mail back
+ * in the mailbox rather than in memory.
+ *
+ * Letters are passed to the subscriber on the client's I/O thread, one at a time, so
+ * implementations should hand any real work off rather than performing it inline.
+ *
+ * @param <T> The message type.
+ */
+public interface MailSubscriber<T extends Message> {
+
+	/**
+	 * Called once, before anything else, on the thread that subscribed. No mail is sent
+	 * until the subscriber asks for some.
+	 *
+	 * @param subscription The subscription to ask for mail through.
+	 */
+	public void onSubscribe(MailSubscription subscription);
+
+	/**
+	 * Called for every letter, in the order the mailbox hands them out.
+	 *
+	 * @param message The message.
+	 */
+	public void onMessage(T message);
+
+	/**
+	 * Called if mail stops arriving because the connection failed or the mailbox is no
+	 * longer checked out. Nothing is called after it.
+	 *
+	 * @param cause The cause.
+	 */
+	public void onError(Exception cause);
+
+	/**
+	 * Called once the subscription has ended, after it was cancelled or the client
+	 * disconnected. Nothing is called after it.
+	 */
+	public void onComplete();
+}
@@ -0,0 +1,23 @@
+package postoffice.client;
+
+/**
+ * Lets a {@link MailSubscriber} control the flow of mail pushed to it. Both methods may
+ * be called from any thread, including from within the subscriber's own methods.
+ */
+public interface MailSubscription {
+
+	/**
+	 * Asks for more letters. Requests add up; letters are pushed as soon as they are in
+	 * the mailbox until as many as were asked for have been received.
+	 *
+	 * @param letters The number of further letters wanted, more than zero.
+	 */
+	public void request(int letters);
+
+	/**
+	 * Stops the flow of mail. Letters the server sent before it learnt of the
+	 * cancellation have already left the mailbox, so they are still passed to the
+	 * subscriber, followed by {@link MailSubscriber#onComplete()}.
+	 */
+	public void cancel();
+}
@@ -1,22 +1,30 @@
 package postoffice.client;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Queue;
-import java.util.regex.Matcher;
+import java.util.UUID;
 import java.util.regex.Pattern;
 
 import javax.net.SocketFactory;
@@ -24,8 +32,19 @@ import javax.net.SocketFactory;
 import postoffice.datatypes.CommFlags.REQ;
 import postoffice.datatypes.CommFlags.RESP;
 import postoffice.datatypes.CommFlags;
+import postoffice.datatypes.Frame;
+import postoffice.datatypes.Letter;
+import postoffice.datatypes.LiveStreamMessage;
 import postoffice.datatypes.Message;
+import postoffice.datatypes.SenderFilter;
+import postoffice.datatypes.SharedMemorySocket;
+import postoffice.datatypes.UnixDomainSocket;
+import postoffice.datatypes.Varint;
 import postoffice.exception.comm.DeliveryFailureException;
+import postoffice.exception.comm.MailboxFullException;
+import postoffice.exception.livestream.LiveStreamException;
+import postoffice.exception.livestream.NonExistentLiveStreamException;
+import postoffice.exception.livestream.UnexpectedParticipantException;
 import postoffice.exception.mailbox.ExistentMailboxException;
 import postoffice.exception.mailbox.ExistingMailboxConnectionException;
 import postoffice.exception.mailbox.MailboxDisconnectedException;
@@ -39,6 +58,12 @@ public class PostOfficeClient<T extends Message> {
 	private MessageDigest md = null;
 	private Socket s = null;
 	
+	// Null unless connected through a Unix domain socket.
+	private File socketFile = null;
+	
+	// The capacity of the shared memory rings to ask for, or zero to keep to the socket.
+	private int sharedMemory = 0;
+	
 	private DataInputStream is = null;
 	private DataOutputStream os = null;
 	
@@ -48,8 +73,40 @@ public class PostOfficeClient<T extends Message> {
 	
 	private List<byte[]> writeBuffer = new ArrayList<byte[]>();
 	
+	// Mail that did not match a filter, from servers that cannot filter by sender. Servers
+	// that can keep each sender's mail apart themselves, so this stays empty.
 	private Map<String, Queue<T>> mailBuffer = new HashMap<String, Queue<T>>();
 	
+	// Cleared once the server turns down FILTERMAIL.
+	private boolean serverFilters = true;
+	
+	// Cleared once the server turns down SENDEXPIRING.
+	private boolean serverExpiry = true;
+	
+	// Letters the server may stream ahead of this client during getMessages().
+	private static final int DRAIN_WINDOW = 1024;
+	
+	// Framed protocol state.
+	private boolean framed = false;
+	private boolean compact = false;
+	private int nextRequestId = 0;
+	private int maxPipelined = 1024;
+	
+	private Map<Integer, String> pipelined = new LinkedHashMap<Integer, String>();
+	private List<String> pipelineFailures = new ArrayList<String>();
+	private boolean pipelineFull = false;
+	
+	// The handle of the attached mailbox requests are made on, or zero for the checked out one.
+	private int target = 0;
+	
+	// Names bound to handles under the compact framing, both ways. The handle of a name is
+	// its index in the list, plus one.
+	private Map<String, Integer> handles = new HashMap<String, Integer>();
+	private List<String> names = new ArrayList<String>();
+	
+	// The most names a connection may bind; further names are sent in full.
+	private static final int MAX_BINDINGS = 64 * 1024;
+	
 	public PostOfficeClient(Class<T> messageClass){
 
 		this.messageClass = messageClass;
@@ -67,14 +124,162 @@ public class PostOfficeClient<T extends Message> {
 		return this.mailboxId;
 	}
 	
+	/**
+	 * Returns whether the connection uses the pipelined framed protocol.
+	 * 
+	 * @return True if it does, false if the legacy protocol is in use.
+	 */
+	public boolean isPipelined(){
+		
+		return framed;
+	}
+	
+	/**
+	 * Returns whether the connection uses the compact framing, which addresses letters
+	 * by handles bound to mailbox names once per connection.
+	 * 
+	 * @return True if it does.
+	 */
+	public boolean isCompact(){
+		
+		return compact;
+	}
+	
+	/**
+	 * Asks the server, on every later connection, to move the connection into shared
+	 * memory rings of the given capacity. Both must be on the same host and the server
+	 * must allow it; otherwise the connection stays as it is.
+	 * 
+	 * @param capacity The capacity of each ring in bytes, a power of two, or zero to not ask.
+	 * @see postoffice.daemon.PostOfficeConfig#setSharedMemory(boolean)
+	 */
+	public void setSharedMemory(int capacity){
+		
+		if(capacity != 0 && (capacity < SharedMemorySocket.MIN_CAPACITY || capacity > SharedMemorySocket.MAX_CAPACITY || Integer.bitCount(capacity) != 1))
+			throw new IllegalArgumentException("The capacity must be a power of two between " + SharedMemorySocket.MIN_CAPACITY + " and " + SharedMemorySocket.MAX_CAPACITY + ".");
+		
+		this.sharedMemory = capacity;
+	}
+	
+	/**
+	 * Returns whether the connection travels through shared memory.
+	 * 
+	 * @return True if it does, false if it uses the socket.
+	 */
+	public boolean isSharingMemory(){
+		
+		return s instanceof SharedMemorySocket;
+	}
+	
+	/**
+	 * Sets how many pipelined letters may await a response before
+	 * {@link #pipelineMessage(String, Message)} starts collecting responses.
+	 * 
+	 * @param maxPipelined The maximum number of outstanding letters.
+	 */
+	public void setMaxPipelined(int maxPipelined){
+		
+		this.maxPipelined = Math.max(1, maxPipelined);
+	}
+	
+	/**
+	 * Connects to a post office, using the compact framing or else the framed protocol if
+	 * the server supports them.
+	 * 
+	 * @param address The address of the server.
+	 * @param port The port of the server.
+	 * @param timeout The socket timeout in milliseconds.
+	 * @throws IOException Thrown if the connection cannot be established.
+	 */
 	public void connect(String address, int port, int timeout) throws IOException {
 		
+		connect(address, port, timeout, CommFlags.PROTOCOL_COMPACT);
+	}
+	
+	/**
+	 * Connects to a post office.
+	 * 
+	 * @param address The address of the server.
+	 * @param port The port of the server.
+	 * @param timeout The socket timeout in milliseconds.
+	 * @param protocol The preferred protocol version; {@link CommFlags#PROTOCOL_LEGACY} skips negotiation.
+	 * @throws IOException Thrown if the connection cannot be established.
+	 */
+	public void connect(String address, int port, int timeout, int protocol) throws IOException {
+		
+		if(s != null)
+			throw new IOException("You cannot connect to a new server until you disconnect from the one you are presently connected to.");
+		
+		try {
+			
+			Socket socket = SocketFactory.getDefault().createSocket(address, port);
+			
+			// Requests are small and each waits on its answer, which Nagle's algorithm
+			// would otherwise hold back.
+			socket.setTcpNoDelay(true);
+			
+			open(socket, timeout);
+			
+		} catch (IOException e) {
+			
+			throw new IOException("Problem establishing post office connection.", e);
+		}
+		
+		socketFile = null;
+		
+		start(protocol);
+	}
+	
+	/**
+	 * Connects to a post office on the same host through its Unix domain socket, using the
+	 * compact framing or else the framed protocol if the server supports them.
+	 * 
+	 * @param socketFile The path of the server's socket.
+	 * @param timeout The socket timeout in milliseconds.
+	 * @throws IOException Thrown if the connection cannot be established.
+	 * @throws UnsupportedOperationException Thrown if the JVM does not support Unix domain sockets.
+	 * @see postoffice.daemon.PostOfficeConfig#setUnixSocketFile(File)
+	 */
+	public void connect(File socketFile, int timeout) throws IOException {
+		
+		connect(socketFile, timeout, CommFlags.PROTOCOL_COMPACT);
+	}
+	
+	/**
+	 * Connects to a post office on the same host through its Unix domain socket. The
+	 * protocol is exactly that spoken over TCP, without the cost of the TCP/IP stack.
+	 * Requires Java 16 or newer.
+	 * 
+	 * @param socketFile The path of the server's socket.
+	 * @param timeout The socket timeout in milliseconds.
+	 * @param protocol The preferred protocol version; {@link CommFlags#PROTOCOL_LEGACY} skips negotiation.
+	 * @throws IOException Thrown if the connection cannot be established.
+	 * @throws UnsupportedOperationException Thrown if the JVM does not support Unix domain sockets.
+	 */
+	public void connect(File socketFile, int timeout, int protocol) throws IOException {
+		
 		if(s != null)
 			throw new IOException("You cannot connect to a new server until you disconnect from the one you are presently connected to.");
 		
 		try {
 			
-			s = SocketFactory.getDefault().createSocket(address, port);
+			open(UnixDomainSocket.connect(socketFile), timeout);
+			
+		} catch (IOException e) {
+			
+			throw new IOException("Problem establishing post office connection.", e);
+		}
+		
+		this.socketFile = socketFile;
+		
+		start(protocol);
+	}
+	
+	private void open(Socket socket, int timeout) throws IOException {
+		
+		s = socket;
+		
+		try {
 			
 			s.setSoTimeout(timeout);
 			
@@ -83,18 +288,96 @@ public class PostOfficeClient<T extends Message> {
 			
 		} catch (IOException e) {
 			
-			throw new IOException("Problem establishing post office connection.", e);
+			s.close();
+			s = null;
+			
+			throw e;
 		}
 	}
 	
+	private void start(int protocol) throws IOException {
+		
+		framed = false;
+		compact = false;
+		serverFilters = true;
+		serverExpiry = true;
+		
+		handles.clear();
+		names.clear();
+		
+		if(sharedMemory > 0 && SharedMemorySocket.isSupported())
+			negotiateSharedMemory();
+		
+		if(protocol == CommFlags.PROTOCOL_COMPACT)
+			compact = negotiateFraming(CommFlags.PROTOCOL_COMPACT);
+		
+		if(protocol != CommFlags.PROTOCOL_LEGACY && !compact)
+			negotiateFraming(CommFlags.PROTOCOL_FRAMED);
+	}
+	
+	/**
+	 * Asks the server to move the connection into shared memory. The client creates the
+	 * file and the server maps it as well; once both have, the file is deleted again and
+	 * lives on only in memory. Servers that predate shared memory reject the request as a
+	 * bad command, in which case the connection stays as it is.
+	 */
+	private void negotiateSharedMemory() throws IOException {
+		
+		File file = SharedMemorySocket.create(SharedMemorySocket.defaultDirectory(), sharedMemory);
+		
+		try {
+			
+			if(execute(REQ.SHAREDMEM, RESP.REQDATA, RESP.UNSUPPORTED, RESP.BADCOMMAND) != RESP.REQDATA)
+				return;
+			
+			addData(file.getAbsolutePath());
+			
+			// A server on another host cannot find the file.
+			if(executeWithData(RESP.REQGRANTED, RESP.BADCOMMAND) != RESP.REQGRANTED)
+				return;
+			
+			s = new SharedMemorySocket(s, file, true);
+			
+			is = new DataInputStream(s.getInputStream());
+			os = new DataOutputStream(s.getOutputStream());
+			
+		} finally {
+			
+			file.delete();
+		}
+	}
+	
+	/**
+	 * Asks the server to switch to a version of the framed protocol. Servers that predate
+	 * it reject the request as a bad command, and those that predate the version asked
+	 * for turn it down, in which case the legacy protocol stays in use.
+	 * 
+	 * @param version The version, {@link CommFlags#PROTOCOL_FRAMED} or {@link CommFlags#PROTOCOL_COMPACT}.
+	 * @return True if the server switched.
+	 */
+	private boolean negotiateFraming(int version) throws IOException {
+		
+		if(execute(REQ.PROTOCOL, RESP.REQDATA, RESP.BADCOMMAND) != RESP.REQDATA)
+			return false;
+		
+		addData(version);
+		
+		framed = executeWithData(RESP.REQGRANTED, RESP.UNSUPPORTED) == RESP.REQGRANTED;
+		
+		return framed;
+	}
+	
 	public void disconnect() throws IOException {
 	
-		if(s != null)
+		if(s == null)
 			throw new IOException("You cannot disconnect from ap server until you connect to one first.");
 
 		try {
 			
-			execute(REQ.DISCONNECT, RESP.REQGRANTED);
+			if(framed)
+				call(REQ.DISCONNECT, 0, RESP.REQGRANTED);
+			else
+				execute(REQ.DISCONNECT, RESP.REQGRANTED);
 			
 		}
 		catch(IOException ioe){
@@ -104,31 +387,48 @@ public class PostOfficeClient<T extends Message> {
 		finally {
 
 			s.close();
+			s = null;
+			
+			pipelined.clear();
 		}
 	}
 	
 	private T newMessage(String sender, byte[] data){
 		
+		return newMessage(messageClass, sender, data);
+	}
+	
+	/**
+	 * Creates a message of the client's message type from a received letter. Shared with
+	 * {@link AsyncPostOfficeClient}.
+	 * 
+	 * @param messageClass The message type.
+	 * @param sender The sender of the letter.
+	 * @param data The payload of the letter.
+	 * @return The message.
+	 */
+	static <M extends Message> M newMessage(Class<M> messageClass, String sender, byte[] data){
+		
 		try {
 			
-			T message = messageClass.newInstance();
+			M message = messageClass.getDeclaredConstructor().newInstance();
 			message.initialize(sender, data);
 			
 			return message;
 		
-		} catch (InstantiationException | IllegalAccessException e) {} // Message type (T) must follow a strict interface,
-																	   // so this can never happen.
+		} catch (ReflectiveOperationException e) {} // Message type (T) must follow a strict interface,
+													// so this can never happen.
 		return null;
 	}
 	
 	public T getMessage() throws IOException, MailboxDisconnectedException, NoMailException {
 		
-		return getMessage(".*", 0);
+		return getMessage(null, 0);
 	}
 	
 	public T getMessage(int waitTime) throws IOException, MailboxDisconnectedException, NoMailException {
 		
-		return getMessage(".*", waitTime);
+		return getMessage(null, waitTime);
 	}
 	
 	public T getMessage(String filter) throws IOException, MailboxDisconnectedException, NoMailException {
@@ -136,18 +436,43 @@ public class PostOfficeClient<T extends Message> {
 		return getMessage(filter, 0);
 	}
 	
+	/**
+	 * Retrieves the next letter from one sender, leaving mail from everyone else queued
+	 * on the server. The server goes straight to that sender's letters.
+	 * 
+	 * @param sender The sender's mailbox identifier.
+	 * @param waitTime How long to wait for a letter from the sender, in milliseconds.
+	 * @return The message.
+	 * @throws MailboxDisconnectedException Thrown if no mailbox is checked out.
+	 * @throws IOException Thrown if the connection fails.
+	 * @throws NoMailException Thrown if no letter from the sender arrived in time.
+	 */
+	public T getMessageFrom(String sender, int waitTime) throws MailboxDisconnectedException, IOException, NoMailException {
+		
+		return getMessage(SenderFilter.exactly(sender), waitTime);
+	}
+	
+	/**
+	 * Retrieves the next letter from a sender matching a filter. The server only hands
+	 * out matching letters and keeps the rest queued for later.
+	 * 
+	 * @param filter A regular expression found in the sender of the letter wanted, or null for any sender.
+	 * @param waitTime How long to wait for a matching letter, in milliseconds.
+	 * @return The message.
+	 * @throws MailboxDisconnectedException Thrown if no mailbox is checked out.
+	 * @throws IOException Thrown if the connection fails.
+	 * @throws NoMailException Thrown if no matching letter arrived in time.
+	 */
 	public T getMessage(String filter, int waitTime) throws MailboxDisconnectedException, IOException, NoMailException {
 
 		// Create a pattern to match the sender.
-		Pattern p = Pattern.compile(filter);
+		Pattern p = filter == null ? null : Pattern.compile(filter);
 		
 		// First search existing buffered mail to see if there are already incoming messages
-		// from that sender.
-		for(String sender : mailBuffer.keySet()){
+		// from that sender. It belongs to the checked out mailbox, not an attached one.
+		for(String sender : target == 0 ? mailBuffer.keySet() : Collections.<String>emptySet()){
 			
-			Matcher m = p.matcher(sender);
-			
-			if(m.find()){
+			if(p == null || p.matcher(sender).find()){
 				
 				Queue<T> mailFromSender = mailBuffer.get(sender);
 				
@@ -162,7 +487,21 @@ public class PostOfficeClient<T extends Message> {
 		}
 		
 		// If there are not any buffered messages, check the server.
-		if(execute(REQ.GETMAIL, RESP.REQDATA, RESP.NOBOXCONN) != RESP.REQDATA)
+		if(framed)
+			return getFramedMessage(p, filter, waitTime);
+		
+		REQ request = filter != null && serverFilters ? REQ.FILTERMAIL : REQ.GETMAIL;
+		RESP response = execute(request, RESP.REQDATA, RESP.NOBOXCONN, RESP.BADCOMMAND);
+		
+		// Servers that predate FILTERMAIL send every letter, and the client does the filtering.
+		if(response == RESP.BADCOMMAND && request == REQ.FILTERMAIL){
+			
+			serverFilters = false;
+			request = REQ.GETMAIL;
+			response = execute(request, RESP.REQDATA, RESP.NOBOXCONN);
+		}
+		
+		if(response != RESP.REQDATA)
 			throw new MailboxDisconnectedException("No mailbox connection exists to receive mail from.");
 		
 		// Send the data timeout.
@@ -170,6 +509,10 @@ public class PostOfficeClient<T extends Message> {
 			waitTime = 0;
 		
 		addData(waitTime);
+		
+		if(request == REQ.FILTERMAIL)
+			addData(filter);
+		
 		if(executeWithData(RESP.REQDATA, RESP.MAILTIMEOUT) != RESP.REQDATA)
 			throw new NoMailException("There is no mail matching the specified filter in the mailbox.");
 		
@@ -195,14 +538,12 @@ public class PostOfficeClient<T extends Message> {
 			int byteLength = is.readInt();
 
 			messageData = new byte[byteLength];
-			is.read(messageData);
+			is.readFully(messageData);
 				
-			// Check if the message is one we want.
-			Matcher m = p.matcher(sender);
-			
 			T message = newMessage(sender, messageData);
 			
-			if(m.find()){
+			// Check if the message is one we want.
+			if(p == null || p.matcher(sender).find()){
 				
 				execute(REQ.SATIATED, RESP.REQGRANTED);
 				
@@ -213,137 +554,1143 @@ public class PostOfficeClient<T extends Message> {
 				// If the message is not the one we are interested in, buffer it
 				// for later.
 				
-				Queue<T> messageQueue = mailBuffer.get(sender);
-				
-				if(messageQueue == null)
-					messageQueue = new LinkedList<T>();
-					
-				messageQueue.add(message);
-				
-				mailBuffer.put(sender, messageQueue);
+				bufferMessage(message);
 			}
 		}
 	}
 	
-	public void sendMessage(String recipient, T message) throws MailboxDisconnectedException, IOException, DeliveryFailureException {
-
-		// The format is <RECIPIENT><EOL><LENGTH><-- PAYLOAD BYTES -->
-		
-		if(execute(REQ.SENDLETTER, RESP.REQDATA, RESP.NOBOXCONN) != RESP.REQDATA)
-			throw new MailboxDisconnectedException("Cannot send a message as there is no mailbox connection.");
-		
-		addData(recipient);
-		executeWithData(RESP.REQDATA);
-		
-		byte[] payload = message.marshal();
+	/**
+	 * Retrieves mail one GETMAIL frame at a time until a letter matches the filter or
+	 * the waiting period runs out. The filter is sent along, so that a server that
+	 * understands it only ever answers with matching mail.
+	 */
+	private T getFramedMessage(Pattern p, String filter, int waitTime) throws MailboxDisconnectedException, IOException, NoMailException {
 		
-		// Load the message to send into the buffer.
-		addData(payload.length);
-		addData(payload);
+		if(waitTime < 0)
+			waitTime = 0;
 		
-		if(executeWithData(RESP.REQGRANTED, RESP.DELFAIL) != RESP.REQGRANTED)
-			throw new DeliveryFailureException("");
-	}
-
-	public void emptyMailQueue() throws MailboxDisconnectedException, IOException {
-
-		mailBuffer.clear();
+		long deadline = System.currentTimeMillis() + waitTime;
+		int remaining = waitTime;
 		
-		if(execute(REQ.EMPTYBOX, RESP.REQGRANTED, RESP.NOBOXCONN) != RESP.REQGRANTED)
-			throw new MailboxDisconnectedException("Cannot empty the mail queue as there is no connection.");
+		while(true){
+			
+			addData(remaining);
+			
+			if(filter != null)
+				addData(filter);
+			
+			Frame response = call(REQ.GETMAIL, remaining, RESP.INMAIL, RESP.MAILTIMEOUT, RESP.NOBOXCONN);
+			
+			if(response.getCode() == RESP.NOBOXCONN.ordinal())
+				throw new MailboxDisconnectedException("No mailbox connection exists to receive mail from.");
+			
+			if(response.getCode() == RESP.MAILTIMEOUT.ordinal()){
+				
+				if(waitTime == 0)
+					throw new NoMailException("There is no mail matching the specified filter in the mailbox.");
+				else
+					throw new NoMailException("The waiting period has been exceeded, no messages matching the pattern discovered.");
+			}
+			
+			DataInputStream data = response.getBodyReader();
+			
+			String sender = readSender(data);
+			
+			byte[] messageData = new byte[readLength(data)];
+			data.readFully(messageData);
+			
+			T message = newMessage(sender, messageData);
+			
+			if(p == null || p.matcher(sender).find())
+				return message;
+			
+			bufferMessage(message);
+			
+			if(waitTime != 0)
+				remaining = (int) Math.max(1, deadline - System.currentTimeMillis());
+		}
 	}
 	
-	public void createMailbox(String identifier, String password) throws IOException, ExistentMailboxException {
-		
-		execute(REQ.CREATEBOX, RESP.REQDATA);
+	/**
+	 * Retrieves a batch of mail. Over the framed protocol the server streams letters in
+	 * bulk for as long as this client has granted it credit, topping the credit up as
+	 * letters arrive, instead of requesting each letter separately.
+	 * 
+	 * @param maxLetters The maximum number of letters to retrieve.
+	 * @param maxBytes The payload budget; the last letter may exceed it. Zero or less means no limit.
+	 * @param waitTime How long to wait for further mail once the mailbox runs empty, in milliseconds.
+	 * @return The letters retrieved, possibly none.
+	 * @throws MailboxDisconnectedException Thrown if no mailbox is checked out.
+	 * @throws IOException Thrown if the connection fails.
+	 */
+	public List<T> getMessages(int maxLetters, int maxBytes, int waitTime) throws MailboxDisconnectedException, IOException {
 		
-		addData(identifier);
-		executeWithData(RESP.REQDATA);
+		List<T> messages = new ArrayList<T>();
 		
-		addData(md5Hash(password));
+		// Hand out mail buffered by earlier filtered calls first.
+		for(Queue<T> buffered : target == 0 ? mailBuffer.values() : Collections.<Queue<T>>emptySet()){
+			
+			while(messages.size() < maxLetters && !buffered.isEmpty())
+				messages.add(buffered.remove());
+		}
 		
-		if(executeWithData(RESP.REQGRANTED, RESP.BOXEXISTS) != RESP.REQGRANTED)
-			throw new ExistentMailboxException("A mailbox with the identifier '" + identifier + "' already exists.");
-	}
-	
-	public void deleteMailbox() throws IOException, MailboxDisconnectedException {
+		if(waitTime < 0)
+			waitTime = 0;
 		
-		if(execute(REQ.REMOVEBOX, RESP.REQGRANTED, RESP.NOBOXCONN) != RESP.REQGRANTED)
-			throw new MailboxDisconnectedException("Cannot delete the current mailbox as no mailbox has been checked out.");
+		if(!framed){
+			
+			try {
+				
+				while(messages.size() < maxLetters)
+					messages.add(getMessage(waitTime));
+				
+			} catch (NoMailException e) {} // Simply the end of the batch.
+			
+			return messages;
+		}
 		
-		mailBuffer.clear();
+		int wanted = maxLetters - messages.size();
 		
-		mailboxId = null;
-	}
-	
-	public void checkoutMailbox(String identifier, String password) throws ExistingMailboxConnectionException, IOException, NonExistentMailboxException, MailboxInUseException, UnauthorizedActionException {
+		if(wanted <= 0)
+			return messages;
 		
-		if(execute(REQ.REQBOX, RESP.REQDATA, RESP.ALREADYCONN) != RESP.REQDATA)
-			throw new ExistingMailboxConnectionException("A connection to mailbox already exists. Disconnect before checking out a different one.");
-
-		addData(identifier);
-		executeWithData(RESP.REQDATA);
+		int granted = Math.min(wanted, DRAIN_WINDOW);
+		int received = 0;
+		long bytes = 0;
+		boolean closing = false;
 		
-		addData(md5Hash(password));
+		addData(waitTime);
+		addData(granted);
+		addData(maxBytes);
 		
-		RESP response = executeWithData(RESP.REQGRANTED, RESP.NONEXISTBOX, RESP.BOXINUSE, RESP.NOAUTH);
+		int drainId = sendFrame(REQ.DRAINMAIL);
 		
-		if(response != RESP.REQGRANTED){
+		while(true){
 			
-			switch(response){
+			Frame response = readFrame(waitTime);
 			
-				case NONEXISTBOX:
-					throw new NonExistentMailboxException("The mailbox with the identifier '" 
-							+ identifier + "' does not exist, and therefore cannot be checked out.");
-				case BOXINUSE:
-					throw new MailboxInUseException("The mailbox with the identifier '"
-							+ identifier + "' has already been checked out by someone else.");
-				case NOAUTH:
-					throw new UnauthorizedActionException("Bad credentials for mailbox '" + identifier + "'.");
-					
-				default:
-					// No action as this will not happen.
+			if(response == null)
+				continue;
+			
+			if(response.getRequestId() != drainId)
+				throw new IOException("Received a response to unknown request " + response.getRequestId() + ". Likely, the client and server are out of sync.");
+			
+			RESP code = CommFlags.getRespByCode(response.getCode());
+			
+			if(code == RESP.NOBOXCONN)
+				throw new MailboxDisconnectedException("No mailbox connection exists to receive mail from.");
+			
+			if(code == RESP.REQGRANTED || code == RESP.MAILTIMEOUT)
+				return messages;
+			
+			if(code != RESP.INMAIL)
+				throw new IOException("Unexpected response '" + code + "' to a mail drain. Likely, the client and server are out of sync.");
+			
+			DataInputStream data = response.getBodyReader();
+			
+			int count = readLength(data);
+			
+			for(int i = 0; i < count; i++){
+				
+				String sender = readSender(data);
+				
+				byte[] messageData = new byte[readLength(data)];
+				data.readFully(messageData);
+				
+				messages.add(newMessage(sender, messageData));
+				
+				bytes += messageData.length;
+			}
+			
+			received += count;
+			
+			if(closing)
+				continue;
+			
+			int more;
+			
+			if(received >= wanted || (maxBytes > 0 && bytes >= maxBytes)){
+				
+				// Negative credit closes the drain.
+				more = -1;
+				closing = true;
+			}
+			else {
+				
+				// Replace the credit just used, up to the requested total.
+				more = Math.min(count, wanted - granted);
+				granted += more;
+			}
+			
+			if(more != 0){
+				
+				addData(drainId);
+				addData(more);
+				addData(0);
+				
+				sendFrame(REQ.CREDIT);
 			}
 		}
-		
-		mailboxId = identifier;
 	}
 	
-	public void returnMailbox() throws IOException, MailboxDisconnectedException{
-		
-		if(execute(REQ.RETBOX, RESP.REQGRANTED, RESP.NOBOXCONN) != RESP.REQGRANTED)
-			throw new MailboxDisconnectedException("Cannot disconnect from the present mailbox as there is no connection.");
+	/**
+	 * Keeps a letter that did not match a filter for a later call.
+	 */
+	private void bufferMessage(T message){
 		
-		mailBuffer.clear();
+		Queue<T> messageQueue = mailBuffer.get(message.getSender());
 		
-		mailboxId = null;
-	}
-	
-	private RESP execute(REQ req, RESP... resp) throws IOException {
+		if(messageQueue == null)
+			messageQueue = new LinkedList<T>();
+			
+		messageQueue.add(message);
 		
-		return execute(0, req, resp);
+		mailBuffer.put(message.getSender(), messageQueue);
 	}
 	
-	private RESP execute(int timeout, REQ req, RESP... resp) throws IOException {
-		
-		// Clears the write buffer and adds the command to execute to it.
-		writeBuffer.clear();
-		writeBuffer.add(new byte[]{ (byte) req.ordinal() });
-		
-		return executeWithData(timeout, resp);
+	/**
+	 * Sends a letter and waits for the server to accept it. When the recipient's mailbox
+	 * is full the server may hold the call back until there is room, and refuses the
+	 * letter if there still is none; producers should take that as a sign to slow down.
+	 * 
+	 * @param recipient The recipient mailbox.
+	 * @param message The message to send.
+	 * @throws MailboxDisconnectedException Thrown if no mailbox is checked out.
+	 * @throws IOException Thrown if the connection fails.
+	 * @throws MailboxFullException Thrown if the recipient's mailbox has no room for the letter.
+	 * @throws DeliveryFailureException Thrown if the recipient does not exist.
+	 */
+	public void sendMessage(String recipient, T message) throws MailboxDisconnectedException, IOException, DeliveryFailureException {
+
+		sendMessage(recipient, message, 0);
 	}
 	
-	private RESP executeWithData(RESP... resp) throws IOException {
-		
-		return executeWithData(0, resp);
+	/**
+	 * Sends a letter that expires unless it is picked up within a time to live. Once
+	 * expired it is never handed out, and the server reclaims it in the background.
+	 * Servers that predate letter expiry keep the letter until it is picked up.
+	 * 
+	 * @param recipient The recipient mailbox.
+	 * @param message The message to send.
+	 * @param timeToLive The time to live in milliseconds, or zero to never expire.
+	 * @throws MailboxDisconnectedException Thrown if no mailbox is checked out.
+	 * @throws IOException Thrown if the connection fails.
+	 * @throws MailboxFullException Thrown if the recipient's mailbox has no room for the letter.
+	 * @throws DeliveryFailureException Thrown if the recipient does not exist.
+	 */
+	public void sendMessage(String recipient, T message, int timeToLive) throws MailboxDisconnectedException, IOException, DeliveryFailureException {
+
+		sendMessage(recipient, message, timeToLive, Letter.Priority.NORMAL);
 	}
 	
-	private RESP executeWithData(int timeout, RESP... resp) throws IOException {
+	/**
+	 * Sends a letter with a priority. The recipient is handed letters of a higher priority
+	 * ahead of those of a lower one that arrived earlier. Priorities are only sent over the
+	 * framed protocol; otherwise, and by servers that predate them, the letter is treated
+	 * as {@link Letter.Priority#NORMAL}.
+	 * 
+	 * @param recipient The recipient mailbox.
+	 * @param message The message to send.
+	 * @param timeToLive The time to live in milliseconds, or zero to never expire.
+	 * @param priority The priority of the letter.
+	 * @throws MailboxDisconnectedException Thrown if no mailbox is checked out.
+	 * @throws IOException Thrown if the connection fails.
+	 * @throws MailboxFullException Thrown if the recipient's mailbox has no room for the letter.
+	 * @throws DeliveryFailureException Thrown if the recipient does not exist.
+	 */
+	public void sendMessage(String recipient, T message, int timeToLive, Letter.Priority priority) throws MailboxDisconnectedException, IOException, DeliveryFailureException {
 
-		int previousTimeout = s.getSoTimeout();
+		if(timeToLive < 0)
+			throw new IllegalArgumentException("The time to live cannot be negative.");
 		
-		try {
-
+		if(framed){
+			
+			addLetter(recipient, message);
+			
+			// Sent after the letter, where servers that predate them ignore them.
+			if(timeToLive > 0 || priority != Letter.Priority.NORMAL)
+				addData(timeToLive);
+			
+			if(priority != Letter.Priority.NORMAL)
+				addData(new byte[]{ (byte) priority.ordinal() });
+			
+			Frame response = call(REQ.SENDLETTER, 0, RESP.REQGRANTED, RESP.DELFAIL, RESP.MAILBOXFULL, RESP.NOBOXCONN);
+			
+			if(response.getCode() == RESP.NOBOXCONN.ordinal())
+				throw new MailboxDisconnectedException("Cannot send a message as there is no mailbox connection.");
+			
+			if(response.getCode() == RESP.MAILBOXFULL.ordinal())
+				throw new MailboxFullException("The mailbox of the recipient '" + recipient + "' is full.");
+			
+			if(response.getCode() != RESP.REQGRANTED.ordinal())
+				throw new DeliveryFailureException("The recipient '" + recipient + "' does not exist.");
+			
+			return;
+		}
+		
+		// The format is [<TIME TO LIVE>]<RECIPIENT><EOL><LENGTH><-- PAYLOAD BYTES -->
+		
+		REQ request = timeToLive > 0 && serverExpiry ? REQ.SENDEXPIRING : REQ.SENDLETTER;
+		RESP granted = execute(request, RESP.REQDATA, RESP.NOBOXCONN, RESP.BADCOMMAND);
+		
+		// Servers that predate SENDEXPIRING get the letter without its time to live.
+		if(granted == RESP.BADCOMMAND && request == REQ.SENDEXPIRING){
+			
+			serverExpiry = false;
+			request = REQ.SENDLETTER;
+			granted = execute(request, RESP.REQDATA, RESP.NOBOXCONN);
+		}
+		
+		if(granted != RESP.REQDATA)
+			throw new MailboxDisconnectedException("Cannot send a message as there is no mailbox connection.");
+		
+		if(request == REQ.SENDEXPIRING)
+			addData(timeToLive);
+		
+		addData(recipient);
+		executeWithData(RESP.REQDATA);
+		
+		byte[] payload = message.marshal();
+		
+		// Load the message to send into the buffer.
+		addData(payload.length);
+		addData(payload);
+		
+		RESP response = executeWithData(RESP.REQGRANTED, RESP.DELFAIL, RESP.MAILBOXFULL);
+		
+		if(response == RESP.MAILBOXFULL)
+			throw new MailboxFullException("The mailbox of the recipient '" + recipient + "' is full.");
+		
+		if(response != RESP.REQGRANTED)
+			throw new DeliveryFailureException("");
+	}
+	
+	/**
+	 * Sends many letters, one per map entry, in as few frames as possible.
+	 * 
+	 * @param letters The messages to send, keyed by recipient.
+	 * @return Whether each letter was delivered, in the map's iteration order.
+	 * @throws MailboxDisconnectedException Thrown if no mailbox is checked out.
+	 * @throws IOException Thrown if the connection fails.
+	 */
+	public boolean[] sendMessages(Map<String, T> letters) throws MailboxDisconnectedException, IOException {
+		
+		return sendMessages(new ArrayList<Entry<String, T>>(letters.entrySet()));
+	}
+	
+	/**
+	 * Sends many letters in as few frames as possible. The server delivers a whole batch
+	 * at once and answers with one status per letter. Over the legacy protocol the
+	 * letters are sent one at a time.
+	 * 
+	 * @param letters Pairs of recipient and message.
+	 * @return Whether each letter was delivered, in the order given. Letters refused by a
+	 * full mailbox are reported as not delivered.
+	 * @throws MailboxDisconnectedException Thrown if no mailbox is checked out.
+	 * @throws IOException Thrown if the connection fails.
+	 */
+	public boolean[] sendMessages(List<? extends Entry<String, T>> letters) throws MailboxDisconnectedException, IOException {
+		
+		boolean[] delivered = new boolean[letters.size()];
+		
+		if(!framed){
+			
+			for(int i = 0; i < delivered.length; i++){
+				
+				try {
+					
+					sendMessage(letters.get(i).getKey(), letters.get(i).getValue());
+					delivered[i] = true;
+					
+				} catch (DeliveryFailureException e) {} // Reported through the return value.
+			}
+			
+			return delivered;
+		}
+		
+		int first = 0;
+		
+		while(first < delivered.length){
+			
+			// Fill the write buffer until the next letter would overflow the frame.
+			int size = 4;
+			int last = first;
+			
+			writeBuffer.clear();
+			addData(0); // Placeholder for the letter count.
+			
+			while(last < delivered.length){
+				
+				String recipient = letters.get(last).getKey();
+				byte[] payload = letters.get(last).getValue().marshal();
+				
+				int letterSize = Varint.MAX_LENGTH + 2 + recipient.length() * 3 + 4 + payload.length;
+				
+				if(last > first && size + letterSize > Frame.MAX_LENGTH - Frame.HEADER_LENGTH)
+					break;
+				
+				addLetter(recipient, payload);
+				
+				size += letterSize;
+				last++;
+			}
+			
+			if(compact)
+				writeBuffer.set(0, Varint.toBytes(last - first));
+			else
+				writeBuffer.set(0, ByteBuffer.allocate(4).putInt(last - first).array());
+			
+			Frame response = call(REQ.SENDBATCH, 0, RESP.REQGRANTED, RESP.NOBOXCONN);
+			
+			if(response.getCode() == RESP.NOBOXCONN.ordinal())
+				throw new MailboxDisconnectedException("Cannot send messages as there is no mailbox connection.");
+			
+			DataInputStream data = response.getBodyReader();
+			
+			if(data.readInt() != last - first)
+				throw new IOException("Batch status does not match the number of letters sent. Likely, the client and server are out of sync.");
+			
+			for(int i = first; i < last; i++)
+				delivered[i] = data.readUnsignedByte() == RESP.REQGRANTED.ordinal();
+			
+			first = last;
+		}
+		
+		return delivered;
+	}
+	
+	/**
+	 * Subscribes the checked out mailbox to a topic, so that it receives a copy of every
+	 * letter published to the topic from then on. Subscribing twice has no further effect.
+	 * 
+	 * @param topic The topic name.
+	 * @throws MailboxDisconnectedException Thrown if no mailbox is checked out.
+	 * @throws IOException Thrown if the connection fails.
+	 */
+	public void subscribe(String topic) throws MailboxDisconnectedException, IOException {
+		
+		subscription(REQ.SUBSCRIBE, topic);
+	}
+	
+	/**
+	 * Stops the checked out mailbox receiving the letters published to a topic. Letters
+	 * already delivered stay in the mailbox.
+	 * 
+	 * @param topic The topic name.
+	 * @throws MailboxDisconnectedException Thrown if no mailbox is checked out.
+	 * @throws IOException Thrown if the connection fails.
+	 */
+	public void unsubscribe(String topic) throws MailboxDisconnectedException, IOException {
+		
+		subscription(REQ.UNSUBSCRIBE, topic);
+	}
+	
+	private void subscription(REQ req, String topic) throws MailboxDisconnectedException, IOException {
+		
+		if(framed){
+			
+			addData(topic);
+			
+			if(call(req, 0, RESP.REQGRANTED, RESP.NOBOXCONN).getCode() != RESP.REQGRANTED.ordinal())
+				throw new MailboxDisconnectedException("Cannot change subscriptions as there is no mailbox connection.");
+			
+			return;
+		}
+		
+		if(execute(req, RESP.REQDATA, RESP.NOBOXCONN) != RESP.REQDATA)
+			throw new MailboxDisconnectedException("Cannot change subscriptions as there is no mailbox connection.");
+		
+		addData(topic);
+		executeWithData(RESP.REQGRANTED);
+	}
+	
+	/**
+	 * Publishes a letter to every mailbox subscribed to a topic with a single upload; the
+	 * server makes the copies. Subscribers whose mailboxes are full are skipped rather
+	 * than waited for.
+	 * 
+	 * @param topic The topic name.
+	 * @param message The message to publish.
+	 * @return The number of subscribers the letter was delivered to.
+	 * @throws MailboxDisconnectedException Thrown if no mailbox is checked out.
+	 * @throws IOException Thrown if the connection fails.
+	 */
+	public int publish(String topic, T message) throws MailboxDisconnectedException, IOException {
+		
+		if(framed){
+			
+			Frame response = call(REQ.PUBLISH, 0, topic, message, RESP.REQGRANTED, RESP.NOBOXCONN);
+			
+			if(response.getCode() == RESP.NOBOXCONN.ordinal())
+				throw new MailboxDisconnectedException("Cannot publish a message as there is no mailbox connection.");
+			
+			return response.getBodyReader().readInt();
+		}
+		
+		// The exchange is that of SENDLETTER, with the topic in place of the recipient.
+		
+		if(execute(REQ.PUBLISH, RESP.REQDATA, RESP.NOBOXCONN) != RESP.REQDATA)
+			throw new MailboxDisconnectedException("Cannot publish a message as there is no mailbox connection.");
+		
+		addData(topic);
+		executeWithData(RESP.REQDATA);
+		
+		byte[] payload = message.marshal();
+		
+		addData(payload.length);
+		addData(payload);
+		
+		executeWithData(RESP.REQGRANTED);
+		
+		return is.readInt();
+	}
+	
+	/**
+	 * Asks for a live stream between the checked out mailbox and a correspondent. The
+	 * correspondent is told of it by a {@link postoffice.datatypes.LiveStreamMessage} from
+	 * {@link postoffice.daemon.PostOffice#OFFICE_ADDRESS}, ahead of its other mail, and
+	 * both then join it with {@link #joinLiveStream(UUID, String, String)}.
+	 * 
+	 * @param correspondent The mailbox to stream with.
+	 * @return The identifier of the stream.
+	 * @throws MailboxDisconnectedException Thrown if no mailbox is checked out.
+	 * @throws NonExistentMailboxException Thrown if the correspondent does not exist.
+	 * @throws MailboxFullException Thrown if the correspondent's mailbox has no room for the announcement.
+	 * @throws IOException Thrown if the connection fails.
+	 */
+	public UUID requestLiveStream(String correspondent) throws MailboxDisconnectedException, NonExistentMailboxException, MailboxFullException, IOException {
+		
+		RESP response;
+		
+		if(framed){
+			
+			addData(correspondent);
+			
+			Frame frame = call(REQ.LIVESTREAM, 0, RESP.REQGRANTED, RESP.NONEXISTBOX, RESP.UNSUPPORTED, RESP.DELFAIL, RESP.MAILBOXFULL, RESP.NOBOXCONN);
+			
+			response = CommFlags.getRespByCode(frame.getCode());
+			
+			if(response == RESP.REQGRANTED)
+				return UUID.fromString(frame.getBodyReader().readUTF());
+		}
+		else {
+			
+			if(execute(REQ.LIVESTREAM, RESP.REQDATA, RESP.NOBOXCONN) != RESP.REQDATA)
+				throw new MailboxDisconnectedException("Cannot request a live stream as there is no mailbox connection.");
+			
+			addData(correspondent);
+			
+			response = executeWithData(RESP.REQGRANTED, RESP.NONEXISTBOX, RESP.UNSUPPORTED, RESP.DELFAIL, RESP.MAILBOXFULL);
+			
+			if(response == RESP.REQGRANTED)
+				return UUID.fromString(is.readUTF());
+		}
+		
+		switch(response){
+			
+			case NOBOXCONN:
+				throw new MailboxDisconnectedException("Cannot request a live stream as there is no mailbox connection.");
+			case UNSUPPORTED:
+				throw new IllegalArgumentException("A mailbox cannot stream to itself.");
+			case MAILBOXFULL:
+				throw new MailboxFullException("The mailbox '" + correspondent + "' has no room for the live stream announcement.");
+			default:
+				throw new NonExistentMailboxException("The mailbox '" + correspondent + "' does not exist.");
+		}
+	}
+	
+	/**
+	 * Opens a brokered live stream between the checked out mailbox and a correspondent.
+	 * The post office only tells the correspondent where this client listens and which
+	 * one-time token to present; the stream's bytes then pass between the two directly.
+	 * If the correspondent has not connected within the timeout, or the server cannot
+	 * broker streams, the stream is joined through the server's relay instead, as with
+	 * {@link #joinLiveStream(UUID, String, String)}. The correspondent should join with
+	 * {@link #joinLiveStream(LiveStreamMessage, String, String, int)}, which falls back
+	 * the same way.
+	 * 
+	 * @param correspondent The mailbox to stream with.
+	 * @param password The password of the checked out mailbox, for joining through the relay.
+	 * @param timeout How long to wait for the correspondent to connect directly, in milliseconds.
+	 * @return The connection to the correspondent, in blocking mode.
+	 * @throws MailboxDisconnectedException Thrown if no mailbox is checked out.
+	 * @throws NonExistentMailboxException Thrown if the correspondent does not exist.
+	 * @throws MailboxFullException Thrown if the correspondent's mailbox has no room for the announcement.
+	 * @throws LiveStreamException Thrown if the correspondent did not join the stream in time.
+	 * @throws IOException Thrown if the connection fails.
+	 */
+	public SocketChannel openLiveStream(String correspondent, String password, int timeout) throws MailboxDisconnectedException, NonExistentMailboxException, MailboxFullException, LiveStreamException, IOException {
+		
+		if(mailboxId == null)
+			throw new MailboxDisconnectedException("Cannot open a live stream as there is no mailbox connection.");
+		
+		if(correspondent.equals(mailboxId))
+			throw new IllegalArgumentException("A mailbox cannot stream to itself.");
+		
+		ServerSocketChannel listener = ServerSocketChannel.open();
+		
+		try {
+			
+			listener.bind(new InetSocketAddress(s.getLocalAddress(), 0));
+			
+			UUID liveStreamId;
+			byte[] token = new byte[16];
+			
+			RESP response;
+			
+			if(framed){
+				
+				addEndpoint(correspondent, listener);
+				
+				Frame frame = call(REQ.DIRECTSTREAM, 0, RESP.REQGRANTED, RESP.NONEXISTBOX, RESP.UNSUPPORTED, RESP.DELFAIL, RESP.MAILBOXFULL, RESP.NOBOXCONN, RESP.BADCOMMAND);
+				
+				response = CommFlags.getRespByCode(frame.getCode());
+				
+				if(response == RESP.REQGRANTED){
+					
+					DataInputStream body = frame.getBodyReader();
+					
+					liveStreamId = UUID.fromString(body.readUTF());
+					body.readFully(token);
+				}
+				else
+					liveStreamId = null;
+			}
+			else {
+				
+				response = execute(REQ.DIRECTSTREAM, RESP.REQDATA, RESP.NOBOXCONN, RESP.BADCOMMAND);
+				
+				if(response == RESP.REQDATA){
+					
+					addEndpoint(correspondent, listener);
+					
+					response = executeWithData(RESP.REQGRANTED, RESP.NONEXISTBOX, RESP.UNSUPPORTED, RESP.DELFAIL, RESP.MAILBOXFULL, RESP.BADCOMMAND);
+				}
+				
+				if(response == RESP.REQGRANTED){
+					
+					liveStreamId = UUID.fromString(is.readUTF());
+					is.readFully(token);
+				}
+				else
+					liveStreamId = null;
+			}
+			
+			switch(response){
+				
+				case REQGRANTED:
+					break;
+				case NOBOXCONN:
+					throw new MailboxDisconnectedException("Cannot open a live stream as there is no mailbox connection.");
+				case MAILBOXFULL:
+					throw new MailboxFullException("The mailbox '" + correspondent + "' has no room for the live stream announcement.");
+				case NONEXISTBOX:
+				case DELFAIL:
+					throw new NonExistentMailboxException("The mailbox '" + correspondent + "' does not exist.");
+				default:
+					
+					// The server cannot broker streams, so it relays this one.
+					listener.close();
+					
+					return joinLiveStream(requestLiveStream(correspondent), mailboxId, password);
+			}
+			
+			SocketChannel peer = acceptPeer(listener, token, timeout);
+			
+			if(peer != null)
+				return peer;
+			
+			listener.close();
+			
+			return joinLiveStream(liveStreamId, mailboxId, password);
+			
+		} finally {
+			
+			listener.close();
+		}
+	}
+	
+	/**
+	 * Loads the body of a DIRECTSTREAM request into the write buffer.
+	 */
+	private void addEndpoint(String correspondent, ServerSocketChannel listener){
+		
+		addData(correspondent);
+		addData(s.getLocalAddress().getHostAddress());
+		addData(listener.socket().getLocalPort());
+	}
+	
+	/**
+	 * Waits for the correspondent of a brokered stream to connect and present its token.
+	 * Connections with the wrong token are turned away.
+	 * 
+	 * @return The correspondent's connection, or null if it did not connect in time.
+	 */
+	private SocketChannel acceptPeer(ServerSocketChannel listener, byte[] token, int timeout) throws IOException {
+		
+		long deadline = System.currentTimeMillis() + timeout;
+		byte[] presented = new byte[token.length];
+		
+		while(true){
+			
+			int remaining = (int) (deadline - System.currentTimeMillis());
+			
+			if(remaining <= 0)
+				return null;
+			
+			Socket peer;
+			
+			try {
+				
+				listener.socket().setSoTimeout(remaining);
+				peer = listener.socket().accept();
+				
+			} catch (SocketTimeoutException e) {
+				
+				return null;
+			}
+			
+			try {
+				
+				peer.setSoTimeout(Math.max(1, (int) (deadline - System.currentTimeMillis())));
+				
+				new DataInputStream(peer.getInputStream()).readFully(presented);
+				
+				if(Arrays.equals(token, presented)){
+					
+					peer.getOutputStream().write(RESP.REQGRANTED.ordinal());
+					peer.setSoTimeout(0);
+					
+					return peer.getChannel();
+				}
+				
+			} catch (IOException e) {} // Not the correspondent, or it gave up.
+			
+			peer.close();
+		}
+	}
+	
+	/**
+	 * Joins a live stream that was announced to this client. A brokered stream is joined
+	 * by connecting straight to the requester, falling back to the server's relay if the
+	 * requester cannot be reached; any other stream is joined through the relay, as with
+	 * {@link #joinLiveStream(UUID, String, String)}.
+	 * 
+	 * @param announcement The announcement, read with {@link LiveStreamMessage#from(Message)}.
+	 * @param mailbox The mailbox joining the stream, for joining through the relay.
+	 * @param password The password of the mailbox.
+	 * @param timeout How long to try reaching the requester directly, in milliseconds.
+	 * @return The connection to the other participant, in blocking mode.
+	 * @throws LiveStreamException Thrown if the stream cannot be joined; see {@link #joinLiveStream(UUID, String, String)}.
+	 * @throws IOException Thrown if the connection fails.
+	 */
+	public SocketChannel joinLiveStream(LiveStreamMessage announcement, String mailbox, String password, int timeout) throws LiveStreamException, IOException {
+		
+		if(announcement.isBrokered()){
+			
+			SocketChannel sc = SocketChannel.open();
+			
+			try {
+				
+				sc.socket().connect(new InetSocketAddress(announcement.getHost(), announcement.getPort()), timeout);
+				sc.socket().setSoTimeout(timeout);
+				
+				sc.socket().getOutputStream().write(announcement.getToken());
+				
+				if(sc.socket().getInputStream().read() == RESP.REQGRANTED.ordinal()){
+					
+					sc.socket().setSoTimeout(0);
+					
+					return sc;
+				}
+				
+			} catch (IOException e) {} // Unreachable, so the stream is relayed.
+			
+			sc.close();
+		}
+		
+		return joinLiveStream(announcement.getLiveStreamId(), mailbox, password);
+	}
+	
+	/**
+	 * Joins a live stream from a new connection to the same server. This waits for the
+	 * other participant to join as well, and the server drops the stream if both have
+	 * not joined within its join timeout. Everything written to the returned channel is
+	 * then relayed to the other participant, and everything it writes can be read from
+	 * the channel, until either side shuts down its output.
+	 * 
+	 * @param liveStreamId The identifier of the stream.
+	 * @param mailbox The mailbox joining the stream, which need not be checked out.
+	 * @param password The password of the mailbox.
+	 * @return The connection to the other participant, in blocking mode.
+	 * @throws NonExistentLiveStreamException Thrown if there is no such stream waiting to be joined.
+	 * @throws UnexpectedParticipantException Thrown if the mailbox is not a participant, has already joined, or the password is incorrect.
+	 * @throws LiveStreamException Thrown if the other participant did not join in time.
+	 * @throws IOException Thrown if the connection fails.
+	 */
+	public SocketChannel joinLiveStream(UUID liveStreamId, String mailbox, String password) throws LiveStreamException, IOException {
+		
+		if(s == null)
+			throw new IOException("You cannot join a live stream until you connect to a server.");
+		
+		SocketChannel sc;
+		
+		if(socketFile != null)
+			sc = UnixDomainSocket.open(socketFile);
+		else
+			sc = SocketChannel.open(new InetSocketAddress(s.getInetAddress(), s.getPort()));
+		
+		try {
+			
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			DataOutputStream dos = new DataOutputStream(bos);
+			
+			dos.writeByte(REQ.JOINSTREAM.ordinal());
+			dos.writeUTF(liveStreamId.toString());
+			dos.writeUTF(mailbox);
+			dos.write(md5Hash(password));
+			
+			// The request and its data go out together; the server answers REQDATA first.
+			ByteBuffer request = ByteBuffer.wrap(bos.toByteArray());
+			
+			while(request.hasRemaining())
+				sc.write(request);
+			
+			RESP response = readStreamResponse(sc);
+			
+			if(response == RESP.REQDATA)
+				response = readStreamResponse(sc);
+			
+			switch(response){
+				
+				case REQGRANTED:
+					return sc;
+				case NONEXISTBOX:
+					throw new NonExistentLiveStreamException("The live stream '" + liveStreamId + "' does not exist.");
+				case NOAUTH:
+					throw new UnexpectedParticipantException("The mailbox '" + mailbox + "' cannot join the live stream '" + liveStreamId + "'.");
+				case COMMTIMEOUT:
+					throw new LiveStreamException("The other participant did not join the live stream '" + liveStreamId + "' in time.");
+				default:
+					throw new IOException("Unexpected response '" + response.name() + "' to joining a live stream. Likely, the client and server are out of sync.");
+			}
+			
+		} catch (LiveStreamException | IOException e) {
+			
+			sc.close();
+			
+			throw e;
+		}
+	}
+	
+	private RESP readStreamResponse(SocketChannel sc) throws IOException {
+		
+		ByteBuffer code = ByteBuffer.allocate(1);
+		
+		while(code.hasRemaining())
+			if(sc.read(code) < 0)
+				throw new IOException("The server closed the connection before answering.");
+		
+		RESP response = CommFlags.getRespByCode(code.get(0) & 0xFF);
+		
+		if(response == null)
+			throw new IOException("Unknown response code '" + (code.get(0) & 0xFF) + "'. Likely, the client and server are out of sync.");
+		
+		return response;
+	}
+	
+	/**
+	 * Sends a letter without waiting for the server to confirm delivery. Over the framed
+	 * protocol many letters can be in flight at once; their results are collected by
+	 * {@link #flushPipeline()} or by whichever call next reads from the server. Over the
+	 * legacy protocol the letter is sent synchronously.
+	 * 
+	 * @param recipient The recipient mailbox.
+	 * @param message The message to send.
+	 * @throws MailboxDisconnectedException Thrown if no mailbox is checked out.
+	 * @throws IOException Thrown if the connection fails.
+	 */
+	public void pipelineMessage(String recipient, T message) throws MailboxDisconnectedException, IOException {
+		
+		if(mailboxId == null && target == 0)
+			throw new MailboxDisconnectedException("Cannot send a message as there is no mailbox connection.");
+		
+		if(!framed){
+			
+			try {
+				
+				sendMessage(recipient, message);
+				
+			} catch (DeliveryFailureException e) {
+				
+				pipelineFailures.add(recipient);
+				pipelineFull |= e instanceof MailboxFullException;
+			}
+			
+			return;
+		}
+		
+		// Bound the number of unread responses so neither side's buffers fill up.
+		while(pipelined.size() >= maxPipelined)
+			readFrame(0);
+		
+		addLetter(recipient, message);
+		
+		pipelined.put(sendFrame(REQ.SENDLETTER), recipient);
+	}
+	
+	/**
+	 * Waits for every pipelined letter to be acknowledged.
+	 * 
+	 * @throws IOException Thrown if the connection fails.
+	 * @throws MailboxFullException Thrown if any pipelined letter since the last flush was refused by a full mailbox.
+	 * @throws DeliveryFailureException Thrown if any pipelined letter since the last flush could not be delivered.
+	 */
+	public void flushPipeline() throws IOException, DeliveryFailureException {
+		
+		while(!pipelined.isEmpty())
+			readFrame(0);
+		
+		if(!pipelineFailures.isEmpty()){
+			
+			List<String> failures = new ArrayList<String>(pipelineFailures);
+			pipelineFailures.clear();
+			
+			if(pipelineFull){
+				
+				pipelineFull = false;
+				
+				throw new MailboxFullException("Failed to deliver pipelined letters to " + failures + "; at least one mailbox was full.");
+			}
+			
+			throw new DeliveryFailureException("Failed to deliver pipelined letters to " + failures + ".");
+		}
+	}
+
+	public void emptyMailQueue() throws MailboxDisconnectedException, IOException {
+
+		mailBuffer.clear();
+		
+		if(framed){
+			
+			if(call(REQ.EMPTYBOX, 0, RESP.REQGRANTED, RESP.NOBOXCONN).getCode() != RESP.REQGRANTED.ordinal())
+				throw new MailboxDisconnectedException("Cannot empty the mail queue as there is no connection.");
+			
+			return;
+		}
+		
+		if(execute(REQ.EMPTYBOX, RESP.REQGRANTED, RESP.NOBOXCONN) != RESP.REQGRANTED)
+			throw new MailboxDisconnectedException("Cannot empty the mail queue as there is no connection.");
+	}
+	
+	public void createMailbox(String identifier, String password) throws IOException, ExistentMailboxException {
+		
+		if(framed){
+			
+			addData(identifier);
+			addData(md5Hash(password));
+			
+			createdMailbox(identifier, CommFlags.getRespByCode(call(REQ.CREATEBOX, 0, RESP.REQGRANTED, RESP.BOXEXISTS, RESP.BADCOMMAND).getCode()));
+			
+			return;
+		}
+		
+		execute(REQ.CREATEBOX, RESP.REQDATA);
+		
+		addData(identifier);
+		executeWithData(RESP.REQDATA);
+		
+		addData(md5Hash(password));
+		
+		createdMailbox(identifier, executeWithData(RESP.REQGRANTED, RESP.BOXEXISTS, RESP.BADCOMMAND));
+	}
+	
+	private void createdMailbox(String identifier, RESP response) throws ExistentMailboxException {
+		
+		if(response == RESP.BOXEXISTS)
+			throw new ExistentMailboxException("A mailbox with the identifier '" + identifier + "' already exists.");
+		
+		// Letters addressed to such an identifier would be routed as a pattern instead.
+		if(response == RESP.BADCOMMAND)
+			throw new IllegalArgumentException("A mailbox identifier cannot have '*' or '#' as a segment: '" + identifier + "'.");
+	}
+	
+	public void deleteMailbox() throws IOException, MailboxDisconnectedException {
+		
+		if(framed){
+			
+			if(call(REQ.REMOVEBOX, 0, RESP.REQGRANTED, RESP.NOBOXCONN).getCode() != RESP.REQGRANTED.ordinal())
+				throw new MailboxDisconnectedException("Cannot delete the current mailbox as no mailbox has been checked out.");
+		}
+		else if(execute(REQ.REMOVEBOX, RESP.REQGRANTED, RESP.NOBOXCONN) != RESP.REQGRANTED)
+			throw new MailboxDisconnectedException("Cannot delete the current mailbox as no mailbox has been checked out.");
+		
+		mailBuffer.clear();
+		
+		mailboxId = null;
+	}
+	
+	public void checkoutMailbox(String identifier, String password) throws ExistingMailboxConnectionException, IOException, NonExistentMailboxException, MailboxInUseException, UnauthorizedActionException {
+		
+		RESP response;
+		
+		if(framed){
+			
+			addData(identifier);
+			addData(md5Hash(password));
+			
+			Frame frame = call(REQ.REQBOX, 0, RESP.REQGRANTED, RESP.ALREADYCONN, RESP.NONEXISTBOX, RESP.BOXINUSE, RESP.NOAUTH);
+			
+			response = CommFlags.getRespByCode(frame.getCode());
+			
+			if(response == RESP.ALREADYCONN)
+				throw new ExistingMailboxConnectionException("A connection to mailbox already exists. Disconnect before checking out a different one.");
+		}
+		else {
+			
+			if(execute(REQ.REQBOX, RESP.REQDATA, RESP.ALREADYCONN) != RESP.REQDATA)
+				throw new ExistingMailboxConnectionException("A connection to mailbox already exists. Disconnect before checking out a different one.");
+	
+			addData(identifier);
+			executeWithData(RESP.REQDATA);
+			
+			addData(md5Hash(password));
+			
+			response = executeWithData(RESP.REQGRANTED, RESP.NONEXISTBOX, RESP.BOXINUSE, RESP.NOAUTH);
+		}
+		
+		if(response != RESP.REQGRANTED){
+			
+			switch(response){
+			
+				case NONEXISTBOX:
+					throw new NonExistentMailboxException("The mailbox with the identifier '" 
+							+ identifier + "' does not exist, and therefore cannot be checked out.");
+				case BOXINUSE:
+					throw new MailboxInUseException("The mailbox with the identifier '"
+							+ identifier + "' has already been checked out by someone else.");
+				case NOAUTH:
+					throw new UnauthorizedActionException("Bad credentials for mailbox '" + identifier + "'.");
+					
+				default:
+					// No action as this will not happen.
+			}
+		}
+		
+		mailboxId = identifier;
+	}
+	
+	/**
+	 * Checks out a further mailbox on this connection, alongside any checked out with
+	 * {@link #checkoutMailbox(String, String)}. Requests on it are made through the
+	 * returned {@link AttachedMailbox} and share this client's connection, so a process
+	 * holding many mailboxes needs a single socket and costs the server a single clerk.
+	 * Attaching requires the framed protocol.
+	 * 
+	 * @param identifier The mailbox identifier.
+	 * @param password The mailbox password.
+	 * @return The attached mailbox.
+	 * @throws IOException Thrown if the connection fails, or if the server cannot attach mailboxes.
+	 * @throws NonExistentMailboxException Thrown if the mailbox does not exist.
+	 * @throws MailboxInUseException Thrown if the mailbox is already checked out, on this connection or another.
+	 * @throws UnauthorizedActionException Thrown if the password is wrong.
+	 */
+	public AttachedMailbox<T> attachMailbox(String identifier, String password) throws IOException, NonExistentMailboxException, MailboxInUseException, UnauthorizedActionException {
+		
+		if(!framed)
+			throw new IOException("Attaching mailboxes requires the framed protocol.");
+		
+		addData(identifier);
+		addData(md5Hash(password));
+		
+		Frame frame = call(REQ.ATTACHBOX, 0, RESP.REQGRANTED, RESP.NONEXISTBOX, RESP.BOXINUSE, RESP.NOAUTH, RESP.BADCOMMAND);
+		
+		switch(CommFlags.getRespByCode(frame.getCode())){
+		
+			case NONEXISTBOX:
+				throw new NonExistentMailboxException("The mailbox with the identifier '" 
+						+ identifier + "' does not exist, and therefore cannot be checked out.");
+			case BOXINUSE:
+				throw new MailboxInUseException("The mailbox with the identifier '"
+						+ identifier + "' has already been checked out.");
+			case NOAUTH:
+				throw new UnauthorizedActionException("Bad credentials for mailbox '" + identifier + "'.");
+			case BADCOMMAND:
+				throw new IOException("The server does not support attaching mailboxes.");
+				
+			default:
+				return new AttachedMailbox<T>(this, identifier, frame.getBodyReader().readInt());
+		}
+	}
+	
+	/**
+	 * Directs the requests that follow at an attached mailbox, or back at the checked out
+	 * one with zero.
+	 */
+	void direct(int handle){
+		
+		target = handle;
+	}
+	
+	/**
+	 * Makes a request on an attached mailbox that is answered with REQGRANTED, or with
+	 * NOBOXCONN once the mailbox is no longer attached.
+	 */
+	void attachedRequest(int handle, REQ req, String refusal) throws IOException, MailboxDisconnectedException {
+		
+		target = handle;
+		
+		try {
+			
+			if(call(req, 0, RESP.REQGRANTED, RESP.NOBOXCONN).getCode() != RESP.REQGRANTED.ordinal())
+				throw new MailboxDisconnectedException(refusal);
+			
+		} finally {
+			
+			target = 0;
+		}
+	}
+	
+	public void returnMailbox() throws IOException, MailboxDisconnectedException{
+		
+		if(framed){
+			
+			if(call(REQ.RETBOX, 0, RESP.REQGRANTED, RESP.NOBOXCONN).getCode() != RESP.REQGRANTED.ordinal())
+				throw new MailboxDisconnectedException("Cannot disconnect from the present mailbox as there is no connection.");
+		}
+		else if(execute(REQ.RETBOX, RESP.REQGRANTED, RESP.NOBOXCONN) != RESP.REQGRANTED)
+			throw new MailboxDisconnectedException("Cannot disconnect from the present mailbox as there is no connection.");
+		
+		mailBuffer.clear();
+		
+		mailboxId = null;
+	}
+	
+	private RESP execute(REQ req, RESP... resp) throws IOException {
+		
+		return execute(0, req, resp);
+	}
+	
+	private RESP execute(int timeout, REQ req, RESP... resp) throws IOException {
+		
+		// Clears the write buffer and adds the command to execute to it.
+		writeBuffer.clear();
+		writeBuffer.add(new byte[]{ (byte) req.ordinal() });
+		
+		return executeWithData(timeout, resp);
+	}
+	
+	private RESP executeWithData(RESP... resp) throws IOException {
+		
+		return executeWithData(0, resp);
+	}
+	
+	private RESP executeWithData(int timeout, RESP... resp) throws IOException {
+
+		int previousTimeout = s.getSoTimeout();
+		
+		try {
+
 			if(timeout != 0)
 				s.setSoTimeout(timeout + 1000); // Leave 1000 seconds longer than the server to act.
 
@@ -380,6 +1727,258 @@ public class PostOfficeClient<T extends Message> {
 		}
 	}
 	
+	/**
+	 * Sends a request frame whose body is the current contents of the write buffer, then
+	 * waits for its response. Responses to pipelined letters that arrive first are
+	 * recorded along the way.
+	 * 
+	 * @param req The request to send.
+	 * @param timeout How long the server may wait before answering, in milliseconds.
+	 * @param resp The acceptable response codes.
+	 * @return The response frame.
+	 * @throws IOException Thrown if the connection fails or an unexpected response arrives.
+	 */
+	private Frame call(REQ req, int timeout, RESP... resp) throws IOException {
+		
+		int requestId = sendFrame(req);
+		
+		while(true){
+			
+			Frame response = readFrame(timeout);
+			
+			if(response == null)
+				continue;
+			
+			if(response.getRequestId() != requestId)
+				throw new IOException("Received a response to unknown request " + response.getRequestId() + ". Likely, the client and server are out of sync.");
+			
+			RESP code = CommFlags.getRespByCode(response.getCode());
+			
+			if(!Arrays.asList(resp).contains(code)){
+				
+				List<String> expected = new LinkedList<String>();
+				
+				for(RESP r : resp)
+					expected.add(r.name());
+				
+				throw new IOException("Unexpected response '" 
+					+ code + "'. Expected  element of " + expected + ". Likely, the client and server are out of sync.");
+			}
+			
+			return response;
+		}
+	}
+	
+	private Frame call(REQ req, int timeout, String recipient, T message, RESP... resp) throws IOException {
+		
+		addLetter(recipient, message);
+		
+		return call(req, timeout, resp);
+	}
+	
+	private void addLetter(String recipient, T message) throws IOException {
+		
+		addLetter(recipient, message.marshal());
+	}
+	
+	/**
+	 * Loads a letter into the write buffer in the format <RECIPIENT><LENGTH><-- PAYLOAD BYTES -->.
+	 * Under the compact framing the recipient is a handle, bound first if need be, and the
+	 * length a varint.
+	 */
+	private void addLetter(String recipient, byte[] payload) throws IOException {
+		
+		if(!compact){
+			
+			addData(recipient);
+			addData(payload.length);
+			addData(payload);
+			
+			return;
+		}
+		
+		int handle = bind(recipient);
+		
+		byte[] head = new byte[Varint.length(handle) + Varint.length(payload.length)];
+		
+		Varint.write(payload.length, head, Varint.write(handle, head, 0));
+		
+		if(handle == 0){
+			
+			// Past the binding limit, the name goes in full between the handle and the length.
+			addData(Arrays.copyOf(head, 1));
+			addData(recipient);
+			addData(Arrays.copyOfRange(head, 1, head.length));
+		}
+		else
+			addData(head);
+		
+		addData(payload);
+	}
+	
+	/**
+	 * Binds a name to the next handle with a BINDNAME frame, which the server does not
+	 * answer. The frame is written straight away, so that it goes out ahead of the
+	 * request being built in the write buffer.
+	 * 
+	 * @param name The mailbox name.
+	 * @return The handle, or zero once no more names may be bound.
+	 * @throws IOException Thrown if the connection fails.
+	 */
+	private int bind(String name) throws IOException {
+		
+		Integer handle = handles.get(name);
+		
+		if(handle != null)
+			return handle;
+		
+		if(names.size() >= MAX_BINDINGS)
+			return 0;
+		
+		handle = names.size() + 1;
+		
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(bos);
+		
+		dos.writeInt(0); // Placeholder for the length.
+		dos.writeInt(nextRequestId++);
+		dos.writeByte(REQ.BINDNAME.ordinal());
+		
+		Varint.write(dos, handle);
+		dos.writeUTF(name);
+		
+		byte[] frame = bos.toByteArray();
+		
+		ByteBuffer.wrap(frame).putInt(frame.length - 4);
+		
+		os.write(frame);
+		
+		handles.put(name, handle);
+		names.add(name);
+		
+		return handle;
+	}
+	
+	/**
+	 * Reads the sender of a letter: its name, or under the compact framing the handle it
+	 * was bound to, or zero followed by a name that was not bound, which is bound then.
+	 */
+	private String readSender(DataInputStream data) throws IOException {
+		
+		if(!compact)
+			return data.readUTF();
+		
+		int handle = Varint.read(data);
+		
+		if(handle == 0){
+			
+			String sender = data.readUTF();
+			
+			// Later mail from the same sender then only carries its handle.
+			bind(sender);
+			
+			return sender;
+		}
+		
+		if(handle > names.size())
+			throw new IOException("Received mail from unbound handle " + handle + ". Likely, the client and server are out of sync.");
+		
+		return names.get(handle - 1);
+	}
+	
+	private int readLength(DataInputStream data) throws IOException {
+		
+		return compact ? Varint.read(data) : data.readInt();
+	}
+	
+	/**
+	 * Sends the write buffer as the body of a single request frame.
+	 * 
+	 * @param req The request code.
+	 * @return The id assigned to the request.
+	 * @throws IOException Thrown if the connection fails.
+	 */
+	private int sendFrame(REQ req) throws IOException {
+		
+		int length = 0;
+		
+		for(byte[] data : writeBuffer)
+			length += data.length;
+		
+		// Requests on an attached mailbox are carried by an ONBOX frame. Credit is given to
+		// a drain, whichever mailbox it drains.
+		boolean onBox = target != 0 && req != REQ.CREDIT;
+		
+		if(onBox)
+			length += 5;
+		
+		ByteBuffer frame = ByteBuffer.allocate(4 + Frame.HEADER_LENGTH + length);
+		
+		int requestId = nextRequestId++;
+		
+		frame.putInt(Frame.HEADER_LENGTH + length);
+		frame.putInt(requestId);
+		
+		if(onBox){
+			
+			frame.put((byte) REQ.ONBOX.ordinal());
+			frame.putInt(target);
+		}
+		
+		frame.put((byte) req.ordinal());
+		
+		for(byte[] data : writeBuffer)
+			frame.put(data);
+		
+		writeBuffer.clear();
+		
+		os.write(frame.array());
+		
+		return requestId;
+	}
+	
+	/**
+	 * Reads the next response frame. Responses to pipelined letters are consumed here.
+	 * 
+	 * @param timeout How long the server may wait before answering, in milliseconds.
+	 * @return The frame, or null if it answered a pipelined letter.
+	 * @throws IOException Thrown if the connection fails.
+	 */
+	private Frame readFrame(int timeout) throws IOException {
+		
+		int previousTimeout = s.getSoTimeout();
+		
+		Frame response;
+		
+		try {
+			
+			if(timeout != 0)
+				s.setSoTimeout(timeout + 1000); // Leave 1000 seconds longer than the server to act.
+			
+			response = Frame.read(is);
+		}
+		catch(SocketTimeoutException ste){
+			
+			throw new IOException("Server failed to respond within the alotted time.");
+		}
+		finally {
+			
+			s.setSoTimeout(previousTimeout);
+		}
+		
+		String recipient = pipelined.remove(response.getRequestId());
+		
+		if(recipient == null)
+			return response;
+		
+		if(response.getCode() != RESP.REQGRANTED.ordinal())
+			pipelineFailures.add(recipient);
+		
+		pipelineFull |= response.getCode() == RESP.MAILBOXFULL.ordinal();
+		
+		return null;
+	}
+	
 	private void addData(int integer){
 		
 		addData(ByteBuffer.allocate(4).putInt(integer).array());
@@ -389,8 +1988,10 @@ public class PostOfficeClient<T extends Message> {
 
 		try {
 			
-			addData(ByteBuffer.allocate(2).putShort((short) payload.length()).array());
-			addData(payload.getBytes("UTF-8"));
+			byte[] bytes = payload.getBytes("UTF-8");
+			
+			addData(ByteBuffer.allocate(2).putShort((short) bytes.length).array());
+			addData(bytes);
 		
 		} catch (UnsupportedEncodingException e) {e.printStackTrace();} // This can never happen.
 	}
@@ -0,0 +1,216 @@
+package postoffice.daemon;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import postoffice.datatypes.Mailbox;
+
+/**
+ * Every mailbox in the post office, arranged by the dot-separated segments of its
+ * address, so that routing patterns can be matched without visiting every mailbox.
+ * In a pattern a segment of {@code *} matches exactly one segment of an address, and a
+ * segment of {@code #} matches any number of segments, including none. Thus
+ * {@code sensors.*.temp} matches {@code sensors.kitchen.temp}, and {@code sensors.#}
+ * matches {@code sensors} and everything below it.
+ *
+ * Lookups take no locks. Changes must be serialized by the caller.
+ */
+class AddressTrie {
+
+	static final String ONE = "*";
+	static final String ANY = "#";
+
+	private Node root = new Node();
+
+	/**
+	 * @param address A recipient address.
+	 * @return True if the address has a wildcard segment.
+	 */
+	static boolean isPattern(String address){
+
+		if(address.indexOf('*') < 0 && address.indexOf('#') < 0)
+			return false;
+
+		for(String segment : split(address))
+			if(segment.equals(ONE) || segment.equals(ANY))
+				return true;
+
+		return false;
+	}
+
+	void add(Mailbox mailbox){
+
+		Node node = root;
+
+		for(String segment : split(mailbox.getOwner())){
+
+			Node child = node.child(segment);
+
+			if(child == null){
+
+				child = new Node();
+				node.children().put(segment, child);
+			}
+
+			node = child;
+		}
+
+		node.mailbox = mailbox;
+	}
+
+	void remove(Mailbox mailbox){
+
+		String[] segments = split(mailbox.getOwner());
+		Node[] path = new Node[segments.length + 1];
+
+		path[0] = root;
+
+		for(int i = 0; i < segments.length; i++){
+
+			path[i + 1] = path[i].child(segments[i]);
+
+			if(path[i + 1] == null)
+				return;
+		}
+
+		if(path[segments.length].mailbox != mailbox)
+			return;
+
+		path[segments.length].mailbox = null;
+
+		// Prune the branch back to the nearest node still in use.
+		for(int i = segments.length; i > 0 && path[i].isEmpty(); i--)
+			path[i - 1].children.remove(segments[i - 1]);
+	}
+
+	/**
+	 * @param pattern A routing pattern.
+	 * @return The mailboxes whose addresses match it, each once.
+	 */
+	List<Mailbox> match(String pattern){
+
+		// A pattern with several wildcards may reach the same mailbox along different paths.
+		Collection<Mailbox> matches = new LinkedHashSet<Mailbox>();
+
+		match(root, split(pattern), 0, matches);
+
+		return new ArrayList<Mailbox>(matches);
+	}
+
+	private static void match(Node node, String[] segments, int index, Collection<Mailbox> matches){
+
+		if(index == segments.length){
+
+			Mailbox mailbox = node.mailbox;
+
+			if(mailbox != null)
+				matches.add(mailbox);
+
+			return;
+		}
+
+		String segment = segments[index];
+
+		if(segment.equals(ANY)){
+
+			// Consecutive wildcards of this kind match no more than one does.
+			if(index + 1 < segments.length && segments[index + 1].equals(ANY)){
+
+				match(node, segments, index + 1, matches);
+				return;
+			}
+
+			if(index + 1 == segments.length){
+
+				collect(node, matches);
+				return;
+			}
+
+			// Try the rest of the pattern here and at every node below.
+			match(node, segments, index + 1, matches);
+
+			if(node.children != null)
+				for(Node child : node.children.values())
+					matchBelow(child, segments, index + 1, matches);
+
+			return;
+		}
+
+		if(node.children == null)
+			return;
+
+		if(segment.equals(ONE)){
+
+			for(Node child : node.children.values())
+				match(child, segments, index + 1, matches);
+
+			return;
+		}
+
+		Node child = node.children.get(segment);
+
+		if(child != null)
+			match(child, segments, index + 1, matches);
+	}
+
+	/**
+	 * Matches the rest of a pattern, following a {@code #}, at a node and every node below it.
+	 */
+	private static void matchBelow(Node node, String[] segments, int index, Collection<Mailbox> matches){
+
+		match(node, segments, index, matches);
+
+		if(node.children != null)
+			for(Node child : node.children.values())
+				matchBelow(child, segments, index, matches);
+	}
+
+	private static void collect(Node node, Collection<Mailbox> matches){
+
+		Mailbox mailbox = node.mailbox;
+
+		if(mailbox != null)
+			matches.add(mailbox);
+
+		if(node.children != null)
+			for(Node child : node.children.values())
+				collect(child, matches);
+	}
+
+	private static String[] split(String address){
+
+		return address.split("\\.", -1);
+	}
+
+	private static class Node {
+
+		volatile Mailbox mailbox = null;
+
+		// Created on first use; most nodes are leaves.
+		volatile Map<String, Node> children = null;
+
+		Node child(String segment){
+
+			Map<String, Node> current = children;
+
+			return current == null ? null : current.get(segment);
+		}
+
+		Map<String, Node> children(){
+
+			if(children == null)
+				children = new ConcurrentHashMap<String, Node>(4);
+
+			return children;
+		}
+
+		boolean isEmpty(){
+
+			return mailbox == null && (children == null || children.isEmpty());
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package postoffice.daemon;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.AsyncAppender;
+import org.apache.log4j.Logger;
+
+/**
+ * Moves the daemon's logging off the threads serving clients. log4j 1.2 can only set
+ * up an {@link AsyncAppender} from an XML configuration, so this does it in code.
+ */
+public final class AsyncLogging {
+
+	private AsyncLogging(){}
+
+	/**
+	 * Moves every appender of a logger behind a single {@link AsyncAppender}. Threads
+	 * logging through it only queue their events, and a thread of its own formats and
+	 * writes them. Once the queue is full further events are counted and discarded
+	 * rather than holding up the clerk that logged them.
+	 *
+	 * @param logger The logger whose appenders to move, such as the "postoffice" logger.
+	 * @param bufferSize The most events queued at once.
+	 * @return The appender now attached to the logger. Closing it writes out whatever is queued.
+	 */
+	public static AsyncAppender install(Logger logger, int bufferSize){
+
+		AsyncAppender async = new AsyncAppender();
+
+		async.setName("postoffice-async");
+		async.setBufferSize(bufferSize);
+		async.setBlocking(false);
+		async.setLocationInfo(false);
+
+		List<Appender> appenders = new ArrayList<Appender>();
+
+		for(Enumeration<?> e = logger.getAllAppenders(); e.hasMoreElements();)
+			appenders.add((Appender) e.nextElement());
+
+		for(Appender appender : appenders){
+
+			logger.removeAppender(appender);
+			async.addAppender(appender);
+		}
+
+		logger.addAppender(async);
+
+		return async;
+	}
+}
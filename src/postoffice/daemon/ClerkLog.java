@@ -0,0 +1,81 @@
+package postoffice.daemon;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * Logs on behalf of one clerk, prefixing every message with the clerk's id. A message
+ * is a pattern with its arguments passed separately, each taking the place of a
+ * {@code {}} in the pattern, and nothing is formatted unless the level is enabled. A
+ * call at a disabled level therefore allocates nothing, as long as its arguments are
+ * objects already; callers guard with {@link #isDebugEnabled()} before boxing numbers
+ * or computing an argument just to log it.
+ */
+final class ClerkLog {
+
+	private Logger logger;
+	private int id;
+
+	/**
+	 * @param logger The logger of the clerk's class.
+	 * @param id The clerk's id.
+	 */
+	ClerkLog(Logger logger, int id){
+
+		this.logger = logger;
+		this.id = id;
+	}
+
+	boolean isDebugEnabled(){
+
+		return logger.isDebugEnabled();
+	}
+
+	void debug(String pattern){
+
+		if(logger.isDebugEnabled())
+			logger.debug(format(pattern, null, null));
+	}
+
+	void debug(String pattern, Object argument){
+
+		if(logger.isDebugEnabled())
+			logger.debug(format(pattern, argument, null));
+	}
+
+	void debug(String pattern, Object first, Object second){
+
+		if(logger.isDebugEnabled())
+			logger.debug(format(pattern, first, second));
+	}
+
+	void error(String pattern, Object argument){
+
+		if(logger.isEnabledFor(Level.ERROR))
+			logger.error(format(pattern, argument, null));
+	}
+
+	void error(String pattern, Object first, Object second){
+
+		if(logger.isEnabledFor(Level.ERROR))
+			logger.error(format(pattern, first, second));
+	}
+
+	private String format(String pattern, Object first, Object second){
+
+		StringBuilder sb = new StringBuilder(pattern.length() + 48);
+
+		sb.append("[ID: ").append(id).append("] ");
+
+		int from = 0;
+		int used = 0;
+
+		for(int at = pattern.indexOf("{}"); at >= 0 && used < 2; at = pattern.indexOf("{}", from)){
+
+			sb.append(pattern, from, at).append(used++ == 0 ? first : second);
+			from = at + 2;
+		}
+
+		return sb.append(pattern, from, pattern.length()).toString();
+	}
+}
@@ -0,0 +1,1355 @@
+package postoffice.daemon;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.log4j.Logger;
+
+import postoffice.datatypes.CommFlags;
+import postoffice.datatypes.CommFlags.REQ;
+import postoffice.datatypes.CommFlags.RESP;
+import postoffice.datatypes.Frame;
+import postoffice.datatypes.Letter;
+import postoffice.datatypes.MailListener;
+import postoffice.datatypes.MailQuota;
+import postoffice.datatypes.Mailbox;
+import postoffice.datatypes.QuotaListener;
+import postoffice.datatypes.SenderFilter;
+import postoffice.datatypes.Varint;
+import postoffice.exception.comm.MailboxFullException;
+import postoffice.exception.mailbox.ExistentMailboxException;
+import postoffice.exception.mailbox.MailboxInUseException;
+import postoffice.exception.mailbox.NonExistentMailboxException;
+import postoffice.exception.mailbox.UnauthorizedActionException;
+
+/**
+ * Serves the framed protocol for one connection, independently of how the frames are
+ * read and written. Both {@link MailClerk} and {@link SelectorClerk} hand their frames
+ * here once a client has negotiated {@link CommFlags#PROTOCOL_FRAMED}.
+ *
+ * Every request is answered by exactly one response frame carrying the same request id.
+ * A GETMAIL that has to wait does not hold up the requests pipelined behind it; its
+ * response is sent whenever mail arrives or its timeout expires. A send held back by a
+ * full mailbox is different: the clerk stops handing over requests until it completes,
+ * so that letters are never reordered.
+ *
+ * Besides the mailbox checked out with REQBOX, a connection may attach any number of
+ * further mailboxes with ATTACHBOX and direct requests at them with ONBOX. A process
+ * holding many mailboxes then needs a single connection, and a single clerk.
+ *
+ * Under the compact framing ({@link CommFlags#PROTOCOL_COMPACT}) the client binds
+ * mailbox names to handles with BINDNAME, once per connection, and addresses letters by
+ * handle. Each handle holds on to its mailbox, so letters sent to it are delivered
+ * without a lookup or a new string per letter. Mail from a sender the client has bound
+ * names it by handle as well, and letter lengths are sent as {@link Varint}s.
+ */
+class FrameDispatcher {
+
+	private static Logger logger = Logger.getLogger(FrameDispatcher.class);
+
+	// The requests made on a mailbox, which ONBOX may direct at an attached one.
+	private static final Set<REQ> MAILBOX_REQUESTS = EnumSet.of(REQ.RETBOX, REQ.REMOVEBOX, REQ.SENDLETTER, REQ.SENDBATCH,
+			REQ.GETMAIL, REQ.DRAINMAIL, REQ.EMPTYBOX, REQ.LIVESTREAM, REQ.DIRECTSTREAM, REQ.SUBSCRIBE, REQ.UNSUBSCRIBE, REQ.PUBLISH);
+
+	// The most names a connection may bind.
+	static final int MAX_BINDINGS = 64 * 1024;
+
+	private PostOffice po;
+	private Object holder;
+	private FrameSink sink;
+
+	private volatile Mailbox mb;
+
+	// Mailboxes attached with ATTACHBOX, by the handle they were given.
+	private Map<Integer, Mailbox> attachments = new ConcurrentHashMap<Integer, Mailbox>();
+	private int nextHandle = 1;
+
+	private Set<MailWait> waits = Collections.newSetFromMap(new ConcurrentHashMap<MailWait, Boolean>());
+
+	private Map<Integer, Drain> drains = new ConcurrentHashMap<Integer, Drain>();
+
+	private boolean compact;
+
+	// Names bound with BINDNAME, indexed by handle less one. Only used by the thread
+	// dispatching frames.
+	private List<Binding> bindings = new ArrayList<Binding>();
+
+	// The same handles by name, for naming the senders of mail.
+	private Map<String, Integer> handles = new ConcurrentHashMap<String, Integer>();
+
+	// Guarded by the dispatcher itself.
+	private Send held = null;
+
+	private Runnable unblocked;
+
+	/**
+	 * @param po The post office being served.
+	 * @param holder The clerk that owns any mailbox checked out on this connection.
+	 * @param mb The mailbox checked out before the protocol was negotiated, or null.
+	 * @param sink Where responses are sent.
+	 * @param unblocked Run, on any thread, whenever a held back send completes; may be null.
+	 * @param compact True if the client negotiated {@link CommFlags#PROTOCOL_COMPACT}.
+	 */
+	FrameDispatcher(PostOffice po, Object holder, Mailbox mb, FrameSink sink, Runnable unblocked, boolean compact){
+
+		this.po = po;
+		this.holder = holder;
+		this.mb = mb;
+		this.sink = sink;
+		this.unblocked = unblocked;
+		this.compact = compact;
+	}
+
+	/**
+	 * Handles one request frame.
+	 *
+	 * @param frame The request.
+	 * @return False once the client has asked to disconnect, true otherwise.
+	 */
+	boolean dispatch(Frame frame){
+
+		int id = frame.getRequestId();
+		REQ request = CommFlags.getReqByCode(frame.getCode());
+
+		if(request == null){
+
+			logger.debug("Received bad command.");
+			respond(id, RESP.BADCOMMAND);
+
+			return true;
+		}
+
+		DataInputStream data = frame.getBodyReader();
+
+		// Only the time spent here is counted, not any wait for mail, room or the journal.
+		long started = System.nanoTime();
+
+		try {
+
+			switch(request){
+
+				case REQBOX:
+
+					if(mb != null){
+
+						respond(id, RESP.ALREADYCONN);
+						break;
+					}
+
+					checkoutMailbox(id, data.readUTF(), readPassword(data));
+					break;
+
+				case CREATEBOX:
+
+					createMailbox(id, data.readUTF(), readPassword(data));
+					break;
+
+				case ATTACHBOX:
+
+					attachMailbox(id, data.readUTF(), readPassword(data));
+					break;
+
+				case ONBOX:
+
+					Mailbox attached = attachments.get(data.readInt());
+					REQ inner = CommFlags.getReqByCode(data.readUnsignedByte());
+
+					// Timed as the request it carries.
+					if(inner != null)
+						request = inner;
+
+					if(inner == null || !MAILBOX_REQUESTS.contains(inner)){
+
+						logger.debug("Received a request that cannot be made on an attached mailbox.");
+						respond(id, RESP.BADCOMMAND);
+					}
+					else if(attached == null)
+						respond(id, RESP.NOBOXCONN);
+					else
+						serveMailbox(id, inner, attached, data);
+
+					break;
+
+				case DISCONNECT:
+
+					close();
+					respond(id, RESP.REQGRANTED);
+
+					return false;
+
+				case BINDNAME:
+
+					// Bindings are never answered, unless they are malformed.
+					if(!compact){
+
+						logger.debug("Received a binding outside the compact framing.");
+						respond(id, RESP.BADCOMMAND);
+					}
+					else
+						bind(Varint.read(data), data.readUTF());
+
+					break;
+
+				case CREDIT:
+
+					// Credit is never answered; it may race with the end of its drain.
+					Drain drain = drains.get(data.readInt());
+
+					int moreLetters = data.readInt();
+					int moreBytes = data.readInt();
+
+					if(drain != null)
+						drain.grant(moreLetters, moreBytes);
+
+					break;
+
+				default:
+
+					Mailbox current = mb;
+
+					if(!MAILBOX_REQUESTS.contains(request)){
+
+						logger.debug("Received non-initiating command '" + request.name() + "' in a frame.");
+						respond(id, RESP.BADCOMMAND);
+					}
+					else if(current == null)
+						respond(id, RESP.NOBOXCONN);
+					else
+						serveMailbox(id, request, current, data);
+			}
+
+		} catch (EOFException e) {
+
+			logger.debug("Received a truncated " + request.name() + " frame.");
+			respond(id, RESP.BADCOMMAND);
+
+		} catch (IOException e) {
+
+			// Frame bodies are read from memory, so only a truncated or malformed one gets here.
+			respond(id, RESP.BADCOMMAND);
+
+		} catch (UnauthorizedActionException e) {
+
+			respond(id, RESP.NOAUTH);
+
+		} finally {
+
+			po.getMetrics().requestServed(request, System.nanoTime() - started);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Handles a request made on a mailbox this connection holds, either the one checked
+	 * out with REQBOX or one attached with ATTACHBOX.
+	 */
+	private void serveMailbox(int id, REQ request, Mailbox mailbox, DataInputStream data) throws IOException, UnauthorizedActionException {
+
+		switch(request){
+
+			case RETBOX:
+
+				cancelWaits(mailbox);
+				forget(mailbox);
+				mailbox.release(holder);
+
+				respond(id, RESP.REQGRANTED);
+				break;
+
+			case REMOVEBOX:
+
+				cancelWaits(mailbox);
+
+				try {
+
+					po.destroyMailbox(mailbox.getOwner(), holder);
+
+				} catch (NonExistentMailboxException e) {
+
+					respond(id, RESP.NONEXISTBOX);
+					break;
+				}
+
+				forget(mailbox);
+
+				respond(id, RESP.REQGRANTED);
+				break;
+
+			case SENDLETTER:
+
+				sendLetter(id, mailbox, data);
+				break;
+
+			case SENDBATCH:
+
+				sendLetters(id, mailbox, data);
+				break;
+
+			case GETMAIL:
+
+				int timeout = data.readInt();
+
+				// Older clients send no filter and get mail from any sender.
+				String expression = data.available() > 0 ? data.readUTF() : null;
+
+				getMail(id, mailbox, timeout, expression);
+				break;
+
+			case DRAINMAIL:
+
+				int wait = data.readInt();
+				int letters = data.readInt();
+				int bytes = data.readInt();
+
+				new Drain(id, mailbox, wait).start(letters, bytes);
+				break;
+
+			case EMPTYBOX:
+
+				mailbox.empty(holder);
+
+				respond(id, RESP.REQGRANTED);
+				break;
+
+			case LIVESTREAM:
+
+				createLiveStream(id, mailbox, data.readUTF(), null, 0);
+				break;
+
+			case DIRECTSTREAM:
+
+				createLiveStream(id, mailbox, data.readUTF(), data.readUTF(), data.readInt());
+				break;
+
+			case SUBSCRIBE:
+
+				po.subscribe(mailbox, data.readUTF());
+
+				respond(id, RESP.REQGRANTED);
+				break;
+
+			case UNSUBSCRIBE:
+
+				po.unsubscribe(mailbox, data.readUTF());
+
+				respond(id, RESP.REQGRANTED);
+				break;
+
+			case PUBLISH:
+
+				publish(id, mailbox, data);
+				break;
+
+			default:
+
+				// dispatch() only passes on MAILBOX_REQUESTS.
+		}
+	}
+
+	/**
+	 * Abandons any pending mail waits and returns the checked out mailbox. Called when
+	 * the connection goes away.
+	 */
+	void close(){
+
+		cancelWaits(null);
+
+		Send send;
+
+		synchronized(this){
+
+			send = held;
+		}
+
+		if(send != null)
+			send.cancel();
+
+		List<Mailbox> held = new ArrayList<Mailbox>(attachments.values());
+		attachments.clear();
+
+		Mailbox current = mb;
+		mb = null;
+
+		if(current != null)
+			held.add(current);
+
+		for(Mailbox mailbox : held){
+
+			try {
+
+				mailbox.release(holder);
+
+			} catch (UnauthorizedActionException e) {
+
+				// This can never happen in this model.
+			}
+		}
+	}
+
+	/**
+	 * Returns whether a send is waiting for room in a full mailbox. No further frames
+	 * should be dispatched until it completes.
+	 *
+	 * @return True if a send is held back, false otherwise.
+	 */
+	synchronized boolean isBlocked(){
+
+		return held != null;
+	}
+
+	/**
+	 * Waits until no send is held back by a full mailbox.
+	 */
+	synchronized void awaitUnblocked(){
+
+		while(held != null){
+
+			try {
+
+				wait();
+
+			} catch (InterruptedException e) {
+
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private synchronized void block(Send send){
+
+		held = send;
+	}
+
+	private void unblock(){
+
+		synchronized(this){
+
+			held = null;
+			notifyAll();
+		}
+
+		if(unblocked != null)
+			unblocked.run();
+	}
+
+	private void checkoutMailbox(int id, String boxname, byte[] passwordHash) throws UnauthorizedActionException {
+
+		try {
+
+			mb = po.checkoutMailbox(boxname, passwordHash, holder);
+
+		} catch (MailboxInUseException e) {
+
+			respond(id, RESP.BOXINUSE);
+			return;
+
+		} catch (NonExistentMailboxException e) {
+
+			respond(id, RESP.NONEXISTBOX);
+			return;
+		}
+
+		respond(id, RESP.REQGRANTED);
+	}
+
+	/**
+	 * Checks out a further mailbox on this connection and answers with the handle that
+	 * ONBOX requests address it by.
+	 */
+	private void attachMailbox(int id, String boxname, byte[] passwordHash) throws UnauthorizedActionException {
+
+		Mailbox attached;
+
+		try {
+
+			attached = po.checkoutMailbox(boxname, passwordHash, holder);
+
+		} catch (MailboxInUseException e) {
+
+			respond(id, RESP.BOXINUSE);
+			return;
+
+		} catch (NonExistentMailboxException e) {
+
+			respond(id, RESP.NONEXISTBOX);
+			return;
+		}
+
+		int handle = nextHandle++;
+
+		attachments.put(handle, attached);
+
+		sink.send(new Frame(id, RESP.REQGRANTED.ordinal(), ByteBuffer.allocate(4).putInt(handle).array()));
+	}
+
+	/**
+	 * Drops a mailbox this connection no longer holds.
+	 */
+	private void forget(Mailbox mailbox){
+
+		if(mailbox == mb)
+			mb = null;
+		else
+			attachments.values().remove(mailbox);
+	}
+
+	private void createMailbox(int id, String boxname, byte[] passwordHash){
+
+		try {
+
+			po.createMailbox(boxname, passwordHash);
+
+		} catch (ExistentMailboxException e) {
+
+			respond(id, RESP.BOXEXISTS);
+			return;
+
+		} catch (IllegalArgumentException e) {
+
+			respond(id, RESP.BADCOMMAND);
+			return;
+		}
+
+		respond(id, RESP.REQGRANTED);
+	}
+
+	private void sendLetter(int id, Mailbox mailbox, DataInputStream data) throws IOException {
+
+		Mailbox[] recipients = new Mailbox[1];
+
+		String recipient = readRecipient(data, recipients, 0);
+		byte[] payload = readPayload(data);
+
+		Letter letter = new Letter(mailbox.getOwner(), recipient, payload);
+
+		// Older clients send no time to live or priority, and their letters never expire.
+		if(data.available() > 0)
+			letter.setTimeToLive(data.readInt());
+
+		if(data.available() > 0)
+			letter.setPriority(readPriority(data));
+
+		new Send(id, Collections.singletonList(letter), recipients, false).start();
+	}
+
+	/**
+	 * Binds a name to the next handle of the connection. The handle holds on to the
+	 * mailbox of that name, if there is one.
+	 */
+	private void bind(int handle, String name) throws IOException {
+
+		if(handle != bindings.size() + 1 || handle > MAX_BINDINGS)
+			throw new IOException("Handle " + handle + " bound out of order.");
+
+		bindings.add(new Binding(name));
+		handles.put(name, handle);
+	}
+
+	/**
+	 * Reads the recipient of a letter: a name, or under the compact framing a handle, or
+	 * zero followed by a name that was not bound. The mailbox a handle holds is put in
+	 * the array, for the letter to be delivered to without a lookup.
+	 *
+	 * @return The name of the recipient.
+	 */
+	private String readRecipient(DataInputStream data, Mailbox[] recipients, int index) throws IOException {
+
+		Binding binding = readBinding(data);
+
+		if(binding == null)
+			return data.readUTF();
+
+		recipients[index] = binding.resolve();
+
+		return binding.name;
+	}
+
+	/**
+	 * Reads a name that may have been bound, such as the topic of a letter published.
+	 */
+	private String readName(DataInputStream data) throws IOException {
+
+		Binding binding = readBinding(data);
+
+		return binding == null ? data.readUTF() : binding.name;
+	}
+
+	/**
+	 * Reads a handle under the compact framing.
+	 *
+	 * @return The binding, or null if a name follows instead.
+	 */
+	private Binding readBinding(DataInputStream data) throws IOException {
+
+		if(!compact)
+			return null;
+
+		int handle = Varint.read(data);
+
+		if(handle == 0)
+			return null;
+
+		if(handle > bindings.size())
+			throw new IOException("Handle " + handle + " is not bound.");
+
+		return bindings.get(handle - 1);
+	}
+
+	private static Letter.Priority readPriority(DataInputStream data) throws IOException {
+
+		int code = data.readUnsignedByte();
+
+		if(code >= Letter.Priority.values().length)
+			throw new IOException("Unknown letter priority " + code + ".");
+
+		return Letter.Priority.values()[code];
+	}
+
+	/**
+	 * Delivers a batch of letters and answers with one status code per letter, in the
+	 * order they were sent: REQGRANTED if delivered, DELFAIL or MAILBOXFULL otherwise.
+	 */
+	private void sendLetters(int id, Mailbox mailbox, DataInputStream data) throws IOException {
+
+		int count = compact ? Varint.read(data) : data.readInt();
+
+		if(count < 0 || count > data.available())
+			throw new EOFException("Batch size exceeds the frame.");
+
+		String sender = mailbox.getOwner();
+
+		List<Letter> letters = new ArrayList<Letter>(Math.min(count, 1024));
+		Mailbox[] recipients = new Mailbox[count];
+
+		for(int i = 0; i < count; i++){
+
+			String recipient = readRecipient(data, recipients, i);
+			byte[] payload = readPayload(data);
+
+			letters.add(new Letter(sender, recipient, payload));
+		}
+
+		new Send(id, letters, recipients, true).start();
+	}
+
+	/**
+	 * Publishes a letter to a topic and answers with the number of subscribers it was
+	 * delivered to, once that is durable.
+	 */
+	private void publish(final int id, Mailbox mailbox, DataInputStream data) throws IOException {
+
+		String topic = readName(data);
+		byte[] payload = readPayload(data);
+
+		int delivered = po.publish(topic, new Letter(mailbox.getOwner(), topic, payload));
+
+		final byte[] body = ByteBuffer.allocate(4).putInt(delivered).array();
+
+		po.whenDurable(new Runnable() {
+
+			@Override
+			public void run() {
+
+				sink.send(new Frame(id, RESP.REQGRANTED.ordinal(), body));
+			}
+		});
+	}
+
+	private void getMail(int id, Mailbox mailbox, int timeout, String expression){
+
+		SenderFilter filter = null;
+
+		try {
+
+			if(expression != null)
+				filter = SenderFilter.compile(expression);
+
+		} catch (PatternSyntaxException e) {
+
+			logger.debug("Received a malformed sender filter '" + expression + "'.");
+			respond(id, RESP.BADCOMMAND);
+
+			return;
+		}
+
+		Letter letter = mailbox.popMessage(filter);
+
+		if(letter != null)
+			respondLetter(id, letter);
+		else if(timeout <= 0)
+			respond(id, RESP.MAILTIMEOUT);
+		else
+			new MailWait(id, mailbox, filter).start(timeout);
+	}
+
+	private void createLiveStream(int id, Mailbox mailbox, String correspondent, String host, int port){
+
+		if(host != null && !po.isBrokeringLiveStreams()){
+
+			respond(id, RESP.UNSUPPORTED);
+			return;
+		}
+
+		if(host != null && (port < 1 || port > 65535)){
+
+			respond(id, RESP.BADCOMMAND);
+			return;
+		}
+
+		if(!po.mailboxExists(correspondent)){
+
+			respond(id, RESP.NONEXISTBOX);
+			return;
+		}
+
+		// Disallow looping live streams.
+		if(correspondent.equals(mailbox.getOwner())){
+
+			respond(id, RESP.UNSUPPORTED);
+			return;
+		}
+
+		ServerRoutedLiveStreamHandler stream;
+
+		try {
+
+			stream = po.createLiveStream(mailbox.getOwner(), correspondent, host, port);
+
+		} catch (NonExistentMailboxException e) {
+
+			respond(id, RESP.DELFAIL);
+			return;
+
+		} catch (MailboxFullException e) {
+
+			respond(id, RESP.MAILBOXFULL);
+			return;
+		}
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+
+		try {
+
+			new DataOutputStream(bos).writeUTF(stream.getIdentifier().toString());
+
+			if(host != null)
+				bos.write(stream.getToken());
+
+		} catch (IOException e) {} // Cannot happen.
+
+		sink.send(new Frame(id, RESP.REQGRANTED.ordinal(), bos.toByteArray()));
+	}
+
+	/**
+	 * Ends the mail waits and drains on one mailbox, or on every mailbox if it is null.
+	 */
+	private void cancelWaits(Mailbox mailbox){
+
+		for(MailWait wait : new ArrayList<MailWait>(waits)){
+
+			if(mailbox == null || wait.mailbox == mailbox)
+				wait.cancel();
+		}
+
+		for(Drain drain : new ArrayList<Drain>(drains.values())){
+
+			if(mailbox == null || drain.mailbox == mailbox)
+				drain.cancel();
+		}
+	}
+
+	private void respond(int id, RESP response){
+
+		sink.send(new Frame(id, response.ordinal()));
+	}
+
+	/**
+	 * Sends a single letter in an INMAIL frame. The payload is left in the letter, so a
+	 * sink can write it from a pooled buffer without copying it into the frame.
+	 */
+	private void respondLetter(int id, Letter letter){
+
+		Integer handle = compact ? handles.get(letter.getSender()) : null;
+
+		byte[] head;
+
+		if(handle != null){
+
+			// The common case under the compact framing takes no stream at all.
+			head = new byte[Varint.length(handle) + Varint.length(letter.getPayloadLength())];
+
+			Varint.write(letter.getPayloadLength(), head, Varint.write(handle, head, 0));
+		}
+		else {
+
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			DataOutputStream dos = new DataOutputStream(bos);
+
+			try {
+
+				writeSender(dos, letter.getSender());
+				writeLength(dos, letter.getPayloadLength());
+
+			} catch (IOException e) {} // Cannot happen.
+
+			head = bos.toByteArray();
+		}
+
+		sink.send(new Frame(id, RESP.INMAIL.ordinal(), head, letter));
+	}
+
+	/**
+	 * Sends several letters in one INMAIL frame: a 4-byte count followed by each letter.
+	 */
+	private void respondLetters(int id, List<Letter> letters){
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(bos);
+
+		try {
+
+			writeLength(dos, letters.size());
+
+			for(Letter letter : letters)
+				writeLetter(dos, letter);
+
+		} catch (IOException e) {} // Cannot happen.
+
+		sink.send(new Frame(id, RESP.INMAIL.ordinal(), bos.toByteArray()));
+	}
+
+	private void writeLetter(DataOutputStream dos, Letter letter) throws IOException {
+
+		byte[] payload = letter.getPayloadBytes();
+
+		writeSender(dos, letter.getSender());
+		writeLength(dos, payload.length);
+		dos.write(payload);
+	}
+
+	/**
+	 * Writes the sender of a letter: its name, or under the compact framing the handle
+	 * the client bound it to, or zero followed by its name if the client has not.
+	 */
+	private void writeSender(DataOutputStream dos, String sender) throws IOException {
+
+		if(!compact){
+
+			dos.writeUTF(sender);
+			return;
+		}
+
+		Integer handle = handles.get(sender);
+
+		Varint.write(dos, handle == null ? 0 : handle);
+
+		if(handle == null)
+			dos.writeUTF(sender);
+	}
+
+	private void writeLength(DataOutputStream dos, int length) throws IOException {
+
+		if(compact)
+			Varint.write(dos, length);
+		else
+			dos.writeInt(length);
+	}
+
+	/**
+	 * Reads a length-prefixed payload, refusing lengths that overrun the frame.
+	 */
+	private byte[] readPayload(DataInputStream data) throws IOException {
+
+		int length = compact ? Varint.read(data) : data.readInt();
+
+		if(length > data.available())
+			throw new EOFException("Payload length exceeds the frame.");
+
+		byte[] payload = new byte[Math.max(length, 0)];
+		data.readFully(payload);
+
+		return payload;
+	}
+
+	private static byte[] readPassword(DataInputStream data) throws IOException {
+
+		byte[] passwordHash = new byte[16];
+		data.readFully(passwordHash);
+
+		return passwordHash;
+	}
+
+	/**
+	 * A GETMAIL request waiting for mail. It completes exactly once: with the first
+	 * letter it manages to take from the mailbox, or with MAILTIMEOUT.
+	 */
+	private class MailWait implements MailListener, Runnable {
+
+		private int requestId;
+		private Mailbox mailbox;
+		private SenderFilter filter;
+
+		private ScheduledFuture<?> timer = null;
+		private boolean done = false;
+
+		MailWait(int requestId, Mailbox mailbox, SenderFilter filter){
+
+			this.requestId = requestId;
+			this.mailbox = mailbox;
+			this.filter = filter;
+		}
+
+		synchronized void start(int timeout){
+
+			waits.add(this);
+
+			timer = po.getTimer().schedule(this, timeout, TimeUnit.MILLISECONDS);
+
+			listen();
+		}
+
+		@Override
+		public synchronized void mailDelivered(Mailbox mailbox) {
+
+			if(!done)
+				listen();
+		}
+
+		/**
+		 * Times the wait out.
+		 */
+		@Override
+		public synchronized void run() {
+
+			if(done)
+				return;
+
+			Letter letter = mailbox.popMessage(filter);
+
+			finish();
+
+			if(letter != null)
+				respondLetter(requestId, letter);
+			else
+				respond(requestId, RESP.MAILTIMEOUT);
+		}
+
+		synchronized void cancel(){
+
+			if(done)
+				return;
+
+			finish();
+			respond(requestId, RESP.MAILTIMEOUT);
+		}
+
+		/**
+		 * Takes a letter if there is one, otherwise waits for the next delivery. Another
+		 * wait on the same mailbox may win the letter, in which case this one goes back
+		 * to listening.
+		 */
+		private void listen(){
+
+			while(true){
+
+				Letter letter = mailbox.popMessage(filter);
+
+				if(letter != null){
+
+					finish();
+					respondLetter(requestId, letter);
+
+					return;
+				}
+
+				mailbox.addMailListener(this, filter);
+
+				// Guard against a delivery between the poll and registering.
+				if(!mailbox.hasMail(filter))
+					return;
+
+				mailbox.removeMailListener(this, filter);
+			}
+		}
+
+		private void finish(){
+
+			done = true;
+
+			waits.remove(this);
+			mailbox.removeMailListener(this, filter);
+
+			if(timer != null)
+				timer.cancel(false);
+		}
+	}
+
+	/**
+	 * A streaming DRAINMAIL request. Letters are pushed to the client in INMAIL frames
+	 * for as long as it has credit, without a request per letter; the client tops the
+	 * credit up with CREDIT frames and the drain pauses whenever the credit runs out.
+	 * The drain ends with MAILTIMEOUT once it has had credit but no mail for the
+	 * requested wait, or with REQGRANTED once the client closes it with negative credit.
+	 */
+	private class Drain implements MailListener, Runnable {
+
+		// Upper bound on the payload carried by a single INMAIL frame.
+		private static final int FRAME_BUDGET = 1024 * 1024;
+
+		private int requestId;
+		private Mailbox mailbox;
+		private int wait;
+
+		private int letterCredit = 0;
+		private long byteCredit = 0;
+		private boolean bytesLimited = false;
+
+		private ScheduledFuture<?> timer = null;
+		private boolean listening = false;
+		private boolean done = false;
+
+		Drain(int requestId, Mailbox mailbox, int wait){
+
+			this.requestId = requestId;
+			this.mailbox = mailbox;
+			this.wait = Math.max(wait, 0);
+		}
+
+		/**
+		 * @param letters The initial letter credit.
+		 * @param bytes The initial byte credit; zero or less for no byte limit.
+		 */
+		synchronized void start(int letters, int bytes){
+
+			drains.put(requestId, this);
+
+			letterCredit = Math.max(letters, 0);
+			bytesLimited = bytes > 0;
+			byteCredit = Math.max(bytes, 0);
+
+			pump();
+		}
+
+		synchronized void grant(int letters, int bytes){
+
+			if(done)
+				return;
+
+			if(letters < 0){
+
+				finish(RESP.REQGRANTED);
+				return;
+			}
+
+			letterCredit += Math.max(letters, 0);
+			byteCredit += Math.max(bytes, 0);
+
+			pump();
+		}
+
+		@Override
+		public synchronized void mailDelivered(Mailbox mailbox) {
+
+			listening = false;
+
+			pump();
+		}
+
+		/**
+		 * Ends the drain once the mailbox has been idle for the requested wait.
+		 */
+		@Override
+		public synchronized void run() {
+
+			if(done)
+				return;
+
+			timer = null;
+
+			pump();
+
+			if(!done)
+				finish(RESP.MAILTIMEOUT);
+		}
+
+		synchronized void cancel(){
+
+			if(!done)
+				finish(RESP.MAILTIMEOUT);
+		}
+
+		/**
+		 * Sends everything the credit allows, then either finishes or waits for more mail.
+		 */
+		private void pump(){
+
+			boolean sent = false;
+
+			while(!done){
+
+				if(letterCredit <= 0 || (bytesLimited && byteCredit <= 0)){
+
+					// Out of credit; nothing happens until the client grants more.
+					if(timer != null)
+						timer.cancel(false);
+
+					timer = null;
+
+					return;
+				}
+
+				long budget = bytesLimited ? Math.min(byteCredit, FRAME_BUDGET) : FRAME_BUDGET;
+
+				List<Letter> letters = new ArrayList<Letter>();
+
+				if(mailbox.drainMessages(letters, letterCredit, budget) == 0){
+
+					if(!listening){
+
+						listening = true;
+						mailbox.addMailListener(this);
+					}
+
+					// Guard against a delivery between the drain and registering.
+					if(mailbox.getQueueSize() > 0)
+						continue;
+
+					break;
+				}
+
+				letterCredit -= letters.size();
+
+				for(Letter letter : letters)
+					byteCredit -= letter.getPayloadLength();
+
+				respondLetters(requestId, letters);
+				sent = true;
+			}
+
+			if(done)
+				return;
+
+			// The idle timer restarts whenever mail is sent.
+			if(sent && timer != null){
+
+				timer.cancel(false);
+				timer = null;
+			}
+
+			if(timer == null){
+
+				if(wait == 0 && !sent)
+					finish(RESP.MAILTIMEOUT);
+				else
+					timer = po.getTimer().schedule(this, wait, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		private void finish(RESP response){
+
+			done = true;
+
+			drains.remove(requestId);
+			mailbox.removeMailListener(this);
+
+			if(timer != null)
+				timer.cancel(false);
+
+			respond(requestId, response);
+		}
+	}
+
+	/**
+	 * The delivery of a SENDLETTER or SENDBATCH request. A letter for a mailbox that is
+	 * full under the BLOCK policy holds the send back, and with it the connection, until
+	 * room is freed; the send then carries on from that letter. Whatever is still held
+	 * back once the block timeout passes is refused with MAILBOXFULL.
+	 */
+	private class Send implements QuotaListener, Runnable {
+
+		private int requestId;
+		private List<Letter> letters;
+		private Mailbox[] recipients;
+		private boolean batch;
+
+		private byte[] statuses;
+		private int next = 0;
+
+		private ScheduledFuture<?> timer = null;
+		private boolean done = false;
+
+		/**
+		 * @param recipients The mailbox of each letter, or null where it is to be looked up.
+		 */
+		Send(int requestId, List<Letter> letters, Mailbox[] recipients, boolean batch){
+
+			this.requestId = requestId;
+			this.letters = letters;
+			this.recipients = recipients;
+			this.batch = batch;
+
+			statuses = new byte[letters.size()];
+		}
+
+		synchronized void start(){
+
+			deliver();
+
+			if(!done){
+
+				block(this);
+				timer = po.getTimer().schedule(this, po.getQuotaBlockTimeout(), TimeUnit.MILLISECONDS);
+			}
+		}
+
+		@Override
+		public void roomAvailable(MailQuota quota) {
+
+			// Carry on away from the thread that freed the room.
+			po.getTimer().execute(new Runnable() {
+
+				@Override
+				public void run() {
+
+					resume();
+				}
+			});
+		}
+
+		private synchronized void resume(){
+
+			if(!done)
+				deliver();
+		}
+
+		/**
+		 * Refuses the letters still held back once the block timeout has passed.
+		 */
+		@Override
+		public synchronized void run() {
+
+			if(done)
+				return;
+
+			po.abandonDelivery(letters.get(next), this);
+
+			for(int i = next; i < statuses.length; i++)
+				statuses[i] = (byte) RESP.MAILBOXFULL.ordinal();
+
+			next = statuses.length;
+
+			finish();
+		}
+
+		synchronized void cancel(){
+
+			if(done)
+				return;
+
+			done = true;
+
+			po.abandonDelivery(letters.get(next), this);
+
+			if(timer != null)
+				timer.cancel(false);
+
+			unblock();
+		}
+
+		private void deliver(){
+
+			next = po.deliverLetters(letters, recipients, next, statuses, this);
+
+			if(next == statuses.length)
+				finish();
+		}
+
+		private void finish(){
+
+			boolean wasHeld = timer != null;
+
+			done = true;
+
+			if(timer != null)
+				timer.cancel(false);
+
+			if(batch){
+
+				final byte[] body = new byte[4 + statuses.length];
+
+				ByteBuffer.wrap(body).putInt(statuses.length);
+				System.arraycopy(statuses, 0, body, 4, statuses.length);
+
+				// Acknowledge once durable, without holding up the requests behind this one.
+				po.whenDurable(new Runnable() {
+
+					@Override
+					public void run() {
+
+						sink.send(new Frame(requestId, RESP.REQGRANTED.ordinal(), body));
+					}
+				});
+			}
+			else if(statuses[0] == RESP.REQGRANTED.ordinal()){
+
+				po.whenDurable(new Runnable() {
+
+					@Override
+					public void run() {
+
+						respond(requestId, RESP.REQGRANTED);
+					}
+				});
+			}
+			else
+				sink.send(new Frame(requestId, statuses[0]));
+
+			if(wasHeld)
+				unblock();
+		}
+	}
+
+	/**
+	 * A name bound to a handle, and the mailbox it was last found to belong to.
+	 */
+	private class Binding {
+
+		private String name;
+		private Mailbox mailbox = null;
+
+		Binding(String name){
+
+			this.name = name;
+		}
+
+		/**
+		 * Returns the mailbox of the name, looking it up again only if it has never been
+		 * found or has been destroyed since.
+		 *
+		 * @return The mailbox, or null if there is none or the name is a routing pattern.
+		 */
+		Mailbox resolve(){
+
+			if((mailbox == null || mailbox.isDestroyed()) && !AddressTrie.isPattern(name))
+				mailbox = po.findMailbox(name);
+
+			return mailbox;
+		}
+	}
+}
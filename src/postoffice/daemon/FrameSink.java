@@ -0,0 +1,19 @@
+package postoffice.daemon;
+
+import postoffice.datatypes.Frame;
+
+/**
+ * The outbound half of a framed connection. Responses may be sent from any thread,
+ * including delivery and timer threads completing a mail wait.
+ */
+interface FrameSink {
+
+	/**
+	 * Queues or writes a response frame. Transport failures are handled by the sink
+	 * itself, normally by closing the connection. The sink {@link Frame#release() releases}
+	 * the frame once it has been written or dropped.
+	 * 
+	 * @param frame The frame to send.
+	 */
+	public void send(Frame frame);
+}
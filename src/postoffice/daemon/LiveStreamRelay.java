@@ -0,0 +1,410 @@
+package postoffice.daemon;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import postoffice.datatypes.BufferPool;
+import postoffice.datatypes.CommFlags.RESP;
+
+/**
+ * Shuttles the bytes of live streams between their two participants. A small, fixed
+ * number of loops serve every stream, each from one thread with a selector of its own,
+ * so a stream costs two selection keys and two buffers rather than two threads.
+ *
+ * Each direction of a stream is a {@link Pipe} that reads from one participant into a
+ * pooled direct buffer and writes it straight out to the other, so the bytes never
+ * cross into the heap. A participant that reads slower than its partner writes holds
+ * the partner back: once the buffer towards it cannot be emptied, nothing more is read
+ * from the partner until it can.
+ */
+class LiveStreamRelay {
+
+	private static Logger logger = Logger.getLogger(LiveStreamRelay.class);
+
+	// Most reads a pipe makes before letting the other streams on its loop have a turn.
+	private static final int PUMP_ROUNDS = 16;
+
+	private Loop[] loops;
+	private AtomicInteger next = new AtomicInteger();
+
+	private BufferPool buffers;
+	private int bufferSize;
+
+	/**
+	 * @param threads The number of relay loops.
+	 * @param bufferSize The size of the buffer for each direction of a stream.
+	 * @param buffers The pool the buffers are taken from.
+	 * @throws IOException Thrown if a selector cannot be opened.
+	 */
+	LiveStreamRelay(int threads, int bufferSize, BufferPool buffers) throws IOException {
+
+		this.bufferSize = bufferSize;
+		this.buffers = buffers;
+
+		loops = new Loop[threads];
+
+		for(int i = 0; i < threads; i++){
+
+			try {
+
+				loops[i] = new Loop(i);
+
+			} catch (IOException e) {
+
+				for(int j = 0; j < i; j++)
+					loops[j].shutdown();
+
+				throw e;
+			}
+
+			Thread t = new Thread(loops[i], "postoffice-relay-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * Starts relaying between the two participants of a live stream. Each is first sent
+	 * {@link RESP#REQGRANTED}, and everything either sends from then on is passed to the
+	 * other. Closing the output of one side is passed on as well, and the stream ends once
+	 * both sides have done so, or as soon as either connection fails.
+	 *
+	 * @param stream The live stream.
+	 * @param a The connection of one participant.
+	 * @param b The connection of the other.
+	 */
+	void relay(ServerRoutedLiveStreamHandler stream, SocketChannel a, SocketChannel b){
+
+		final Stream relayed = new Stream(stream, a, b);
+
+		try {
+
+			a.configureBlocking(false);
+			b.configureBlocking(false);
+
+		} catch (IOException e) {
+
+			logger.debug("Failed to relay live stream " + stream.getIdentifier() + ". Cause : " + e.getMessage());
+
+			relayed.close();
+			return;
+		}
+
+		final Loop loop = loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+
+		loop.execute(new Runnable() {
+
+			@Override
+			public void run() {
+
+				loop.start(relayed);
+			}
+		});
+	}
+
+	void shutdown(){
+
+		for(Loop loop : loops)
+			loop.shutdown();
+	}
+
+	/**
+	 * One direction of a stream.
+	 */
+	private class Pipe {
+
+		private SocketChannel source;
+		private SocketChannel sink;
+
+		private ByteBuffer buffer = buffers.acquire(bufferSize);
+
+		// The source has closed its output.
+		private boolean ended = false;
+
+		// The sink has not taken everything in the buffer.
+		private boolean stalled = false;
+
+		// Everything has been passed on and the sink's output closed.
+		private boolean done = false;
+
+		Pipe(SocketChannel source, SocketChannel sink){
+
+			this.source = source;
+			this.sink = sink;
+
+			buffer.limit(buffer.capacity());
+
+			// Tells the sink that the stream is live, ahead of anything relayed.
+			buffer.put((byte) RESP.REQGRANTED.ordinal());
+		}
+
+		/**
+		 * Moves as much as either side allows, up to a bound so that one busy stream
+		 * cannot hold up the rest of its loop.
+		 */
+		void pump() throws IOException {
+
+			if(done)
+				return;
+
+			for(int i = 0; i < PUMP_ROUNDS; i++){
+
+				int read = 0;
+
+				if(!ended && buffer.hasRemaining()){
+
+					read = source.read(buffer);
+
+					if(read < 0)
+						ended = true;
+				}
+
+				if(buffer.position() > 0){
+
+					buffer.flip();
+					sink.write(buffer);
+					buffer.compact();
+				}
+
+				stalled = buffer.position() > 0;
+
+				if(stalled)
+					return;
+
+				if(ended){
+
+					sink.shutdownOutput();
+					done = true;
+
+					return;
+				}
+
+				if(read == 0)
+					return;
+			}
+		}
+
+		boolean reading(){
+
+			return !ended && !stalled;
+		}
+
+		void release(){
+
+			if(buffer != null)
+				buffers.release(buffer);
+
+			buffer = null;
+		}
+	}
+
+	private class Stream {
+
+		private ServerRoutedLiveStreamHandler handler;
+
+		private SocketChannel a;
+		private SocketChannel b;
+
+		private SelectionKey keyA = null;
+		private SelectionKey keyB = null;
+
+		private Pipe forward;
+		private Pipe backward;
+
+		private boolean closed = false;
+
+		Stream(ServerRoutedLiveStreamHandler handler, SocketChannel a, SocketChannel b){
+
+			this.handler = handler;
+			this.a = a;
+			this.b = b;
+
+			forward = new Pipe(a, b);
+			backward = new Pipe(b, a);
+		}
+
+		void handle(SelectionKey key){
+
+			try {
+
+				boolean isA = key == keyA;
+
+				if(key.isReadable())
+					(isA ? forward : backward).pump();
+
+				if(key.isValid() && key.isWritable())
+					(isA ? backward : forward).pump();
+
+				update();
+
+			} catch (IOException e) {
+
+				logger.debug("Live stream " + handler.getIdentifier() + " failed. Cause : " + e.getMessage());
+				close();
+			}
+		}
+
+		void update(){
+
+			if(forward.done && backward.done){
+
+				logger.debug("Live stream " + handler.getIdentifier() + " ended.");
+
+				close();
+				return;
+			}
+
+			keyA.interestOps(interest(forward, backward));
+			keyB.interestOps(interest(backward, forward));
+		}
+
+		private int interest(Pipe outgoing, Pipe incoming){
+
+			return (outgoing.reading() ? SelectionKey.OP_READ : 0) | (incoming.stalled ? SelectionKey.OP_WRITE : 0);
+		}
+
+		void close(){
+
+			if(closed)
+				return;
+
+			closed = true;
+
+			if(keyA != null)
+				keyA.cancel();
+
+			if(keyB != null)
+				keyB.cancel();
+
+			for(SocketChannel sc : new SocketChannel[]{ a, b }){
+
+				try {
+
+					sc.close();
+
+				} catch (IOException e) {
+
+					logger.debug("Failed to close a live stream connection. Tossing instead. Cause : " + e.getMessage());
+				}
+			}
+
+			forward.release();
+			backward.release();
+
+			handler.ended();
+		}
+	}
+
+	private class Loop implements Runnable {
+
+		private int index;
+
+		private Selector selector;
+
+		private Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+		private volatile boolean running = true;
+
+		Loop(int index) throws IOException {
+
+			this.index = index;
+
+			selector = Selector.open();
+		}
+
+		void start(Stream stream){
+
+			try {
+
+				stream.keyA = stream.a.register(selector, 0, stream);
+				stream.keyB = stream.b.register(selector, 0, stream);
+
+				// Hand out the grants, and anything already sent along with them.
+				stream.forward.pump();
+				stream.backward.pump();
+
+				stream.update();
+
+			} catch (ClosedChannelException e) {
+
+				stream.close();
+
+			} catch (IOException e) {
+
+				logger.debug("Failed to start live stream " + stream.handler.getIdentifier() + ". Cause : " + e.getMessage());
+				stream.close();
+			}
+		}
+
+		void execute(Runnable task){
+
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		void shutdown(){
+
+			running = false;
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+
+			logger.debug("Relay loop " + index + " started.");
+
+			while(running){
+
+				try {
+
+					selector.select();
+
+				} catch (IOException e) {
+
+					logger.error("Relay loop " + index + " failed. Cause : " + e.getMessage());
+					break;
+				}
+
+				Runnable task;
+
+				while((task = tasks.poll()) != null)
+					task.run();
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+
+				while(it.hasNext()){
+
+					SelectionKey key = it.next();
+					it.remove();
+
+					if(key.isValid())
+						((Stream) key.attachment()).handle(key);
+				}
+			}
+
+			for(SelectionKey key : selector.keys())
+				((Stream) key.attachment()).close();
+
+			try {
+
+				selector.close();
+
+			} catch (IOException e) {
+
+				logger.debug("Failed to close relay loop " + index + ". Cause : " + e.getMessage());
+			}
+
+			logger.debug("Relay loop " + index + " stopped.");
+		}
+	}
+}
@@ -1,22 +1,34 @@
 package postoffice.daemon;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.PatternSyntaxException;
 
-import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
-import org.apache.log4j.Priority;
 
 import postoffice.datatypes.CommFlags.REQ;
 import postoffice.datatypes.CommFlags.RESP;
 import postoffice.datatypes.CommFlags;
+import postoffice.datatypes.Frame;
 import postoffice.datatypes.Letter;
 import postoffice.datatypes.Mailbox;
+import postoffice.datatypes.SenderFilter;
+import postoffice.datatypes.SharedMemorySocket;
+import postoffice.datatypes.UnixDomainSocket;
+import postoffice.exception.comm.MailboxFullException;
+import postoffice.exception.livestream.NonExistentLiveStreamException;
+import postoffice.exception.livestream.UnexpectedParticipantException;
 import postoffice.exception.mailbox.ExistentMailboxException;
 import postoffice.exception.mailbox.MailboxInUseException;
 import postoffice.exception.mailbox.NonExistentMailboxException;
@@ -33,13 +45,25 @@ public class MailClerk implements Runnable {
 	private DataInputStream is = null;
 	private DataOutputStream os = null;
 	
+	// Letters are written through this, with a single flush, when they cannot be gathered.
+	private BufferedOutputStream letters = null;
+	
+	private FrameDispatcher dispatcher = null;
+	
+	// Serializes framed responses. Not a monitor, since a write may park on a full
+	// socket or shared memory ring and would pin a virtual clerk's carrier.
+	private ReentrantLock writeLock = new ReentrantLock();
+	
 	private static AtomicInteger idBuilder = new AtomicInteger(0);
 	
 	private int id = 0;
 	
+	private ClerkLog log;
+	
 	public MailClerk(Socket s, PostOffice po){
 
 		id = idBuilder.incrementAndGet();
+		log = new ClerkLog(logger, id);
 		
 		this.s = s;
 		this.po = po;
@@ -52,12 +76,13 @@ public class MailClerk implements Runnable {
 		REQ subrequest = null;
 		Letter letter = null;
 		
-		log(Level.DEBUG, "A new connection has been initiated.");
+		log.debug("A new connection has been initiated.");
 		
 		try {
 			
 			is = new DataInputStream(s.getInputStream());
 			os = new DataOutputStream(s.getOutputStream());
+			letters = new BufferedOutputStream(s.getOutputStream());
 			
 			String boxname = null;
 			byte[] passwordHash = new byte[16];
@@ -71,7 +96,7 @@ public class MailClerk implements Runnable {
 				
 				if(request == null){
 					
-					logger.debug("Received bad command.");
+					log.debug("Received bad command.");
 					os.write(RESP.BADCOMMAND.ordinal());
 					continue;
 				}
@@ -79,9 +104,11 @@ public class MailClerk implements Runnable {
 				// Allow 5 seconds for the client to interact.
 				s.setSoTimeout(500000);
 				
+				long started = System.nanoTime();
+				
 				try {
 					
-					log(Level.DEBUG, "Received command " + request.name());
+					log.debug("Received command {}", request);
 					
 					switch(request){
 						
@@ -89,39 +116,39 @@ public class MailClerk implements Runnable {
 							
 							if(mb != null){
 								
-								log(Level.DEBUG, "Already connected to a mailbox.");
+								log.debug("Already connected to a mailbox.");
 								os.writeByte(RESP.ALREADYCONN.ordinal());
 								continue;
 							}
 							else
 								os.writeByte(RESP.REQDATA.ordinal());
 							
-							log(Level.DEBUG, "Requesting box name...");
+							log.debug("Requesting box name...");
 							boxname = is.readUTF();
 							
-							log(Level.DEBUG, "Box name '" + boxname + "' received.");
+							log.debug("Box name '{}' received.", boxname);
 							
 							os.write(RESP.REQDATA.ordinal());
 
-							log(Level.DEBUG, "Requesting password...");
+							log.debug("Requesting password...");
 							is.read(passwordHash);
 
-							log(Level.DEBUG, "Password received.");
+							log.debug("Password received.");
 								
 							try {
 
-								mb = po.checkoutMailbox(boxname, passwordHash);
-								log(Level.DEBUG, "Box '" + boxname + "' checked out successfully.");
+								mb = po.checkoutMailbox(boxname, passwordHash, this);
+								log.debug("Box '{}' checked out successfully.", boxname);
 
 							} catch (MailboxInUseException e) {
 								
-								log(Level.DEBUG, "The mailbox '" + boxname + "' is already in use.");
+								log.debug("The mailbox '{}' is already in use.", boxname);
 								os.writeByte(RESP.BOXINUSE.ordinal());
 								continue;
 
 							} catch (NonExistentMailboxException e) {
 
-								log(Level.DEBUG, "The mailbox '" + boxname + "' already exists.");
+								log.debug("The mailbox '{}' already exists.", boxname);
 								os.writeByte(RESP.NONEXISTBOX.ordinal());
 								continue;
 							}
@@ -132,12 +159,14 @@ public class MailClerk implements Runnable {
 							
 							if(mb == null){
 								
-								log(Level.DEBUG, "No mailbox connection.");
+								log.debug("No mailbox connection.");
 								os.writeByte(RESP.NOBOXCONN.ordinal());
 								continue;
 							}
 							
-							log(Level.DEBUG, "Disconnected from mailbox '" +  mb.getOwner() + "'.");
+							mb.release(this);
+							
+							log.debug("Disconnected from mailbox '{}'.", mb.getOwner());
 							
 							mb = null;
 							
@@ -145,32 +174,38 @@ public class MailClerk implements Runnable {
 							
 						case CREATEBOX:
 
-							log(Level.DEBUG, "Requesting box name...");
+							log.debug("Requesting box name...");
 							os.writeByte(RESP.REQDATA.ordinal());
 							
 							boxname = is.readUTF();
 
-							log(Level.DEBUG, "Box name '" + boxname + "' received.");
+							log.debug("Box name '{}' received.", boxname);
 
-							log(Level.DEBUG, "Requesting password...");
+							log.debug("Requesting password...");
 							os.writeByte(RESP.REQDATA.ordinal());
 							is.read(passwordHash);
 
-							log(Level.DEBUG, "Password received.");
+							log.debug("Password received.");
 							
 							try {
 								
 								po.createMailbox(boxname, passwordHash);
-								log(Level.DEBUG, "Box '" + boxname + "' successfully created.");
+								log.debug("Box '{}' successfully created.", boxname);
 								
 							} catch (ExistentMailboxException e) {
 								
-								log(Level.DEBUG, "The box '" + boxname + "' already exists.");
+								log.debug("The box '{}' already exists.", boxname);
 								os.writeByte(RESP.BOXEXISTS.ordinal());
 								continue;
+								
+							} catch (IllegalArgumentException e) {
+								
+								log.debug("The box name '{}' is a routing pattern.", boxname);
+								os.writeByte(RESP.BADCOMMAND.ordinal());
+								continue;
 							}
 							
-							log(Level.DEBUG, "Created mailbox '" + boxname + "'.");
+							log.debug("Created mailbox '{}'.", boxname);
 							
 							break;
 							
@@ -178,23 +213,23 @@ public class MailClerk implements Runnable {
 							
 							if(mb == null){
 								
-								log(Level.DEBUG, "No mailbox connection.");
+								log.debug("No mailbox connection.");
 								os.writeByte(RESP.NOBOXCONN.ordinal());
 								continue;
 							}
 
 							try {
 								
-								po.destroyMailbox(boxname);
+								po.destroyMailbox(mb.getOwner(), this);
 								
 							} catch (NonExistentMailboxException e) {
 								
-								log(Level.DEBUG, "The mailbox '" + boxname + "' does not exist.");
+								log.debug("The mailbox '{}' does not exist.", mb.getOwner());
 								os.write(RESP.NONEXISTBOX.ordinal());
 								continue;
 							}
 							
-							log(Level.DEBUG, "Destroyed the mailbox '" + mb.getOwner() + "'.");
+							log.debug("Destroyed the mailbox '{}'.", mb.getOwner());
 							
 							mb = null;
 							
@@ -203,9 +238,9 @@ public class MailClerk implements Runnable {
 						case DISCONNECT:
 							
 							if(mb != null)
-								mb.release();
+								mb.release(this);
 							
-							log(Level.DEBUG, "Closing connection on client request...");
+							log.debug("Closing connection on client request...");
 							os.writeByte(RESP.REQGRANTED.ordinal());
 							
 							s.close();
@@ -213,37 +248,50 @@ public class MailClerk implements Runnable {
 							return;
 							
 						case SENDLETTER:
+						case SENDEXPIRING:
 
 							if(mb == null){
 								
-								log(Level.DEBUG, "No mailbox connection.");
+								log.debug("No mailbox connection.");
 								os.writeByte(RESP.NOBOXCONN.ordinal());
 								continue;
 							}
 							
 							os.writeByte(RESP.REQDATA.ordinal());
+							
+							// An expiring letter is sent like any other, after its time to live.
+							int timeToLive = request == REQ.SENDEXPIRING ? is.readInt() : 0;
+							
 							letter = receiveLetter();
+							letter.setTimeToLive(timeToLive);
 							
 							try {
 								
 								po.sendLetter(letter);
 								
-								log(Level.DEBUG, "Message sent to '" + letter.getRecipient() + "'.");
+								log.debug("Message sent to '{}'.", letter.getRecipient());
 								
 							} catch (NonExistentMailboxException e) {
 								
-								log(Level.DEBUG, "The recipient mailbox '" + boxname + "' does not exist.");
+								log.debug("The recipient mailbox '{}' does not exist.", letter.getRecipient());
 								os.writeByte(RESP.DELFAIL.ordinal());
 								continue;
+								
+							} catch (MailboxFullException e) {
+								
+								log.debug("The recipient mailbox '{}' is full.", letter.getRecipient());
+								os.writeByte(RESP.MAILBOXFULL.ordinal());
+								continue;
 							}
 							
 							break;
 							
 						case GETMAIL:
+						case FILTERMAIL:
 							
 							if(mb == null){
 
-								log(Level.DEBUG, "No mailbox connection.");
+								log.debug("No mailbox connection.");
 								os.writeByte(RESP.NOBOXCONN.ordinal());
 								continue;
 							}
@@ -253,10 +301,29 @@ public class MailClerk implements Runnable {
 							// Get the timeout length (milliseconds).
 							int timeout = is.readInt();
 							
+							// FILTERMAIL only hands out letters from senders matching a pattern.
+							SenderFilter filter = null;
+							
+							if(request == REQ.FILTERMAIL){
+								
+								String expression = is.readUTF();
+								
+								try {
+									
+									filter = SenderFilter.compile(expression);
+									
+								} catch (PatternSyntaxException e) {
+									
+									log.debug("Received a malformed sender filter '{}'.", expression);
+									os.writeByte(RESP.BADCOMMAND.ordinal());
+									continue;
+								}
+							}
+							
 							long timeRemaining = 1000000 * (long) timeout;
 							long maxTime = System.nanoTime() + timeRemaining;
 
-							if(mb.getQueueSize() == 0 && timeout == 0){
+							if(!mb.hasMail(filter) && timeout == 0){
 								
 								os.writeByte(RESP.MAILTIMEOUT.ordinal());
 								continue;
@@ -264,30 +331,32 @@ public class MailClerk implements Runnable {
 							else
 								os.writeByte(RESP.REQDATA.ordinal());
 							
-							log(Level.DEBUG, "Requesting mail from a mailbox storing " + mb.getQueueSize() + " messages.");
+							// The backlog is only counted if it is going to be logged.
+							if(log.isDebugEnabled())
+								log.debug("Requesting mail from a mailbox storing {} messages.", mb.getQueueSize());
 							
 							boolean noMailTerminate = false;
 							
-							while(!noMailTerminate && (timeout != 0 || mb.getQueueSize() > 0)){
+							while(!noMailTerminate && (timeout != 0 || mb.hasMail(filter))){
 
 								subrequest = readRequest();
 								
 								if(subrequest == REQ.NEXTLETTER){
 
-									log(Level.DEBUG, "Client requesting next letter.");
+									log.debug("Client requesting next letter.");
 									
-									letter = mb.popMessage(timeRemaining, TimeUnit.NANOSECONDS);
+									letter = mb.popMessage(filter, timeRemaining, TimeUnit.NANOSECONDS);
 									
 									if(letter != null){
 									
-										log(Level.DEBUG, "Sending message to socket...");
+										log.debug("Sending message to socket...");
 										os.writeByte(RESP.INMAIL.ordinal());
 										pushToSocket(letter);
-										log(Level.DEBUG, "Sending complete.");
+										log.debug("Sending complete.");
 										
 									} else {
 										
-										log(Level.DEBUG, "No more mail within alotted time.");
+										log.debug("No more mail within alotted time.");
 										os.writeByte(RESP.MAILTIMEOUT.ordinal());
 										
 										noMailTerminate = true;
@@ -295,7 +364,7 @@ public class MailClerk implements Runnable {
 								}
 								else if(subrequest == REQ.SATIATED){
 								
-									log(Level.DEBUG, "Client indicates satiation.");
+									log.debug("Client indicates satiation.");
 									break;
 								}
 								
@@ -304,7 +373,7 @@ public class MailClerk implements Runnable {
 							
 							if(noMailTerminate){
 								
-								log(Level.DEBUG, "Command " + request.name() + " completed.");
+								log.debug("Command {} completed.", request);
 								continue;
 							}
 							
@@ -322,20 +391,21 @@ public class MailClerk implements Runnable {
 							
 							if(mb == null){
 
-								log(Level.DEBUG, "No mailbox connection.");
+								log.debug("No mailbox connection.");
 								os.writeByte(RESP.NOBOXCONN.ordinal());
 								continue;
 							}
 							
-							mb.empty();
+							mb.empty(this);
 							
 							break;
 							
 						case LIVESTREAM:
+						case DIRECTSTREAM:
 							
 							if(mb == null){
 
-								log(Level.DEBUG, "No mailbox connection.");
+								log.debug("No mailbox connection.");
 								os.writeByte(RESP.NOBOXCONN.ordinal());
 								continue;
 							}
@@ -344,6 +414,28 @@ public class MailClerk implements Runnable {
 							
 							String correspondent = is.readUTF();
 							
+							// A brokered stream is followed by where the requester listens for its partner.
+							String host = null;
+							int port = 0;
+							
+							if(request == REQ.DIRECTSTREAM){
+								
+								host = is.readUTF();
+								port = is.readInt();
+								
+								if(!po.isBrokeringLiveStreams()){
+									
+									os.writeByte(RESP.UNSUPPORTED.ordinal());
+									continue;
+								}
+								
+								if(port < 1 || port > 65535){
+									
+									os.writeByte(RESP.BADCOMMAND.ordinal());
+									continue;
+								}
+							}
+							
 							if(!po.mailboxExists(correspondent)){
 								
 								os.writeByte(RESP.NONEXISTBOX.ordinal());
@@ -357,59 +449,237 @@ public class MailClerk implements Runnable {
 								continue;
 							}
 								
+							ServerRoutedLiveStreamHandler stream;
+							
 							try {
 								
-								po.createLiveStream(mb.getOwner(), correspondent);
+								stream = po.createLiveStream(mb.getOwner(), correspondent, host, port);
 								
 							} catch (NonExistentMailboxException e) {
 								
 								os.writeByte(RESP.DELFAIL.ordinal());
 								continue;
+								
+							} catch (MailboxFullException e) {
+								
+								os.writeByte(RESP.MAILBOXFULL.ordinal());
+								continue;
+							}
+							
+							os.writeByte(RESP.REQGRANTED.ordinal());
+							os.writeUTF(stream.getIdentifier().toString());
+							
+							if(host != null)
+								os.write(stream.getToken());
+							
+							continue;
+							
+						case JOINSTREAM:
+							
+							if(mb != null){
+								
+								log.debug("Already connected to a mailbox.");
+								os.writeByte(RESP.ALREADYCONN.ordinal());
+								continue;
+							}
+							
+							// Only a connection with a channel of its own can be handed over.
+							if(s.getChannel() == null){
+								
+								os.writeByte(RESP.UNSUPPORTED.ordinal());
+								continue;
+							}
+							
+							os.writeByte(RESP.REQDATA.ordinal());
+							
+							String joined = is.readUTF();
+							boxname = is.readUTF();
+							is.readFully(passwordHash);
+							
+							try {
+								
+								po.joinLiveStream(joined, boxname, passwordHash, s.getChannel());
+								
+							} catch (NonExistentLiveStreamException e) {
+								
+								log.debug("The live stream '{}' does not exist.", joined);
+								os.writeByte(RESP.NONEXISTBOX.ordinal());
+								continue;
+								
+							} catch (UnexpectedParticipantException e) {
+								
+								log.debug("The mailbox '{}' cannot join live stream '{}'.", boxname, joined);
+								os.writeByte(RESP.NOAUTH.ordinal());
+								continue;
+							}
+							
+							// The connection now belongs to the stream, which answers once the partner joins.
+							log.debug("Connection handed to live stream '{}'.", joined);
+							
+							if(s instanceof UnixDomainSocket)
+								((UnixDomainSocket) s).detach();
+							
+							return;
+							
+						case SUBSCRIBE:
+						case UNSUBSCRIBE:
+							
+							if(mb == null){
+
+								log.debug("No mailbox connection.");
+								os.writeByte(RESP.NOBOXCONN.ordinal());
+								continue;
 							}
 							
+							os.writeByte(RESP.REQDATA.ordinal());
+							
+							String topic = is.readUTF();
+							
+							if(request == REQ.SUBSCRIBE)
+								po.subscribe(mb, topic);
+							else
+								po.unsubscribe(mb, topic);
+							
 							break;
 							
+						case PUBLISH:
+							
+							if(mb == null){
+
+								log.debug("No mailbox connection.");
+								os.writeByte(RESP.NOBOXCONN.ordinal());
+								continue;
+							}
+							
+							// Published letters are exchanged like sent ones, addressed to the topic.
+							os.writeByte(RESP.REQDATA.ordinal());
+							letter = receiveLetter();
+							
+							int delivered = po.publish(letter.getRecipient(), letter);
+							po.awaitDurable();
+							
+							if(log.isDebugEnabled())
+								log.debug("Letter published to {} subscribers of '{}'.", delivered, letter.getRecipient());
+							
+							os.writeByte(RESP.REQGRANTED.ordinal());
+							os.writeInt(delivered);
+							continue;
+							
+						case SHAREDMEM:
+							
+							if(mb != null){
+								
+								log.debug("Already connected to a mailbox.");
+								os.writeByte(RESP.ALREADYCONN.ordinal());
+								continue;
+							}
+							
+							// The client must be on this host to have created the file.
+							if(!po.isSharingMemory() || s instanceof SharedMemorySocket || !isLocal()){
+								
+								os.writeByte(RESP.UNSUPPORTED.ordinal());
+								continue;
+							}
+							
+							os.writeByte(RESP.REQDATA.ordinal());
+							
+							String path = is.readUTF();
+							
+							SharedMemorySocket shared;
+							
+							try {
+								
+								// Only ever a file in the shared memory directory, never just any path.
+								shared = new SharedMemorySocket(s, SharedMemorySocket.resolve(path, SharedMemorySocket.defaultDirectory()), false);
+								
+							} catch (IOException e) {
+								
+								log.debug("Could not map shared memory file '{}'. Cause : {}", path, e.getMessage());
+								os.writeByte(RESP.BADCOMMAND.ordinal());
+								continue;
+							}
+							
+							os.writeByte(RESP.REQGRANTED.ordinal());
+							
+							// Everything from here on travels through the rings.
+							s = shared;
+							is = new DataInputStream(s.getInputStream());
+							os = new DataOutputStream(s.getOutputStream());
+							letters = new BufferedOutputStream(s.getOutputStream());
+							
+							log.debug("Moved the connection into shared memory.");
+							
+							continue;
+							
+						case PROTOCOL:
+							
+							os.writeByte(RESP.REQDATA.ordinal());
+							
+							int version = is.readInt();
+							
+							if(version != CommFlags.PROTOCOL_FRAMED && version != CommFlags.PROTOCOL_COMPACT){
+								
+								log.debug("Client requested unsupported protocol version {}.", version);
+								os.writeByte(RESP.UNSUPPORTED.ordinal());
+								continue;
+							}
+							
+							os.writeByte(RESP.REQGRANTED.ordinal());
+							
+							serveFrames(version == CommFlags.PROTOCOL_COMPACT);
+							
+							return;
+							
 						default:
 							
-							log(Level.DEBUG, "Received non-initiating command '" + request.name() + "'.");
+							log.debug("Received non-initiating command '{}'.", request);
 							os.writeByte(RESP.BADCOMMAND.ordinal());
 							continue;
 					}
 					
 					os.writeByte(RESP.REQGRANTED.ordinal());
-					log(Level.DEBUG, "Command " + request.name() + " completed.");
+					log.debug("Command {} completed.", request);
 				
 				} catch(SocketTimeoutException ste){
 
-					log(Level.DEBUG, "Client took too long to respond to command '" + request.name() + "'.");
+					log.debug("Client took too long to respond to command '{}'.", request);
 					os.writeByte(RESP.COMMTIMEOUT.ordinal());
 					continue;
 					
 				} catch (UnauthorizedActionException uae) {
 					
 					os.writeByte(RESP.NOAUTH.ordinal());
+					
+				} finally {
+					
+					// A switch to the framed protocol lasts as long as the connection.
+					if(request != REQ.PROTOCOL)
+						po.getMetrics().requestServed(request, System.nanoTime() - started);
 				}
 			}
 			
 		} catch (IOException e) {
 			
-			log(Level.ERROR, "Problem while performing command '" + request + "'. Cause : " + e.getMessage());
+			log.error("Problem while performing command '{}'. Cause : {}", request, e.getMessage());
 
 			// Attempt to close the damage socket.
 			try {
 				
-				logger.debug("[ID: " + id + "] Returning mailboxes.");
+				log.debug("Returning mailboxes.");
+				
+				if(dispatcher != null)
+					dispatcher.close();
 				
 				if(mb != null)
-					mb.release();
+					mb.release(this);
 				
-				logger.debug("[ID: " + id + "] Attempting to close the socket.");
+				log.debug("Attempting to close the socket.");
 				
 				s.close();
 				
 			} catch (IOException ioe) {
 
-				log(Level.DEBUG, "Failed to close the socket. Tossing instead. Cause : " + ioe.getMessage());
+				log.debug("Failed to close the socket. Tossing instead. Cause : {}", ioe.getMessage());
 				
 				return;
 				
@@ -418,15 +688,78 @@ public class MailClerk implements Runnable {
 				// This can never happen in this model.
 			}
 
-			logger.debug("[ID: " + id + "] Socket closed successfully.");
+			log.debug("Socket closed successfully.");
 			
 			return;
 		}
 	}
 
-	private void log(Priority priority, String message){
+	/**
+	 * Serves the rest of the connection using the framed protocol. Responses may be
+	 * written by other threads completing mail waits, so writes are serialized by the
+	 * write lock.
+	 * 
+	 * @param compact True if the client asked for the compact framing.
+	 * @throws IOException Thrown if the connection fails.
+	 */
+	private void serveFrames(boolean compact) throws IOException {
+		
+		log.debug("Switched to the framed protocol.");
+		
+		s.setSoTimeout(0);
+		
+		dispatcher = new FrameDispatcher(po, this, mb, new FrameSink() {
+			
+			@Override
+			public void send(Frame frame) {
+				
+				writeLock.lock();
+				
+				try {
+					
+					if(frame.getPayload() != null)
+						writeGathered(frame.toHeadBytes(), frame.getPayload());
+					else
+						os.write(frame.toBytes());
+					
+				} catch (IOException e) {
+					
+					log.debug("Failed to send a response frame. Cause : {}", e.getMessage());
+					
+					// Closing the socket makes the reading thread clean up.
+					try {
+						s.close();
+					} catch (IOException ioe) {}
+					
+				} finally {
+					
+					writeLock.unlock();
+				}
+			}
+		}, null, compact);
+		
+		mb = null;
+		
+		// A send held back by a full mailbox also holds back every frame behind it.
+		while(dispatcher.dispatch(Frame.read(is)))
+			dispatcher.awaitUnblocked();
+		
+		log.debug("Closing connection on client request...");
+		
+		s.close();
+	}
+
+	/**
+	 * @return True if the client is on this host, connected over a Unix domain socket or loopback.
+	 */
+	private boolean isLocal(){
 		
-		logger.log(priority, "[ID: " + id + "] " + message);
+		if(s instanceof UnixDomainSocket)
+			return true;
+		
+		InetAddress address = s.getInetAddress();
+		
+		return address != null && address.isLoopbackAddress();
 	}
 	
 	private REQ readRequest() throws IOException{
@@ -443,12 +776,57 @@ public class MailClerk implements Runnable {
 	 */
 	private void pushToSocket(Letter letter) throws IOException {
 
-		os.writeUTF(letter.getSender());
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(header);
 		
-		byte[] payload = letter.getPayloadBytes();
-
-		os.writeInt(payload.length);
-		os.write(payload);
+		dos.writeUTF(letter.getSender());
+		dos.writeInt(letter.getPayloadLength());
+		
+		writeGathered(header.toByteArray(), letter);
+	}
+	
+	/**
+	 * Writes a header followed by a letter's payload, both in the one write so that the
+	 * payload never waits behind an unacknowledged header. Over a socket channel they are
+	 * handed over together in a gather write, and otherwise through a buffered stream, so
+	 * neither copies a heap payload. A pooled payload buffer is released afterwards.
+	 * 
+	 * @param header The bytes preceding the payload.
+	 * @param letter The letter whose payload to write.
+	 * @throws IOException Thrown if the connection fails.
+	 */
+	private void writeGathered(byte[] header, Letter letter) throws IOException {
+		
+		SocketChannel channel = s.getChannel();
+		
+		try {
+			
+			ByteBuffer[] buffers = new ByteBuffer[] { ByteBuffer.wrap(header), letter.getPayloadBuffer() };
+			
+			// Its channel is non-blocking; the socket waits for room instead of spinning.
+			if(s instanceof UnixDomainSocket){
+				
+				((UnixDomainSocket) s).write(buffers);
+				return;
+			}
+			
+			if(channel != null && letter.isDirect()){
+				
+				while(buffers[0].hasRemaining() || buffers[1].hasRemaining())
+					channel.write(buffers);
+				
+				return;
+			}
+			
+			// A payload larger than the buffer is written straight through after the header.
+			letters.write(header);
+			letters.write(letter.getPayloadBytes());
+			letters.flush();
+		}
+		finally {
+			
+			letter.release();
+		}
 	}
 
 	private Letter receiveLetter() throws IOException {
@@ -464,11 +842,8 @@ public class MailClerk implements Runnable {
 		// Get the payload.
 		int byteLength = is.readInt();
 
-		if(byteLength > 0){
-
-			messageData = new byte[byteLength];
-			is.read(messageData);
-		}
+		messageData = new byte[Math.max(byteLength, 0)];
+		is.readFully(messageData);
 		
 		return new Letter(mb.getOwner(), recipient, messageData);
 	}
@@ -0,0 +1,228 @@
+package postoffice.daemon;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import postoffice.datatypes.CommFlags.REQ;
+import postoffice.metrics.LatencyHistogram;
+
+/**
+ * Serves a post office's metrics as plain text, in the Prometheus exposition format, on
+ * a port of the loopback interface. A client sending an HTTP GET is answered with an
+ * HTTP response, so the port can be scraped directly; any other client is simply sent
+ * the text and disconnected. Clients are served one at a time on a single thread.
+ */
+class MetricsEndpoint implements Runnable {
+
+	private static Logger logger = Logger.getLogger(MetricsEndpoint.class);
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// How long a client has to send its request before it is answered anyway.
+	private static final int REQUEST_TIMEOUT = 1000;
+
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	private PostOfficeMetrics metrics;
+
+	private ServerSocket ss;
+
+	/**
+	 * @param metrics The metrics to serve.
+	 * @param port The port to listen on, or zero for any free port.
+	 * @throws IOException Thrown if the port cannot be bound.
+	 */
+	MetricsEndpoint(PostOfficeMetrics metrics, int port) throws IOException {
+
+		this.metrics = metrics;
+
+		ss = new ServerSocket();
+		ss.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+	}
+
+	int getLocalPort(){
+
+		return ss.getLocalPort();
+	}
+
+	void shutdown(){
+
+		try {
+
+			ss.close();
+
+		} catch (IOException e) {
+
+			logger.debug("Failed to close the metrics endpoint. Cause : " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void run(){
+
+		while(!ss.isClosed()){
+
+			Socket s = null;
+
+			try {
+
+				s = ss.accept();
+				serve(s);
+
+			} catch (IOException e) {
+
+				if(!ss.isClosed())
+					logger.debug("Failed to serve metrics. Cause : " + e.getMessage());
+
+			} finally {
+
+				if(s != null){
+
+					try {
+						s.close();
+					} catch (IOException e) {}
+				}
+			}
+		}
+	}
+
+	private void serve(Socket s) throws IOException {
+
+		s.setSoTimeout(REQUEST_TIMEOUT);
+
+		boolean http = false;
+
+		try {
+
+			BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream(), ASCII));
+
+			String line = reader.readLine();
+
+			http = line != null && line.startsWith("GET ");
+
+			// The request headers are read and ignored.
+			while(http && line != null && !line.isEmpty())
+				line = reader.readLine();
+
+		} catch (SocketTimeoutException e) {
+
+			// A client with nothing to say still gets the text.
+		}
+
+		byte[] body = render().getBytes(UTF8);
+
+		OutputStream os = s.getOutputStream();
+
+		if(http){
+
+			String head = "HTTP/1.0 200 OK\r\n"
+					+ "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+					+ "Content-Length: " + body.length + "\r\n"
+					+ "Connection: close\r\n\r\n";
+
+			os.write(head.getBytes(ASCII));
+		}
+
+		os.write(body);
+		os.flush();
+	}
+
+	/**
+	 * @return The metrics in the Prometheus text exposition format.
+	 */
+	String render(){
+
+		StringBuilder sb = new StringBuilder();
+
+		metric(sb, "postoffice_letters_delivered_total", "counter", "Letters delivered to mailboxes.");
+		sample(sb, "postoffice_letters_delivered_total", null, metrics.getLettersDelivered());
+
+		metric(sb, "postoffice_letters_taken_total", "counter", "Letters handed out of mailboxes.");
+		sample(sb, "postoffice_letters_taken_total", null, metrics.getLettersTaken());
+
+		metric(sb, "postoffice_delivery_rate", "gauge", "Letters delivered per second over the last second.");
+		sample(sb, "postoffice_delivery_rate", null, metrics.getDeliveryRate());
+
+		metric(sb, "postoffice_take_rate", "gauge", "Letters handed out per second over the last second.");
+		sample(sb, "postoffice_take_rate", null, metrics.getTakeRate());
+
+		metric(sb, "postoffice_active_clerks", "gauge", "Clerks serving a connection.");
+		sample(sb, "postoffice_active_clerks", null, metrics.getActiveClerks());
+
+		metric(sb, "postoffice_live_streams", "gauge", "Live streams managed by the post office.");
+		sample(sb, "postoffice_live_streams", null, metrics.getLiveStreams());
+
+		metric(sb, "postoffice_mailboxes", "gauge", "Mailboxes in the post office.");
+		sample(sb, "postoffice_mailboxes", null, metrics.getMailboxCount());
+
+		metric(sb, "postoffice_mailbox_letters", "gauge", "Letters waiting in a mailbox.");
+
+		for(Map.Entry<String, Long> entry : metrics.getQueuedLetters().entrySet())
+			sample(sb, "postoffice_mailbox_letters", "mailbox=\"" + escape(entry.getKey()) + "\"", entry.getValue());
+
+		metric(sb, "postoffice_mailbox_bytes", "gauge", "Bytes of payload waiting in a mailbox.");
+
+		for(Map.Entry<String, Long> entry : metrics.getQueuedBytes().entrySet())
+			sample(sb, "postoffice_mailbox_bytes", "mailbox=\"" + escape(entry.getKey()) + "\"", entry.getValue());
+
+		metric(sb, "postoffice_request_seconds", "summary", "Time taken to serve requests, by type.");
+
+		for(REQ request : REQ.values()){
+
+			LatencyHistogram.Snapshot latency = metrics.getLatency(request);
+
+			if(latency == null)
+				continue;
+
+			String label = "request=\"" + request.name() + "\"";
+
+			for(double quantile : QUANTILES)
+				sample(sb, "postoffice_request_seconds", label + ",quantile=\"" + quantile + "\"", latency.getValueAtQuantile(quantile) / 1e9);
+
+			sample(sb, "postoffice_request_seconds_sum", label, latency.getSum() / 1e9);
+			sample(sb, "postoffice_request_seconds_count", label, latency.getCount());
+		}
+
+		return sb.toString();
+	}
+
+	private static void metric(StringBuilder sb, String name, String type, String help){
+
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void sample(StringBuilder sb, String name, String labels, double value){
+
+		sb.append(name);
+
+		if(labels != null)
+			sb.append('{').append(labels).append('}');
+
+		sb.append(' ');
+
+		if(value == Math.rint(value) && Math.abs(value) < 1e15)
+			sb.append((long) value);
+		else
+			sb.append(value);
+
+		sb.append('\n');
+	}
+
+	private static String escape(String value){
+
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
@@ -1,23 +1,46 @@
 package postoffice.daemon;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
+import postoffice.datatypes.BufferPool;
+import postoffice.datatypes.CommFlags.RESP;
+import postoffice.datatypes.ExpiryWheel;
 import postoffice.datatypes.Letter;
+import postoffice.datatypes.MailQuota;
 import postoffice.datatypes.Mailbox;
+import postoffice.datatypes.QuotaListener;
+import postoffice.datatypes.SharedMemorySocket;
+import postoffice.datatypes.SlabPool;
+import postoffice.datatypes.Topic;
+import postoffice.datatypes.UnixDomainSocket;
+import postoffice.exception.comm.MailboxFullException;
+import postoffice.exception.livestream.NonExistentLiveStreamException;
+import postoffice.exception.livestream.UnexpectedParticipantException;
 import postoffice.exception.mailbox.ExistentMailboxException;
 import postoffice.exception.mailbox.MailboxInUseException;
 import postoffice.exception.mailbox.NonExistentMailboxException;
 import postoffice.exception.mailbox.UnauthorizedActionException;
+import postoffice.persistence.MailJournal;
 
 public class PostOffice implements Runnable {
 
@@ -26,14 +49,69 @@ public class PostOffice implements Runnable {
 	public static final String OFFICE_ADDRESS = "postoffice.daemon";
 	public static final int DEFAULT_PORT = 8228;
 
+	// Off-heap slabs kept for reuse once the backlogs holding them have been read.
+	private static final int IDLE_SLAB_BYTES = 64 * 1024 * 1024;
+	
+	// Most routing patterns whose matches are remembered between changes to the directory.
+	private static final int MAX_RESOLUTIONS = 4096;
+	
+	// How often the rates of letters in and out are worked out, in milliseconds.
+	private static final int METRICS_SAMPLE_INTERVAL = 1000;
+
 	private static Logger logger = Logger.getLogger(PostOffice.class);
 
 	private Map<String, Mailbox> mailboxes = new ConcurrentHashMap<String, Mailbox>();
+	
+	// The same mailboxes by address segment, for routing patterns. Changes are made while
+	// holding the post office's lock, and replace the cache of resolved patterns.
+	private AddressTrie directory = new AddressTrie();
+	private volatile Map<String, Mailbox[]> resolutions = new ConcurrentHashMap<String, Mailbox[]>();
+	
+	private Map<String, Topic> topics = new ConcurrentHashMap<String, Topic>();
 	private Map<UUID, ServerRoutedLiveStreamHandler> managedLiveStreams = new ConcurrentHashMap<UUID, ServerRoutedLiveStreamHandler>();
+	
+	private PostOfficeMetrics metrics = new PostOfficeMetrics(mailboxes, managedLiveStreams);
+	
+	// Null unless the metrics are served as plain text.
+	private MetricsEndpoint metricsEndpoint = null;
 
-	private boolean running = true;
+	private volatile boolean running = true;
+	
+	private PostOfficeConfig config;
+	
+	private ServerSocketChannel ss = null;
+	
+	// Null unless the post office also listens on a Unix domain socket.
+	private ServerSocketChannel unixServer = null;
 	
-	private ServerSocket ss = null;
+	// Null unless mailboxes are durable.
+	private MailJournal journal = null;
+	
+	// Null unless letters are queued off-heap.
+	private SlabPool slabs = null;
+	
+	private BufferPool buffers = new BufferPool(1024 * 1024, 16 * 1024 * 1024);
+	
+	private LiveStreamRelay relay;
+	
+	// Both null unless queued mail is limited; see PostOfficeConfig.
+	private MailQuota mailboxLimits = null;
+	private MailQuota sharedQuota = null;
+	
+	// Sweeps mailboxes of letters whose time to live has run out.
+	private ExpiryWheel expiryWheel;
+	
+	private ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		
+		@Override
+		public Thread newThread(Runnable r) {
+			
+			Thread t = new Thread(r, "postoffice-timer");
+			t.setDaemon(true);
+			
+			return t;
+		}
+	});
 	
 	public static PostOffice createPostOffice() throws IOException {
 		
@@ -42,20 +120,185 @@ public class PostOffice implements Runnable {
 	
 	public static PostOffice createPostOffice(int port) throws IOException {
 		
-		PostOffice postOffice = new PostOffice(port);
+		PostOfficeConfig config = new PostOfficeConfig();
+		config.setPort(port);
+		
+		return PostOffice.createPostOffice(config);
+	}
+	
+	public static PostOffice createPostOffice(PostOfficeConfig config) throws IOException {
+		
+		PostOffice postOffice = new PostOffice(config);
 		
 		(new Thread(postOffice)).start();
 		
 		return postOffice;
 	}
 
-	private PostOffice(int port) throws IOException {
+	private PostOffice(PostOfficeConfig config) throws IOException {
+		
+		this.config = config;
+		
+		if(config.getEngine() == PostOfficeConfig.Engine.VIRTUAL_THREAD && !VirtualThreads.isSupported())
+			throw new UnsupportedOperationException("The " + config.getEngine() + " engine requires Java 21 or newer.");
+		
+		if(config.getUnixSocketFile() != null && !UnixDomainSocket.isSupported())
+			throw new UnsupportedOperationException("Unix domain sockets require Java 16 or newer.");
+		
+		if(config.isSharedMemory() && !SharedMemorySocket.isSupported())
+			throw new UnsupportedOperationException("Shared memory connections are not supported by this JVM.");
+		
+		if(config.getLetterStorage() == PostOfficeConfig.LetterStorage.OFF_HEAP)
+			slabs = new SlabPool(config.getLetterSlabSize(), Math.max(1, IDLE_SLAB_BYTES / config.getLetterSlabSize()));
+		
+		if(config.getTotalLetterLimit() > 0 || config.getTotalByteLimit() > 0)
+			sharedQuota = new MailQuota(config.getTotalLetterLimit(), config.getTotalByteLimit(), config.getTotalQuotaPolicy());
+		
+		if(config.getMailboxLetterLimit() > 0 || config.getMailboxByteLimit() > 0)
+			mailboxLimits = new MailQuota(config.getMailboxLetterLimit(), config.getMailboxByteLimit(), config.getMailboxQuotaPolicy());
+		
+		expiryWheel = new ExpiryWheel(config.getExpirySweepInterval());
+		
+		relay = new LiveStreamRelay(config.getRelayThreads(), config.getRelayBufferSize(), buffers);
+		
+		if(config.getJournalDirectory() != null){
+			
+			journal = new MailJournal(config.getJournalDirectory(), config.getJournalSegmentSize(),
+					config.getJournalSyncInterval(), config.getJournalSyncBatch());
+			
+			for(Mailbox mb : journal.recover(slabs, mailboxLimits, sharedQuota)){
+				
+				mb.setExpiryWheel(expiryWheel);
+				mb.setTraffic(metrics.getTraffic());
+				
+				mailboxes.put(mb.getOwner(), mb);
+				directory.add(mb);
+				
+				for(String topic : mb.getTopics())
+					getTopic(topic).subscribe(mb);
+			}
+		}
+		
+		timer.scheduleAtFixedRate(new Runnable() {
+			
+			@Override
+			public void run() {
+				
+				try {
+					
+					expiryWheel.advance(System.currentTimeMillis());
+					
+				} catch (RuntimeException e) {
+					
+					// Thrown out of a scheduled task it would stop every later sweep.
+					logger.error("Failed to sweep expired letters.", e);
+				}
+			}
+		}, config.getExpirySweepInterval(), config.getExpirySweepInterval(), TimeUnit.MILLISECONDS);
+		
+		timer.scheduleAtFixedRate(new Runnable() {
+			
+			@Override
+			public void run() {
+				
+				metrics.sample();
+			}
+		}, METRICS_SAMPLE_INTERVAL, METRICS_SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+		
+		ss = ServerSocketChannel.open();
+		ss.bind(new InetSocketAddress(config.getPort()));
+		
+		if(config.getUnixSocketFile() != null){
+			
+			try {
+				
+				unixServer = UnixDomainSocket.bind(config.getUnixSocketFile());
+				
+			} catch (IOException e) {
+				
+				ss.close();
+				throw e;
+			}
+		}
+		
+		if(config.isMetricsMBeans())
+			metrics.register(getLocalPort());
+		
+		if(config.getMetricsPort() >= 0){
+			
+			metricsEndpoint = new MetricsEndpoint(metrics, config.getMetricsPort());
+			
+			Thread t = new Thread(metricsEndpoint, "postoffice-metrics");
+			t.setDaemon(true);
+			t.start();
+		}
+		
+		logger.debug("Daemon started on port " + config.getPort() + " using the " + config.getEngine() + " engine.");
+	}
+	
+	/**
+	 * Returns the scheduler shared by clerks for mail wait deadlines.
+	 * 
+	 * @return The post office timer.
+	 */
+	protected ScheduledExecutorService getTimer(){
+		
+		return timer;
+	}
+	
+	/**
+	 * Returns the pool of direct buffers clerks read letter payloads into.
+	 * 
+	 * @return The payload buffer pool.
+	 */
+	protected BufferPool getBufferPool(){
+		
+		return buffers;
+	}
+	
+	/**
+	 * Returns how long a sender held back by a full mailbox waits for room.
+	 * 
+	 * @return The timeout in milliseconds.
+	 */
+	protected long getQuotaBlockTimeout(){
+		
+		return config.getQuotaBlockTimeout();
+	}
+
+	/**
+	 * Returns the metrics the daemon keeps about itself.
+	 * 
+	 * @return The post office's metrics.
+	 */
+	public PostOfficeMetrics getMetrics(){
 		
-		ss = new ServerSocket(port);
-		logger.debug("Daemon started on port " + port + ".");
+		return metrics;
+	}
+	
+	/**
+	 * Returns the port the daemon serves its metrics as plain text on; see
+	 * {@link PostOfficeConfig#setMetricsPort(int)}.
+	 * 
+	 * @return The local port, or -1 if the metrics are not served that way.
+	 */
+	public int getMetricsPort(){
 		
+		return metricsEndpoint == null ? -1 : metricsEndpoint.getLocalPort();
 	}
 	
+	/**
+	 * Returns the port the daemon is listening on, which differs from the configured
+	 * port when that was zero and the system picked a free one.
+	 *
+	 * @return The local port.
+	 * @throws IOException Thrown if the port cannot be read.
+	 */
+	public int getLocalPort() throws IOException {
+
+		return ((InetSocketAddress) ss.getLocalAddress()).getPort();
+	}
+
 	/**
 	 * Checks if a mailbox has been checked out or not.
 	 * 
@@ -79,34 +322,74 @@ public class PostOffice implements Runnable {
 	 * @param id Identifier for the mailbox.
 	 * @param passwordHash A hash of a password for the mailbox.
 	 * @throws ExistentMailboxException Thrown if the mailbox already exists.
+	 * @throws IllegalArgumentException Thrown if the identifier has a '*' or '#' segment,
+	 * which would make letters addressed to it a routing pattern.
 	 */
-	protected synchronized void createMailbox(String id, byte[] passwordHash) throws ExistentMailboxException {
-
-		Mailbox currentBox = mailboxes.get(id);
+	protected void createMailbox(String id, byte[] passwordHash) throws ExistentMailboxException {
 
-		if(currentBox != null)
-			throw new ExistentMailboxException("Cannot create the mailbox with identifier '" + id + "' as it already exists.");
-
-		mailboxes.put(id, new Mailbox(id, Arrays.copyOf(passwordHash, passwordHash.length)));
+		if(AddressTrie.isPattern(id))
+			throw new IllegalArgumentException("Cannot create the mailbox with identifier '" + id + "' as it is a routing pattern.");
+		
+		synchronized(this){
+			
+			Mailbox currentBox = mailboxes.get(id);
+			
+			if(currentBox != null)
+				throw new ExistentMailboxException("Cannot create the mailbox with identifier '" + id + "' as it already exists.");
+			
+			Mailbox mb = new Mailbox(id, Arrays.copyOf(passwordHash, passwordHash.length), journal, slabs, mailboxLimits, sharedQuota);
+			mb.setExpiryWheel(expiryWheel);
+			mb.setTraffic(metrics.getTraffic());
+			
+			mailboxes.put(id, mb);
+			directory.add(mb);
+			
+			resolutions = new ConcurrentHashMap<String, Mailbox[]>();
+			
+			if(journal != null)
+				journal.mailboxCreated(id, passwordHash);
+		}
+		
+		// Waited on outside the lock, so that other directory changes go on meanwhile.
+		if(journal != null)
+			journal.sync();
 	}
 
 	/**
 	 * Destroys an existing mailbox.
 	 * 
 	 * @param id Identifier for the mailbox.
+	 * @param holder The object that checked out the mailbox.
 	 * @throws NonExistentMailboxException Thrown if the mailbox to destroy does not exist.
-	 * @throws UnauthorizedActionException Thrown if a thread does not first checkout a mailbox before attempting to destroy it.
+	 * @throws UnauthorizedActionException Thrown if the holder does not first checkout a mailbox before attempting to destroy it.
 	 */
-	protected synchronized void destroyMailbox(String id) throws NonExistentMailboxException, UnauthorizedActionException {
+	protected void destroyMailbox(String id, Object holder) throws NonExistentMailboxException, UnauthorizedActionException {
 
-		Mailbox currentBox = mailboxes.get(id);
-
-		if(currentBox == null)
-			throw new NonExistentMailboxException("Cannot destroy the mailbox '" + id + "' as it does not exist.");
-		else
-			currentBox.release();
+		synchronized(this){
+			
+			Mailbox currentBox = mailboxes.get(id);
+			
+			if(currentBox == null)
+				throw new NonExistentMailboxException("Cannot destroy the mailbox '" + id + "' as it does not exist.");
+			else
+				currentBox.release(holder);
+			
+			mailboxes.remove(id);
+			directory.remove(currentBox);
+			
+			resolutions = new ConcurrentHashMap<String, Mailbox[]>();
+			
+			currentBox.destroy();
+			
+			for(String topic : currentBox.getTopics())
+				leaveTopic(currentBox, topic);
+			
+			if(journal != null)
+				journal.mailboxDestroyed(id);
+		}
 		
-		mailboxes.remove(id);
+		if(journal != null)
+			journal.sync();
 	}
 
 	/**
@@ -121,71 +404,526 @@ public class PostOffice implements Runnable {
 	}
 
 	/**
-	 * Checks out a mailbox and locks it for use only by the current thread.
+	 * Looks up a mailbox, so that a connection can hold on to it rather than look it up
+	 * again for every letter.
+	 * 
+	 * @param id Identifier for the mailbox.
+	 * @return The mailbox, or null if it does not exist.
+	 */
+	protected Mailbox findMailbox(String id){
+
+		return mailboxes.get(id);
+	}
+
+	/**
+	 * Checks out a mailbox and locks it for use only by the holder.
 	 * 
 	 * @param id Identifier for the mailbox.
 	 * @param passwordHash A hash of the password for the mailbox.
+	 * @param holder The object taking ownership of the mailbox (normally a clerk).
 	 * @return The checked out mailbox.
 	 * @throws MailboxInUseException Thrown if the mailbox has already been checked out.
 	 * @throws BadCredentialsException Thrown if an incorrect password was used to access the mailbox.
 	 * @throws NonExistentMailboxException Thrown if the mailbox does not exist.
 	 */
-	protected Mailbox checkoutMailbox(String id, byte[] passwordHash) throws UnauthorizedActionException, MailboxInUseException, NonExistentMailboxException {
+	protected Mailbox checkoutMailbox(String id, byte[] passwordHash, Object holder) throws UnauthorizedActionException, MailboxInUseException, NonExistentMailboxException {
 
 		Mailbox currentBox = mailboxes.get(id);
 
 		if(currentBox == null)
 			throw new NonExistentMailboxException("The mailbox with the identifier '" + id + "' cannot be checked out as it does not exist.");
 		
-		currentBox.checkout(passwordHash);
+		currentBox.checkout(passwordHash, holder);
 		
 		return currentBox;
 	}
 
 	/**
-	 * Returns a mailbox; unlocking it for other threads to access.
+	 * Returns a mailbox; unlocking it for other clerks to access.
 	 * 
 	 * @param id Identifier for the mailbox.
-	 * @throws UnauthorizedActionException Thrown if a thread not currently holding the mailbox tries to unlock it.
+	 * @param holder The object that checked out the mailbox.
+	 * @throws UnauthorizedActionException Thrown if a holder not currently holding the mailbox tries to unlock it.
 	 * @throws NonExistentMailboxException Thrown if the mailbox in question does not exist.
 	 */
-	protected void returnMailbox(String id) throws UnauthorizedActionException, NonExistentMailboxException{
+	protected void returnMailbox(String id, Object holder) throws UnauthorizedActionException, NonExistentMailboxException{
 		
 		Mailbox currentBox = mailboxes.get(id);
 		
 		if(currentBox == null)
 			throw new NonExistentMailboxException("The mailbox with the identifier '" + id + "' cannot be returned as it does not exist.");
 		
-		currentBox.release();
+		currentBox.release(holder);
+	}
+	
+	/**
+	 * Sends a message to a mailbox connected to the post office server. With durable
+	 * mailboxes this returns once the letter has been journaled to disk. If the mailbox
+	 * is full under the BLOCK policy this waits for room, up to the block timeout.
+	 * 
+	 * @param letter The letter to send.
+	 * @throws NonExistentMailboxException Thrown if the recipient mailbox of the letter does not exist.
+	 * @throws MailboxFullException Thrown if the recipient mailbox has no room for the letter.
+	 */
+	protected void sendLetter(Letter letter) throws NonExistentMailboxException, MailboxFullException {
+		
+		if(AddressTrie.isPattern(letter.getRecipient())){
+			
+			route(letter);
+			
+			if(journal != null)
+				journal.sync();
+			
+			return;
+		}
+		
+		getMailbox(letter.getRecipient()).deliver(letter, config.getQuotaBlockTimeout(), TimeUnit.MILLISECONDS);
+		
+		if(journal != null)
+			journal.sync();
 	}
 	
 	/**
-	 * Sends a message to a mailbox connected to the post office server.
+	 * Sends a message like {@link #sendLetter(Letter)}, except that a letter held back by
+	 * a full mailbox is not waited for. The listener is registered instead, and the send
+	 * should be tried again once it is notified.
 	 * 
 	 * @param letter The letter to send.
+	 * @param listener The listener to notify once there may be room.
+	 * @return True if the letter was sent, false if it has to wait.
 	 * @throws NonExistentMailboxException Thrown if the recipient mailbox of the letter does not exist.
+	 * @throws MailboxFullException Thrown if the recipient mailbox refuses the letter.
 	 */
-	protected void sendLetter(Letter letter) throws NonExistentMailboxException {
+	protected boolean sendLetter(Letter letter, QuotaListener listener) throws NonExistentMailboxException, MailboxFullException {
 		
-		String recipient = letter.getRecipient();
+		if(AddressTrie.isPattern(letter.getRecipient()))
+			route(letter);
+		else if(!getMailbox(letter.getRecipient()).offer(letter, listener))
+			return false;
+		
+		if(journal != null)
+			journal.sync();
+		
+		return true;
+	}
+	
+	/**
+	 * Delivers a batch of letters in order without waiting for them to become durable;
+	 * see {@link #whenDurable(Runnable)}. Each distinct recipient is looked up once.
+	 * Delivery stops at the first letter that has to wait for room in a full mailbox,
+	 * with the listener registered to be notified once there may be room.
+	 * 
+	 * @param letters The letters to send.
+	 * @param from The first letter to deliver.
+	 * @param statuses Receives the response code of each letter delivered or refused:
+	 * REQGRANTED, DELFAIL if its recipient does not exist, or MAILBOXFULL.
+	 * @param listener The listener to register for a letter that has to wait, or null to refuse it instead.
+	 * @return The index of the letter that has to wait, or the number of letters if none does.
+	 */
+	protected int deliverLetters(List<Letter> letters, int from, byte[] statuses, QuotaListener listener) {
+		
+		return deliverLetters(letters, null, from, statuses, listener);
+	}
+	
+	/**
+	 * Delivers a batch of letters like {@link #deliverLetters(List, int, byte[], QuotaListener)},
+	 * except that letters whose recipient mailbox the caller already holds go straight to
+	 * it without being looked up.
+	 * 
+	 * @param letters The letters to send.
+	 * @param recipients The mailbox of each letter, or null where it is to be looked up; may itself be null.
+	 * @param from The first letter to deliver.
+	 * @param statuses Receives the response code of each letter delivered or refused.
+	 * @param listener The listener to register for a letter that has to wait, or null to refuse it instead.
+	 * @return The index of the letter that has to wait, or the number of letters if none does.
+	 */
+	protected int deliverLetters(List<Letter> letters, Mailbox[] recipients, int from, byte[] statuses, QuotaListener listener) {
+		
+		Map<String, Mailbox> resolved = null;
+		
+		for(int i = from; i < letters.size(); i++){
+			
+			Letter letter = letters.get(i);
+			
+			Mailbox recBox = recipients == null ? null : recipients[i];
+			
+			// A mailbox held by the caller is neither a pattern nor in need of a lookup.
+			if(recBox == null){
+				
+				if(AddressTrie.isPattern(letter.getRecipient())){
+					
+					statuses[i] = (byte) routeStatus(letter).ordinal();
+					continue;
+				}
+				
+				if(resolved == null)
+					resolved = new HashMap<String, Mailbox>();
+				
+				recBox = resolved.get(letter.getRecipient());
+				
+				if(recBox == null && !resolved.containsKey(letter.getRecipient())){
+					
+					recBox = mailboxes.get(letter.getRecipient());
+					resolved.put(letter.getRecipient(), recBox);
+				}
+			}
+			
+			RESP status = RESP.REQGRANTED;
+			
+			try {
+				
+				if(recBox == null)
+					status = RESP.DELFAIL;
+				else if(!recBox.offer(letter, listener))
+					return i;
+				
+			} catch (NonExistentMailboxException e) {
+				
+				status = RESP.DELFAIL;
+				
+			} catch (MailboxFullException e) {
+				
+				status = RESP.MAILBOXFULL;
+			}
+			
+			statuses[i] = (byte) status.ordinal();
+		}
+		
+		return letters.size();
+	}
+	
+	/**
+	 * Removes a listener registered by a delivery that is no longer waiting for room.
+	 * 
+	 * @param letter The letter that was waiting.
+	 * @param listener The listener it registered.
+	 */
+	protected void abandonDelivery(Letter letter, QuotaListener listener){
+		
+		Mailbox recBox = mailboxes.get(letter.getRecipient());
+		
+		if(recBox != null)
+			recBox.removeQuotaListener(listener);
+	}
+	
+	/**
+	 * Delivers a copy of a letter addressed with a routing pattern to every mailbox it
+	 * matches; see {@link AddressTrie}. As with topics the copies share the payload, and
+	 * mailboxes with no room are skipped rather than waited for.
+	 * 
+	 * @param letter The letter, which is released once every copy has been made.
+	 * @return The number of mailboxes the letter was delivered to.
+	 * @throws NonExistentMailboxException Thrown if the pattern matches no mailbox.
+	 * @throws MailboxFullException Thrown if every matching mailbox refused the letter.
+	 */
+	private int route(Letter letter) throws NonExistentMailboxException, MailboxFullException {
+		
+		Mailbox[] recipients = resolve(letter.getRecipient());
+		
+		int delivered = 0;
+		
+		try {
+			
+			for(Mailbox recipient : recipients){
+				
+				Letter copy = letter.copyTo(recipient.getOwner());
+				
+				try {
+					
+					recipient.offer(copy, null);
+					delivered++;
+					
+				} catch (MailboxFullException e) {
+					
+					copy.release();
+					
+				} catch (NonExistentMailboxException e) {
+					
+					copy.release();
+				}
+			}
+			
+		} finally {
+			
+			letter.release();
+		}
+		
+		if(recipients.length == 0)
+			throw new NonExistentMailboxException("No mailbox matches the pattern '" + letter.getRecipient() + "'.");
+		
+		if(delivered == 0)
+			throw new MailboxFullException("Every mailbox matching the pattern '" + letter.getRecipient() + "' is full.");
+		
+		return delivered;
+	}
+	
+	private RESP routeStatus(Letter letter){
+		
+		try {
+			
+			route(letter);
+			
+		} catch (NonExistentMailboxException e) {
+			
+			return RESP.DELFAIL;
+			
+		} catch (MailboxFullException e) {
+			
+			return RESP.MAILBOXFULL;
+		}
+		
+		return RESP.REQGRANTED;
+	}
+	
+	/**
+	 * Finds the mailboxes matching a routing pattern. Matches are remembered until the
+	 * next mailbox is created or destroyed.
+	 * 
+	 * @param pattern The routing pattern.
+	 * @return The matching mailboxes.
+	 */
+	protected Mailbox[] resolve(String pattern){
+		
+		// Read before matching, so that a match made against a directory that has since
+		// changed is only ever remembered in a cache that has been thrown away.
+		Map<String, Mailbox[]> cache = resolutions;
+		
+		Mailbox[] recipients = cache.get(pattern);
+		
+		if(recipients == null){
+			
+			List<Mailbox> matches = directory.match(pattern);
+			
+			recipients = matches.toArray(new Mailbox[matches.size()]);
+			
+			if(cache.size() >= MAX_RESOLUTIONS)
+				cache.clear();
+			
+			cache.put(pattern, recipients);
+		}
+		
+		return recipients;
+	}
+	
+	private Mailbox getMailbox(String recipient) throws NonExistentMailboxException {
 		
 		Mailbox recBox = mailboxes.get(recipient);
 		
 		if(recBox == null)
-			throw new NonExistentMailboxException("The recipient '" + recBox + "' does not exist.");
+			throw new NonExistentMailboxException("The recipient '" + recipient + "' does not exist.");
+		
+		return recBox;
+	}
+	
+	/**
+	 * Runs an action once everything delivered so far is durable, without blocking. Many
+	 * waiting deliveries share a single force of the journal (group commit). Without
+	 * durable mailboxes the action runs immediately.
+	 * 
+	 * @param action The action to run, typically acknowledging a delivery.
+	 */
+	protected void whenDurable(Runnable action){
+		
+		if(journal == null)
+			action.run();
 		else
-			recBox.deliver(letter);
+			journal.sync(action);
 	}
 
-	protected void createLiveStream(String requester, String correspondent) throws NonExistentMailboxException {
+	/**
+	 * Subscribes a mailbox to a topic, creating the topic if it has no subscribers yet.
+	 * 
+	 * @param mailbox The subscribing mailbox.
+	 * @param topic The topic name.
+	 */
+	protected void subscribe(Mailbox mailbox, String topic){
 		
-		ServerRoutedLiveStreamHandler ls = new ServerRoutedLiveStreamHandler(requester, correspondent, this);
+		synchronized(topics){
+			
+			if(!mailbox.subscribe(topic))
+				return;
+			
+			getTopic(topic).subscribe(mailbox);
+		}
+		
+		if(journal != null)
+			journal.sync();
+	}
+	
+	/**
+	 * Unsubscribes a mailbox from a topic. A topic left without subscribers goes away.
+	 * 
+	 * @param mailbox The unsubscribing mailbox.
+	 * @param topic The topic name.
+	 */
+	protected void unsubscribe(Mailbox mailbox, String topic){
+		
+		synchronized(topics){
+			
+			if(!mailbox.unsubscribe(topic))
+				return;
+			
+			leaveTopic(mailbox, topic);
+		}
+		
+		if(journal != null)
+			journal.sync();
+	}
+	
+	/**
+	 * Delivers a copy of a letter to every mailbox subscribed to a topic, without waiting
+	 * for them to become durable; see {@link #whenDurable(Runnable)}. Subscribers with no
+	 * room for the letter are skipped rather than waited for.
+	 * 
+	 * @param topic The topic name.
+	 * @param letter The letter to publish. It is released once every copy has been made.
+	 * @return The number of subscribers the letter was delivered to.
+	 */
+	protected int publish(String topic, Letter letter){
+		
+		Topic subscribers = topics.get(topic);
+		
+		if(subscribers == null){
+			
+			letter.release();
+			return 0;
+		}
+		
+		return subscribers.publish(letter);
+	}
+	
+	/**
+	 * Blocks until everything delivered so far is durable. Does nothing without durable
+	 * mailboxes.
+	 */
+	protected void awaitDurable(){
+		
+		if(journal != null)
+			journal.sync();
+	}
+	
+	private Topic getTopic(String name){
+		
+		synchronized(topics){
+			
+			Topic topic = topics.get(name);
+			
+			if(topic == null){
+				
+				topic = new Topic(name);
+				topics.put(name, topic);
+			}
+			
+			return topic;
+		}
+	}
+	
+	private void leaveTopic(Mailbox mailbox, String name){
+		
+		synchronized(topics){
+			
+			Topic topic = topics.get(name);
+			
+			if(topic != null && topic.unsubscribe(mailbox) && topic.getSubscriberCount() == 0)
+				topics.remove(name);
+		}
+	}
+
+	/**
+	 * Sets up a live stream between two mailboxes and announces it to the correspondent.
+	 * A brokered stream also tells the correspondent where to reach the requester
+	 * directly; it can be joined through the relay all the same.
+	 * 
+	 * @param requester The mailbox requesting the stream.
+	 * @param correspondent The mailbox to stream with.
+	 * @param host The host the requester listens on for a brokered stream, or null to relay it.
+	 * @param port The port the requester listens on for a brokered stream.
+	 * @return The stream.
+	 * @throws NonExistentMailboxException Thrown if the correspondent does not exist.
+	 * @throws MailboxFullException Thrown if the correspondent's mailbox has no room for the announcement.
+	 */
+	protected ServerRoutedLiveStreamHandler createLiveStream(String requester, String correspondent, String host, int port) throws NonExistentMailboxException, MailboxFullException {
+		
+		ServerRoutedLiveStreamHandler ls = new ServerRoutedLiveStreamHandler(requester, correspondent, host, port, this);
 		
 		// The requester always has to exist, so we should not bother checking for it.
 		if(!mailboxes.containsKey(correspondent))
 			throw new NonExistentMailboxException("The correspondent '" + correspondent + "' does not exist.");
 		
 		managedLiveStreams.put(ls.getIdentifier(), ls);
+		
+		ls.expireAfter(config.getLiveStreamJoinTimeout());
+		
+		return ls;
+	}
+	
+	/**
+	 * Returns whether live streams may be brokered; see {@link PostOfficeConfig#setBrokeredLiveStreams(boolean)}.
+	 * 
+	 * @return True if they may, false if every stream is relayed.
+	 */
+	protected boolean isBrokeringLiveStreams(){
+		
+		return config.isBrokeredLiveStreams();
+	}
+	
+	/**
+	 * Returns whether clients may move their connections into shared memory; see
+	 * {@link PostOfficeConfig#setSharedMemory(boolean)}.
+	 * 
+	 * @return True if they may.
+	 */
+	protected boolean isSharingMemory(){
+		
+		return config.isSharedMemory();
+	}
+	
+	/**
+	 * Joins a connection to a live stream on behalf of one of its participants. From then
+	 * on the connection belongs to the stream, and the clerk serving it must let it go.
+	 * 
+	 * @param stream The identifier of the stream.
+	 * @param mailbox The participant's mailbox.
+	 * @param passwordHash A hash of the password for the mailbox.
+	 * @param sc The connection.
+	 * @throws NonExistentLiveStreamException Thrown if there is no such stream waiting to be joined.
+	 * @throws UnexpectedParticipantException Thrown if the mailbox is not a participant, or has already joined.
+	 * @throws UnauthorizedActionException Thrown if the mailbox does not exist or the password is incorrect.
+	 */
+	protected void joinLiveStream(String stream, String mailbox, byte[] passwordHash, SocketChannel sc) throws NonExistentLiveStreamException, UnexpectedParticipantException, UnauthorizedActionException {
+		
+		ServerRoutedLiveStreamHandler ls = null;
+		
+		try {
+			
+			ls = managedLiveStreams.get(UUID.fromString(stream));
+			
+		} catch (IllegalArgumentException e) {} // Not an identifier, so not a stream either.
+		
+		if(ls == null)
+			throw new NonExistentLiveStreamException("The live stream '" + stream + "' does not exist.");
+		
+		Mailbox mb = mailboxes.get(mailbox);
+		
+		if(mb == null || !mb.authenticate(passwordHash))
+			throw new UnauthorizedActionException("Bad credentials to mailbox '" + mailbox + "'.");
+		
+		ls.joinLiveStream(mailbox, sc);
+	}
+	
+	protected void endLiveStream(ServerRoutedLiveStreamHandler ls){
+		
+		managedLiveStreams.remove(ls.getIdentifier());
+	}
+	
+	/**
+	 * Returns the relay the bytes of live streams are passed through.
+	 * 
+	 * @return The live stream relay.
+	 */
+	protected LiveStreamRelay getRelay(){
+		
+		return relay;
 	}
 	
 	/**
@@ -197,45 +935,201 @@ public class PostOffice implements Runnable {
 
 		this.running = false;
 		
+		timer.shutdownNow();
+		
+		relay.shutdown();
+		
+		metrics.unregister();
+		
+		if(metricsEndpoint != null)
+			metricsEndpoint.shutdown();
+		
+		if(journal != null)
+			journal.close();
+		
 		try {
 			ss.close();
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
+		
+		if(unixServer != null){
+			
+			try {
+				
+				unixServer.close();
+				Files.deleteIfExists(config.getUnixSocketFile().toPath());
+				
+			} catch (IOException e) {
+				
+				logger.debug("Failed to remove the Unix domain socket. Cause : " + e.getMessage());
+			}
+		}
 	}
 	
 	@Override
 	public void run() {
 
-		ExecutorService executor = Executors.newCachedThreadPool();
+		if(config.getEngine() == PostOfficeConfig.Engine.SELECTOR)
+			runSelectorEngine();
+		else
+			runThreadedEngine();
+	}
+	
+	private void runThreadedEngine() {
 		
-		while(running){
+		final ExecutorService executor;
+		
+		// Virtual clerks block exactly like platform ones, but a parked read or mail wait
+		// no longer pins an OS thread.
+		if(config.getEngine() == PostOfficeConfig.Engine.VIRTUAL_THREAD)
+			executor = VirtualThreads.newThreadPerTaskExecutor("postoffice-clerk-");
+		else
+			executor = Executors.newCachedThreadPool();
+		
+		acceptConnections(new ConnectionHandler() {
 
-			long connId = 0;
+			@Override
+			public void handle(SocketChannel sc) throws IOException {
 
-			try {
+				Socket s;
+				
+				// A Unix domain socket channel has no socket of its own to serve the clerk.
+				if(sc.getLocalAddress() instanceof InetSocketAddress){
+					
+					s = sc.socket();
+					
+					// Replies often go out in more than one write, and Nagle's algorithm would
+					// hold each later one back until the client's delayed acknowledgement.
+					s.setTcpNoDelay(true);
+				}
+				else
+					s = new UnixDomainSocket(sc);
 
-				connId++;
+				final MailClerk mc = new MailClerk(s, PostOffice.this);
 
-				MailClerk mc = new MailClerk(ss.accept(), this);
-				executor.execute(mc);
+				executor.execute(new Runnable() {
 
-			} catch (SocketException e){
+					@Override
+					public void run() {
 
-				// This exception is only thrown when the server's socket is
-				// terminated.
+						metrics.clerkOpened();
 
-				logger.info(e.getMessage());
+						try {
 
-			} catch (IOException e) {
+							mc.run();
+
+						} finally {
 
+							metrics.clerkClosed();
+						}
+					}
+				});
+			}
+		});
+
+		executor.shutdown();
+	}
+	
+	private void runSelectorEngine() {
+		
+		final SelectorLoop[] loops = new SelectorLoop[config.getSelectorThreads()];
+		
+		for(int i = 0; i < loops.length; i++){
+			
+			try {
+				
+				loops[i] = new SelectorLoop(this, i);
+				
+			} catch (IOException e) {
+				
+				logger.error("Failed to open selector loop " + i + ". Cause : " + e.getMessage());
+				
+				for(int j = 0; j < i; j++)
+					loops[j].shutdown();
+				
+				return;
+			}
+			
+			Thread t = new Thread(loops[i], "postoffice-selector-" + i);
+			t.start();
+		}
+		
+		final AtomicInteger next = new AtomicInteger();
+		
+		acceptConnections(new ConnectionHandler() {
+			
+			@Override
+			public void handle(SocketChannel sc) throws IOException {
+				
+				// Spread connections evenly over the loops.
+				loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length].register(sc);
+			}
+		});
+		
+		for(SelectorLoop loop : loops)
+			loop.shutdown();
+	}
+	
+	/**
+	 * Accepts connections until the post office shuts down. Connections to the Unix domain
+	 * socket, if there is one, are accepted on a thread of their own.
+	 * 
+	 * @param handler Serves each accepted connection.
+	 */
+	private void acceptConnections(final ConnectionHandler handler) {
+		
+		if(unixServer != null){
+			
+			Thread t = new Thread(new Runnable() {
+				
+				@Override
+				public void run() {
+					
+					acceptConnections(unixServer, handler);
+				}
+			}, "postoffice-unix-acceptor");
+			
+			t.setDaemon(true);
+			t.start();
+		}
+		
+		acceptConnections(ss, handler);
+	}
+	
+	private void acceptConnections(ServerSocketChannel server, ConnectionHandler handler) {
+		
+		long connId = 0;
+		
+		while(running){
+			
+			try {
+				
+				connId++;
+				
+				handler.handle(server.accept());
+				
+			} catch (ClosedChannelException e){
+				
+				// This exception is only thrown when the server's socket is
+				// terminated.
+				
+				logger.info("Server socket closed.");
+				
+			} catch (IOException e) {
+				
 				logger.debug("Server failed when accepting connection number " + connId + ".");
 				logger.debug(e.getStackTrace());
-
 			}
 		}
+	}
+	
+	/**
+	 * Hands an accepted connection to the engine serving it.
+	 */
+	private static interface ConnectionHandler {
 		
-		executor.shutdown();
+		public void handle(SocketChannel sc) throws IOException;
 	}
 }
@@ -0,0 +1,515 @@
+package postoffice.daemon;
+
+import java.io.File;
+
+import postoffice.datatypes.MailQuota;
+
+/**
+ * Settings used when starting a post office daemon. A freshly constructed
+ * configuration matches the behaviour of {@link PostOffice#createPostOffice()}.
+ */
+public class PostOfficeConfig {
+
+	/**
+	 * The strategy used to serve client connections.
+	 */
+	public static enum Engine {
+		
+		/** Every connection is served by its own clerk thread from a cached pool. */
+		THREAD_PER_CLERK,
+		
+		/** Connections are multiplexed over a fixed number of selector loops. */
+		SELECTOR,
+		
+		/** Every connection is served by its own clerk on a virtual thread (Java 21+). */
+		VIRTUAL_THREAD
+	}
+	
+	/**
+	 * Where letters wait in a mailbox until they are picked up.
+	 */
+	public static enum LetterStorage {
+		
+		/** Each queued letter is a heap object. */
+		HEAP,
+		
+		/** Queued letters are packed into pooled direct buffers, out of reach of the garbage collector. */
+		OFF_HEAP
+	}
+	
+	private int port = PostOffice.DEFAULT_PORT;
+	
+	private File unixSocketFile = null;
+	
+	private boolean sharedMemory = false;
+	
+	private Engine engine = Engine.THREAD_PER_CLERK;
+	
+	private int selectorThreads = Runtime.getRuntime().availableProcessors();
+	
+	private LetterStorage letterStorage = LetterStorage.HEAP;
+	
+	private int letterSlabSize = 256 * 1024;
+	
+	private File journalDirectory = null;
+	
+	private int journalSegmentSize = 64 * 1024 * 1024;
+	
+	private int journalSyncInterval = 0;
+	
+	private int journalSyncBatch = 512;
+	
+	private int mailboxLetterLimit = 0;
+	
+	private long mailboxByteLimit = 0;
+	
+	private MailQuota.Policy mailboxQuotaPolicy = MailQuota.Policy.BLOCK;
+	
+	private int totalLetterLimit = 0;
+	
+	private long totalByteLimit = 0;
+	
+	private MailQuota.Policy totalQuotaPolicy = MailQuota.Policy.BLOCK;
+	
+	private int quotaBlockTimeout = 1000;
+	
+	private int expirySweepInterval = 1000;
+	
+	private boolean metricsMBeans = true;
+	
+	private int metricsPort = -1;
+	
+	private int relayThreads = Math.min(2, Runtime.getRuntime().availableProcessors());
+	
+	private int relayBufferSize = 128 * 1024;
+	
+	private int liveStreamJoinTimeout = 30000;
+	
+	private boolean brokeredLiveStreams = true;
+
+	public int getPort() {
+		
+		return port;
+	}
+
+	public void setPort(int port) {
+		
+		this.port = port;
+	}
+
+	public File getUnixSocketFile() {
+		
+		return unixSocketFile;
+	}
+
+	/**
+	 * Also listens on a Unix domain socket, so that clients on the same host can connect
+	 * without going through TCP. The file must not exist when the post office starts, and
+	 * is deleted again when it shuts down. Requires Java 16 or newer.
+	 * 
+	 * @param unixSocketFile The path of the socket, or null to listen on TCP only.
+	 */
+	public void setUnixSocketFile(File unixSocketFile) {
+		
+		this.unixSocketFile = unixSocketFile;
+	}
+
+	public boolean isSharedMemory() {
+		
+		return sharedMemory;
+	}
+
+	/**
+	 * Lets clients on the same host move their connections into shared memory rings,
+	 * which carry letters without a system call while both sides are busy. Only the
+	 * {@link Engine#THREAD_PER_CLERK} and {@link Engine#VIRTUAL_THREAD} engines serve such
+	 * connections; the others decline them and the connection stays as it is.
+	 * 
+	 * @param sharedMemory True to allow shared memory connections.
+	 */
+	public void setSharedMemory(boolean sharedMemory) {
+		
+		this.sharedMemory = sharedMemory;
+	}
+
+	public Engine getEngine() {
+		
+		return engine;
+	}
+
+	public void setEngine(Engine engine) {
+		
+		this.engine = engine;
+	}
+
+	public int getSelectorThreads() {
+		
+		return selectorThreads;
+	}
+
+	/**
+	 * Sets the number of selector loops used by the {@link Engine#SELECTOR} engine.
+	 * 
+	 * @param selectorThreads The number of loops; at least one.
+	 */
+	public void setSelectorThreads(int selectorThreads) {
+		
+		if(selectorThreads < 1)
+			throw new IllegalArgumentException("At least one selector thread is required.");
+		
+		this.selectorThreads = selectorThreads;
+	}
+
+	public LetterStorage getLetterStorage() {
+		
+		return letterStorage;
+	}
+
+	public void setLetterStorage(LetterStorage letterStorage) {
+		
+		this.letterStorage = letterStorage;
+	}
+
+	public int getLetterSlabSize() {
+		
+		return letterSlabSize;
+	}
+
+	/**
+	 * Sets the size of the direct buffers used by {@link LetterStorage#OFF_HEAP}. Each mailbox
+	 * with a backlog holds at least one slab; letters larger than a slab get one of their own.
+	 * 
+	 * @param letterSlabSize The slab size in bytes.
+	 */
+	public void setLetterSlabSize(int letterSlabSize) {
+		
+		if(letterSlabSize < 1024)
+			throw new IllegalArgumentException("Letter slabs must be at least 1024 bytes.");
+		
+		this.letterSlabSize = letterSlabSize;
+	}
+
+	public File getJournalDirectory() {
+		
+		return journalDirectory;
+	}
+
+	/**
+	 * Enables durable mailboxes. Mailboxes and their unread letters are journaled to this
+	 * directory and rebuilt from it when the post office starts.
+	 * 
+	 * @param journalDirectory The journal directory, or null to keep everything in memory.
+	 */
+	public void setJournalDirectory(File journalDirectory) {
+		
+		this.journalDirectory = journalDirectory;
+	}
+
+	public int getJournalSegmentSize() {
+		
+		return journalSegmentSize;
+	}
+
+	/**
+	 * Sets the size of each memory-mapped journal segment. Letters larger than a segment
+	 * are given a segment of their own.
+	 * 
+	 * @param journalSegmentSize The segment size in bytes.
+	 */
+	public void setJournalSegmentSize(int journalSegmentSize) {
+		
+		if(journalSegmentSize < 4096)
+			throw new IllegalArgumentException("Journal segments must be at least 4096 bytes.");
+		
+		this.journalSegmentSize = journalSegmentSize;
+	}
+
+	public int getJournalSyncInterval() {
+		
+		return journalSyncInterval;
+	}
+
+	/**
+	 * Sets the group commit window. A letter is acknowledged once the journal has been
+	 * forced to disk, and every letter arriving within one window shares a single force.
+	 * 
+	 * @param journalSyncInterval The window in milliseconds. Zero forces as soon as
+	 * anything is pending, grouping whatever arrives during the previous force; negative
+	 * never forces and leaves write-back to the operating system.
+	 */
+	public void setJournalSyncInterval(int journalSyncInterval) {
+		
+		this.journalSyncInterval = journalSyncInterval;
+	}
+
+	public int getJournalSyncBatch() {
+		
+		return journalSyncBatch;
+	}
+
+	/**
+	 * Sets how many pending journal records end a non-zero group commit window early.
+	 * 
+	 * @param journalSyncBatch The number of records; at least one.
+	 */
+	public void setJournalSyncBatch(int journalSyncBatch) {
+		
+		if(journalSyncBatch < 1)
+			throw new IllegalArgumentException("The journal sync batch must be at least one record.");
+		
+		this.journalSyncBatch = journalSyncBatch;
+	}
+
+	public int getMailboxLetterLimit() {
+		
+		return mailboxLetterLimit;
+	}
+
+	/**
+	 * Limits how many letters may wait in any one mailbox.
+	 * 
+	 * @param mailboxLetterLimit The number of letters, or zero for no limit.
+	 */
+	public void setMailboxLetterLimit(int mailboxLetterLimit) {
+		
+		if(mailboxLetterLimit < 0)
+			throw new IllegalArgumentException("The mailbox letter limit cannot be negative.");
+		
+		this.mailboxLetterLimit = mailboxLetterLimit;
+	}
+
+	public long getMailboxByteLimit() {
+		
+		return mailboxByteLimit;
+	}
+
+	/**
+	 * Limits how many bytes of payload may wait in any one mailbox.
+	 * 
+	 * @param mailboxByteLimit The number of bytes, or zero for no limit.
+	 */
+	public void setMailboxByteLimit(long mailboxByteLimit) {
+		
+		if(mailboxByteLimit < 0)
+			throw new IllegalArgumentException("The mailbox byte limit cannot be negative.");
+		
+		this.mailboxByteLimit = mailboxByteLimit;
+	}
+
+	public MailQuota.Policy getMailboxQuotaPolicy() {
+		
+		return mailboxQuotaPolicy;
+	}
+
+	/**
+	 * Sets what happens to a letter sent to a mailbox that is at its own limits.
+	 * 
+	 * @param mailboxQuotaPolicy The policy.
+	 */
+	public void setMailboxQuotaPolicy(MailQuota.Policy mailboxQuotaPolicy) {
+		
+		this.mailboxQuotaPolicy = mailboxQuotaPolicy;
+	}
+
+	public int getTotalLetterLimit() {
+		
+		return totalLetterLimit;
+	}
+
+	/**
+	 * Limits how many letters may wait across all mailboxes together.
+	 * 
+	 * @param totalLetterLimit The number of letters, or zero for no limit.
+	 */
+	public void setTotalLetterLimit(int totalLetterLimit) {
+		
+		if(totalLetterLimit < 0)
+			throw new IllegalArgumentException("The total letter limit cannot be negative.");
+		
+		this.totalLetterLimit = totalLetterLimit;
+	}
+
+	public long getTotalByteLimit() {
+		
+		return totalByteLimit;
+	}
+
+	/**
+	 * Limits how many bytes of payload may wait across all mailboxes together.
+	 * 
+	 * @param totalByteLimit The number of bytes, or zero for no limit.
+	 */
+	public void setTotalByteLimit(long totalByteLimit) {
+		
+		if(totalByteLimit < 0)
+			throw new IllegalArgumentException("The total byte limit cannot be negative.");
+		
+		this.totalByteLimit = totalByteLimit;
+	}
+
+	public MailQuota.Policy getTotalQuotaPolicy() {
+		
+		return totalQuotaPolicy;
+	}
+
+	/**
+	 * Sets what happens to a letter that would take the post office over its total
+	 * limits. {@link MailQuota.Policy#DROP_OLDEST} only drops letters from the recipient's
+	 * own mailbox, and refuses the letter if that mailbox is empty.
+	 * 
+	 * @param totalQuotaPolicy The policy.
+	 */
+	public void setTotalQuotaPolicy(MailQuota.Policy totalQuotaPolicy) {
+		
+		this.totalQuotaPolicy = totalQuotaPolicy;
+	}
+
+	public int getQuotaBlockTimeout() {
+		
+		return quotaBlockTimeout;
+	}
+
+	/**
+	 * Sets how long a sender held back by {@link MailQuota.Policy#BLOCK} waits for room
+	 * before its letter is refused as if under {@link MailQuota.Policy#REJECT}.
+	 * 
+	 * @param quotaBlockTimeout The timeout in milliseconds.
+	 */
+	public void setQuotaBlockTimeout(int quotaBlockTimeout) {
+		
+		if(quotaBlockTimeout < 0)
+			throw new IllegalArgumentException("The quota block timeout cannot be negative.");
+		
+		this.quotaBlockTimeout = quotaBlockTimeout;
+	}
+
+	public int getExpirySweepInterval() {
+		
+		return expirySweepInterval;
+	}
+
+	/**
+	 * Sets how often mailboxes holding expired letters are swept. Expired letters are
+	 * never handed out, but they hold their memory and quota until swept or reached.
+	 * 
+	 * @param expirySweepInterval The interval in milliseconds; at least one.
+	 */
+	public void setExpirySweepInterval(int expirySweepInterval) {
+		
+		if(expirySweepInterval < 1)
+			throw new IllegalArgumentException("The expiry sweep interval must be at least one millisecond.");
+		
+		this.expirySweepInterval = expirySweepInterval;
+	}
+
+	public boolean isMetricsMBeans() {
+		
+		return metricsMBeans;
+	}
+
+	/**
+	 * Sets whether the daemon's metrics are registered with the platform MBean server;
+	 * see {@link PostOfficeMetricsMXBean}.
+	 * 
+	 * @param metricsMBeans True to publish the metrics over JMX.
+	 */
+	public void setMetricsMBeans(boolean metricsMBeans) {
+		
+		this.metricsMBeans = metricsMBeans;
+	}
+
+	public int getMetricsPort() {
+		
+		return metricsPort;
+	}
+
+	/**
+	 * Serves the daemon's metrics as plain text, in the Prometheus exposition format, on
+	 * a port of the loopback interface.
+	 * 
+	 * @param metricsPort The port, zero for any free port, or -1 to serve no metrics this way.
+	 */
+	public void setMetricsPort(int metricsPort) {
+		
+		if(metricsPort < -1)
+			throw new IllegalArgumentException("The metrics port cannot be negative.");
+		
+		this.metricsPort = metricsPort;
+	}
+
+	public int getRelayThreads() {
+		
+		return relayThreads;
+	}
+
+	/**
+	 * Sets the number of threads that relay the bytes of every live stream between its
+	 * participants.
+	 * 
+	 * @param relayThreads The number of threads; at least one.
+	 */
+	public void setRelayThreads(int relayThreads) {
+		
+		if(relayThreads < 1)
+			throw new IllegalArgumentException("At least one relay thread is required.");
+		
+		this.relayThreads = relayThreads;
+	}
+
+	public int getRelayBufferSize() {
+		
+		return relayBufferSize;
+	}
+
+	/**
+	 * Sets the size of the direct buffer each direction of a live stream is relayed
+	 * through. Larger buffers move more per system call at the cost of memory per stream.
+	 * 
+	 * @param relayBufferSize The size in bytes; at least 1024.
+	 */
+	public void setRelayBufferSize(int relayBufferSize) {
+		
+		if(relayBufferSize < 1024)
+			throw new IllegalArgumentException("The relay buffer size must be at least 1024 bytes.");
+		
+		this.relayBufferSize = relayBufferSize;
+	}
+
+	public int getLiveStreamJoinTimeout() {
+		
+		return liveStreamJoinTimeout;
+	}
+
+	/**
+	 * Sets how long the participants of a live stream have to join it once it has been
+	 * requested. Participants that joined are then answered with
+	 * {@link postoffice.datatypes.CommFlags.RESP#COMMTIMEOUT} and the stream is dropped.
+	 * 
+	 * @param liveStreamJoinTimeout The timeout in milliseconds; at least one.
+	 */
+	public void setLiveStreamJoinTimeout(int liveStreamJoinTimeout) {
+		
+		if(liveStreamJoinTimeout < 1)
+			throw new IllegalArgumentException("The live stream join timeout must be at least one millisecond.");
+		
+		this.liveStreamJoinTimeout = liveStreamJoinTimeout;
+	}
+
+	public boolean isBrokeredLiveStreams() {
+		
+		return brokeredLiveStreams;
+	}
+
+	/**
+	 * Sets whether clients may ask for brokered live streams, whose participants connect
+	 * to each other directly once the post office has told them where and how. When
+	 * disabled, such requests are answered with
+	 * {@link postoffice.datatypes.CommFlags.RESP#UNSUPPORTED} and every stream is relayed.
+	 * 
+	 * @param brokeredLiveStreams True to allow brokered streams.
+	 */
+	public void setBrokeredLiveStreams(boolean brokeredLiveStreams) {
+		
+		this.brokeredLiveStreams = brokeredLiveStreams;
+	}
+}
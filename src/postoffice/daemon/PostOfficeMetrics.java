@@ -0,0 +1,316 @@
+package postoffice.daemon;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+import postoffice.datatypes.CommFlags.REQ;
+import postoffice.datatypes.Mailbox;
+import postoffice.metrics.LatencyHistogram;
+import postoffice.metrics.MailTraffic;
+
+/**
+ * What a post office knows about its own workload: letters in and out, how long each
+ * type of request takes to serve, and how much mail is waiting where. It is published
+ * over JMX, and as plain text by {@link MetricsEndpoint}.
+ *
+ * Recording is cheap enough to leave on: counters are striped and histograms are
+ * updated without locks. Anything that can be read off the mailboxes themselves, such
+ * as their backlogs, is only gathered when asked for.
+ */
+public class PostOfficeMetrics implements PostOfficeMetricsMXBean {
+
+	private static final REQ[] REQUESTS = REQ.values();
+
+	private static Logger logger = Logger.getLogger(PostOfficeMetrics.class);
+
+	private MailTraffic traffic = new MailTraffic();
+
+	// Created for each type of request the first time one is served.
+	private AtomicReferenceArray<LatencyHistogram> latencies = new AtomicReferenceArray<LatencyHistogram>(REQUESTS.length);
+
+	private AtomicInteger clerks = new AtomicInteger();
+
+	private Map<String, Mailbox> mailboxes;
+	private Map<?, ?> liveStreams;
+
+	// The counters as of the previous sample; guarded by the metrics object.
+	private long sampledAt = System.nanoTime();
+	private long sampledDelivered = 0;
+	private long sampledTaken = 0;
+
+	private volatile double deliveryRate = 0;
+	private volatile double takeRate = 0;
+
+	private List<ObjectName> registered = new ArrayList<ObjectName>();
+
+	/**
+	 * @param mailboxes The post office's mailboxes by address.
+	 * @param liveStreams The post office's live streams.
+	 */
+	PostOfficeMetrics(Map<String, Mailbox> mailboxes, Map<?, ?> liveStreams){
+
+		this.mailboxes = mailboxes;
+		this.liveStreams = liveStreams;
+	}
+
+	/**
+	 * @return The counters every mailbox in the post office adds to.
+	 */
+	MailTraffic getTraffic(){
+
+		return traffic;
+	}
+
+	/**
+	 * @param request The request served.
+	 * @param nanos How long it took, in nanoseconds.
+	 */
+	void requestServed(REQ request, long nanos){
+
+		LatencyHistogram histogram = latencies.get(request.ordinal());
+
+		if(histogram == null){
+
+			latencies.compareAndSet(request.ordinal(), null, new LatencyHistogram());
+			histogram = latencies.get(request.ordinal());
+		}
+
+		histogram.record(nanos);
+	}
+
+	void clerkOpened(){
+
+		clerks.incrementAndGet();
+	}
+
+	void clerkClosed(){
+
+		clerks.decrementAndGet();
+	}
+
+	/**
+	 * Works out the rates of letters in and out since the previous sample. Called every
+	 * second or so by the post office's timer.
+	 */
+	synchronized void sample(){
+
+		long now = System.nanoTime();
+		long delivered = traffic.getDelivered();
+		long taken = traffic.getTaken();
+
+		double seconds = (now - sampledAt) / 1e9;
+
+		if(seconds <= 0)
+			return;
+
+		deliveryRate = (delivered - sampledDelivered) / seconds;
+		takeRate = (taken - sampledTaken) / seconds;
+
+		sampledAt = now;
+		sampledDelivered = delivered;
+		sampledTaken = taken;
+	}
+
+	/**
+	 * @param request A type of request.
+	 * @return The latencies of every request of that type served so far, or null if none has been.
+	 */
+	public LatencyHistogram.Snapshot getLatency(REQ request){
+
+		LatencyHistogram histogram = latencies.get(request.ordinal());
+
+		return histogram == null ? null : histogram.snapshot();
+	}
+
+	@Override
+	public long getLettersDelivered(){
+
+		return traffic.getDelivered();
+	}
+
+	@Override
+	public long getLettersTaken(){
+
+		return traffic.getTaken();
+	}
+
+	@Override
+	public double getDeliveryRate(){
+
+		return deliveryRate;
+	}
+
+	@Override
+	public double getTakeRate(){
+
+		return takeRate;
+	}
+
+	@Override
+	public int getActiveClerks(){
+
+		return clerks.get();
+	}
+
+	@Override
+	public int getLiveStreams(){
+
+		return liveStreams.size();
+	}
+
+	@Override
+	public int getMailboxCount(){
+
+		return mailboxes.size();
+	}
+
+	@Override
+	public Map<String, Long> getQueuedLetters(){
+
+		Map<String, Long> queued = new TreeMap<String, Long>();
+
+		for(Mailbox mailbox : mailboxes.values())
+			queued.put(mailbox.getOwner(), (long) mailbox.getQueueSize());
+
+		return queued;
+	}
+
+	@Override
+	public Map<String, Long> getQueuedBytes(){
+
+		Map<String, Long> queued = new TreeMap<String, Long>();
+
+		for(Mailbox mailbox : mailboxes.values())
+			queued.put(mailbox.getOwner(), mailbox.getQueuedBytes());
+
+		return queued;
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server. Failures are logged rather
+	 * than stopping the post office.
+	 *
+	 * @param port The port the post office listens on, which tells apart the metrics of
+	 * several post offices in one JVM.
+	 */
+	synchronized void register(int port){
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+		try {
+
+			register(server, new ObjectName("postoffice:type=PostOffice,port=" + port), this);
+
+			for(REQ request : REQUESTS)
+				register(server, new ObjectName("postoffice:type=Request,port=" + port + ",name=" + request.name()), new RequestMetrics(request));
+
+		} catch (JMException e) {
+
+			logger.warn("Failed to register the post office's metrics over JMX. Cause : " + e.getMessage());
+		}
+	}
+
+	private void register(MBeanServer server, ObjectName name, Object bean) throws JMException {
+
+		server.registerMBean(bean, name);
+		registered.add(name);
+	}
+
+	/**
+	 * Removes everything registered by {@link #register(int)}.
+	 */
+	synchronized void unregister(){
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+		for(ObjectName name : registered){
+
+			try {
+
+				server.unregisterMBean(name);
+
+			} catch (JMException e) {
+
+				logger.debug("Failed to unregister " + name + ". Cause : " + e.getMessage());
+			}
+		}
+
+		registered.clear();
+	}
+
+	private class RequestMetrics implements RequestMetricsMXBean {
+
+		private REQ request;
+
+		RequestMetrics(REQ request){
+
+			this.request = request;
+		}
+
+		@Override
+		public long getCount(){
+
+			LatencyHistogram.Snapshot latency = getLatency(request);
+
+			return latency == null ? 0 : latency.getCount();
+		}
+
+		@Override
+		public double getMean(){
+
+			LatencyHistogram.Snapshot latency = getLatency(request);
+
+			return latency == null ? 0 : latency.getMean() / 1000;
+		}
+
+		@Override
+		public double get50thPercentile(){
+
+			return quantile(0.5);
+		}
+
+		@Override
+		public double get90thPercentile(){
+
+			return quantile(0.9);
+		}
+
+		@Override
+		public double get99thPercentile(){
+
+			return quantile(0.99);
+		}
+
+		@Override
+		public double get999thPercentile(){
+
+			return quantile(0.999);
+		}
+
+		@Override
+		public double getMax(){
+
+			LatencyHistogram.Snapshot latency = getLatency(request);
+
+			return latency == null ? 0 : latency.getMax() / 1000.0;
+		}
+
+		private double quantile(double quantile){
+
+			LatencyHistogram.Snapshot latency = getLatency(request);
+
+			return latency == null ? 0 : latency.getValueAtQuantile(quantile) / 1000.0;
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package postoffice.daemon;
+
+import java.util.Map;
+
+/**
+ * The daemon-wide metrics a post office registers with the platform MBean server, as
+ * {@code postoffice:type=PostOffice,port=<port>}.
+ */
+public interface PostOfficeMetricsMXBean {
+
+	/**
+	 * @return The letters delivered to mailboxes since the post office started.
+	 */
+	long getLettersDelivered();
+
+	/**
+	 * @return The letters handed out of mailboxes since the post office started.
+	 */
+	long getLettersTaken();
+
+	/**
+	 * @return The letters delivered per second over the last second or so.
+	 */
+	double getDeliveryRate();
+
+	/**
+	 * @return The letters handed out per second over the last second or so.
+	 */
+	double getTakeRate();
+
+	/**
+	 * @return The clerks currently serving a connection.
+	 */
+	int getActiveClerks();
+
+	int getLiveStreams();
+
+	int getMailboxCount();
+
+	/**
+	 * @return The letters waiting in each mailbox, by address.
+	 */
+	Map<String, Long> getQueuedLetters();
+
+	/**
+	 * @return The bytes of payload waiting in each mailbox, by address.
+	 */
+	Map<String, Long> getQueuedBytes();
+}
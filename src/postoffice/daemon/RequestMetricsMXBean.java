@@ -0,0 +1,23 @@
+package postoffice.daemon;
+
+/**
+ * The latency of one type of request, registered with the platform MBean server as
+ * {@code postoffice:type=Request,port=<port>,name=<request>}. Latencies are in
+ * microseconds and cover every request served since the post office started.
+ */
+public interface RequestMetricsMXBean {
+
+	long getCount();
+
+	double getMean();
+
+	double get50thPercentile();
+
+	double get90thPercentile();
+
+	double get99thPercentile();
+
+	double get999thPercentile();
+
+	double getMax();
+}
@@ -0,0 +1,1615 @@
+package postoffice.daemon;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.log4j.Logger;
+
+import postoffice.datatypes.CommFlags;
+import postoffice.datatypes.CommFlags.REQ;
+import postoffice.datatypes.CommFlags.RESP;
+import postoffice.datatypes.Frame;
+import postoffice.datatypes.Letter;
+import postoffice.datatypes.MailListener;
+import postoffice.datatypes.MailQuota;
+import postoffice.datatypes.Mailbox;
+import postoffice.datatypes.QuotaListener;
+import postoffice.datatypes.SenderFilter;
+import postoffice.exception.comm.MailboxFullException;
+import postoffice.exception.livestream.NonExistentLiveStreamException;
+import postoffice.exception.livestream.UnexpectedParticipantException;
+import postoffice.exception.mailbox.ExistentMailboxException;
+import postoffice.exception.mailbox.MailboxInUseException;
+import postoffice.exception.mailbox.NonExistentMailboxException;
+import postoffice.exception.mailbox.UnauthorizedActionException;
+
+/**
+ * A non-blocking clerk driven by a {@link SelectorLoop}. It speaks exactly the same
+ * request/response protocol as {@link MailClerk}, but as an explicit state machine fed
+ * by whatever bytes happen to be available, so it never holds a thread while waiting
+ * on the client or on mail.
+ *
+ * All methods must be called on the owning loop's thread.
+ */
+class SelectorClerk {
+
+	private static Logger logger = Logger.getLogger(SelectorClerk.class);
+
+	// Matches the socket timeout MailClerk applies while a request is in progress.
+	private static final long REQUEST_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(500000);
+
+	// Read buffers start small so idle connections stay cheap, and grow for large frames.
+	private static final int INITIAL_BUFFER_SIZE = 512;
+
+	// Most buffers handed to a single gather write.
+	private static final int GATHER_LIMIT = 64;
+
+	private static AtomicInteger idBuilder = new AtomicInteger(0);
+
+	private static enum State {
+
+		REQUEST,
+		REQBOX_NAME,
+		REQBOX_PASSWORD,
+		CREATEBOX_NAME,
+		CREATEBOX_PASSWORD,
+		SENDLETTER_TTL,
+		SENDLETTER_RECIPIENT,
+		SENDLETTER_LENGTH,
+		SENDLETTER_PAYLOAD,
+		SENDLETTER_BLOCKED,
+		GETMAIL_TIMEOUT,
+		GETMAIL_FILTER,
+		GETMAIL_SUBREQUEST,
+		GETMAIL_WAITING,
+		GETMAIL_SATIATION,
+		LIVESTREAM_CORRESPONDENT,
+		DIRECTSTREAM_HOST,
+		DIRECTSTREAM_PORT,
+		SUBSCRIBE_TOPIC,
+		JOINSTREAM_STREAM,
+		JOINSTREAM_NAME,
+		JOINSTREAM_PASSWORD,
+		JOINSTREAM_HANDOFF,
+		PROTOCOL_VERSION,
+		FRAME
+	}
+
+	private SocketChannel sc;
+	private PostOffice po;
+	private SelectorLoop loop;
+	private SelectionKey key = null;
+	private Mailbox mb = null;
+
+	private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+	private int required = 0;
+
+	// Letter payloads are read straight into a pooled direct buffer.
+	private ByteBuffer payload = null;
+
+	private ByteArrayOutputStream bos = new ByteArrayOutputStream();
+	private DataOutputStream os = new DataOutputStream(bos);
+	private Deque<Output> pending = new ArrayDeque<Output>();
+	private ByteBuffer[] gather = new ByteBuffer[GATHER_LIMIT];
+
+	private State state = State.REQUEST;
+	private long deadline = 0;
+	private boolean closing = false;
+	private boolean closed = false;
+	private boolean processing = false;
+
+	private REQ request = null;
+	private long started = 0;
+	private String boxname = null;
+	private byte[] passwordHash = new byte[16];
+	private String stream = null;
+	private String correspondent = null;
+	private String host = null;
+	private String recipient = null;
+	private int payloadLength = 0;
+	private int timeToLive = 0;
+
+	private int timeout = 0;
+	private long maxTime = 0;
+	private SenderFilter filter = null;
+
+	private int waitGeneration = 0;
+	private MailListener waitListener = null;
+	private ScheduledFuture<?> waitTimer = null;
+
+	// A letter waiting for room in a full mailbox.
+	private Letter held = null;
+	private QuotaListener roomListener = null;
+	private long holdDeadline = 0;
+
+	private FrameDispatcher dispatcher = null;
+
+	private int id = 0;
+
+	private ClerkLog log;
+
+	private FrameSink sink = new FrameSink() {
+
+		@Override
+		public void send(final Frame frame) {
+
+			if(!loop.inLoop()){
+
+				// Responses completed by delivery or timer threads are handed to the loop.
+				loop.execute(new Runnable() {
+
+					@Override
+					public void run() {
+
+						send(frame);
+					}
+				});
+
+				return;
+			}
+
+			if(closed)
+				return;
+
+			queueFrame(frame);
+
+			// Responses to this clerk's own requests are flushed once its input is processed,
+			// but a wait may also be completed by a delivery from another clerk on this loop.
+			if(processing)
+				return;
+
+			try {
+
+				flush();
+
+			} catch (IOException e) {
+
+				log.error("Failed to send a response frame. Cause : {}", e.getMessage());
+				close();
+			}
+		}
+	};
+
+	SelectorClerk(SocketChannel sc, PostOffice po, SelectorLoop loop){
+
+		id = idBuilder.incrementAndGet();
+		log = new ClerkLog(logger, id);
+
+		this.sc = sc;
+		this.po = po;
+		this.loop = loop;
+
+		po.getMetrics().clerkOpened();
+
+		log.debug("A new connection has been initiated.");
+	}
+
+	void attach(SelectionKey key){
+
+		this.key = key;
+	}
+
+	/**
+	 * Services the clerk's selection key after it has been selected.
+	 */
+	void handle(){
+
+		try {
+
+			if(key.isValid() && key.isReadable())
+				read();
+
+			if(key.isValid() && key.isWritable())
+				write();
+
+		} catch (IOException e) {
+
+			log.error("Problem while performing command '{}'. Cause : {}", request, e.getMessage());
+			close();
+		}
+	}
+
+	/**
+	 * Drops the client back to the idle state if it has stopped sending data mid-request.
+	 *
+	 * @param now The current value of {@link System#nanoTime()}.
+	 */
+	void checkTimeout(long now){
+
+		if(state == State.REQUEST || state == State.FRAME || !reading() || now - deadline < 0)
+			return;
+
+		log.debug("Client took too long to respond to command '{}'.", request);
+
+		discardPayload();
+
+		try {
+
+			reply(RESP.COMMTIMEOUT);
+			flush();
+
+		} catch (IOException e) {
+
+			close();
+		}
+	}
+
+	void close(){
+
+		if(closed)
+			return;
+
+		closed = true;
+
+		po.getMetrics().clerkClosed();
+
+		cancelWait();
+		cancelHold();
+
+		try {
+
+			log.debug("Returning mailboxes.");
+
+			if(dispatcher != null)
+				dispatcher.close();
+
+			if(mb != null)
+				mb.release(this);
+
+		} catch (UnauthorizedActionException e) {
+
+			// This can never happen in this model.
+		}
+
+		mb = null;
+
+		discardPayload();
+
+		for(Output output : pending)
+			output.release();
+
+		pending.clear();
+
+		if(key != null)
+			key.cancel();
+
+		try {
+
+			sc.close();
+			log.debug("Socket closed successfully.");
+
+		} catch (IOException e) {
+
+			log.debug("Failed to close the socket. Tossing instead. Cause : {}", e.getMessage());
+		}
+	}
+
+	private void read() throws IOException {
+
+		long read;
+
+		// Mid-letter with nothing else buffered, the payload is read straight into its
+		// own buffer; anything after it spills into the input buffer.
+		if(state == State.SENDLETTER_PAYLOAD && in.position() == 0)
+			read = sc.read(new ByteBuffer[] { payload, in });
+		else
+			read = sc.read(in);
+
+		if(read < 0){
+
+			log.debug("Client closed the connection.");
+			close();
+
+			return;
+		}
+
+		process();
+	}
+
+	private void write() throws IOException {
+
+		while(!pending.isEmpty()){
+
+			// Headers and the payloads that follow them go out in one gather write.
+			int count = 0;
+
+			for(Output output : pending){
+
+				if(count == GATHER_LIMIT)
+					break;
+
+				gather[count++] = output.data;
+			}
+
+			sc.write(gather, 0, count);
+
+			Arrays.fill(gather, 0, count, null);
+
+			int written = 0;
+
+			while(!pending.isEmpty() && !pending.peek().data.hasRemaining()){
+
+				pending.poll().release();
+				written++;
+			}
+
+			// The socket is full.
+			if(written < count)
+				break;
+		}
+
+		if(!pending.isEmpty()){
+
+			// Stop reading until the client catches up on what has already been sent.
+			key.interestOps(SelectionKey.OP_WRITE);
+		}
+		else if(closing)
+			close();
+		else if(state == State.JOINSTREAM_HANDOFF)
+			joinLiveStream();
+		else
+			key.interestOps(reading() ? SelectionKey.OP_READ : 0);
+	}
+
+	/**
+	 * @return False while the clerk is parked waiting on mail or for room in a mailbox,
+	 * during which nothing more is read from the client.
+	 */
+	private boolean reading(){
+
+		return state != State.GETMAIL_WAITING && state != State.SENDLETTER_BLOCKED && state != State.JOINSTREAM_HANDOFF
+				&& (dispatcher == null || !dispatcher.isBlocked());
+	}
+
+	private void flush() throws IOException {
+
+		stage();
+
+		if(!closed)
+			write();
+	}
+
+	/**
+	 * Moves everything written to the output stream into the pending queue.
+	 */
+	private void stage(){
+
+		if(bos.size() > 0){
+
+			pending.add(new Output(ByteBuffer.wrap(bos.toByteArray()), null));
+			bos.reset();
+		}
+	}
+
+	/**
+	 * Queues a letter's payload behind the output written so far, without copying it.
+	 * The letter is released once the payload has been written.
+	 */
+	private void queuePayload(Letter letter){
+
+		stage();
+
+		pending.add(new Output(letter.getPayloadBuffer(), letter));
+	}
+
+	/**
+	 * Consumes as much buffered input as the current state allows and sends any responses.
+	 */
+	private void process() throws IOException {
+
+		in.flip();
+
+		processing = true;
+
+		try {
+
+			while(!closing && reading() && step());
+
+		} finally {
+
+			processing = false;
+
+			in.compact();
+		}
+
+		if(required > in.capacity()){
+
+			ByteBuffer larger = ByteBuffer.allocate(required);
+
+			in.flip();
+			larger.put(in);
+
+			in = larger;
+		}
+		else if(in.position() == 0 && in.capacity() > INITIAL_BUFFER_SIZE)
+			in = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+		required = 0;
+
+		flush();
+	}
+
+	/**
+	 * Advances the state machine by one step.
+	 *
+	 * @return True if progress was made, false if more input is needed.
+	 */
+	private boolean step() throws IOException {
+
+		try {
+
+			switch(state){
+
+				case REQUEST:
+
+					if(!in.hasRemaining())
+						return false;
+
+					request = CommFlags.getReqByCode(in.get() & 0xFF);
+
+					if(request == null){
+
+						log.debug("Received bad command.");
+						os.writeByte(RESP.BADCOMMAND.ordinal());
+
+						return true;
+					}
+
+					log.debug("Received command {}", request);
+
+					started = System.nanoTime();
+					beginRequest();
+
+					return true;
+
+				case REQBOX_NAME:
+				case CREATEBOX_NAME:
+
+					String name = readUTF();
+
+					if(name == null)
+						return false;
+
+					boxname = name;
+					log.debug("Box name '{}' received.", boxname);
+
+					log.debug("Requesting password...");
+					os.writeByte(RESP.REQDATA.ordinal());
+					await(state == State.REQBOX_NAME ? State.REQBOX_PASSWORD : State.CREATEBOX_PASSWORD);
+
+					return true;
+
+				case REQBOX_PASSWORD:
+
+					if(!readPassword())
+						return false;
+
+					checkoutBox();
+
+					return true;
+
+				case CREATEBOX_PASSWORD:
+
+					if(!readPassword())
+						return false;
+
+					createBox();
+
+					return true;
+
+				case SENDLETTER_TTL:
+
+					if(in.remaining() < 4)
+						return false;
+
+					timeToLive = in.getInt();
+					await(State.SENDLETTER_RECIPIENT);
+
+					return true;
+
+				case SENDLETTER_RECIPIENT:
+
+					recipient = readUTF();
+
+					if(recipient == null)
+						return false;
+
+					os.writeByte(RESP.REQDATA.ordinal());
+					await(State.SENDLETTER_LENGTH);
+
+					return true;
+
+				case SENDLETTER_LENGTH:
+
+					if(in.remaining() < 4)
+						return false;
+
+					payloadLength = in.getInt();
+
+					if(payloadLength > 0){
+
+						payload = po.getBufferPool().acquire(payloadLength);
+						await(State.SENDLETTER_PAYLOAD);
+					}
+					else
+						post(new Letter(mb.getOwner(), recipient, new byte[0]));
+
+					return true;
+
+				case SENDLETTER_PAYLOAD:
+
+					// Only bytes that arrived along with the request need copying.
+					if(in.hasRemaining() && payload.hasRemaining()){
+
+						ByteBuffer available = in.slice();
+
+						if(available.remaining() > payload.remaining())
+							available.limit(payload.remaining());
+
+						payload.put(available);
+						in.position(in.position() + available.limit());
+					}
+
+					if(payload.hasRemaining())
+						return false;
+
+					payload.flip();
+
+					Letter letter = new Letter(mb.getOwner(), recipient, payload, po.getBufferPool());
+					payload = null;
+
+					post(letter);
+
+					return true;
+
+				case GETMAIL_TIMEOUT:
+
+					if(in.remaining() < 4)
+						return false;
+
+					timeout = in.getInt();
+					maxTime = System.nanoTime() + 1000000 * (long) timeout;
+
+					if(request == REQ.FILTERMAIL)
+						await(State.GETMAIL_FILTER);
+					else
+						startGetMail();
+
+					return true;
+
+				case GETMAIL_FILTER:
+
+					String expression = readUTF();
+
+					if(expression == null)
+						return false;
+
+					try {
+
+						filter = SenderFilter.compile(expression);
+
+					} catch (PatternSyntaxException e) {
+
+						log.debug("Received a malformed sender filter '{}'.", expression);
+						reply(RESP.BADCOMMAND);
+
+						return true;
+					}
+
+					startGetMail();
+
+					return true;
+
+				case GETMAIL_SUBREQUEST:
+
+					if(!in.hasRemaining())
+						return false;
+
+					REQ subrequest = CommFlags.getReqByCode(in.get() & 0xFF);
+
+					if(subrequest == REQ.NEXTLETTER){
+
+						log.debug("Client requesting next letter.");
+						nextLetter();
+					}
+					else if(subrequest == REQ.SATIATED){
+
+						log.debug("Client indicates satiation.");
+						complete();
+					}
+					else
+						continueGetMail();
+
+					return true;
+
+				case GETMAIL_SATIATION:
+
+					if(!in.hasRemaining())
+						return false;
+
+					if(CommFlags.getReqByCode(in.get() & 0xFF) != REQ.SATIATED)
+						os.writeByte(RESP.MAILTIMEOUT.ordinal());
+
+					complete();
+
+					return true;
+
+				case LIVESTREAM_CORRESPONDENT:
+
+					correspondent = readUTF();
+
+					if(correspondent == null)
+						return false;
+
+					if(request == REQ.DIRECTSTREAM)
+						await(State.DIRECTSTREAM_HOST);
+					else
+						createLiveStream(null, 0);
+
+					return true;
+
+				case DIRECTSTREAM_HOST:
+
+					host = readUTF();
+
+					if(host == null)
+						return false;
+
+					await(State.DIRECTSTREAM_PORT);
+
+					return true;
+
+				case DIRECTSTREAM_PORT:
+
+					if(in.remaining() < 4)
+						return false;
+
+					int port = in.getInt();
+
+					if(!po.isBrokeringLiveStreams())
+						reply(RESP.UNSUPPORTED);
+					else if(port < 1 || port > 65535)
+						reply(RESP.BADCOMMAND);
+					else
+						createLiveStream(host, port);
+
+					return true;
+
+				case SUBSCRIBE_TOPIC:
+
+					String topic = readUTF();
+
+					if(topic == null)
+						return false;
+
+					if(request == REQ.SUBSCRIBE)
+						po.subscribe(mb, topic);
+					else
+						po.unsubscribe(mb, topic);
+
+					complete();
+
+					return true;
+
+				case JOINSTREAM_STREAM:
+
+					stream = readUTF();
+
+					if(stream == null)
+						return false;
+
+					await(State.JOINSTREAM_NAME);
+
+					return true;
+
+				case JOINSTREAM_NAME:
+
+					boxname = readUTF();
+
+					if(boxname == null)
+						return false;
+
+					await(State.JOINSTREAM_PASSWORD);
+
+					return true;
+
+				case JOINSTREAM_PASSWORD:
+
+					if(!readPassword())
+						return false;
+
+					// The connection is handed over once everything already written to it
+					// has been sent; see write().
+					state = State.JOINSTREAM_HANDOFF;
+
+					return true;
+
+				case PROTOCOL_VERSION:
+
+					if(in.remaining() < 4)
+						return false;
+
+					int version = in.getInt();
+
+					if(version != CommFlags.PROTOCOL_FRAMED && version != CommFlags.PROTOCOL_COMPACT){
+
+						log.debug("Client requested unsupported protocol version {}.", version);
+						reply(RESP.UNSUPPORTED);
+
+						return true;
+					}
+
+					os.writeByte(RESP.REQGRANTED.ordinal());
+					log.debug("Switched to the framed protocol.");
+
+					dispatcher = new FrameDispatcher(po, this, mb, sink, new Runnable() {
+
+						@Override
+						public void run() {
+
+							loop.execute(new Runnable() {
+
+								@Override
+								public void run() {
+
+									resume();
+								}
+							});
+						}
+					}, version == CommFlags.PROTOCOL_COMPACT);
+					mb = null;
+
+					state = State.FRAME;
+
+					return true;
+
+				case FRAME:
+
+					if(in.remaining() < 4)
+						return false;
+
+					int length = 4 + Frame.checkLength(in.getInt(in.position()));
+
+					if(in.remaining() < length){
+
+						required = length;
+						return false;
+					}
+
+					in.getInt();
+
+					int requestId = in.getInt();
+					int code = in.get() & 0xFF;
+
+					byte[] body = new byte[length - 4 - Frame.HEADER_LENGTH];
+					in.get(body);
+
+					if(!dispatcher.dispatch(new Frame(requestId, code, body))){
+
+						log.debug("Closing connection on client request...");
+						closing = true;
+					}
+
+					return true;
+
+				default:
+
+					return false;
+			}
+
+		} catch (UnauthorizedActionException uae) {
+
+			reply(RESP.NOAUTH);
+
+			return true;
+		}
+	}
+
+	private void beginRequest() throws IOException, UnauthorizedActionException {
+
+		switch(request){
+
+			case REQBOX:
+
+				if(mb != null){
+
+					log.debug("Already connected to a mailbox.");
+					reply(RESP.ALREADYCONN);
+
+					return;
+				}
+
+				os.writeByte(RESP.REQDATA.ordinal());
+
+				log.debug("Requesting box name...");
+				await(State.REQBOX_NAME);
+
+				return;
+
+			case RETBOX:
+
+				if(!hasMailbox())
+					return;
+
+				mb.release(this);
+
+				log.debug("Disconnected from mailbox '{}'.", mb.getOwner());
+
+				mb = null;
+				complete();
+
+				return;
+
+			case CREATEBOX:
+
+				log.debug("Requesting box name...");
+				os.writeByte(RESP.REQDATA.ordinal());
+				await(State.CREATEBOX_NAME);
+
+				return;
+
+			case REMOVEBOX:
+
+				if(!hasMailbox())
+					return;
+
+				try {
+
+					po.destroyMailbox(mb.getOwner(), this);
+
+				} catch (NonExistentMailboxException e) {
+
+					log.debug("The mailbox '{}' does not exist.", mb.getOwner());
+					reply(RESP.NONEXISTBOX);
+
+					return;
+				}
+
+				log.debug("Destroyed the mailbox '{}'.", mb.getOwner());
+
+				mb = null;
+				complete();
+
+				return;
+
+			case DISCONNECT:
+
+				if(mb != null)
+					mb.release(this);
+
+				mb = null;
+
+				log.debug("Closing connection on client request...");
+				os.writeByte(RESP.REQGRANTED.ordinal());
+
+				closing = true;
+
+				return;
+
+			case SENDLETTER:
+			case SENDEXPIRING:
+			case PUBLISH:
+
+				if(!hasMailbox())
+					return;
+
+				timeToLive = 0;
+
+				// An expiring letter is sent like any other, after its time to live.
+				os.writeByte(RESP.REQDATA.ordinal());
+				await(request == REQ.SENDEXPIRING ? State.SENDLETTER_TTL : State.SENDLETTER_RECIPIENT);
+
+				return;
+
+			case GETMAIL:
+			case FILTERMAIL:
+
+				if(!hasMailbox())
+					return;
+
+				filter = null;
+
+				os.writeByte(RESP.REQDATA.ordinal());
+				await(State.GETMAIL_TIMEOUT);
+
+				return;
+
+			case EMPTYBOX:
+
+				if(!hasMailbox())
+					return;
+
+				mb.empty(this);
+				complete();
+
+				return;
+
+			case LIVESTREAM:
+			case DIRECTSTREAM:
+
+				if(!hasMailbox())
+					return;
+
+				os.writeByte(RESP.REQDATA.ordinal());
+				await(State.LIVESTREAM_CORRESPONDENT);
+
+				return;
+
+			case SUBSCRIBE:
+			case UNSUBSCRIBE:
+
+				if(!hasMailbox())
+					return;
+
+				os.writeByte(RESP.REQDATA.ordinal());
+				await(State.SUBSCRIBE_TOPIC);
+
+				return;
+
+			case PROTOCOL:
+
+				os.writeByte(RESP.REQDATA.ordinal());
+				await(State.PROTOCOL_VERSION);
+
+				return;
+
+			case JOINSTREAM:
+
+				if(mb != null){
+
+					log.debug("Already connected to a mailbox.");
+					reply(RESP.ALREADYCONN);
+
+					return;
+				}
+
+				os.writeByte(RESP.REQDATA.ordinal());
+				await(State.JOINSTREAM_STREAM);
+
+				return;
+
+			case SHAREDMEM:
+
+				// Reading the rings takes a thread of its own, which this engine does not spare.
+				reply(RESP.UNSUPPORTED);
+
+				return;
+
+			default:
+
+				log.debug("Received non-initiating command '{}'.", request);
+				reply(RESP.BADCOMMAND);
+		}
+	}
+
+	private void checkoutBox() throws IOException, UnauthorizedActionException {
+
+		log.debug("Password received.");
+
+		try {
+
+			mb = po.checkoutMailbox(boxname, passwordHash, this);
+			log.debug("Box '{}' checked out successfully.", boxname);
+
+		} catch (MailboxInUseException e) {
+
+			log.debug("The mailbox '{}' is already in use.", boxname);
+			reply(RESP.BOXINUSE);
+
+			return;
+
+		} catch (NonExistentMailboxException e) {
+
+			log.debug("The mailbox '{}' does not exist.", boxname);
+			reply(RESP.NONEXISTBOX);
+
+			return;
+		}
+
+		complete();
+	}
+
+	private void createBox() throws IOException {
+
+		log.debug("Password received.");
+
+		try {
+
+			po.createMailbox(boxname, passwordHash);
+			log.debug("Box '{}' successfully created.", boxname);
+
+		} catch (ExistentMailboxException e) {
+
+			log.debug("The box '{}' already exists.", boxname);
+			reply(RESP.BOXEXISTS);
+
+			return;
+
+		} catch (IllegalArgumentException e) {
+
+			log.debug("The box name '{}' is a routing pattern.", boxname);
+			reply(RESP.BADCOMMAND);
+
+			return;
+		}
+
+		complete();
+	}
+
+	/**
+	 * Sends or publishes a letter that has been fully received. A published letter is
+	 * addressed to its topic.
+	 */
+	private void post(Letter letter) throws IOException {
+
+		letter.setTimeToLive(timeToLive);
+
+		if(request != REQ.PUBLISH){
+
+			sendLetter(letter);
+			return;
+		}
+
+		int delivered = po.publish(recipient, letter);
+		po.awaitDurable();
+
+		if(log.isDebugEnabled())
+			log.debug("Letter published to {} subscribers of '{}'.", delivered, recipient);
+
+		os.writeByte(RESP.REQGRANTED.ordinal());
+		os.writeInt(delivered);
+
+		idle();
+	}
+
+	private void sendLetter(Letter letter) throws IOException {
+
+		holdDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(po.getQuotaBlockTimeout());
+
+		trySend(letter);
+	}
+
+	/**
+	 * Sends a letter, or parks the clerk until there is room for it. Nothing further is
+	 * read from the client in the meantime.
+	 */
+	private void trySend(Letter letter) throws IOException {
+
+		final int generation = ++waitGeneration;
+
+		final Runnable wake = new Runnable() {
+
+			@Override
+			public void run() {
+
+				roomWait(generation);
+			}
+		};
+
+		QuotaListener listener = new QuotaListener() {
+
+			@Override
+			public void roomAvailable(MailQuota quota) {
+
+				loop.execute(wake);
+			}
+		};
+
+		try {
+
+			if(!po.sendLetter(letter, listener)){
+
+				state = State.SENDLETTER_BLOCKED;
+
+				held = letter;
+				roomListener = listener;
+
+				waitTimer = po.getTimer().schedule(new Runnable() {
+
+					@Override
+					public void run() {
+
+						loop.execute(wake);
+					}
+				}, holdDeadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+
+				return;
+			}
+
+			log.debug("Message sent to '{}'.", recipient);
+
+		} catch (NonExistentMailboxException e) {
+
+			letter.release();
+
+			log.debug("The recipient mailbox '{}' does not exist.", recipient);
+			reply(RESP.DELFAIL);
+
+			return;
+
+		} catch (MailboxFullException e) {
+
+			letter.release();
+
+			log.debug("The recipient mailbox '{}' is full.", recipient);
+			reply(RESP.MAILBOXFULL);
+
+			return;
+		}
+
+		complete();
+	}
+
+	private void roomWait(int generation){
+
+		if(closed || generation != waitGeneration || state != State.SENDLETTER_BLOCKED)
+			return;
+
+		Letter letter = held;
+
+		try {
+
+			boolean expired = holdDeadline - System.nanoTime() <= 0;
+
+			cancelHold();
+
+			if(expired){
+
+				letter.release();
+
+				log.debug("Timed out waiting for room in the mailbox '{}'.", recipient);
+				reply(RESP.MAILBOXFULL);
+			}
+			else
+				trySend(letter);
+
+			if(state != State.SENDLETTER_BLOCKED)
+				process();
+
+		} catch (IOException e) {
+
+			log.error("Problem while performing command '{}'. Cause : {}", request, e.getMessage());
+			close();
+		}
+	}
+
+	/**
+	 * Stops waiting for room in a mailbox. The held letter is left to the caller.
+	 */
+	private void cancelHold(){
+
+		if(held == null)
+			return;
+
+		waitGeneration++;
+
+		po.abandonDelivery(held, roomListener);
+
+		if(waitTimer != null)
+			waitTimer.cancel(false);
+
+		if(closed)
+			held.release();
+
+		held = null;
+		roomListener = null;
+		waitTimer = null;
+	}
+
+	/**
+	 * Carries on with buffered frames once the dispatcher is no longer held back by a
+	 * full mailbox.
+	 */
+	private void resume(){
+
+		if(closed || !reading())
+			return;
+
+		try {
+
+			process();
+
+		} catch (IOException e) {
+
+			log.error("Problem while performing command '{}'. Cause : {}", request, e.getMessage());
+			close();
+		}
+	}
+
+	/**
+	 * Sets up a live stream with the correspondent, brokered if the requester gave the
+	 * host it listens on.
+	 */
+	private void createLiveStream(String host, int port) throws IOException {
+
+		if(!po.mailboxExists(correspondent)){
+
+			reply(RESP.NONEXISTBOX);
+			return;
+		}
+
+		// Disallow looping live streams.
+		if(correspondent.equals(mb.getOwner())){
+
+			reply(RESP.UNSUPPORTED);
+			return;
+		}
+
+		ServerRoutedLiveStreamHandler created;
+
+		try {
+
+			created = po.createLiveStream(mb.getOwner(), correspondent, host, port);
+
+		} catch (NonExistentMailboxException e) {
+
+			reply(RESP.DELFAIL);
+			return;
+
+		} catch (MailboxFullException e) {
+
+			reply(RESP.MAILBOXFULL);
+			return;
+		}
+
+		complete();
+		os.writeUTF(created.getIdentifier().toString());
+
+		if(host != null)
+			os.write(created.getToken());
+	}
+
+	/**
+	 * Hands the connection to the live stream it asked to join, or answers the request if
+	 * it cannot join. Once handed over the clerk is done, though the connection stays open.
+	 * Anything the client sent after its request is dropped, as it must wait for the
+	 * stream to answer before it streams.
+	 */
+	private void joinLiveStream() throws IOException {
+
+		// The stream writes to the connection as soon as the partner joins.
+		key.interestOps(0);
+
+		try {
+
+			po.joinLiveStream(stream, boxname, passwordHash, sc);
+
+		} catch (NonExistentLiveStreamException e) {
+
+			log.debug("The live stream '{}' does not exist.", stream);
+			reply(RESP.NONEXISTBOX);
+			flush();
+
+			return;
+
+		} catch (UnexpectedParticipantException | UnauthorizedActionException e) {
+
+			log.debug("The mailbox '{}' cannot join live stream '{}'.", boxname, stream);
+			reply(RESP.NOAUTH);
+			flush();
+
+			return;
+		}
+
+		log.debug("Connection handed to live stream '{}'.", stream);
+
+		idle();
+
+		closed = true;
+		key.cancel();
+
+		po.getMetrics().clerkClosed();
+	}
+
+	private void startGetMail() throws IOException {
+
+		if(!mb.hasMail(filter) && timeout == 0){
+
+			reply(RESP.MAILTIMEOUT);
+			return;
+		}
+
+		os.writeByte(RESP.REQDATA.ordinal());
+		// The backlog is only counted if it is going to be logged.
+		if(log.isDebugEnabled())
+			log.debug("Requesting mail from a mailbox storing {} messages.", mb.getQueueSize());
+
+		continueGetMail();
+	}
+
+	/**
+	 * Decides whether the GETMAIL exchange continues with another sub-request or winds down.
+	 */
+	private void continueGetMail(){
+
+		if(timeout != 0 || mb.hasMail(filter))
+			await(State.GETMAIL_SUBREQUEST);
+		else
+			await(State.GETMAIL_SATIATION);
+	}
+
+	private void nextLetter() throws IOException {
+
+		Letter letter = mb.popMessage(filter);
+
+		if(letter != null){
+
+			pushLetter(letter);
+			continueGetMail();
+
+			return;
+		}
+
+		long timeRemaining = maxTime - System.nanoTime();
+
+		if(timeRemaining > 0)
+			awaitMail(timeRemaining);
+		else
+			noMail();
+	}
+
+	/**
+	 * Parks the clerk until either mail arrives or the GETMAIL deadline passes. Nothing
+	 * further is read from the client in the meantime.
+	 */
+	private void awaitMail(long timeRemaining){
+
+		state = State.GETMAIL_WAITING;
+
+		final int generation = ++waitGeneration;
+
+		final Runnable wake = new Runnable() {
+
+			@Override
+			public void run() {
+
+				mailWait(generation);
+			}
+		};
+
+		waitListener = new MailListener() {
+
+			@Override
+			public void mailDelivered(Mailbox mailbox) {
+
+				loop.execute(wake);
+			}
+		};
+
+		mb.addMailListener(waitListener, filter);
+		waitTimer = po.getTimer().schedule(new Runnable() {
+
+			@Override
+			public void run() {
+
+				loop.execute(wake);
+			}
+		}, timeRemaining, TimeUnit.NANOSECONDS);
+
+		// A letter may have slipped in before the listener was registered.
+		if(mb.hasMail(filter))
+			loop.execute(wake);
+	}
+
+	private void mailWait(int generation){
+
+		if(closed || generation != waitGeneration || state != State.GETMAIL_WAITING)
+			return;
+
+		try {
+
+			Letter letter = mb.popMessage(filter);
+
+			if(letter != null){
+
+				cancelWait();
+
+				pushLetter(letter);
+				continueGetMail();
+			}
+			else if(maxTime - System.nanoTime() <= 0){
+
+				cancelWait();
+				noMail();
+			}
+			else {
+
+				mb.addMailListener(waitListener, filter);
+				return;
+			}
+
+			process();
+
+		} catch (IOException e) {
+
+			log.error("Problem while performing command '{}'. Cause : {}", request, e.getMessage());
+			close();
+		}
+	}
+
+	private void cancelWait(){
+
+		waitGeneration++;
+
+		if(waitListener != null && mb != null)
+			mb.removeMailListener(waitListener, filter);
+
+		if(waitTimer != null)
+			waitTimer.cancel(false);
+
+		waitListener = null;
+		waitTimer = null;
+	}
+
+	private void noMail() throws IOException {
+
+		log.debug("No more mail within alotted time.");
+		reply(RESP.MAILTIMEOUT);
+
+		log.debug("Command {} completed.", request);
+	}
+
+	private void pushLetter(Letter letter) throws IOException {
+
+		log.debug("Sending message to socket...");
+
+		os.writeByte(RESP.INMAIL.ordinal());
+		os.writeUTF(letter.getSender());
+		os.writeInt(letter.getPayloadLength());
+
+		if(letter.isDirect())
+			queuePayload(letter);
+		else
+			os.write(letter.getPayloadBytes());
+	}
+
+	/**
+	 * Appends a response frame to the output, behind anything already written.
+	 */
+	private void queueFrame(Frame frame){
+
+		try {
+
+			if(frame.getPayload() != null && frame.getPayload().isDirect()){
+
+				os.write(frame.toHeadBytes());
+				queuePayload(frame.getPayload());
+			}
+			else {
+
+				os.write(frame.toBytes());
+				frame.release();
+			}
+
+		} catch (IOException e) {} // Cannot happen when writing to memory.
+	}
+
+	/**
+	 * Returns a partly read letter payload to the pool.
+	 */
+	private void discardPayload(){
+
+		if(payload != null)
+			po.getBufferPool().release(payload);
+
+		payload = null;
+	}
+
+	private boolean hasMailbox() throws IOException {
+
+		if(mb == null){
+
+			log.debug("No mailbox connection.");
+			reply(RESP.NOBOXCONN);
+		}
+
+		return mb != null;
+	}
+
+	private void complete() throws IOException {
+
+		os.writeByte(RESP.REQGRANTED.ordinal());
+		log.debug("Command {} completed.", request);
+
+		idle();
+	}
+
+	/**
+	 * Ends the current request with a response code other than {@link RESP#REQGRANTED}.
+	 */
+	private void reply(RESP response) throws IOException {
+
+		os.writeByte(response.ordinal());
+
+		idle();
+	}
+
+	/**
+	 * Goes back to waiting for a request, having answered the current one.
+	 */
+	private void idle(){
+
+		state = State.REQUEST;
+
+		po.getMetrics().requestServed(request, System.nanoTime() - started);
+	}
+
+	/**
+	 * Moves to a state in which the clerk is waiting on the client for data.
+	 */
+	private void await(State next){
+
+		state = next;
+		deadline = System.nanoTime() + REQUEST_TIMEOUT;
+	}
+
+	private boolean readPassword(){
+
+		if(in.remaining() < passwordHash.length)
+			return false;
+
+		in.get(passwordHash);
+
+		return true;
+	}
+
+	/**
+	 * Reads a string in the format written by {@link DataOutputStream#writeUTF(String)}.
+	 *
+	 * @return The string, or null if it has not been fully received yet.
+	 */
+	private String readUTF() throws IOException {
+
+		if(in.remaining() < 2)
+			return null;
+
+		int length = 2 + (in.getShort(in.position()) & 0xFFFF);
+
+		if(in.remaining() < length){
+
+			required = length;
+			return null;
+		}
+
+		String value = DataInputStream.readUTF(new DataInputStream(
+				new ByteArrayInputStream(in.array(), in.arrayOffset() + in.position(), length)));
+
+		in.position(in.position() + length);
+
+		return value;
+	}
+
+	/**
+	 * Bytes waiting to be written, and the letter whose payload they are, if any.
+	 */
+	private static class Output {
+
+		ByteBuffer data;
+		Letter letter;
+
+		Output(ByteBuffer data, Letter letter){
+
+			this.data = data;
+			this.letter = letter;
+		}
+
+		void release(){
+
+			if(letter != null)
+				letter.release();
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package postoffice.daemon;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A single event loop of the selector engine. Each loop owns a selector and serves
+ * every {@link SelectorClerk} registered with it from one thread, so an idle
+ * connection costs a selection key rather than a thread.
+ */
+class SelectorLoop implements Runnable {
+
+	private static Logger logger = Logger.getLogger(SelectorLoop.class);
+	
+	// How often clerks are checked for clients that stopped responding mid-request.
+	private static final long SWEEP_INTERVAL = 1000;
+	
+	private PostOffice po;
+	private int index;
+	
+	private Selector selector;
+	
+	private Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	
+	private volatile boolean running = true;
+	
+	private volatile Thread thread = null;
+	
+	SelectorLoop(PostOffice po, int index) throws IOException {
+		
+		this.po = po;
+		this.index = index;
+		
+		selector = Selector.open();
+	}
+	
+	/**
+	 * Hands a freshly accepted connection to this loop.
+	 * 
+	 * @param sc The accepted connection.
+	 * @throws IOException Thrown if the channel cannot be made non-blocking.
+	 */
+	void register(final SocketChannel sc) throws IOException {
+		
+		sc.configureBlocking(false);
+		
+		// Responses to pipelined requests go out as they complete, and Nagle's algorithm
+		// would hold each back until the client's delayed acknowledgement.
+		if(sc.getLocalAddress() instanceof InetSocketAddress)
+			sc.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		
+		execute(new Runnable() {
+			
+			@Override
+			public void run() {
+				
+				SelectorClerk clerk = new SelectorClerk(sc, po, SelectorLoop.this);
+				
+				try {
+					
+					clerk.attach(sc.register(selector, SelectionKey.OP_READ, clerk));
+					
+				} catch (ClosedChannelException e) {
+					
+					clerk.close();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Runs a task on the loop thread. This is the only safe way for other threads to
+	 * touch the state of a clerk owned by this loop.
+	 * 
+	 * @param task The task to run.
+	 */
+	void execute(Runnable task){
+		
+		tasks.add(task);
+		selector.wakeup();
+	}
+	
+	/**
+	 * Checks whether the caller is running on this loop's thread.
+	 * 
+	 * @return True if it is, false otherwise.
+	 */
+	boolean inLoop(){
+		
+		return Thread.currentThread() == thread;
+	}
+	
+	void shutdown(){
+		
+		running = false;
+		selector.wakeup();
+	}
+	
+	@Override
+	public void run() {
+		
+		thread = Thread.currentThread();
+		
+		logger.debug("Selector loop " + index + " started.");
+		
+		long nextSweep = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL);
+		
+		while(running){
+			
+			try {
+				
+				selector.select(SWEEP_INTERVAL);
+				
+			} catch (IOException e) {
+				
+				logger.error("Selector loop " + index + " failed. Cause : " + e.getMessage());
+				break;
+			}
+			
+			Runnable task;
+			
+			while((task = tasks.poll()) != null){
+				
+				try {
+					
+					task.run();
+					
+				} catch (RuntimeException e) {
+					
+					logger.error("Task failed on selector loop " + index + ".", e);
+				}
+			}
+			
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			
+			while(it.hasNext()){
+				
+				SelectionKey key = it.next();
+				it.remove();
+				
+				((SelectorClerk) key.attachment()).handle();
+			}
+			
+			long now = System.nanoTime();
+			
+			if(now - nextSweep >= 0){
+				
+				for(SelectionKey key : selector.keys())
+					((SelectorClerk) key.attachment()).checkTimeout(now);
+				
+				nextSweep = now + TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL);
+			}
+		}
+		
+		for(SelectionKey key : selector.keys())
+			((SelectorClerk) key.attachment()).close();
+		
+		try {
+			
+			selector.close();
+			
+		} catch (IOException e) {
+			
+			logger.debug("Failed to close selector loop " + index + ". Cause : " + e.getMessage());
+		}
+		
+		logger.debug("Selector loop " + index + " stopped.");
+	}
+}
@@ -1,22 +1,55 @@
 package postoffice.daemon;
 
-import java.net.Socket;
-import java.util.HashSet;
-import java.util.Set;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
 import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.log4j.Logger;
+
+import postoffice.datatypes.CommFlags.RESP;
 import postoffice.datatypes.Letter;
 import postoffice.datatypes.LiveStreamMessage;
 import postoffice.datatypes.Message;
+import postoffice.exception.comm.MailboxFullException;
 import postoffice.exception.livestream.UnexpectedParticipantException;
 import postoffice.exception.mailbox.NonExistentMailboxException;
 
+/**
+ * A live stream between two mailboxes, relayed through the post office. The partner is
+ * told of the stream by a letter, and each participant then joins it from a connection
+ * of its own. Once both have joined, the connections are handed to the post office's
+ * {@link LiveStreamRelay}; a stream that is not joined by both in time is dropped.
+ *
+ * A brokered stream also carries the endpoint the requester listens on and a one-time
+ * token in its announcement, so that the partner can connect to the requester directly
+ * and the post office never sees the stream's bytes. Joining through the relay remains
+ * possible for participants that cannot reach each other.
+ */
 public class ServerRoutedLiveStreamHandler {
-
+	
+	private static Logger logger = Logger.getLogger(ServerRoutedLiveStreamHandler.class);
+	
+	private static final int TOKEN_LENGTH = 16;
+	
+	private static SecureRandom tokens = new SecureRandom();
+	
+	private PostOffice po;
+	
 	private String[] participants;
-	private Socket[] sockets = new Socket[2];
+	private SocketChannel[] channels = new SocketChannel[2];
 	
-	private Set<String> awaiting = new HashSet<String>();
+	// Set once both participants have joined, or the stream has been dropped.
+	private boolean settled = false;
+	
+	private ScheduledFuture<?> expiry = null;
+	
+	// Null unless the stream is brokered.
+	private byte[] token = null;
 	
 	// Initialize with a randomly generated UUID.
 	private UUID liveStreamId = UUID.randomUUID();
@@ -26,34 +59,157 @@ public class ServerRoutedLiveStreamHandler {
 		return liveStreamId;
 	}
 	
-	public ServerRoutedLiveStreamHandler(String requester, String partner, PostOffice po) throws NonExistentMailboxException {
+	/**
+	 * Returns the token the partner presents to the requester when connecting to it
+	 * directly.
+	 * 
+	 * @return The token, or null if the stream is not brokered.
+	 */
+	public byte[] getToken() {
+		
+		return token;
+	}
+	
+	public ServerRoutedLiveStreamHandler(String requester, String partner, PostOffice po) throws NonExistentMailboxException, MailboxFullException {
+		
+		this(requester, partner, null, 0, po);
+	}
+	
+	/**
+	 * @param requester The mailbox requesting the stream.
+	 * @param partner The mailbox to stream with.
+	 * @param host The host the requester listens for its partner on, or null to relay the stream.
+	 * @param port The port the requester listens for its partner on.
+	 * @param po The post office.
+	 * @throws NonExistentMailboxException Thrown if the partner does not exist.
+	 * @throws MailboxFullException Thrown if the partner's mailbox has no room for the announcement.
+	 */
+	public ServerRoutedLiveStreamHandler(String requester, String partner, String host, int port, PostOffice po) throws NonExistentMailboxException, MailboxFullException {
 		
 		if(!po.mailboxExists(partner))
 			throw new NonExistentMailboxException("Requested livestream partner '" + partner + "' does not exist.");
 		
+		this.po = po;
+		
 		participants = new String[]{ requester, partner };
 		
-		awaiting.add(requester);
-		awaiting.add(partner);
+		Message lsm;
+		
+		if(host == null)
+			lsm = new LiveStreamMessage(liveStreamId, participants[0], participants[1]);
+		else {
 			
-		Message lsm = new LiveStreamMessage(liveStreamId, participants[0], participants[1]);
-
-		// Announce the live stream to the participants.
-		for(String p : participants)
-			po.sendLetter(new Letter(PostOffice.OFFICE_ADDRESS, p, lsm.marshal()));
+			token = new byte[TOKEN_LENGTH];
+			tokens.nextBytes(token);
+			
+			lsm = new LiveStreamMessage(liveStreamId, participants[0], participants[1], host, port, token);
+		}
+		
+		// Announce the live stream to the partner, ahead of any other mail waiting. The
+		// requester learns of it from the response to its request.
+		Letter announcement = new Letter(PostOffice.OFFICE_ADDRESS, partner, lsm.marshal());
+		announcement.setPriority(Letter.Priority.HIGH);
+		
+		po.sendLetter(announcement);
 	}
-
-	public boolean joinLiveStream(String id, Socket s) throws UnexpectedParticipantException {
 	
-		if(awaiting.contains(id)){
+	/**
+	 * Drops the stream if both participants have not joined it within the timeout.
+	 *
+	 * @param timeout The timeout in milliseconds.
+	 */
+	void expireAfter(long timeout){
+		
+		try {
 			
-			awaiting.remove(id);
+			expiry = po.getTimer().schedule(new Runnable() {
+				
+				@Override
+				public void run() {
+					
+					expire();
+				}
+			}, timeout, TimeUnit.MILLISECONDS);
+		
+		} catch (RejectedExecutionException e) {
 			
-			sockets[awaiting.size() - 1] = s;
+			// The post office is shutting down.
 		}
-		else
-			throw new UnexpectedParticipantException("This livestream was not intended to include the user '" + id + "'.");
+	}
+	
+	/**
+	 * Joins a participant's connection to the stream. The connection must not be used
+	 * for anything else from then on. Once the second participant joins, both are
+	 * answered with {@link RESP#REQGRANTED} and relayed to each other.
+	 *
+	 * @param id The participant's mailbox.
+	 * @param sc The participant's connection.
+	 * @throws UnexpectedParticipantException Thrown if the mailbox is not a participant, or has already joined.
+	 */
+	public void joinLiveStream(String id, SocketChannel sc) throws UnexpectedParticipantException {
+		
+		synchronized(this){
+			
+			int index = id.equals(participants[0]) ? 0 : id.equals(participants[1]) ? 1 : -1;
+			
+			if(index < 0)
+				throw new UnexpectedParticipantException("This livestream was not intended to include the user '" + id + "'.");
+			
+			if(settled || channels[index] != null)
+				throw new UnexpectedParticipantException("The user '" + id + "' can no longer join this livestream.");
+			
+			channels[index] = sc;
+			
+			if(channels[1 - index] == null)
+				return;
+			
+			settled = true;
+		}
+		
+		if(expiry != null)
+			expiry.cancel(false);
+		
+		logger.debug("Both participants joined live stream " + liveStreamId + ".");
+		
+		po.getRelay().relay(this, channels[0], channels[1]);
+	}
+	
+	private void expire(){
+		
+		synchronized(this){
+			
+			if(settled)
+				return;
+			
+			settled = true;
+		}
+		
+		logger.debug("Live stream " + liveStreamId + " was not joined in time.");
+		
+		ended();
+		
+		for(SocketChannel sc : channels){
+			
+			if(sc == null)
+				continue;
+			
+			try {
+				
+				sc.write(ByteBuffer.wrap(new byte[]{ (byte) RESP.COMMTIMEOUT.ordinal() }));
+				sc.close();
+			
+			} catch (IOException e) {
+				
+				logger.debug("Failed to close a live stream connection. Tossing instead. Cause : " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Called once the stream is over, whether it was relayed or not.
+	 */
+	void ended(){
 		
-		return awaiting.size() > 0;
+		po.endLiveStream(this);
 	}
 }
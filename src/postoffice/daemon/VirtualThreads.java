@@ -0,0 +1,74 @@
+package postoffice.daemon;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates executors backed by virtual threads. The daemon is still built against
+ * older class libraries, so the Java 21 API is looked up reflectively.
+ */
+final class VirtualThreads {
+
+	private VirtualThreads(){}
+	
+	/**
+	 * Checks whether the running JVM supports virtual threads, by building one without
+	 * starting it. Finding the API is not enough: on Java 19 and 20 it is a preview, which
+	 * fails on first use unless preview features are enabled.
+	 * 
+	 * @return True if virtual threads are available, false otherwise.
+	 */
+	static boolean isSupported(){
+		
+		try {
+			
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			
+			builderClass.getMethod("unstarted", Runnable.class).invoke(builder, new Runnable() {
+				
+				@Override
+				public void run(){}
+			});
+			
+			Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			
+			return true;
+			
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			
+			return false;
+		}
+	}
+	
+	/**
+	 * Creates an executor that starts a new named virtual thread for every task.
+	 * 
+	 * @param prefix Prefix of the thread names; a counter is appended.
+	 * @return The executor.
+	 * @throws UnsupportedOperationException Thrown if the JVM does not support virtual threads.
+	 */
+	static ExecutorService newThreadPerTaskExecutor(String prefix){
+		
+		try {
+			
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+			
+			ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+			
+			Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			
+			return (ExecutorService) newExecutor.invoke(null, factory);
+			
+		} catch (ReflectiveOperationException e) {
+			
+			throw new UnsupportedOperationException("Virtual threads require Java 21 or newer.", e);
+		}
+	}
+}
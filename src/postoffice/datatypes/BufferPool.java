@@ -0,0 +1,95 @@
+package postoffice.datatypes;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct buffers for letter payloads in transit. Buffers come in power of two
+ * size classes so a payload read from one client's socket can be kept by reference until
+ * it is written to another's, and the buffer then reused for a later letter of similar size.
+ */
+public class BufferPool {
+
+	private static final int MIN_SHIFT = 10;
+
+	private int maxShift;
+	private int maxIdleBytes;
+
+	private List<Queue<ByteBuffer>> idle = new ArrayList<Queue<ByteBuffer>>();
+	private List<AtomicInteger> idleCounts = new ArrayList<AtomicInteger>();
+
+	/**
+	 * @param maxPooledSize The largest buffer kept for reuse; larger ones are allocated as needed.
+	 * @param maxIdleBytes The most memory each size class keeps in unused buffers.
+	 */
+	public BufferPool(int maxPooledSize, int maxIdleBytes){
+
+		this.maxShift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(maxPooledSize - 1));
+		this.maxIdleBytes = maxIdleBytes;
+
+		for(int shift = MIN_SHIFT; shift <= maxShift; shift++){
+
+			idle.add(new ConcurrentLinkedQueue<ByteBuffer>());
+			idleCounts.add(new AtomicInteger());
+		}
+	}
+
+	/**
+	 * Takes a buffer of at least the requested size.
+	 *
+	 * @param size The number of bytes needed.
+	 * @return A direct buffer with its position at zero and its limit at the requested size.
+	 */
+	public ByteBuffer acquire(int size){
+
+		int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1));
+
+		if(shift > maxShift){
+
+			ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+			buffer.limit(size);
+
+			return buffer;
+		}
+
+		ByteBuffer buffer = idle.get(shift - MIN_SHIFT).poll();
+
+		if(buffer == null)
+			buffer = ByteBuffer.allocateDirect(1 << shift);
+		else
+			idleCounts.get(shift - MIN_SHIFT).decrementAndGet();
+
+		buffer.clear();
+		buffer.limit(size);
+
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer for reuse. Buffers that are not from a size class, or that would take
+	 * the class over its idle limit, are left to the garbage collector.
+	 *
+	 * @param buffer A buffer from {@link #acquire(int)} that is no longer referenced elsewhere.
+	 */
+	public void release(ByteBuffer buffer){
+
+		int capacity = buffer.capacity();
+
+		if(Integer.bitCount(capacity) != 1 || capacity < (1 << MIN_SHIFT) || capacity > (1 << maxShift))
+			return;
+
+		int index = Integer.numberOfTrailingZeros(capacity) - MIN_SHIFT;
+
+		if(idleCounts.get(index).incrementAndGet() * (long) capacity > maxIdleBytes){
+
+			idleCounts.get(index).decrementAndGet();
+			return;
+		}
+
+		idle.get(index).add(buffer);
+	}
+}
@@ -14,7 +14,22 @@ public class CommFlags {
 		SATIATED,
 		EMPTYBOX,
 		DISCONNECT,
-		LIVESTREAM
+		LIVESTREAM,
+		PROTOCOL,
+		SENDBATCH,
+		DRAINMAIL,
+		CREDIT,
+		FILTERMAIL,
+		SUBSCRIBE,
+		UNSUBSCRIBE,
+		PUBLISH,
+		SENDEXPIRING,
+		ATTACHBOX,
+		ONBOX,
+		JOINSTREAM,
+		DIRECTSTREAM,
+		SHAREDMEM,
+		BINDNAME
 	}
 
 	public static enum RESP {
@@ -33,11 +48,24 @@ public class CommFlags {
 		SHUTDOWN,
 		COMMTIMEOUT,
 		INMAIL,
-		UNSUPPORTED
+		UNSUPPORTED,
+		MAILBOXFULL
 	}
 	
 	public static final int END_OF_LINE = 0xA;
 	
+	/** The original byte-at-a-time request/response exchange. */
+	public static final int PROTOCOL_LEGACY = 1;
+	
+	/** Single-frame requests tagged with a request id; see {@link Frame}. */
+	public static final int PROTOCOL_FRAMED = 2;
+	
+	/**
+	 * The framed protocol with letters addressed by handles bound to mailbox names once
+	 * per connection, and their lengths sent as {@link Varint}s.
+	 */
+	public static final int PROTOCOL_COMPACT = 3;
+	
 	private static final REQ[] reqValues = REQ.values();
 	private static final RESP[] respValues = RESP.values();
 	
@@ -0,0 +1,102 @@
+package postoffice.datatypes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A hashed timing wheel of mailboxes waiting for letters to expire. A mailbox is only
+ * scheduled again when a letter expires earlier than any it is already waiting on, so
+ * delivering letters with a time to live adds no timer per letter.
+ *
+ * Mailboxes may be scheduled from any thread, but the wheel is advanced by one thread
+ * only, normally by a task run every tick. A mailbox is swept at most a tick after its
+ * letter expires; until then expired letters are passed over as mail is taken.
+ */
+public class ExpiryWheel {
+
+	private static final int SLOTS = 512;
+
+	private long tickLength;
+
+	// Entries are kept in the slot of their tick modulo the number of slots, so those
+	// more than a turn of the wheel away are passed over until their turn comes.
+	private List<Queue<Entry>> slots;
+
+	// The last tick swept; entries are never scheduled in a tick already swept.
+	private volatile long currentTick;
+
+	/**
+	 * @param tickLength The length of a tick in milliseconds.
+	 */
+	public ExpiryWheel(long tickLength){
+
+		this.tickLength = tickLength;
+
+		slots = new ArrayList<Queue<Entry>>(SLOTS);
+
+		for(int i = 0; i < SLOTS; i++)
+			slots.add(new ConcurrentLinkedQueue<Entry>());
+
+		currentTick = System.currentTimeMillis() / tickLength;
+	}
+
+	/**
+	 * @param mailbox The mailbox to sweep.
+	 * @param expiry When to sweep it, in milliseconds since the epoch.
+	 */
+	public void schedule(Mailbox mailbox, long expiry){
+
+		long tick = Math.max((expiry + tickLength - 1) / tickLength, currentTick + 1);
+
+		slots.get((int) (tick % SLOTS)).add(new Entry(mailbox, tick));
+	}
+
+	/**
+	 * Sweeps every mailbox due by a time. Ticks missed while the caller was held up are
+	 * swept together.
+	 *
+	 * @param now The current time in milliseconds since the epoch.
+	 */
+	public void advance(long now){
+
+		long last = currentTick;
+		long target = now / tickLength;
+
+		if(target <= last)
+			return;
+
+		// Mailboxes scheduled from here on land after the ticks being swept.
+		currentTick = target;
+
+		long ticks = Math.min(target - last, SLOTS);
+
+		for(long tick = last + 1; tick <= last + ticks; tick++){
+
+			Queue<Entry> slot = slots.get((int) (tick % SLOTS));
+
+			Entry entry;
+
+			for(int waiting = slot.size(); waiting > 0 && (entry = slot.poll()) != null; waiting--){
+
+				if(entry.tick <= target)
+					entry.mailbox.expire(now);
+				else
+					slot.add(entry);
+			}
+		}
+	}
+
+	private static class Entry {
+
+		Mailbox mailbox;
+		long tick;
+
+		Entry(Mailbox mailbox, long tick){
+
+			this.mailbox = mailbox;
+			this.tick = tick;
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package postoffice.datatypes;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A single request or response of the framed protocol ({@link CommFlags#PROTOCOL_FRAMED}).
+ * 
+ * Every frame is sent as <code>&lt;4-byte length&gt;&lt;4-byte request id&gt;&lt;1-byte code&gt;&lt;body&gt;</code>,
+ * where the length counts everything after itself. Requests carry a {@link CommFlags.REQ}
+ * code and responses a {@link CommFlags.RESP} code; a response always echoes the id of
+ * the request it answers, so clients may send many requests before reading any replies.
+ */
+public class Frame {
+
+	/** Size of the request id and code that follow the length prefix. */
+	public static final int HEADER_LENGTH = 5;
+	
+	/** Largest frame either side will accept. */
+	public static final int MAX_LENGTH = 64 * 1024 * 1024;
+	
+	private static final byte[] EMPTY_BODY = new byte[0];
+	
+	private int requestId;
+	private int code;
+	private byte[] body;
+	
+	// A letter whose payload follows the body on the wire.
+	private Letter payload = null;
+	
+	public Frame(int requestId, int code, byte[] body){
+		
+		this.requestId = requestId;
+		this.code = code;
+		this.body = body == null ? EMPTY_BODY : body;
+	}
+	
+	/**
+	 * Creates a frame whose body is followed by a letter's payload. The payload is not
+	 * copied into the frame, so a sink can write it straight from the letter's buffer.
+	 * 
+	 * @param requestId The id of the request answered.
+	 * @param code The response code.
+	 * @param body The part of the body before the payload.
+	 * @param payload The letter whose payload ends the frame.
+	 */
+	public Frame(int requestId, int code, byte[] body, Letter payload){
+		
+		this(requestId, code, body);
+		
+		this.payload = payload;
+	}
+	
+	public Frame(int requestId, int code){
+		
+		this(requestId, code, EMPTY_BODY);
+	}
+
+	public int getRequestId() {
+		
+		return requestId;
+	}
+
+	public int getCode() {
+		
+		return code;
+	}
+
+	public byte[] getBody() {
+		
+		return body;
+	}
+	
+	/**
+	 * @return The letter whose payload follows the body, or null.
+	 */
+	public Letter getPayload() {
+		
+		return payload;
+	}
+	
+	/**
+	 * Releases the payload's buffer once the frame has been written.
+	 */
+	public void release() {
+		
+		if(payload != null)
+			payload.release();
+	}
+	
+	/**
+	 * Returns a reader positioned at the start of the frame body.
+	 * 
+	 * @return A stream over the body.
+	 */
+	public DataInputStream getBodyReader(){
+		
+		return new DataInputStream(new ByteArrayInputStream(body));
+	}
+	
+	/**
+	 * Encodes the frame, including its length prefix and any payload.
+	 * 
+	 * @return The encoded frame.
+	 */
+	public byte[] toBytes(){
+		
+		ByteBuffer buffer = ByteBuffer.allocate(4 + HEADER_LENGTH + body.length + payloadLength());
+		
+		buffer.put(toHeadBytes());
+		
+		if(payload != null)
+			buffer.put(payload.getPayloadBuffer());
+		
+		return buffer.array();
+	}
+	
+	/**
+	 * Encodes the frame up to its payload. Writing these bytes followed by the payload
+	 * buffer produces the same bytes as {@link #toBytes()}.
+	 * 
+	 * @return The encoded length prefix, header and body.
+	 */
+	public byte[] toHeadBytes(){
+		
+		ByteBuffer buffer = ByteBuffer.allocate(4 + HEADER_LENGTH + body.length);
+		
+		buffer.putInt(HEADER_LENGTH + body.length + payloadLength());
+		buffer.putInt(requestId);
+		buffer.put((byte) code);
+		buffer.put(body);
+		
+		return buffer.array();
+	}
+	
+	private int payloadLength(){
+		
+		return payload == null ? 0 : payload.getPayloadLength();
+	}
+	
+	/**
+	 * Reads one complete frame.
+	 * 
+	 * @param in The stream to read from.
+	 * @return The frame.
+	 * @throws IOException Thrown if the stream fails or the frame length is invalid.
+	 */
+	public static Frame read(DataInput in) throws IOException {
+		
+		int length = checkLength(in.readInt());
+		
+		int requestId = in.readInt();
+		int code = in.readUnsignedByte();
+		
+		byte[] body = new byte[length - HEADER_LENGTH];
+		in.readFully(body);
+		
+		return new Frame(requestId, code, body);
+	}
+	
+	/**
+	 * Validates a length prefix received from the peer.
+	 * 
+	 * @param length The length to check.
+	 * @return The length.
+	 * @throws IOException Thrown if the length cannot belong to a valid frame.
+	 */
+	public static int checkLength(int length) throws IOException {
+		
+		if(length < HEADER_LENGTH || length > MAX_LENGTH)
+			throw new IOException("Invalid frame length " + length + ". Likely, the client and server are out of sync.");
+		
+		return length;
+	}
+}
@@ -0,0 +1,223 @@
+package postoffice.datatypes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link LetterQueue} of letters kept on the heap. Every letter sits in one node that is
+ * linked both into the queue as a whole, in both directions so that a letter taken out of
+ * turn can be unlinked directly, and into its sender's lane.
+ */
+class HeapLetterQueue extends LetterQueue {
+
+	private Node head = null;
+	private Node tail = null;
+
+	private Map<String, Lane> lanes = new HashMap<String, Lane>();
+
+	private long arrivals = 0;
+
+	@Override
+	protected void enqueue(Letter letter){
+
+		Node node = new Node(letter, arrivals++);
+
+		if(tail == null)
+			head = node;
+		else {
+
+			tail.next = node;
+			node.previous = tail;
+		}
+
+		tail = node;
+
+		Lane lane = lanes.get(letter.getSender());
+
+		if(lane == null)
+			lanes.put(letter.getSender(), new Lane(node));
+		else {
+
+			lane.last.nextInLane = node;
+			lane.last = node;
+		}
+
+		count++;
+	}
+
+	@Override
+	protected Letter dequeue(){
+
+		return unlink(head, lanes.get(head.letter.getSender()));
+	}
+
+	@Override
+	protected Letter dequeue(String sender){
+
+		Lane lane = lanes.get(sender);
+
+		return lane == null ? null : unlink(lane.first, lane);
+	}
+
+	/**
+	 * Removes a node, which is always the first in its sender's lane.
+	 */
+	private Letter unlink(Node node, Lane lane){
+
+		detach(node);
+
+		lane.first = node.nextInLane;
+
+		if(lane.first == null)
+			lanes.remove(node.letter.getSender());
+
+		return node.letter;
+	}
+
+	/**
+	 * Removes a node from the queue as a whole, leaving its lane to the caller.
+	 */
+	private void detach(Node node){
+
+		if(node.previous == null)
+			head = node.next;
+		else
+			node.previous.next = node.next;
+
+		if(node.next == null)
+			tail = node.previous;
+		else
+			node.next.previous = node.previous;
+
+		count--;
+	}
+
+	@Override
+	protected void expire(long now, Sweep sweep){
+
+		// The last letter kept from each sender so far, which a letter removed from the
+		// middle of its lane is bypassed from.
+		Map<String, Node> kept = new HashMap<String, Node>();
+
+		for(Node node = head; node != null; node = node.next){
+
+			Letter letter = node.letter;
+
+			if(!letter.hasExpired(now)){
+
+				kept.put(letter.getSender(), node);
+				sweep.kept(letter.getExpiry());
+
+				continue;
+			}
+
+			Lane lane = lanes.get(letter.getSender());
+			Node previous = kept.get(letter.getSender());
+
+			if(previous == null)
+				lane.first = node.nextInLane;
+			else
+				previous.nextInLane = node.nextInLane;
+
+			if(lane.last == node)
+				lane.last = previous;
+
+			if(lane.first == null)
+				lanes.remove(letter.getSender());
+
+			detach(node);
+
+			sweep.removed(letter);
+			letter.release();
+		}
+	}
+
+	@Override
+	protected Letter first(){
+
+		return head.letter;
+	}
+
+	@Override
+	protected long arrival(String sender){
+
+		Lane lane = lanes.get(sender);
+
+		return lane == null ? -1 : lane.first.arrival;
+	}
+
+	@Override
+	protected Set<String> senders(){
+
+		return lanes.keySet();
+	}
+
+	@Override
+	protected void discard(){
+
+		head = null;
+		tail = null;
+
+		lanes.clear();
+		count = 0;
+	}
+
+	/**
+	 * Returns an iterator over a copy of the queued letters.
+	 */
+	@Override
+	public Iterator<Letter> iterator(){
+
+		lock.lock();
+
+		try {
+
+			List<Letter> letters = new ArrayList<Letter>(count);
+
+			for(Node node = head; node != null; node = node.next)
+				letters.add(node.letter);
+
+			return Collections.unmodifiableList(letters).iterator();
+
+		} finally {
+
+			lock.unlock();
+		}
+	}
+
+	private static class Node {
+
+		Letter letter;
+		long arrival;
+
+		Node previous = null;
+		Node next = null;
+		Node nextInLane = null;
+
+		Node(Letter letter, long arrival){
+
+			this.letter = letter;
+			this.arrival = arrival;
+		}
+	}
+
+	/**
+	 * The letters from one sender, oldest first.
+	 */
+	private static class Lane {
+
+		Node first;
+		Node last;
+
+		Lane(Node node){
+
+			this.first = node;
+			this.last = node;
+		}
+	}
+}
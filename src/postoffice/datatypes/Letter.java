@@ -1,13 +1,43 @@
 package postoffice.datatypes;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Letter {
 
+	/**
+	 * How urgently a letter should be handed out. A mailbox hands out letters of a higher
+	 * priority first, but never passes over those of a lower priority for long.
+	 */
+	public static enum Priority {
+		
+		/** Bulk traffic that can wait behind everything else. */
+		LOW,
+		
+		/** The priority of letters sent without one. */
+		NORMAL,
+		
+		/** Time-critical traffic, such as the post office's own announcements. */
+		HIGH
+	}
+	
 	private String sender;
 	private String recipient;
 	private  byte[] payload = null;
 	
+	// Set instead of the payload array when the payload is held in a pooled direct buffer.
+	private ByteBuffer buffer = null;
+	private BufferPool pool = null;
+	
+	// Counts the letters sharing a pooled buffer once copies have been made; see copyTo(String).
+	private AtomicInteger references = null;
+	
+	// When the letter expires, in milliseconds since the epoch, or zero if it never does.
+	private long expiry = 0;
+	
+	private Priority priority = Priority.NORMAL;
+	
 	public Letter(String sender, String recipient, byte[] payload){
 		
 		this.sender = sender;
@@ -15,6 +45,60 @@ public class Letter {
 		this.payload = payload;
 	}
 	
+	/**
+	 * Creates a letter whose payload stays in a pooled direct buffer, so that it can be
+	 * written to the recipient's socket without being copied onto the heap.
+	 * 
+	 * @param sender The sending mailbox.
+	 * @param recipient The receiving mailbox.
+	 * @param buffer The payload, from position to limit. The letter takes ownership of it.
+	 * @param pool The pool to return the buffer to once the letter has been sent on.
+	 */
+	public Letter(String sender, String recipient, ByteBuffer buffer, BufferPool pool){
+		
+		this.sender = sender;
+		this.recipient = recipient;
+		this.buffer = buffer;
+		this.pool = pool;
+	}
+	
+	private Letter(String sender, String recipient, ByteBuffer buffer, BufferPool pool, AtomicInteger references){
+		
+		this(sender, recipient, buffer, pool);
+		
+		this.references = references;
+	}
+	
+	/**
+	 * Makes a copy of this letter for another recipient that shares its payload instead of
+	 * copying it. A pooled payload buffer only goes back to its pool once this letter and
+	 * every copy of it have been released, so copies must be made before this letter is.
+	 * 
+	 * @param recipient The receiving mailbox of the copy.
+	 * @return The copy.
+	 */
+	public Letter copyTo(String recipient){
+		
+		Letter copy;
+		
+		if(buffer == null)
+			copy = new Letter(sender, recipient, payload);
+		else {
+			
+			if(references == null)
+				references = new AtomicInteger(1);
+			
+			references.incrementAndGet();
+			
+			copy = new Letter(sender, recipient, buffer, pool, references);
+		}
+		
+		copy.expiry = expiry;
+		copy.priority = priority;
+		
+		return copy;
+	}
+	
 	public String getSender() {
 		
 		return sender;
@@ -25,15 +109,117 @@ public class Letter {
 		return recipient;
 	}
 
+	/**
+	 * Returns the payload as an array. A payload held in a pooled buffer is copied out
+	 * and the buffer released, so prefer {@link #getPayloadBuffer()} when the payload is
+	 * only going to be written somewhere.
+	 * 
+	 * @return The payload.
+	 */
 	public byte[] getPayloadBytes() {
 
+		if(payload == null && buffer != null){
+			
+			payload = new byte[buffer.remaining()];
+			buffer.duplicate().get(payload);
+			
+			release();
+		}
+		
 		return payload;
 	}
+	
+	/**
+	 * Returns a read-only view of the payload, backed directly by the pooled buffer if
+	 * the letter has one. The view is only valid until {@link #release()} is called.
+	 * 
+	 * @return The payload, from position to limit.
+	 */
+	public ByteBuffer getPayloadBuffer() {
+		
+		if(buffer != null)
+			return buffer.asReadOnlyBuffer();
+		
+		return ByteBuffer.wrap(payload).asReadOnlyBuffer();
+	}
+	
+	/**
+	 * @return When the letter expires, in milliseconds since the epoch, or zero if it never does.
+	 */
+	public long getExpiry() {
+		
+		return expiry;
+	}
+	
+	/**
+	 * @param expiry When the letter expires, in milliseconds since the epoch, or zero if it never does.
+	 */
+	public void setExpiry(long expiry) {
+		
+		this.expiry = expiry;
+	}
+	
+	/**
+	 * Sets the letter to expire once a time to live has passed from now.
+	 * 
+	 * @param timeToLive The time to live in milliseconds, or zero or less to never expire.
+	 */
+	public void setTimeToLive(long timeToLive) {
+		
+		this.expiry = timeToLive > 0 ? System.currentTimeMillis() + timeToLive : 0;
+	}
+	
+	/**
+	 * @param now The current time in milliseconds since the epoch.
+	 * @return True if the letter has a time to live and it has run out.
+	 */
+	public boolean hasExpired(long now) {
+		
+		return expiry != 0 && expiry <= now;
+	}
+	
+	public Priority getPriority() {
+		
+		return priority;
+	}
+	
+	public void setPriority(Priority priority) {
+		
+		this.priority = priority;
+	}
+	
+	public int getPayloadLength() {
+		
+		return buffer != null ? buffer.remaining() : payload.length;
+	}
+	
+	/**
+	 * @return True if the payload is held in a direct buffer rather than on the heap.
+	 */
+	public boolean isDirect() {
+		
+		return buffer != null;
+	}
+	
+	/**
+	 * Returns a pooled payload buffer to its pool, once no copy of the letter still holds
+	 * it. Called once the letter has been sent on and will not be read again; does nothing
+	 * for letters with heap payloads.
+	 */
+	public void release() {
+		
+		if(buffer != null && pool != null && (references == null || references.decrementAndGet() == 0))
+			pool.release(buffer);
+		
+		buffer = null;
+		pool = null;
+		references = null;
+	}
 
 
 	public String getPayloadAsString(String encoding) throws UnsupportedEncodingException {
 
-		return new String(this.payload, encoding);
+		return new String(getPayloadBytes(), encoding);
 	}
 	
 	@Override
@@ -46,7 +232,7 @@ public class Letter {
 		sb.append(", To : ");
 		sb.append(this.recipient);
 		sb.append(" [");
-		sb.append(this.payload.length);
+		sb.append(getPayloadLength());
 		sb.append(" bytes ] )");
 		
 		return sb.toString();
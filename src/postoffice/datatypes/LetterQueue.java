@@ -0,0 +1,404 @@
+package postoffice.datatypes;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An unbounded FIFO of letters that also keeps each sender's letters in a lane of their
+ * own, in the order they arrived. The oldest letter overall and the oldest letter from
+ * a given sender can therefore both be taken in constant time. A general sender filter
+ * is run once per sender with letters waiting, rather than once per letter.
+ *
+ * Subclasses decide how letters are stored. Every abstract method is called with the
+ * lock held, and subclasses keep {@link #count} up to date. The bytes of payload queued
+ * are counted here.
+ */
+abstract class LetterQueue extends AbstractQueue<Letter> implements BlockingQueue<Letter> {
+
+	protected ReentrantLock lock = new ReentrantLock();
+	private Condition notEmpty = lock.newCondition();
+
+	protected int count = 0;
+
+	private long bytes = 0;
+
+	/**
+	 * Appends a letter to the queue and to its sender's lane.
+	 */
+	protected abstract void enqueue(Letter letter);
+
+	/**
+	 * Removes the oldest letter. Only called with letters queued.
+	 */
+	protected abstract Letter dequeue();
+
+	/**
+	 * Removes the oldest letter from a sender.
+	 *
+	 * @return The letter, or null if there are none from that sender.
+	 */
+	protected abstract Letter dequeue(String sender);
+
+	/**
+	 * Reads the oldest letter without removing it. Only called with letters queued.
+	 */
+	protected abstract Letter first();
+
+	/**
+	 * @return A number ordering the oldest letter from a sender against the oldest from
+	 * other senders, lowest first, or -1 if there are none from that sender.
+	 */
+	protected abstract long arrival(String sender);
+
+	/**
+	 * @return The senders with letters queued.
+	 */
+	protected abstract Set<String> senders();
+
+	/**
+	 * Throws away every letter.
+	 */
+	protected abstract void discard();
+
+	/**
+	 * Removes every letter that has expired, wherever it is in the queue, releasing its
+	 * payload. Only called with letters queued.
+	 *
+	 * @param now The current time in milliseconds since the epoch.
+	 * @param sweep Where to count the letters removed and note the next expiry.
+	 */
+	protected abstract void expire(long now, Sweep sweep);
+
+	/**
+	 * Removes every letter that has expired.
+	 *
+	 * @param now The current time in milliseconds since the epoch.
+	 * @return What was removed, and when the next letter left expires.
+	 */
+	public Sweep removeExpired(long now){
+
+		lock.lock();
+
+		try {
+
+			Sweep sweep = new Sweep();
+
+			if(count > 0)
+				expire(now, sweep);
+
+			bytes -= sweep.bytes;
+
+			return sweep;
+
+		} finally {
+
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the oldest letter from a sender matching a filter.
+	 *
+	 * @param filter The filter, or null for any sender.
+	 * @return The letter, or null if there are none from a matching sender.
+	 */
+	public Letter poll(SenderFilter filter){
+
+		if(filter == null)
+			return poll();
+
+		lock.lock();
+
+		try {
+
+			String sender = filter.getSender() != null ? filter.getSender() : oldestMatching(filter);
+
+			return sender == null ? null : removed(dequeue(sender));
+
+		} finally {
+
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param filter The filter, or null for any sender.
+	 * @return True if a letter from a matching sender is queued.
+	 */
+	public boolean hasMail(SenderFilter filter){
+
+		if(filter == null)
+			return size() > 0;
+
+		lock.lock();
+
+		try {
+
+			if(filter.getSender() != null)
+				return arrival(filter.getSender()) >= 0;
+
+			for(String sender : senders()){
+
+				if(filter.matches(sender))
+					return true;
+			}
+
+			return false;
+
+		} finally {
+
+			lock.unlock();
+		}
+	}
+
+	private String oldestMatching(SenderFilter filter){
+
+		String oldest = null;
+		long oldestArrival = Long.MAX_VALUE;
+
+		for(String sender : senders()){
+
+			if(!filter.matches(sender))
+				continue;
+
+			long arrival = arrival(sender);
+
+			if(arrival < oldestArrival){
+
+				oldest = sender;
+				oldestArrival = arrival;
+			}
+		}
+
+		return oldest;
+	}
+
+	@Override
+	public boolean offer(Letter letter){
+
+		lock.lock();
+
+		try {
+
+			// Read first, as storing the letter may release its payload.
+			bytes += letter.getPayloadLength();
+
+			enqueue(letter);
+			notEmpty.signal();
+
+		} finally {
+
+			lock.unlock();
+		}
+
+		return true;
+	}
+
+	@Override
+	public Letter poll(){
+
+		lock.lock();
+
+		try {
+
+			return count == 0 ? null : removed(dequeue());
+
+		} finally {
+
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Letter peek(){
+
+		lock.lock();
+
+		try {
+
+			return count == 0 ? null : first();
+
+		} finally {
+
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Letter poll(long timeout, TimeUnit unit) throws InterruptedException {
+
+		long nanos = unit.toNanos(timeout);
+
+		lock.lockInterruptibly();
+
+		try {
+
+			while(count == 0){
+
+				if(nanos <= 0)
+					return null;
+
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+
+			return removed(dequeue());
+
+		} finally {
+
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Letter take() throws InterruptedException {
+
+		lock.lockInterruptibly();
+
+		try {
+
+			while(count == 0)
+				notEmpty.await();
+
+			return removed(dequeue());
+
+		} finally {
+
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size(){
+
+		lock.lock();
+
+		try {
+
+			return count;
+
+		} finally {
+
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The bytes of payload queued.
+	 */
+	public long getBytes(){
+
+		lock.lock();
+
+		try {
+
+			return bytes;
+
+		} finally {
+
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void clear(){
+
+		lock.lock();
+
+		try {
+
+			discard();
+			bytes = 0;
+
+		} finally {
+
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int drainTo(Collection<? super Letter> target){
+
+		return drainTo(target, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super Letter> target, int maxElements){
+
+		lock.lock();
+
+		try {
+
+			int drained = 0;
+
+			while(drained < maxElements && count > 0){
+
+				target.add(removed(dequeue()));
+				drained++;
+			}
+
+			return drained;
+
+		} finally {
+
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops counting the payload of a letter just dequeued, which may be null.
+	 */
+	private Letter removed(Letter letter){
+
+		if(letter != null)
+			bytes -= letter.getPayloadLength();
+
+		return letter;
+	}
+
+	@Override
+	public void put(Letter letter){
+
+		offer(letter);
+	}
+
+	@Override
+	public boolean offer(Letter letter, long timeout, TimeUnit unit){
+
+		return offer(letter);
+	}
+
+	@Override
+	public int remainingCapacity(){
+
+		return Integer.MAX_VALUE;
+	}
+
+	/**
+	 * The outcome of removing expired letters from a queue.
+	 */
+	static class Sweep {
+
+		int letters = 0;
+		long bytes = 0;
+
+		// When the earliest letter left expires, in milliseconds since the epoch.
+		long nextExpiry = Long.MAX_VALUE;
+
+		void removed(Letter letter){
+
+			letters++;
+			bytes += letter.getPayloadLength();
+		}
+
+		void kept(long expiry){
+
+			if(expiry != 0 && expiry < nextExpiry)
+				nextExpiry = expiry;
+		}
+	}
+}
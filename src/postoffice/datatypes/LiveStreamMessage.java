@@ -13,6 +13,11 @@ public class LiveStreamMessage extends Message {
 	
 	private UUID liveStreamId;
 	
+	// Where the requester of a brokered stream listens, and the token it expects.
+	private String host = null;
+	private int port = 0;
+	private byte[] token = null;
+	
 	public static enum MES {
 		
 		REQUEST,
@@ -31,6 +36,79 @@ public class LiveStreamMessage extends Message {
 		this.liveStreamId = liveStreamId;
 	}
 	
+	/**
+	 * Announces a brokered stream, whose partner connects to the requester directly.
+	 * 
+	 * @param liveStreamId The identifier of the stream.
+	 * @param participantA The requester.
+	 * @param participantB The partner.
+	 * @param host The host the requester listens on.
+	 * @param port The port the requester listens on.
+	 * @param token The token the partner presents on connecting.
+	 */
+	public LiveStreamMessage(UUID liveStreamId, String participantA, String participantB, String host, int port, byte[] token){
+		
+		this(liveStreamId, participantA, participantB);
+		
+		this.host = host;
+		this.port = port;
+		this.token = token;
+	}
+	
+	/**
+	 * Reads a live stream announcement out of a letter from
+	 * {@link postoffice.daemon.PostOffice#OFFICE_ADDRESS}, which a client demarshals as
+	 * whatever message type it uses for the rest of its mail.
+	 * 
+	 * @param announcement The letter, as received.
+	 * @return The announcement.
+	 */
+	public static LiveStreamMessage from(Message announcement){
+		
+		LiveStreamMessage lsm = new LiveStreamMessage(null, null, null);
+		lsm.initialize(announcement.getSender(), announcement.marshal());
+		
+		return lsm;
+	}
+	
+	public String getParticipantA(){
+		
+		return participantA;
+	}
+	
+	public String getParticipantB(){
+		
+		return participantB;
+	}
+	
+	public UUID getLiveStreamId(){
+		
+		return liveStreamId;
+	}
+	
+	/**
+	 * @return True if the partner may connect to the requester directly; see {@link #getHost()}.
+	 */
+	public boolean isBrokered(){
+		
+		return host != null;
+	}
+	
+	public String getHost(){
+		
+		return host;
+	}
+	
+	public int getPort(){
+		
+		return port;
+	}
+	
+	public byte[] getToken(){
+		
+		return token;
+	}
+	
 	@Override
 	public void demarshal(byte[] data) {
 		
@@ -43,6 +121,19 @@ public class LiveStreamMessage extends Message {
 			
 			liveStreamId = UUID.fromString(dis.readUTF());
 			
+			// Only brokered streams carry an endpoint.
+			if(dis.available() > 0){
+				
+				host = dis.readUTF();
+				port = Integer.parseInt(dis.readUTF());
+				
+				String hex = dis.readUTF();
+				token = new byte[hex.length() / 2];
+				
+				for(int i = 0; i < token.length; i++)
+					token[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+			}
+			
 		} catch (IOException e) {} // Cannot happen.
 	}
 
@@ -58,6 +149,20 @@ public class LiveStreamMessage extends Message {
 			dos.writeUTF(participantB);
 			
 			dos.writeUTF(liveStreamId.toString());
+			
+			// Everything is written as text, so that the announcement survives being
+			// demarshalled by a client as a text message and marshalled again.
+			if(host != null){
+				
+				StringBuilder hex = new StringBuilder();
+				
+				for(byte b : token)
+					hex.append(String.format("%02x", b & 0xFF));
+				
+				dos.writeUTF(host);
+				dos.writeUTF(Integer.toString(port));
+				dos.writeUTF(hex.toString());
+			}
 		
 		} catch (IOException e) {} // Cannot happen.
 		
@@ -0,0 +1,18 @@
+package postoffice.datatypes;
+
+/**
+ * Receives a one-shot notification when a letter is delivered to a mailbox.
+ * 
+ * Listeners are removed from the mailbox as soon as they are notified, and are
+ * invoked on the thread performing the delivery, so implementations should hand
+ * any real work off rather than performing it inline.
+ */
+public interface MailListener {
+
+	/**
+	 * Called after a letter has been placed in the mailbox.
+	 * 
+	 * @param mailbox The mailbox that received the letter.
+	 */
+	public void mailDelivered(Mailbox mailbox);
+}
@@ -0,0 +1,171 @@
+package postoffice.datatypes;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Limits how many letters, and how many bytes of payload, may wait in one mailbox or
+ * across all of them. Letters are charged against the quota as they are delivered and
+ * released as they are taken, and the policy decides what becomes of a letter that
+ * does not fit.
+ */
+public class MailQuota {
+
+	/**
+	 * What happens to a letter delivered to a full mailbox.
+	 */
+	public static enum Policy {
+
+		/** The sender waits for room, up to the post office's block timeout. */
+		BLOCK,
+
+		/** The letter is refused and the sender told the mailbox is full. */
+		REJECT,
+
+		/** The recipient's oldest letters are thrown away to make room. */
+		DROP_OLDEST
+	}
+
+	private long letterLimit;
+	private long byteLimit;
+	private Policy policy;
+
+	private long letters = 0;
+	private long bytes = 0;
+
+	private Queue<QuotaListener> listeners = new ConcurrentLinkedQueue<QuotaListener>();
+
+	/**
+	 * @param letterLimit The most letters allowed; zero or less means no limit.
+	 * @param byteLimit The most payload bytes allowed; zero or less means no limit.
+	 * @param policy What to do with letters that do not fit.
+	 */
+	public MailQuota(long letterLimit, long byteLimit, Policy policy){
+
+		this.letterLimit = letterLimit;
+		this.byteLimit = byteLimit;
+		this.policy = policy;
+	}
+
+	/**
+	 * @return An empty quota with the same limits and policy.
+	 */
+	public MailQuota copy(){
+
+		return new MailQuota(letterLimit, byteLimit, policy);
+	}
+
+	public Policy getPolicy(){
+
+		return policy;
+	}
+
+	public synchronized long getLetters(){
+
+		return letters;
+	}
+
+	public synchronized long getBytes(){
+
+		return bytes;
+	}
+
+	/**
+	 * @param size A payload size.
+	 * @return False if a letter of this size is over the limits even with nothing else queued.
+	 */
+	public boolean fits(long size){
+
+		return letterLimit != 0 && (byteLimit <= 0 || size <= byteLimit);
+	}
+
+	/**
+	 * @param size A payload size.
+	 * @return True if a letter of this size would currently be accepted.
+	 */
+	public synchronized boolean hasRoom(long size){
+
+		return (letterLimit <= 0 || letters < letterLimit) && (byteLimit <= 0 || bytes + size <= byteLimit);
+	}
+
+	/**
+	 * Charges a letter against the quota if it fits.
+	 *
+	 * @param size The payload size.
+	 * @return False, with nothing charged, if the letter does not fit.
+	 */
+	public synchronized boolean reserve(long size){
+
+		if(!hasRoom(size))
+			return false;
+
+		letters++;
+		bytes += size;
+
+		return true;
+	}
+
+	/**
+	 * Charges letters against the quota whether or not they fit, as when a backlog is
+	 * recovered from the journal.
+	 *
+	 * @param count The number of letters.
+	 * @param size Their total payload size.
+	 */
+	public synchronized void charge(long count, long size){
+
+		letters += count;
+		bytes += size;
+	}
+
+	/**
+	 * Gives back the room held by letters that have left the mailbox, and notifies the
+	 * listeners waiting for it.
+	 *
+	 * @param count The number of letters.
+	 * @param size Their total payload size.
+	 */
+	public void release(long count, long size){
+
+		synchronized(this){
+
+			letters -= count;
+			bytes -= size;
+		}
+
+		notifyListeners();
+	}
+
+	/**
+	 * Notifies the listeners registered so far, whether or not there is room. Used to
+	 * wake senders whose mailbox has gone away.
+	 */
+	public void notifyListeners(){
+
+		QuotaListener listener;
+
+		for(int waiting = listeners.size(); waiting > 0 && (listener = listeners.poll()) != null; waiting--)
+			listener.roomAvailable(this);
+	}
+
+	/**
+	 * Registers a listener to be notified the next time room is freed. Callers should
+	 * register first and then check for room again, as it may have been freed in between.
+	 *
+	 * @param listener The listener to notify once.
+	 */
+	public void addQuotaListener(QuotaListener listener){
+
+		listeners.add(listener);
+	}
+
+	/**
+	 * Removes a listener that has not yet been notified.
+	 *
+	 * @param listener The listener to remove.
+	 */
+	public void removeQuotaListener(QuotaListener listener){
+
+		listeners.remove(listener);
+	}
+}
@@ -1,57 +1,598 @@
 package postoffice.datatypes;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+import postoffice.exception.comm.MailboxFullException;
 import postoffice.exception.mailbox.MailboxInUseException;
+import postoffice.exception.mailbox.NonExistentMailboxException;
 import postoffice.exception.mailbox.UnauthorizedActionException;
+import postoffice.metrics.MailTraffic;
+import postoffice.persistence.MailJournal;
 
 public class Mailbox {
 
-	private Lock checkoutLock = new ReentrantLock();
-
-	private Thread lockHolder = null;
+	private static final Letter.Priority[] PRIORITIES = Letter.Priority.values();
+	
+	private static final int NORMAL = Letter.Priority.NORMAL.ordinal();
+	
+	// A waiting inbox is passed over for at most this many letters from those above it.
+	private static final int FAIRNESS = 16;
+	
+	// The holder is whatever object checked the mailbox out (normally the clerk serving
+	// the client). Ownership is not tied to a thread, so a single selector thread can
+	// serve many clerks each holding their own mailbox.
+	private AtomicReference<Object> lockHolder = new AtomicReference<Object>();
 
 	private String owner;
 	private byte[] passwordHash;
 
-	private LinkedBlockingQueue<Letter> inbox = new LinkedBlockingQueue<Letter>();
+	// Letters are kept in one lane per sender as well as in arrival order.
+	private LetterQueue inbox;
+	
+	// One inbox per priority, the normal one being the inbox above. The others are only
+	// created once a letter of their priority arrives, so until then none of the extra
+	// bookkeeping applies. Once they exist the inbox's monitor guards picking between them.
+	private LetterQueue[] inboxes = new LetterQueue[PRIORITIES.length];
+	private volatile boolean prioritized = false;
+	
+	// How many letters have been taken from higher inboxes while each waited.
+	private int[] passedOver = new int[PRIORITIES.length];
+	
+	private SlabPool slabs;
+	
+	private Queue<MailListener> listeners = new ConcurrentLinkedQueue<MailListener>();
+	
+	// Listeners waiting on one sender only, which later deliveries from others leave alone.
+	private ConcurrentMap<String, Queue<MailListener>> senderListeners = new ConcurrentHashMap<String, Queue<MailListener>>();
+	
+	// The topics whose letters are delivered here; see Topic.
+	private Set<String> topics = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	
+	// Null unless the post office persists its mailboxes.
+	private MailJournal journal;
+	
+	// Both null unless the post office limits queued mail. The shared quota spans every
+	// mailbox; this mailbox's own quota counts its letters even when it has no limits.
+	private MailQuota quota;
+	private MailQuota sharedQuota;
+	
+	// The sweeper for expired letters, and the earliest expiry it will wake this mailbox
+	// for. Set once a letter with a time to live has been queued.
+	private volatile ExpiryWheel expiryWheel = null;
+	private AtomicLong nextExpiry = new AtomicLong(Long.MAX_VALUE);
+	private volatile boolean expiring = false;
+	
+	// Null unless the letters in and out are counted.
+	private volatile MailTraffic traffic = null;
+	
+	private volatile boolean destroyed = false;
 
 	public Mailbox(String owner, byte[] passwordHash){
 
+		this(owner, passwordHash, null, null, null, null);
+	}
+	
+	/**
+	 * @param owner The mailbox identifier.
+	 * @param passwordHash A hash of the mailbox password.
+	 * @param journal The journal recording deliveries and removals, or null to keep mail only in memory.
+	 * @param slabs The pool to queue letters off-heap in, or null to queue them on the heap.
+	 * @param limits The limits on this mailbox, copied into a quota of its own, or null for none.
+	 * @param sharedQuota The quota shared by every mailbox, or null for none.
+	 */
+	public Mailbox(String owner, byte[] passwordHash, MailJournal journal, SlabPool slabs, MailQuota limits, MailQuota sharedQuota){
+
 		this.owner = owner;
 		this.passwordHash = passwordHash;
+		this.journal = journal;
+		this.sharedQuota = sharedQuota;
+		
+		if(limits != null)
+			quota = limits.copy();
+		else if(sharedQuota != null)
+			quota = new MailQuota(0, 0, MailQuota.Policy.REJECT);
+		
+		this.slabs = slabs;
+		
+		inbox = newInbox();
+		inboxes[NORMAL] = inbox;
+	}
+	
+	private LetterQueue newInbox(){
+		
+		if(slabs == null)
+			return new HeapLetterQueue();
+		
+		return new OffHeapLetterQueue(owner, slabs);
+	}
+	
+	/**
+	 * Returns the inbox for letters of a priority, creating it if need be. Only called
+	 * holding the inbox's monitor, or before the mailbox is shared.
+	 */
+	private LetterQueue inbox(Letter.Priority priority){
+		
+		LetterQueue queue = inboxes[priority.ordinal()];
+		
+		if(queue == null){
+			
+			inboxes[priority.ordinal()] = queue = newInbox();
+			prioritized = true;
+		}
+		
+		return queue;
+	}
+	
+	/**
+	 * Picks the priority to take the next letter from: the highest with mail waiting,
+	 * unless one below it has been passed over too often. Called holding the inbox's
+	 * monitor once there are several priorities.
+	 * 
+	 * @return The priority, or -1 if there is no mail.
+	 */
+	private int nextPriority(){
+		
+		int highest = -1;
+		int starved = -1;
+		
+		for(int level = inboxes.length - 1; level >= 0; level--){
+			
+			if(inboxes[level] == null || inboxes[level].size() == 0)
+				continue;
+			
+			if(highest < 0)
+				highest = level;
+			else if(starved < 0 && passedOver[level] >= FAIRNESS)
+				starved = level;
+		}
+		
+		int chosen = starved >= 0 ? starved : highest;
+		
+		if(chosen < 0)
+			return -1;
+		
+		passedOver[chosen] = 0;
+		
+		for(int level = chosen - 1; level >= 0; level--){
+			
+			if(inboxes[level] != null && inboxes[level].size() > 0)
+				passedOver[level]++;
+		}
+		
+		return chosen;
 	}
 
+	/**
+	 * Takes the next letter, passing over any that have expired. Letters of a higher
+	 * priority are taken first, oldest first within each priority.
+	 * 
+	 * @return The letter, or null if none is queued.
+	 */
 	public Letter popMessage(){
+		
+		Letter letter;
+		
+		do {
+			
+			letter = takeNext();
+			
+		} while(expired(letter));
+		
+		return counted(letter);
+	}
+	
+	/**
+	 * Takes the next letter, whether or not it has expired.
+	 */
+	private Letter takeNext(){
 	
-		return inbox.poll();
+		if(!prioritized){
+			
+			if(journal == null)
+				return taken(inbox.poll(), NORMAL);
+			
+			synchronized(inbox){
+				
+				if(!prioritized)
+					return taken(inbox.poll(), NORMAL);
+			}
+		}
+		
+		synchronized(inbox){
+			
+			int level = nextPriority();
+			
+			return level < 0 ? null : taken(inboxes[level].poll(), level);
+		}
 	}
 	
-	public Letter peekMessage(long timeout, TimeUnit tu){
+	/**
+	 * Takes the oldest letter of the lowest priority, whether or not it has expired, to
+	 * make room for another.
+	 */
+	private Letter takeLowest(){
+		
+		if(!prioritized)
+			return takeNext();
 		
-		try {
-			return inbox.poll(timeout, tu);
-		} catch (InterruptedException e) {
+		synchronized(inbox){
+			
+			for(int level = 0; level < inboxes.length; level++){
+				
+				if(inboxes[level] != null && inboxes[level].size() > 0)
+					return taken(inboxes[level].poll(), level);
+			}
+			
 			return null;
 		}
 	}
 	
+	public Letter peekMessage(long timeout, TimeUnit tu){
+		
+		return popMessage(timeout, tu);
+	}
+	
 	public Letter popMessage(long timeout, TimeUnit tu){
 		
-		try {
-			return inbox.poll(timeout, tu);
-		} catch (InterruptedException e) {
-			return null;
+		return popMessage(null, timeout, tu);
+	}
+	
+	/**
+	 * Takes the oldest letter from a sender matching a filter, leaving the letters from
+	 * other senders queued. A filter naming one exact sender goes straight to that
+	 * sender's letters.
+	 * 
+	 * @param filter The senders of the letter wanted, or null for any sender.
+	 * @return The letter, or null if no matching letter is queued.
+	 */
+	public Letter popMessage(SenderFilter filter){
+		
+		if(filter == null)
+			return popMessage();
+		
+		Letter letter;
+		
+		do {
+			
+			letter = takeOldest(filter);
+			
+		} while(expired(letter));
+		
+		return counted(letter);
+	}
+	
+	/**
+	 * Takes the oldest letter from a sender matching a filter, of the highest priority
+	 * any such letter has, whether or not it has expired.
+	 */
+	private Letter takeOldest(SenderFilter filter){
+		
+		if(journal == null && !prioritized)
+			return released(inbox.poll(filter));
+		
+		synchronized(inbox){
+			
+			Letter letter = null;
+			
+			for(int level = inboxes.length - 1; level >= 0 && letter == null; level--){
+				
+				if(inboxes[level] != null)
+					letter = inboxes[level].poll(filter);
+			}
+			
+			if(letter != null && journal != null)
+				journal.letterTaken(owner, letter.getSender());
+			
+			return released(letter);
+		}
+	}
+	
+	/**
+	 * Takes the oldest letter from a sender matching a filter, waiting for one to be
+	 * delivered if there is none yet. Waiting on an exact sender is only woken by that
+	 * sender's deliveries.
+	 * 
+	 * @param filter The senders of the letter wanted, or null for any sender.
+	 * @param timeout How long to wait.
+	 * @param tu The unit of the timeout.
+	 * @return The letter, or null if none arrived in time.
+	 */
+	public Letter popMessage(SenderFilter filter, long timeout, TimeUnit tu){
+		
+		long deadline = System.nanoTime() + tu.toNanos(timeout);
+		
+		Letter first = popMessage(filter);
+		
+		if(first != null)
+			return first;
+		
+		
+		while(true){
+			
+			final CountDownLatch delivered = new CountDownLatch(1);
+			
+			MailListener listener = new MailListener() {
+				
+				@Override
+				public void mailDelivered(Mailbox mailbox) {
+					
+					delivered.countDown();
+				}
+			};
+			
+			// Registered first so that a delivery racing the pop is not missed.
+			addMailListener(listener, filter);
+			
+			Letter letter = popMessage(filter);
+			
+			try {
+				
+				long remaining = deadline - System.nanoTime();
+				
+				if(letter != null || remaining <= 0 || !delivered.await(remaining, TimeUnit.NANOSECONDS)){
+					
+					removeMailListener(listener, filter);
+					return letter;
+				}
+				
+			} catch (InterruptedException e) {
+				
+				removeMailListener(listener, filter);
+				return null;
+			}
 		}
 	}
 	
+	/**
+	 * Returns whether a letter from a sender matching a filter is waiting.
+	 * 
+	 * @param filter The senders wanted, or null for any sender.
+	 * @return True if such a letter is queued.
+	 */
+	public boolean hasMail(SenderFilter filter){
+		
+		if(!prioritized)
+			return inbox.hasMail(filter);
+		
+		synchronized(inbox){
+			
+			for(LetterQueue queue : inboxes){
+				
+				if(queue != null && queue.hasMail(filter))
+					return true;
+			}
+			
+			return false;
+		}
+	}
+	
+	/**
+	 * Advances the journaled consumer offset of a priority past a letter just removed from
+	 * its inbox.
+	 */
+	private Letter taken(Letter letter, int level){
+		
+		if(letter != null && journal != null)
+			journal.lettersTaken(owner, PRIORITIES[level], 1);
+		
+		return released(letter);
+	}
+	
+	/**
+	 * Releases a letter just removed from the inbox if it has expired.
+	 * 
+	 * @return True if it had, and has to be passed over.
+	 */
+	private static boolean expired(Letter letter){
+		
+		if(letter == null || letter.getExpiry() == 0 || !letter.hasExpired(System.currentTimeMillis()))
+			return false;
+		
+		letter.release();
+		
+		return true;
+	}
+	
+	/**
+	 * Counts a letter about to be handed out, which may be null.
+	 */
+	private Letter counted(Letter letter){
+		
+		MailTraffic counters = traffic;
+		
+		if(letter != null && counters != null)
+			counters.taken(1);
+		
+		return letter;
+	}
+	
+	/**
+	 * Gives back the room held by a letter just removed from the inbox.
+	 */
+	private Letter released(Letter letter){
+		
+		if(letter != null && quota != null)
+			unreserve(1, letter.getPayloadLength());
+		
+		return letter;
+	}
+	
+	/**
+	 * Removes up to a number of letters or bytes of payload in the order they would be
+	 * popped. When only the letter count is limited and every letter has the same
+	 * priority, the queue is drained in a single operation.
+	 * 
+	 * @param target The collection receiving the letters.
+	 * @param maxLetters The maximum number of letters to remove.
+	 * @param maxBytes The payload budget; the last letter may exceed it. Zero or less means no limit.
+	 * @return The number of letters added to the collection. Expired letters are removed
+	 * but left out, so this may be zero with mail still queued.
+	 */
+	public int drainMessages(Collection<? super Letter> target, int maxLetters, long maxBytes){
+		
+		// Letters are counted out one at a time so that their room can be given back.
+		if(quota != null && maxBytes <= 0)
+			maxBytes = Long.MAX_VALUE;
+		
+		int count = 0;
+		
+		if(!expiring)
+			count = drain(target, maxLetters, maxBytes);
+		else {
+			
+			List<Letter> drained = new ArrayList<Letter>();
+			
+			drain(drained, maxLetters, maxBytes);
+			
+			for(Letter letter : drained){
+				
+				if(!expired(letter)){
+					
+					target.add(letter);
+					count++;
+				}
+			}
+		}
+		
+		MailTraffic counters = traffic;
+		
+		if(count > 0 && counters != null)
+			counters.taken(count);
+		
+		return count;
+	}
+	
+	private int drain(Collection<? super Letter> target, int maxLetters, long maxBytes){
+		
+		if(journal == null && !prioritized)
+			return maxBytes <= 0 ? inbox.drainTo(target, maxLetters) : drainBytes(target, maxLetters, maxBytes);
+		
+		synchronized(inbox){
+			
+			if(prioritized)
+				return drainPrioritized(target, maxLetters, maxBytes);
+			
+			int count = maxBytes <= 0 ? inbox.drainTo(target, maxLetters) : drainBytes(target, maxLetters, maxBytes);
+			
+			if(count > 0)
+				journal.lettersTaken(owner, Letter.Priority.NORMAL, count);
+			
+			return count;
+		}
+	}
+	
+	/**
+	 * Drains letters one at a time, each from the inbox it would be popped from. Called
+	 * holding the inbox's monitor.
+	 */
+	private int drainPrioritized(Collection<? super Letter> target, int maxLetters, long maxBytes){
+		
+		int[] taken = new int[inboxes.length];
+		
+		int count = 0;
+		long bytes = 0;
+		
+		while(count < maxLetters && (maxBytes <= 0 || bytes < maxBytes)){
+			
+			int level = nextPriority();
+			
+			if(level < 0)
+				break;
+			
+			Letter letter = inboxes[level].poll();
+			
+			target.add(letter);
+			taken[level]++;
+			
+			count++;
+			bytes += letter.getPayloadLength();
+		}
+		
+		if(journal != null){
+			
+			for(int level = 0; level < taken.length; level++){
+				
+				if(taken[level] > 0)
+					journal.lettersTaken(owner, PRIORITIES[level], taken[level]);
+			}
+		}
+		
+		if(quota != null && count > 0)
+			unreserve(count, bytes);
+		
+		return count;
+	}
+	
+	private int drainBytes(Collection<? super Letter> target, int maxLetters, long maxBytes){
+		
+		int count = 0;
+		long bytes = 0;
+		
+		while(count < maxLetters && bytes < maxBytes){
+			
+			Letter letter = inbox.poll();
+			
+			if(letter == null)
+				break;
+			
+			target.add(letter);
+			
+			count++;
+			bytes += letter.getPayloadLength();
+		}
+		
+		if(quota != null && count > 0)
+			unreserve(count, bytes);
+		
+		return count;
+	}
+	
 	public int getQueueSize(){
 	
-		return inbox.size();
+		if(!prioritized)
+			return inbox.size();
+		
+		int size = 0;
+		
+		for(LetterQueue queue : inboxes){
+			
+			if(queue != null)
+				size += queue.size();
+		}
+		
+		return size;
+	}
+	
+	/**
+	 * @return The bytes of payload waiting in the mailbox.
+	 */
+	public long getQueuedBytes(){
+		
+		if(!prioritized)
+			return inbox.getBytes();
+		
+		long bytes = 0;
+		
+		for(LetterQueue queue : inboxes){
+			
+			if(queue != null)
+				bytes += queue.getBytes();
+		}
+		
+		return bytes;
 	}
 	
 	public String getOwner(){
@@ -60,13 +601,492 @@ public class Mailbox {
 	}
 	
 	/**
-	 * Puts the message in the message queue of the mailbox to be picked up later.
+	 * Returns whether the mailbox has been removed from the post office. A reference to
+	 * a destroyed mailbox is stale; one with the same owner may have been created since.
+	 * 
+	 * @return True if the mailbox has been destroyed.
+	 */
+	public boolean isDestroyed(){
+		
+		return destroyed;
+	}
+	
+	/**
+	 * Puts the message in the message queue of the mailbox to be picked up later. Under
+	 * the {@link MailQuota.Policy#BLOCK} policy this waits for room if the mailbox is full.
+	 * 
+	 * @param letter The letter to put in the message queue.
+	 * @param timeout How long to wait for room.
+	 * @param unit The unit of the timeout.
+	 * @throws MailboxFullException Thrown if the letter is refused, or there is still no room once the timeout passes.
+	 * @throws NonExistentMailboxException Thrown if the mailbox has been destroyed.
+	 */
+	public void deliver(Letter letter, long timeout, TimeUnit unit) throws MailboxFullException, NonExistentMailboxException {
+		
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		
+		while(true){
+			
+			final CountDownLatch room = new CountDownLatch(1);
+			
+			QuotaListener listener = new QuotaListener() {
+				
+				@Override
+				public void roomAvailable(MailQuota quota) {
+					
+					room.countDown();
+				}
+			};
+			
+			if(offer(letter, listener))
+				return;
+			
+			try {
+				
+				long remaining = deadline - System.nanoTime();
+				
+				if(remaining > 0 && room.await(remaining, TimeUnit.NANOSECONDS))
+					continue;
+				
+			} catch (InterruptedException e) {
+				
+				Thread.currentThread().interrupt();
+			}
+			
+			removeQuotaListener(listener);
+			
+			throw new MailboxFullException("Timed out waiting for room in the mailbox '" + owner + "'.");
+		}
+	}
+	
+	/**
+	 * Puts the message in the message queue of the mailbox without waiting. If the
+	 * mailbox is full under the {@link MailQuota.Policy#BLOCK} policy the listener is
+	 * registered instead, to be notified once letters have been taken out.
 	 * 
 	 * @param letter The letter to put in the message queue.
+	 * @param listener The listener to register if the letter has to wait, or null to refuse it instead.
+	 * @return True if the letter was delivered, false if it has to wait.
+	 * @throws MailboxFullException Thrown if the letter is refused.
+	 * @throws NonExistentMailboxException Thrown if the mailbox has been destroyed.
 	 */
-	public void deliver(Letter letter){
+	public boolean offer(Letter letter, QuotaListener listener) throws MailboxFullException, NonExistentMailboxException {
+		
+		if(quota == null){
+			
+			checkDestroyed();
+			add(letter);
+			
+			return true;
+		}
+		
+		int size = letter.getPayloadLength();
+		
+		while(true){
+			
+			checkDestroyed();
+			
+			MailQuota full = reserve(size);
+			
+			if(full == null){
+				
+				add(letter);
+				return true;
+			}
+			
+			if(!full.fits(size))
+				throw new MailboxFullException("The letter to '" + owner + "' is larger than its quota allows.");
+			
+			switch(full.getPolicy()){
+				
+				case DROP_OLDEST:
+					
+					Letter oldest = takeLowest();
+					
+					if(oldest == null)
+						break; // The shared quota is held by other mailboxes.
+					
+					oldest.release();
+					continue;
+					
+				case BLOCK:
+					
+					if(listener == null)
+						break;
+					
+					full.addQuotaListener(listener);
+					
+					// Room may have been freed before the listener was registered.
+					if(!full.hasRoom(size) && !destroyed)
+						return false;
+					
+					full.removeQuotaListener(listener);
+					continue;
+					
+				default:
+					
+					break;
+			}
+			
+			throw new MailboxFullException("The mailbox '" + owner + "' is full.");
+		}
+	}
+	
+	private void add(Letter letter){
 
-		inbox.add(letter);
+		if(letter.getExpiry() != 0)
+			expiresAt(letter.getExpiry());
+		
+		if(journal == null && letter.getPriority() == Letter.Priority.NORMAL)
+			inbox.add(letter);
+		else {
+			
+			// The journal must see letters in the same order as the inbox, and the inboxes
+			// of other priorities are created under its monitor.
+			synchronized(inbox){
+				
+				if(journal != null)
+					journal.letterDelivered(letter);
+				
+				inbox(letter.getPriority()).add(letter);
+			}
+		}
+		
+		MailTraffic counters = traffic;
+		
+		if(counters != null)
+			counters.delivered();
+		
+		notifyListeners(listeners);
+		
+		Queue<MailListener> waiting = senderListeners.get(letter.getSender());
+		
+		if(waiting != null){
+			
+			notifyListeners(waiting);
+			
+			// Dropped once nobody is waiting. The map's lock keeps a listener from joining
+			// a queue as it is being dropped.
+			synchronized(senderListeners){
+				
+				if(waiting.isEmpty())
+					senderListeners.remove(letter.getSender(), waiting);
+			}
+		}
+	}
+	
+	/**
+	 * Makes sure the expiry wheel wakes this mailbox by the time a letter expires.
+	 */
+	private void expiresAt(long expiry){
+		
+		expiring = true;
+		
+		long next;
+		
+		do {
+			
+			next = nextExpiry.get();
+			
+			if(expiry >= next)
+				return;
+			
+		} while(!nextExpiry.compareAndSet(next, expiry));
+		
+		ExpiryWheel wheel = expiryWheel;
+		
+		if(wheel != null)
+			wheel.schedule(this, expiry);
+	}
+	
+	/**
+	 * Sets the wheel that sweeps this mailbox of expired letters.
+	 * 
+	 * @param wheel The expiry wheel.
+	 */
+	public void setExpiryWheel(ExpiryWheel wheel){
+		
+		expiryWheel = wheel;
+		
+		// Letters restored from the journal may already be waiting to expire.
+		long next = nextExpiry.get();
+		
+		if(next != Long.MAX_VALUE)
+			wheel.schedule(this, next);
+	}
+	
+	/**
+	 * Sets the counters of letters delivered to and taken from this mailbox. Letters
+	 * restored from the journal are not counted.
+	 * 
+	 * @param traffic The counters, usually shared by every mailbox in the post office.
+	 */
+	public void setTraffic(MailTraffic traffic){
+		
+		this.traffic = traffic;
+	}
+	
+	/**
+	 * Removes every expired letter from the mailbox, wherever it is queued, and gives back
+	 * its room. Called by the expiry wheel; does nothing if no letter is due yet.
+	 * 
+	 * @param now The current time in milliseconds since the epoch.
+	 */
+	public void expire(long now){
+		
+		if(destroyed || nextExpiry.get() > now)
+			return;
+		
+		// Letters delivered from here on schedule the mailbox again if they need to.
+		nextExpiry.set(Long.MAX_VALUE);
+		
+		LetterQueue.Sweep sweep;
+		
+		if(journal == null && !prioritized)
+			sweep = inbox.removeExpired(now);
+		else {
+			
+			synchronized(inbox){
+				
+				sweep = inbox.removeExpired(now);
+				
+				for(LetterQueue queue : inboxes){
+					
+					if(queue == null || queue == inbox)
+						continue;
+					
+					LetterQueue.Sweep more = queue.removeExpired(now);
+					
+					sweep.letters += more.letters;
+					sweep.bytes += more.bytes;
+					sweep.nextExpiry = Math.min(sweep.nextExpiry, more.nextExpiry);
+				}
+				
+				if(journal != null && sweep.letters > 0)
+					journal.lettersExpired(owner, now);
+			}
+		}
+		
+		if(quota != null && sweep.letters > 0)
+			unreserve(sweep.letters, sweep.bytes);
+		
+		if(sweep.nextExpiry != Long.MAX_VALUE)
+			expiresAt(sweep.nextExpiry);
+	}
+	
+	private void notifyListeners(Queue<MailListener> queue){
+		
+		MailListener listener;
+		
+		// Only notify those registered before this delivery; listeners that register
+		// again from the callback are left for the next one.
+		for(int waiting = queue.size(); waiting > 0 && (listener = queue.poll()) != null; waiting--)
+			listener.mailDelivered(this);
+	}
+	
+	/**
+	 * Charges a letter against this mailbox's quota and the shared one.
+	 * 
+	 * @return Null if the letter was charged, otherwise the quota it did not fit in.
+	 */
+	private MailQuota reserve(int size){
+		
+		if(!quota.reserve(size))
+			return quota;
+		
+		if(sharedQuota != null && !sharedQuota.reserve(size)){
+			
+			quota.release(1, size);
+			return sharedQuota;
+		}
+		
+		return null;
+	}
+	
+	private void unreserve(long count, long bytes){
+		
+		quota.release(count, bytes);
+		
+		if(sharedQuota != null)
+			sharedQuota.release(count, bytes);
+	}
+	
+	/**
+	 * Removes a listener registered by {@link #offer(Letter, QuotaListener)} that has not
+	 * yet been notified.
+	 * 
+	 * @param listener The listener to remove.
+	 */
+	public void removeQuotaListener(QuotaListener listener){
+		
+		if(quota != null)
+			quota.removeQuotaListener(listener);
+		
+		if(sharedQuota != null)
+			sharedQuota.removeQuotaListener(listener);
+	}
+	
+	private void checkDestroyed() throws NonExistentMailboxException {
+		
+		if(destroyed)
+			throw new NonExistentMailboxException("The mailbox '" + owner + "' has been destroyed.");
+	}
+	
+	/**
+	 * Throws away the letters of a mailbox being removed from the post office, giving back
+	 * their room in the shared quota. Senders waiting for room are woken and find the
+	 * mailbox gone.
+	 */
+	public void destroy(){
+		
+		destroyed = true;
+		
+		clear();
+		
+		if(quota != null)
+			quota.notifyListeners();
+	}
+	
+	/**
+	 * Puts a letter recovered from the journal back in the message queue, without
+	 * journaling it again or notifying listeners.
+	 * 
+	 * @param letter The recovered letter.
+	 */
+	public void restore(Letter letter){
+		
+		if(quota != null){
+			
+			quota.charge(1, letter.getPayloadLength());
+			
+			if(sharedQuota != null)
+				sharedQuota.charge(1, letter.getPayloadLength());
+		}
+		
+		if(letter.getExpiry() != 0)
+			expiresAt(letter.getExpiry());
+		
+		inbox(letter.getPriority()).add(letter);
+	}
+	
+	/**
+	 * Records that this mailbox receives the letters published to a topic. The topic
+	 * itself is kept by the post office.
+	 * 
+	 * @param topic The topic name.
+	 * @return False if the mailbox was already subscribed.
+	 */
+	public boolean subscribe(String topic){
+		
+		if(!topics.add(topic))
+			return false;
+		
+		if(journal != null)
+			journal.mailboxSubscribed(owner, topic);
+		
+		return true;
+	}
+	
+	/**
+	 * @param topic The topic name.
+	 * @return False if the mailbox was not subscribed.
+	 */
+	public boolean unsubscribe(String topic){
+		
+		if(!topics.remove(topic))
+			return false;
+		
+		if(journal != null)
+			journal.mailboxUnsubscribed(owner, topic);
+		
+		return true;
+	}
+	
+	/**
+	 * @return The names of the topics this mailbox is subscribed to.
+	 */
+	public Set<String> getTopics(){
+		
+		return Collections.unmodifiableSet(topics);
+	}
+	
+	/**
+	 * Puts back a subscription recovered from the journal, without journaling it again.
+	 * 
+	 * @param topic The topic name.
+	 */
+	public void restoreSubscription(String topic){
+		
+		topics.add(topic);
+	}
+	
+	/**
+	 * Registers a listener to be notified of the next delivery to this mailbox. Callers
+	 * waiting for mail should register first and then check the queue again, as a letter
+	 * may have arrived in between.
+	 * 
+	 * @param listener The listener to notify once.
+	 */
+	public void addMailListener(MailListener listener){
+		
+		listeners.add(listener);
+	}
+	
+	/**
+	 * Registers a listener to be notified of the next delivery from a sender matching a
+	 * filter. Only a filter naming one exact sender is woken by that sender's deliveries
+	 * alone; any other filter is woken by every delivery, and its listener has to check.
+	 * 
+	 * @param listener The listener to notify once.
+	 * @param filter The senders waited for, or null for any sender.
+	 */
+	public void addMailListener(MailListener listener, SenderFilter filter){
+		
+		if(filter == null || filter.getSender() == null){
+			
+			addMailListener(listener);
+			return;
+		}
+		
+		synchronized(senderListeners){
+			
+			Queue<MailListener> waiting = senderListeners.get(filter.getSender());
+			
+			if(waiting == null)
+				senderListeners.put(filter.getSender(), waiting = new ConcurrentLinkedQueue<MailListener>());
+			
+			waiting.add(listener);
+		}
+	}
+	
+	/**
+	 * Removes a listener that has not yet been notified.
+	 * 
+	 * @param listener The listener to remove.
+	 */
+	public void removeMailListener(MailListener listener){
+		
+		listeners.remove(listener);
+	}
+	
+	/**
+	 * Removes a listener registered with a filter that has not yet been notified.
+	 * 
+	 * @param listener The listener to remove.
+	 * @param filter The filter it was registered with.
+	 */
+	public void removeMailListener(MailListener listener, SenderFilter filter){
+		
+		if(filter == null || filter.getSender() == null){
+			
+			removeMailListener(listener);
+			return;
+		}
+		
+		Queue<MailListener> waiting = senderListeners.get(filter.getSender());
+		
+		if(waiting != null)
+			waiting.remove(listener);
 	}
 
 	/**
@@ -76,24 +1096,96 @@ public class Mailbox {
 	 */
 	public void empty() throws UnauthorizedActionException{
 
-		if(this.holdingMailbox())
-			inbox.clear();
-		else
+		empty(Thread.currentThread());
+	}
+	
+	/**
+	 * Clears all messages from the mailbox.
+	 * 
+	 * @param holder The object that checked out the mailbox.
+	 * @throws UnauthorizedActionException Thrown if the holder has not checked out the mailbox.
+	 */
+	public void empty(Object holder) throws UnauthorizedActionException{
+
+		if(!this.holdingMailbox(holder))
 			throw new UnauthorizedActionException("Attempted to clear the mailbox '"
-					+ this.owner + "' not presently held by the calling thread.");
+					+ this.owner + "' not presently held by the caller.");
+		
+		// Draining the prioritized inboxes takes the lock, and a clear racing it would
+		// leave it peeking at letters already gone.
+		if(journal == null && !prioritized)
+			clear();
+		else {
+			
+			synchronized(inbox){
+				
+				clear();
+				
+				if(journal != null)
+					journal.mailboxEmptied(owner);
+			}
+		}
+	}
+	
+	private void clear(){
+		
+		// Each letter's room is given back exactly, even with deliveries racing the clear.
+		Letter letter;
+		
+		int count = 0;
+		long bytes = 0;
+		
+		// Reading the flag makes the inboxes created before it was set visible.
+		for(int level = prioritized ? 0 : NORMAL; level < inboxes.length; level++){
+			
+			LetterQueue queue = inboxes[level];
+			
+			while(queue != null && (letter = queue.poll()) != null){
+				
+				count++;
+				bytes += letter.getPayloadLength();
+				
+				letter.release();
+			}
+		}
+		
+		if(quota != null && count > 0)
+			unreserve(count, bytes);
 	}
 
 	public void checkout(byte[] passwordHash) throws UnauthorizedActionException, MailboxInUseException {
 
+		checkout(passwordHash, Thread.currentThread());
+	}
+	
+	/**
+	 * Checks out the mailbox on behalf of a holder.
+	 * 
+	 * @param passwordHash A hash of the password for the mailbox.
+	 * @param holder The object taking ownership of the mailbox.
+	 * @throws UnauthorizedActionException Thrown if the password is incorrect.
+	 * @throws MailboxInUseException Thrown if the mailbox has already been checked out.
+	 */
+	public void checkout(byte[] passwordHash, Object holder) throws UnauthorizedActionException, MailboxInUseException {
+
 		if(!Arrays.equals(this.passwordHash, passwordHash))
 			throw new UnauthorizedActionException("Bad credentials to mailbox '" + this.owner + "'.");
 
-		if(checkoutLock.tryLock())
-			lockHolder = Thread.currentThread();
-		else
+		if(!lockHolder.compareAndSet(null, holder))
 			throw new MailboxInUseException("The mailbox '" + this.owner + "' is currently in use.");
 	}
 
+	/**
+	 * Checks a password against the mailbox's without checking the mailbox out.
+	 * 
+	 * @param passwordHash A hash of the password.
+	 * @return True if the password is the mailbox's, false otherwise.
+	 */
+	public boolean authenticate(byte[] passwordHash){
+
+		return Arrays.equals(this.passwordHash, passwordHash);
+	}
+
 	/**
 	 * Attempts to return or release a mailbox currently possessed by the calling thread.
 	 * 
@@ -101,15 +1193,20 @@ public class Mailbox {
 	 */
 	public void release() throws UnauthorizedActionException {
 
-		try {
+		release(Thread.currentThread());
+	}
+	
+	/**
+	 * Attempts to return or release a mailbox currently possessed by a holder.
+	 * 
+	 * @param holder The object that checked out the mailbox.
+	 * @throws UnauthorizedActionException Thrown if the holder has not checked out the mailbox.
+	 */
+	public void release(Object holder) throws UnauthorizedActionException {
 
-			checkoutLock.unlock();
-			lockHolder = null;
-		}
-		catch(IllegalMonitorStateException e){
+		if(holder == null || !lockHolder.compareAndSet(holder, null))
 			throw new UnauthorizedActionException("Attempted to release the mailbox '"
-					+ this.owner +  "' not presently held by the calling thread.");
-		}
+					+ this.owner +  "' not presently held by the caller.");
 	}
 
 	/**
@@ -119,7 +1216,18 @@ public class Mailbox {
 	 */
 	public boolean holdingMailbox(){
 
-		return Thread.currentThread().equals(lockHolder);
+		return holdingMailbox(Thread.currentThread());
+	}
+	
+	/**
+	 * Returns whether a holder is the one who has presently checked out this mailbox.
+	 * 
+	 * @param holder The object to check ownership for.
+	 * @return True if the holder has checked out the box, false otherwise.
+	 */
+	public boolean holdingMailbox(Object holder){
+
+		return holder != null && holder == lockHolder.get();
 	}
 
 	/**
@@ -129,6 +1237,6 @@ public class Mailbox {
 	 */
 	public boolean isCheckedOut(){
 
-		return lockHolder != null;
+		return lockHolder.get() != null;
 	}
 }
@@ -0,0 +1,419 @@
+package postoffice.datatypes;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link LetterQueue} of letters kept in direct buffer slabs rather than on the heap. Each
+ * letter is stored as <code>&lt;2-byte sender length&gt;&lt;4-byte payload length&gt;&lt;sender&gt;&lt;payload&gt;</code>;
+ * the recipient is always the mailbox owner and is not stored. A queued letter therefore
+ * costs the garbage collector nothing, and {@link Letter} objects are only created again
+ * as letters are taken.
+ *
+ * Letters are appended to the last slab and read from the first. A slab goes back to the
+ * pool as soon as it has been read through, and the queue holds no slabs at all once empty.
+ * A letter taken from the middle of the queue is only marked as removed, by setting the
+ * top bit of its payload length, and is skipped once reading reaches it.
+ *
+ * A letter with a time to live sets the next bit of its payload length as well, and has
+ * its 8-byte expiry between the header and the sender, so that letters without one pay
+ * nothing for it.
+ *
+ * A sender's lane holds the locations of its letters, each packed into a long as the
+ * slab's sequence number and the letter's offset within it. Locations grow with every
+ * letter appended, so they also give the order letters arrived in.
+ */
+class OffHeapLetterQueue extends LetterQueue {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int HEADER = 6;
+
+	private static final int REMOVED = 0x80000000;
+
+	private static final int EXPIRES = 0x40000000;
+
+	private static final int LENGTH = ~(REMOVED | EXPIRES);
+
+	private String recipient;
+	private SlabPool pool;
+
+	// Each slab's position and limit bound the letters not yet read from it. The writer
+	// is a second view of the last slab, positioned where the next letter goes. The first
+	// slab has sequence number firstSlab, and the rest follow on from it.
+	private List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+	private ByteBuffer writer = null;
+	private long firstSlab = 0;
+
+	private Map<String, Lane> lanes = new HashMap<String, Lane>();
+
+	OffHeapLetterQueue(String recipient, SlabPool pool){
+
+		this.recipient = recipient;
+		this.pool = pool;
+	}
+
+	@Override
+	protected void enqueue(Letter letter){
+
+		byte[] sender = letter.getSender().getBytes(UTF8);
+		ByteBuffer payload = letter.getPayloadBuffer();
+
+		long expiry = letter.getExpiry();
+
+		int length = HEADER + (expiry != 0 ? 8 : 0) + sender.length + payload.remaining();
+
+		if(writer == null || writer.remaining() < length){
+
+			ByteBuffer slab = pool.acquire(length);
+			slab.limit(0);
+
+			writer = slab.duplicate();
+			writer.clear();
+
+			slabs.add(slab);
+		}
+
+		long location = (firstSlab + slabs.size() - 1) << 32 | writer.position();
+
+		writer.putShort((short) sender.length);
+		writer.putInt(payload.remaining() | (expiry != 0 ? EXPIRES : 0));
+
+		if(expiry != 0)
+			writer.putLong(expiry);
+
+		writer.put(sender);
+		writer.put(payload);
+
+		// The letter now lives in the slab; a pooled payload buffer can be reused.
+		letter.release();
+
+		slabs.get(slabs.size() - 1).limit(writer.position());
+
+		Lane lane = lanes.get(letter.getSender());
+
+		if(lane == null)
+			lanes.put(letter.getSender(), lane = new Lane());
+
+		lane.add(location);
+
+		count++;
+	}
+
+	@Override
+	protected Letter dequeue(){
+
+		ByteBuffer head = slabs.get(0);
+
+		Letter letter = read(head);
+
+		// The oldest letter is always the oldest from its sender too.
+		dropFirst(letter.getSender());
+		removed();
+
+		return letter;
+	}
+
+	@Override
+	protected Letter dequeue(String sender){
+
+		Lane lane = lanes.get(sender);
+
+		if(lane == null)
+			return null;
+
+		long location = lane.first();
+
+		ByteBuffer slab = slabs.get((int) ((location >>> 32) - firstSlab));
+		int position = (int) location;
+
+		ByteBuffer source = slab.duplicate();
+		source.position(position);
+
+		Letter letter = read(source);
+
+		slab.putInt(position + 2, slab.getInt(position + 2) | REMOVED);
+
+		dropFirst(sender);
+		removed();
+
+		return letter;
+	}
+
+	private void dropFirst(String sender){
+
+		Lane lane = lanes.get(sender);
+
+		lane.poll();
+
+		if(lane.isEmpty())
+			lanes.remove(sender);
+	}
+
+	@Override
+	protected Letter first(){
+
+		return read(slabs.get(0).duplicate());
+	}
+
+	@Override
+	protected long arrival(String sender){
+
+		Lane lane = lanes.get(sender);
+
+		return lane == null ? -1 : lane.first();
+	}
+
+	@Override
+	protected Set<String> senders(){
+
+		return lanes.keySet();
+	}
+
+	/**
+	 * Accounts for a letter just taken off the queue, then moves the head past any letters
+	 * already marked as removed so that it rests on a letter still queued. Slabs read
+	 * through go back to the pool.
+	 */
+	private void removed(){
+
+		if(--count == 0)
+			discard();
+		else
+			advance();
+	}
+
+	/**
+	 * Moves the head past any letters marked as removed, releasing the slabs read through.
+	 * Only called with letters queued.
+	 */
+	private void advance(){
+
+		while(true){
+
+			ByteBuffer head = slabs.get(0);
+
+			while(head.hasRemaining() && isRemoved(head))
+				skip(head);
+
+			if(head.hasRemaining())
+				return;
+
+			// Read through; the rest are in later slabs.
+			pool.release(slabs.remove(0));
+			firstSlab++;
+		}
+	}
+
+	private Letter read(ByteBuffer source){
+
+		byte[] sender = new byte[source.getShort() & 0xFFFF];
+		int length = source.getInt();
+		byte[] payload = new byte[length & LENGTH];
+
+		long expiry = (length & EXPIRES) != 0 ? source.getLong() : 0;
+
+		source.get(sender);
+		source.get(payload);
+
+		Letter letter = new Letter(new String(sender, UTF8), recipient, payload);
+		letter.setExpiry(expiry);
+
+		return letter;
+	}
+
+	private static String peekSender(ByteBuffer source){
+
+		byte[] sender = new byte[source.getShort(source.position()) & 0xFFFF];
+		int length = source.getInt(source.position() + 2);
+
+		ByteBuffer view = source.duplicate();
+		view.position(source.position() + HEADER + ((length & EXPIRES) != 0 ? 8 : 0));
+		view.get(sender);
+
+		return new String(sender, UTF8);
+	}
+
+	private static boolean isRemoved(ByteBuffer source){
+
+		return (source.getInt(source.position() + 2) & REMOVED) != 0;
+	}
+
+	private static void skip(ByteBuffer source){
+
+		int senderLength = source.getShort(source.position()) & 0xFFFF;
+		int length = source.getInt(source.position() + 2);
+
+		source.position(source.position() + HEADER + ((length & EXPIRES) != 0 ? 8 : 0) + senderLength + (length & LENGTH));
+	}
+
+	/**
+	 * Marks every expired letter as removed, then rebuilds the lanes from the letters left
+	 * if any were.
+	 */
+	@Override
+	protected void expire(long now, Sweep sweep){
+
+		for(ByteBuffer slab : slabs){
+
+			ByteBuffer source = slab.duplicate();
+
+			while(source.hasRemaining()){
+
+				int position = source.position();
+				int length = source.getInt(position + 2);
+
+				if((length & (REMOVED | EXPIRES)) == EXPIRES){
+
+					long expiry = source.getLong(position + HEADER);
+
+					if(expiry <= now){
+
+						slab.putInt(position + 2, length | REMOVED);
+
+						sweep.letters++;
+						sweep.bytes += length & LENGTH;
+					}
+					else
+						sweep.kept(expiry);
+				}
+
+				skip(source);
+			}
+		}
+
+		if(sweep.letters == 0)
+			return;
+
+		count -= sweep.letters;
+
+		if(count == 0){
+
+			discard();
+			return;
+		}
+
+		advance();
+
+		lanes.clear();
+
+		for(int i = 0; i < slabs.size(); i++){
+
+			ByteBuffer source = slabs.get(i).duplicate();
+
+			while(source.hasRemaining()){
+
+				if(!isRemoved(source)){
+
+					String sender = peekSender(source);
+					Lane lane = lanes.get(sender);
+
+					if(lane == null)
+						lanes.put(sender, lane = new Lane());
+
+					lane.add((firstSlab + i) << 32 | source.position());
+				}
+
+				skip(source);
+			}
+		}
+	}
+
+	@Override
+	protected void discard(){
+
+		for(ByteBuffer slab : slabs)
+			pool.release(slab);
+
+		firstSlab += slabs.size();
+
+		slabs.clear();
+		lanes.clear();
+		writer = null;
+		count = 0;
+	}
+
+	/**
+	 * Returns an iterator over a copy of the queued letters. The copy materialises every
+	 * letter, so this is meant for diagnostics only.
+	 */
+	@Override
+	public Iterator<Letter> iterator(){
+
+		lock.lock();
+
+		try {
+
+			List<Letter> letters = new ArrayList<Letter>(count);
+
+			for(ByteBuffer slab : slabs){
+
+				ByteBuffer source = slab.duplicate();
+
+				while(source.hasRemaining()){
+
+					if(isRemoved(source))
+						skip(source);
+					else
+						letters.add(read(source));
+				}
+			}
+
+			return Collections.unmodifiableList(letters).iterator();
+
+		} finally {
+
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The locations of one sender's letters, oldest first, in a growable ring of longs
+	 * so that a queued letter costs no heap object of its own.
+	 */
+	private static class Lane {
+
+		private long[] locations = new long[4];
+		private int first = 0;
+		private int size = 0;
+
+		void add(long location){
+
+			if(size == locations.length){
+
+				long[] grown = new long[size * 2];
+
+				for(int i = 0; i < size; i++)
+					grown[i] = locations[(first + i) % size];
+
+				locations = grown;
+				first = 0;
+			}
+
+			locations[(first + size++) % locations.length] = location;
+		}
+
+		long first(){
+
+			return locations[first];
+		}
+
+		void poll(){
+
+			first = (first + 1) % locations.length;
+			size--;
+		}
+
+		boolean isEmpty(){
+
+			return size == 0;
+		}
+	}
+}
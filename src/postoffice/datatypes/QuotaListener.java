@@ -0,0 +1,18 @@
+package postoffice.datatypes;
+
+/**
+ * Receives a one-shot notification when letters are taken out of a full quota.
+ *
+ * Like a {@link MailListener}, a listener is removed as soon as it is notified and is
+ * invoked on the thread that freed the room, so it should hand any real work off.
+ */
+public interface QuotaListener {
+
+	/**
+	 * Called after room has been freed in the quota. The room may already have been
+	 * taken again by the time the listener acts on it.
+	 *
+	 * @param quota The quota with room.
+	 */
+	public void roomAvailable(MailQuota quota);
+}
@@ -0,0 +1,82 @@
+package postoffice.datatypes;
+
+import java.util.regex.Pattern;
+
+/**
+ * Selects letters by sender. A filter is a regular expression, and a letter matches if
+ * the expression is found anywhere in its sender's address.
+ *
+ * A filter written by {@link #exactly(String)} matches a single address and nothing else.
+ * It is recognised as such, so that a mailbox can go straight to that sender's letters
+ * without running the expression at all.
+ */
+public class SenderFilter {
+
+	private static final String EXACT_PREFIX = "^\\Q";
+	private static final String EXACT_SUFFIX = "\\E$";
+
+	private Pattern pattern;
+	private String sender = null;
+
+	private SenderFilter(Pattern pattern, String sender){
+
+		this.pattern = pattern;
+		this.sender = sender;
+	}
+
+	/**
+	 * Compiles a filter.
+	 *
+	 * @param expression The regular expression.
+	 * @return The filter.
+	 * @throws java.util.regex.PatternSyntaxException Thrown if the expression is malformed.
+	 */
+	public static SenderFilter compile(String expression){
+
+		String sender = null;
+
+		if(expression.startsWith(EXACT_PREFIX) && expression.endsWith(EXACT_SUFFIX)
+				&& expression.length() >= EXACT_PREFIX.length() + EXACT_SUFFIX.length()){
+
+			String quoted = expression.substring(EXACT_PREFIX.length(), expression.length() - EXACT_SUFFIX.length());
+
+			if(!quoted.contains("\\E"))
+				sender = quoted;
+		}
+
+		return new SenderFilter(Pattern.compile(expression), sender);
+	}
+
+	/**
+	 * Writes a filter matching exactly one sender.
+	 *
+	 * @param sender The sender's address.
+	 * @return The filter expression.
+	 */
+	public static String exactly(String sender){
+
+		return "^" + Pattern.quote(sender) + "$";
+	}
+
+	/**
+	 * @return The one sender this filter matches, or null if it is a general expression.
+	 */
+	public String getSender(){
+
+		return sender;
+	}
+
+	public boolean matches(String sender){
+
+		if(this.sender != null)
+			return this.sender.equals(sender);
+
+		return pattern.matcher(sender).find();
+	}
+
+	@Override
+	public String toString(){
+
+		return pattern.pattern();
+	}
+}
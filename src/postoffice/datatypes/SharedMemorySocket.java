@@ -0,0 +1,828 @@
+package postoffice.datatypes;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.EnumSet;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A connection whose bytes travel through memory shared with the peer rather than through
+ * its socket, for the lowest latency between processes on the same host. Each direction
+ * is a single-producer, single-consumer ring buffer in a memory-mapped file, and handing
+ * bytes over takes no more than a copy and an ordered store of the producer's position.
+ *
+ * The socket the connection was set up on stays open as a doorbell. A reader that finds
+ * its ring empty spins for a while, then yields, and only then raises a flag and blocks
+ * reading a byte from the socket. A writer rings the doorbell, with that one byte, only
+ * if it finds the flag raised, so a busy connection passes letters without a single
+ * system call. Read timeouts and the end of the stream still come from the socket. A
+ * writer that finds the ring full backs off until the reader has made room.
+ *
+ * The ring positions are shared with another process, so they are read and written with
+ * volatile and release accesses through byte buffer view {@code VarHandle}s on the mapping.
+ * Those need Java 9 and the post office is still built against older class libraries, so
+ * they are looked up reflectively, once, as plain method handles.
+ *
+ * Neither stream holds a monitor, so a virtual thread waiting in one parks rather than
+ * pinning its carrier. A read waits for data, and on the doorbell, outside its lock.
+ * A write keeps its lock until all of its bytes are in the ring, so that concurrent
+ * writes never interleave.
+ */
+public class SharedMemorySocket extends Socket {
+
+	/** The smallest ring capacity. */
+	public static final int MIN_CAPACITY = 4096;
+
+	/** The largest ring capacity. */
+	public static final int MAX_CAPACITY = 1 << 26;
+
+	private static final int MAGIC = 0x504F534D;
+
+	// The file starts with a header, followed by the ring the client writes to and the
+	// ring the server writes to.
+	private static final int MAGIC_OFFSET = 0;
+	private static final int CAPACITY_OFFSET = 4;
+	private static final int CLOSED_OFFSET = 8;
+	private static final int HEADER_SIZE = 64;
+
+	// Offsets within a ring, each on a cache line of its own so the two sides never
+	// write to the same one.
+	private static final int HEAD = 0;
+	private static final int TAIL = 64;
+	private static final int WAITING = 128;
+	private static final int DATA = 192;
+
+	// How long a side waits for the other before blocking, in empty polls. The spinning
+	// alone lasts about half a microsecond.
+	private static final int SPINS = 250;
+	private static final int YIELDS = 100;
+
+	// Longest pause of a writer waiting for room in a full ring.
+	private static final long MAX_BACKOFF = 1000000;
+
+	// Accesses to the ring positions and flags, as (buffer, index) over the mapping.
+	private static final MethodHandle GET_LONG_VOLATILE;
+	private static final MethodHandle SET_LONG_VOLATILE;
+	private static final MethodHandle SET_LONG_RELEASE;
+	private static final MethodHandle GET_INT_VOLATILE;
+	private static final MethodHandle SET_INT_VOLATILE;
+	private static final MethodHandle CAS_INT;
+
+	static {
+
+		MethodHandle[] handles = new MethodHandle[6];
+
+		try {
+
+			Class<?> varHandle = Class.forName("java.lang.invoke.VarHandle");
+			Class<?> accessMode = Class.forName("java.lang.invoke.VarHandle$AccessMode");
+
+			Method view = MethodHandles.class.getMethod("byteBufferViewVarHandle", Class.class, ByteOrder.class);
+			Method toMethodHandle = varHandle.getMethod("toMethodHandle", accessMode);
+
+			Object longs = view.invoke(null, long[].class, ByteOrder.nativeOrder());
+			Object ints = view.invoke(null, int[].class, ByteOrder.nativeOrder());
+
+			handles[0] = (MethodHandle) toMethodHandle.invoke(longs, accessMode.getField("GET_VOLATILE").get(null));
+			handles[1] = (MethodHandle) toMethodHandle.invoke(longs, accessMode.getField("SET_VOLATILE").get(null));
+			handles[2] = (MethodHandle) toMethodHandle.invoke(longs, accessMode.getField("SET_RELEASE").get(null));
+			handles[3] = (MethodHandle) toMethodHandle.invoke(ints, accessMode.getField("GET_VOLATILE").get(null));
+			handles[4] = (MethodHandle) toMethodHandle.invoke(ints, accessMode.getField("SET_VOLATILE").get(null));
+			handles[5] = (MethodHandle) toMethodHandle.invoke(ints, accessMode.getField("COMPARE_AND_SET").get(null));
+
+		} catch (ReflectiveOperationException | RuntimeException e) {
+
+			handles = new MethodHandle[6];
+		}
+
+		GET_LONG_VOLATILE = handles[0];
+		SET_LONG_VOLATILE = handles[1];
+		SET_LONG_RELEASE = handles[2];
+		GET_INT_VOLATILE = handles[3];
+		SET_INT_VOLATILE = handles[4];
+		CAS_INT = handles[5];
+	}
+
+	private Socket control;
+
+	// Kept so that the mapping, and the memory the rings live in, outlives the socket.
+	private MappedByteBuffer mapping;
+
+	private RingInput input;
+	private RingOutput output;
+
+	/**
+	 * Moves a connection into the rings of a shared memory file created by
+	 * {@link #create(File, int)}.
+	 *
+	 * @param control The socket the connection was set up on, kept as the doorbell.
+	 * @param file The shared memory file.
+	 * @param client True on the side that created the file, false on the other.
+	 * @throws IOException Thrown if the file cannot be mapped or was not created by {@link #create(File, int)}.
+	 */
+	public SharedMemorySocket(Socket control, File file, boolean client) throws IOException {
+
+		if(!isSupported())
+			throw new UnsupportedOperationException("Shared memory connections are not supported by this JVM.");
+
+		this.control = control;
+
+		// A link swapped in after the file was resolved is refused rather than followed.
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, LinkOption.NOFOLLOW_LINKS)) {
+
+			long length = channel.size();
+
+			if(length < HEADER_SIZE)
+				throw new IOException("'" + file + "' is not a shared memory file.");
+
+			mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+		}
+
+		int capacity = mapping.getInt(CAPACITY_OFFSET);
+
+		if(mapping.getInt(MAGIC_OFFSET) != MAGIC || !isValidCapacity(capacity) || mapping.capacity() != length(capacity))
+			throw new IOException("'" + file + "' is not a shared memory file.");
+
+		int upstream = HEADER_SIZE;
+		int downstream = upstream + DATA + capacity;
+
+		input = new RingInput(client ? downstream : upstream, capacity);
+		output = new RingOutput(client ? upstream : downstream, capacity);
+	}
+
+	/**
+	 * Checks whether the running JVM gives access to the memory barriers the rings need.
+	 *
+	 * @return True if shared memory connections are available, false otherwise.
+	 */
+	public static boolean isSupported(){
+
+		return CAS_INT != null;
+	}
+
+	/**
+	 * Creates a shared memory file with empty rings, for the peer to map as well. Once
+	 * both sides have mapped it, the file can be deleted. Only its owner may read or write
+	 * it, so the peer must run as the same user.
+	 *
+	 * @param directory The directory to create the file in.
+	 * @param capacity The capacity of each ring, a power of two between {@link #MIN_CAPACITY} and {@link #MAX_CAPACITY}.
+	 * @return The file.
+	 * @throws IOException Thrown if the file cannot be created.
+	 */
+	public static File create(File directory, int capacity) throws IOException {
+
+		if(!isValidCapacity(capacity))
+			throw new IllegalArgumentException("The capacity must be a power of two between " + MIN_CAPACITY + " and " + MAX_CAPACITY + ".");
+
+		Path path = directory.toPath();
+		File file;
+
+		// Owner-only from the start, whatever the umask, so no one else ever sees the rings.
+		if(path.getFileSystem().supportedFileAttributeViews().contains("posix")){
+
+			file = Files.createTempFile(path, "postoffice-", ".shm",
+					PosixFilePermissions.asFileAttribute(EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE))).toFile();
+		}
+		else {
+
+			file = Files.createTempFile(path, "postoffice-", ".shm").toFile();
+
+			// Narrowed before anything is written.
+			if(!file.setReadable(false, false) || !file.setReadable(true, true) || !file.setWritable(false, false) || !file.setWritable(true, true)){
+
+				file.delete();
+				throw new IOException("Cannot restrict '" + file + "' to its owner.");
+			}
+		}
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+
+			raf.setLength(length(capacity));
+
+			raf.writeInt(MAGIC);
+			raf.writeInt(capacity);
+
+		} catch (IOException e) {
+
+			file.delete();
+			throw e;
+		}
+
+		return file;
+	}
+
+	/**
+	 * Resolves the path a peer sent for a shared memory file, which must name a file
+	 * directly inside a directory once links are followed, so that a peer cannot have
+	 * some other file mapped and written to.
+	 *
+	 * @param path The path.
+	 * @param directory The only directory shared memory files are accepted from.
+	 * @return The file, with its canonical path.
+	 * @throws IOException Thrown if the path cannot be resolved or leads outside the directory.
+	 */
+	public static File resolve(String path, File directory) throws IOException {
+
+		File file = new File(path).getCanonicalFile();
+
+		if(!directory.getCanonicalFile().equals(file.getParentFile()) || !file.isFile())
+			throw new IOException("'" + path + "' is not a file in '" + directory + "'.");
+
+		return file;
+	}
+
+	/**
+	 * Returns where shared memory files are best kept: {@code /dev/shm} where there is
+	 * one, since it is never written back to disk, and the temporary directory otherwise.
+	 *
+	 * @return The directory.
+	 */
+	public static File defaultDirectory(){
+
+		File shm = new File("/dev/shm");
+
+		if(shm.isDirectory() && shm.canWrite())
+			return shm;
+
+		return new File(System.getProperty("java.io.tmpdir"));
+	}
+
+	private static boolean isValidCapacity(int capacity){
+
+		return capacity >= MIN_CAPACITY && capacity <= MAX_CAPACITY && Integer.bitCount(capacity) == 1;
+	}
+
+	private static long length(int capacity){
+
+		return HEADER_SIZE + 2L * (DATA + capacity);
+	}
+
+	/**
+	 * Returns a view of a ring's data of its own, so that positioning it for a copy never
+	 * disturbs the other ring.
+	 */
+	private ByteBuffer view(int base, int capacity){
+
+		ByteBuffer view = mapping.duplicate();
+
+		view.position(base + DATA);
+		view.limit(base + DATA + capacity);
+
+		return view.slice();
+	}
+
+	/**
+	 * There is no channel to write to directly; everything goes through the rings.
+	 *
+	 * @return Null.
+	 */
+	@Override
+	public SocketChannel getChannel(){
+
+		return null;
+	}
+
+	@Override
+	public InputStream getInputStream(){
+
+		return input;
+	}
+
+	@Override
+	public OutputStream getOutputStream(){
+
+		return output;
+	}
+
+	/**
+	 * Sets how long a read waits for data, once it blocks on the doorbell, before failing
+	 * with a {@link java.net.SocketTimeoutException}.
+	 *
+	 * @param timeout The timeout in milliseconds, or zero to wait indefinitely.
+	 */
+	@Override
+	public void setSoTimeout(int timeout) throws SocketException {
+
+		control.setSoTimeout(timeout);
+	}
+
+	@Override
+	public int getSoTimeout() throws SocketException {
+
+		return control.getSoTimeout();
+	}
+
+	@Override
+	public InetAddress getInetAddress(){
+
+		return control.getInetAddress();
+	}
+
+	@Override
+	public int getPort(){
+
+		return control.getPort();
+	}
+
+	@Override
+	public InetAddress getLocalAddress(){
+
+		return control.getLocalAddress();
+	}
+
+	@Override
+	public int getLocalPort(){
+
+		return control.getLocalPort();
+	}
+
+	@Override
+	public boolean isConnected(){
+
+		return control.isConnected();
+	}
+
+	@Override
+	public boolean isClosed(){
+
+		return control.isClosed();
+	}
+
+	/**
+	 * Closes the connection. The peer learns of it from the shared flag if it is polling,
+	 * and from the end of the doorbell socket if it is blocked.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		setIntVolatile(mapping, CLOSED_OFFSET, 1);
+
+		control.close();
+	}
+
+	@Override
+	public String toString(){
+
+		return "SharedMemorySocket[" + control + "]";
+	}
+
+	private boolean isShut(){
+
+		return getIntVolatile(mapping, CLOSED_OFFSET) != 0;
+	}
+
+	// The handles only ever throw what their accesses do, which is unchecked.
+
+	private static long getLongVolatile(ByteBuffer buffer, int index){
+
+		try {
+
+			return (long) GET_LONG_VOLATILE.invokeExact(buffer, index);
+
+		} catch (Throwable t) {
+
+			throw unchecked(t);
+		}
+	}
+
+	private static void setLongVolatile(ByteBuffer buffer, int index, long value){
+
+		try {
+
+			SET_LONG_VOLATILE.invokeExact(buffer, index, value);
+
+		} catch (Throwable t) {
+
+			throw unchecked(t);
+		}
+	}
+
+	private static void setLongRelease(ByteBuffer buffer, int index, long value){
+
+		try {
+
+			SET_LONG_RELEASE.invokeExact(buffer, index, value);
+
+		} catch (Throwable t) {
+
+			throw unchecked(t);
+		}
+	}
+
+	private static int getIntVolatile(ByteBuffer buffer, int index){
+
+		try {
+
+			return (int) GET_INT_VOLATILE.invokeExact(buffer, index);
+
+		} catch (Throwable t) {
+
+			throw unchecked(t);
+		}
+	}
+
+	private static void setIntVolatile(ByteBuffer buffer, int index, int value){
+
+		try {
+
+			SET_INT_VOLATILE.invokeExact(buffer, index, value);
+
+		} catch (Throwable t) {
+
+			throw unchecked(t);
+		}
+	}
+
+	private static boolean compareAndSetInt(ByteBuffer buffer, int index, int expected, int value){
+
+		try {
+
+			return (boolean) CAS_INT.invokeExact(buffer, index, expected, value);
+
+		} catch (Throwable t) {
+
+			throw unchecked(t);
+		}
+	}
+
+	private static RuntimeException unchecked(Throwable t){
+
+		if(t instanceof Error)
+			throw (Error) t;
+
+		if(t instanceof RuntimeException)
+			return (RuntimeException) t;
+
+		return new IllegalStateException(t);
+	}
+
+	private class RingInput extends InputStream {
+
+		// Held while taking bytes out of the ring, never while waiting for them.
+		private ReentrantLock lock = new ReentrantLock();
+
+		private long head;
+		private long tail;
+
+		private int base;
+		private int mask;
+
+		// A view of the ring's data, positioned as bytes are copied out of it.
+		private ByteBuffer data;
+
+		// The doorbell reached its end, so nothing more will be written.
+		private volatile boolean ended = false;
+
+		RingInput(int base, int capacity){
+
+			this.base = base;
+			this.mask = capacity - 1;
+
+			data = view(base, capacity);
+
+			head = getLongVolatile(mapping, base + HEAD);
+			tail = head;
+		}
+
+		@Override
+		public int read() throws IOException {
+
+			while(true){
+
+				long seen;
+
+				lock.lock();
+
+				try {
+
+					if(poll()){
+
+						int b = data.get((int) (head & mask)) & 0xFF;
+
+						setLongRelease(mapping, base + HEAD, ++head);
+
+						return b;
+					}
+
+					seen = head;
+
+				} finally {
+
+					lock.unlock();
+				}
+
+				if(!await(seen))
+					return -1;
+			}
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+
+			if(off < 0 || len < 0 || len > b.length - off)
+				throw new IndexOutOfBoundsException();
+
+			if(len == 0)
+				return 0;
+
+			while(true){
+
+				long seen;
+
+				lock.lock();
+
+				try {
+
+					if(poll()){
+
+						len = (int) Math.min(len, tail - head);
+
+						int index = (int) (head & mask);
+						int first = Math.min(len, mask + 1 - index);
+
+						data.position(index);
+						data.get(b, off, first);
+
+						if(first < len){
+
+							data.position(0);
+							data.get(b, off + first, len - first);
+						}
+
+						head += len;
+
+						setLongRelease(mapping, base + HEAD, head);
+
+						return len;
+					}
+
+					seen = head;
+
+				} finally {
+
+					lock.unlock();
+				}
+
+				if(!await(seen))
+					return -1;
+			}
+		}
+
+		@Override
+		public int available(){
+
+			lock.lock();
+
+			try {
+
+				return (int) (getLongVolatile(mapping, base + TAIL) - head);
+
+			} finally {
+
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Checks whether there is something to read. The caller must hold the lock.
+		 */
+		private boolean poll(){
+
+			if(tail != head)
+				return true;
+
+			tail = getLongVolatile(mapping, base + TAIL);
+
+			return tail != head;
+		}
+
+		/**
+		 * Waits, without the lock, until the ring holds more than had been read.
+		 *
+		 * @param seen The position read up to when the ring was last found empty.
+		 * @return False at the end of the stream.
+		 */
+		private boolean await(long seen) throws IOException {
+
+			int idle = 0;
+
+			while(getLongVolatile(mapping, base + TAIL) == seen){
+
+				// Spinning polls the position alone, so that it hands the processor over
+				// no later than it has to.
+				if(idle < SPINS)
+					idle++;
+				else if(ended || isShut())
+					return false;
+				else if(idle < SPINS + YIELDS){
+
+					idle++;
+					Thread.yield();
+				}
+				else {
+
+					sleep(seen);
+					idle = 0;
+				}
+			}
+
+			return true;
+		}
+
+		/**
+		 * Raises the flag and blocks on the doorbell, unless something arrived meanwhile.
+		 */
+		private void sleep(long seen) throws IOException {
+
+			setIntVolatile(mapping, base + WAITING, 1);
+
+			boolean rung = false;
+
+			try {
+
+				// Checked after raising the flag, so a writer either sees the flag or
+				// published before this check.
+				if(getLongVolatile(mapping, base + TAIL) != seen || isShut())
+					return;
+
+				ended = control.getInputStream().read() < 0;
+				rung = true;
+
+			} finally {
+
+				// A writer that lowered the flag itself has rung, or is about to. That
+				// byte is taken by the next wait, which it merely cuts short.
+				if(!rung)
+					compareAndSetInt(mapping, base + WAITING, 1, 0);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+
+			SharedMemorySocket.this.close();
+		}
+	}
+
+	private class RingOutput extends OutputStream {
+
+		// Held for the whole of a write, so that the bytes of concurrent writes never
+		// interleave. Waiting for room parks, which unmounts a virtual thread.
+		private ReentrantLock lock = new ReentrantLock();
+
+		private long head;
+		private long tail;
+
+		private int base;
+		private int mask;
+
+		// A view of the ring's data, positioned as bytes are copied into it.
+		private ByteBuffer data;
+
+		RingOutput(int base, int capacity){
+
+			this.base = base;
+			this.mask = capacity - 1;
+
+			data = view(base, capacity);
+
+			tail = getLongVolatile(mapping, base + TAIL);
+			head = tail;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+
+			write(new byte[]{ (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+
+			if(off < 0 || len < 0 || len > b.length - off)
+				throw new IndexOutOfBoundsException();
+
+			boolean ring = false;
+
+			lock.lock();
+
+			try {
+
+				// Nobody would ever read what is written once the peer has gone.
+				if(isShut())
+					throw new SocketException("Socket closed");
+
+				while(len > 0){
+
+					// A sleeping reader has to be woken before waiting for it to make room.
+					if(ring && tail - head == mask + 1){
+
+						ring();
+						ring = false;
+					}
+
+					int count = Math.min(len, room());
+
+					int index = (int) (tail & mask);
+					int first = Math.min(count, mask + 1 - index);
+
+					data.position(index);
+					data.put(b, off, first);
+
+					if(first < count){
+
+						data.position(0);
+						data.put(b, off + first, count - first);
+					}
+
+					tail += count;
+					off += count;
+					len -= count;
+
+					// A volatile store, so that the flag is only read once the bytes are published.
+					setLongVolatile(mapping, base + TAIL, tail);
+
+					if(getIntVolatile(mapping, base + WAITING) != 0 && compareAndSetInt(mapping, base + WAITING, 1, 0))
+						ring = true;
+				}
+
+			} finally {
+
+				lock.unlock();
+			}
+
+			if(ring)
+				ring();
+		}
+
+		/**
+		 * Waits until there is room in the ring.
+		 *
+		 * @return The room, in bytes.
+		 */
+		private int room() throws IOException {
+
+			int capacity = mask + 1;
+
+			if(tail - head < capacity)
+				return (int) (capacity - (tail - head));
+
+			int idle = 0;
+			long backoff = 1000;
+
+			while(tail - (head = getLongVolatile(mapping, base + HEAD)) == capacity){
+
+				if(isShut() || control.isClosed())
+					throw new SocketException("Socket closed");
+
+				if(idle < SPINS)
+					idle++;
+				else if(idle < SPINS + YIELDS){
+
+					idle++;
+					Thread.yield();
+				}
+				else {
+
+					LockSupport.parkNanos(backoff);
+					backoff = Math.min(backoff * 2, MAX_BACKOFF);
+				}
+			}
+
+			return (int) (capacity - (tail - head));
+		}
+
+		private void ring() throws IOException {
+
+			control.getOutputStream().write(1);
+		}
+
+		@Override
+		public void close() throws IOException {
+
+			SharedMemorySocket.this.close();
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package postoffice.datatypes;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of equally sized direct buffers (slabs) shared by the mailboxes that keep their
+ * letters off-heap. Slabs handed back are kept for reuse up to a limit, so a post office
+ * whose backlogs come and go does not keep allocating native memory.
+ */
+public class SlabPool {
+
+	private int slabSize;
+	private int maxIdle;
+
+	private Queue<ByteBuffer> idle = new ConcurrentLinkedQueue<ByteBuffer>();
+	private AtomicInteger idleCount = new AtomicInteger();
+
+	/**
+	 * @param slabSize The size of each slab in bytes.
+	 * @param maxIdle The most unused slabs to keep for reuse.
+	 */
+	public SlabPool(int slabSize, int maxIdle){
+
+		this.slabSize = slabSize;
+		this.maxIdle = maxIdle;
+	}
+
+	public int getSlabSize(){
+
+		return slabSize;
+	}
+
+	/**
+	 * Takes a cleared slab from the pool, allocating one if none are free.
+	 *
+	 * @param minimum The number of bytes needed. Larger than a slab gets a buffer of its own.
+	 * @return The buffer.
+	 */
+	public ByteBuffer acquire(int minimum){
+
+		if(minimum > slabSize)
+			return ByteBuffer.allocateDirect(minimum);
+
+		ByteBuffer slab = idle.poll();
+
+		if(slab == null)
+			return ByteBuffer.allocateDirect(slabSize);
+
+		idleCount.decrementAndGet();
+		slab.clear();
+
+		return slab;
+	}
+
+	/**
+	 * Returns a slab to the pool. Oversized buffers, and slabs beyond the idle limit, are
+	 * left to the garbage collector to free.
+	 *
+	 * @param slab A buffer from {@link #acquire(int)} that is no longer referenced elsewhere.
+	 */
+	public void release(ByteBuffer slab){
+
+		if(slab.capacity() != slabSize)
+			return;
+
+		if(idleCount.incrementAndGet() > maxIdle){
+
+			idleCount.decrementAndGet();
+			return;
+		}
+
+		idle.add(slab);
+	}
+}
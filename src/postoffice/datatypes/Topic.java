@@ -0,0 +1,99 @@
+package postoffice.datatypes;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import postoffice.exception.comm.MailboxFullException;
+import postoffice.exception.mailbox.NonExistentMailboxException;
+
+/**
+ * A named set of mailboxes that each receive a copy of every letter published to it.
+ * The copies share the published payload rather than holding one each.
+ *
+ * Publishing never waits on a subscriber. A copy for a full mailbox makes room as the
+ * mailbox's quota policy says, except that under {@link MailQuota.Policy#BLOCK} it is
+ * refused instead of holding up the publisher and every other subscriber behind it.
+ */
+public class Topic {
+
+	private String name;
+
+	private Set<Mailbox> subscribers = Collections.newSetFromMap(new ConcurrentHashMap<Mailbox, Boolean>());
+
+	public Topic(String name){
+
+		this.name = name;
+	}
+
+	public String getName(){
+
+		return name;
+	}
+
+	/**
+	 * @param mailbox The mailbox to deliver the topic's letters to.
+	 * @return False if the mailbox was already subscribed.
+	 */
+	public boolean subscribe(Mailbox mailbox){
+
+		return subscribers.add(mailbox);
+	}
+
+	/**
+	 * @param mailbox The mailbox to stop delivering the topic's letters to.
+	 * @return False if the mailbox was not subscribed.
+	 */
+	public boolean unsubscribe(Mailbox mailbox){
+
+		return subscribers.remove(mailbox);
+	}
+
+	public int getSubscriberCount(){
+
+		return subscribers.size();
+	}
+
+	/**
+	 * Delivers a copy of a letter to every subscriber. Subscribers that join or leave while
+	 * the letter is being published may or may not receive it; subscribers whose mailbox
+	 * has been destroyed are dropped.
+	 *
+	 * @param letter The published letter. Its recipient is ignored, and it is released
+	 * once every copy has been made.
+	 * @return The number of subscribers the letter was delivered to.
+	 */
+	public int publish(Letter letter){
+
+		int delivered = 0;
+
+		try {
+
+			for(Mailbox subscriber : subscribers){
+
+				Letter copy = letter.copyTo(subscriber.getOwner());
+
+				try {
+
+					subscriber.offer(copy, null);
+					delivered++;
+
+				} catch (MailboxFullException e) {
+
+					copy.release();
+
+				} catch (NonExistentMailboxException e) {
+
+					copy.release();
+					subscribers.remove(subscriber);
+				}
+			}
+
+		} finally {
+
+			letter.release();
+		}
+
+		return delivered;
+	}
+}
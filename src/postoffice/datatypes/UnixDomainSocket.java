@@ -0,0 +1,623 @@
+package postoffice.datatypes;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.ProtocolFamily;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A connection over a Unix domain socket, for clients on the same host as the post
+ * office. It skips the TCP/IP stack altogether but carries exactly the same protocol.
+ *
+ * The channel is dressed up as a {@link Socket} so that it can stand in for a TCP one,
+ * read timeouts included, which a Unix domain socket channel cannot provide through its
+ * own socket. Waits go through a selector per direction, so one thread may read while
+ * another writes. A write that finds the socket full takes in whatever the peer sends
+ * while it waits, since the small buffers of a Unix domain socket would otherwise leave
+ * two pipelining peers each waiting for the other to read. The class library only supports Unix domain sockets from Java 16 and
+ * the post office is still built against older ones, so that API is looked up
+ * reflectively.
+ */
+public class UnixDomainSocket extends Socket {
+
+	// How much is read from the channel at once, so that small reads cost no system call.
+	private static final int READ_AHEAD = 8192;
+
+	private SocketChannel channel;
+
+	private ChannelInput input = new ChannelInput();
+	private ChannelOutput output = new ChannelOutput();
+
+	private volatile int timeout = 0;
+
+	/**
+	 * Wraps a connected Unix domain socket channel, which is switched to non-blocking mode.
+	 *
+	 * @param channel The channel.
+	 * @throws IOException Thrown if the channel cannot be switched to non-blocking mode.
+	 */
+	public UnixDomainSocket(SocketChannel channel) throws IOException {
+
+		this.channel = channel;
+
+		channel.configureBlocking(false);
+	}
+
+	/**
+	 * Connects to the Unix domain socket at a path.
+	 *
+	 * @param file The path of the socket.
+	 * @return The connection.
+	 * @throws IOException Thrown if the connection cannot be established.
+	 * @throws UnsupportedOperationException Thrown if the JVM does not support Unix domain sockets.
+	 */
+	public static UnixDomainSocket connect(File file) throws IOException {
+
+		return new UnixDomainSocket(open(file));
+	}
+
+	/**
+	 * Checks whether the running JVM supports Unix domain sockets.
+	 *
+	 * @return True if Unix domain sockets are available, false otherwise.
+	 */
+	public static boolean isSupported(){
+
+		try {
+
+			Class.forName("java.net.UnixDomainSocketAddress");
+
+			return true;
+
+		} catch (ClassNotFoundException e) {
+
+			return false;
+		}
+	}
+
+	/**
+	 * Opens a blocking channel connected to the Unix domain socket at a path.
+	 *
+	 * @param file The path of the socket.
+	 * @return The channel.
+	 * @throws IOException Thrown if the connection cannot be established.
+	 * @throws UnsupportedOperationException Thrown if the JVM does not support Unix domain sockets.
+	 */
+	public static SocketChannel open(File file) throws IOException {
+
+		SocketChannel channel = (SocketChannel) invoke(SocketChannel.class, "open");
+
+		try {
+
+			channel.connect(address(file));
+
+		} catch (IOException e) {
+
+			channel.close();
+			throw e;
+		}
+
+		return channel;
+	}
+
+	/**
+	 * Listens on a Unix domain socket. The socket file is created by the bind and must
+	 * not exist beforehand; it is up to the caller to delete it once done.
+	 *
+	 * @param file The path of the socket.
+	 * @return The server channel.
+	 * @throws IOException Thrown if the socket cannot be bound, for instance because the file exists.
+	 * @throws UnsupportedOperationException Thrown if the JVM does not support Unix domain sockets.
+	 */
+	public static ServerSocketChannel bind(File file) throws IOException {
+
+		ServerSocketChannel server = (ServerSocketChannel) invoke(ServerSocketChannel.class, "open");
+
+		try {
+
+			server.bind(address(file));
+
+		} catch (IOException e) {
+
+			server.close();
+			throw e;
+		}
+
+		return server;
+	}
+
+	private static Object invoke(Class<?> type, String method) throws IOException {
+
+		try {
+
+			ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+
+			return type.getMethod(method, ProtocolFamily.class).invoke(null, unix);
+
+		} catch (InvocationTargetException e) {
+
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+
+			throw new IOException(e.getCause());
+
+		} catch (ReflectiveOperationException | IllegalArgumentException e) {
+
+			throw new UnsupportedOperationException("Unix domain sockets require Java 16 or newer.", e);
+		}
+	}
+
+	private static SocketAddress address(File file){
+
+		try {
+
+			Class<?> type = Class.forName("java.net.UnixDomainSocketAddress");
+
+			return (SocketAddress) type.getMethod("of", Path.class).invoke(null, file.toPath());
+
+		} catch (ReflectiveOperationException e) {
+
+			throw new UnsupportedOperationException("Unix domain sockets require Java 16 or newer.", e);
+		}
+	}
+
+	@Override
+	public SocketChannel getChannel(){
+
+		return channel;
+	}
+
+	@Override
+	public InputStream getInputStream(){
+
+		return input;
+	}
+
+	@Override
+	public OutputStream getOutputStream(){
+
+		return output;
+	}
+
+	/**
+	 * Sets how long a read waits for data before failing with a
+	 * {@link SocketTimeoutException}. Writes always wait until they are done.
+	 *
+	 * @param timeout The timeout in milliseconds, or zero to wait indefinitely.
+	 */
+	@Override
+	public void setSoTimeout(int timeout) throws SocketException {
+
+		if(timeout < 0)
+			throw new IllegalArgumentException("The timeout cannot be negative.");
+
+		this.timeout = timeout;
+	}
+
+	@Override
+	public int getSoTimeout(){
+
+		return timeout;
+	}
+
+	/**
+	 * Peers sharing the socket file are on the same host, so they reach each other over
+	 * the loopback address.
+	 *
+	 * @return The loopback address.
+	 */
+	@Override
+	public InetAddress getLocalAddress(){
+
+		return InetAddress.getLoopbackAddress();
+	}
+
+	/**
+	 * Writes buffers back to back with gather writes, so that a header and a payload held
+	 * apart leave in one system call. Waits for room just as the output stream does, and
+	 * is serialized with its writes.
+	 *
+	 * @param buffers The buffers, each from position to limit.
+	 * @throws IOException Thrown if the connection fails.
+	 */
+	public void write(ByteBuffer[] buffers) throws IOException {
+
+		output.write(buffers);
+	}
+
+	@Override
+	public boolean isConnected(){
+
+		return channel.isConnected();
+	}
+
+	@Override
+	public boolean isClosed(){
+
+		return !channel.isOpen();
+	}
+
+	@Override
+	public void shutdownInput() throws IOException {
+
+		channel.shutdownInput();
+	}
+
+	@Override
+	public void shutdownOutput() throws IOException {
+
+		channel.shutdownOutput();
+	}
+
+	/**
+	 * Closes the channel. A thread waiting to read or write is woken and fails with an
+	 * {@link AsynchronousCloseException}.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		channel.close();
+
+		input.release();
+		output.release();
+	}
+
+	/**
+	 * Lets go of the selectors used to wait on the channel, for when the channel has been
+	 * handed to something else that will close it. The socket must not be used afterwards.
+	 *
+	 * @throws IOException Thrown if a selector fails to close.
+	 */
+	public void detach() throws IOException {
+
+		input.release();
+		output.release();
+	}
+
+	@Override
+	public String toString(){
+
+		return "UnixDomainSocket[" + channel + "]";
+	}
+
+	/**
+	 * Waits on the channel for readiness, from a selector opened the first time it is
+	 * needed. Each direction has one of its own, so that a reader and a writer never
+	 * wait on the same selector.
+	 */
+	private class Waiter {
+
+		private volatile Selector selector = null;
+
+		private SelectionKey key;
+
+		/**
+		 * @param operations The operations to wait for.
+		 * @param timeout The longest wait in milliseconds, or zero to wait indefinitely.
+		 */
+		void await(int operations, int timeout) throws IOException {
+
+			Selector current = selector;
+
+			if(current == null){
+
+				current = Selector.open();
+
+				try {
+
+					key = channel.register(current, operations);
+
+				} catch (IOException e) {
+
+					current.close();
+					throw e;
+				}
+
+				selector = current;
+			}
+
+			long deadline = System.currentTimeMillis() + timeout;
+
+			try {
+
+				if(key.interestOps() != operations)
+					key.interestOps(operations);
+
+				while(true){
+
+					// Checked only once the selector is published, so a close either
+					// comes before this check or finds the selector to wake.
+					if(!channel.isOpen())
+						throw new AsynchronousCloseException();
+
+					if(current.select(timeout) > 0){
+
+						current.selectedKeys().clear();
+						return;
+					}
+
+					if(timeout > 0){
+
+						timeout = (int) (deadline - System.currentTimeMillis());
+
+						if(timeout <= 0)
+							throw new SocketTimeoutException("Read timed out");
+					}
+				}
+
+			} catch (ClosedSelectorException | CancelledKeyException e) {
+
+				throw new AsynchronousCloseException();
+			}
+		}
+
+		void release() throws IOException {
+
+			Selector current = selector;
+
+			if(current == null)
+				return;
+
+			selector = null;
+
+			current.close();
+		}
+	}
+
+	private class ChannelInput extends InputStream {
+
+		// Held while reading, and by a writer taking in what arrives while it waits.
+		private ReentrantLock lock = new ReentrantLock();
+
+		// Always ready to be read from, outside of the methods below.
+		private ByteBuffer buffer = ByteBuffer.allocateDirect(READ_AHEAD);
+
+		// The end of the stream was reached while taking in input for a writer.
+		private boolean ended = false;
+
+		private Waiter waiter = new Waiter();
+
+		ChannelInput(){
+
+			buffer.flip();
+		}
+
+		@Override
+		public int read() throws IOException {
+
+			lock.lock();
+
+			try {
+
+				if(!buffer.hasRemaining() && fill(buffer) < 0)
+					return -1;
+
+				return buffer.get() & 0xFF;
+
+			} finally {
+
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+
+			if(len == 0)
+				return 0;
+
+			lock.lock();
+
+			try {
+
+				if(!buffer.hasRemaining()){
+
+					// Large reads skip the read-ahead buffer rather than being copied through it.
+					if(len >= READ_AHEAD)
+						return fill(ByteBuffer.wrap(b, off, len));
+
+					if(fill(buffer) < 0)
+						return -1;
+				}
+
+				len = Math.min(len, buffer.remaining());
+				buffer.get(b, off, len);
+
+				return len;
+
+			} finally {
+
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public int available(){
+
+			lock.lock();
+
+			try {
+
+				return buffer.remaining();
+
+			} finally {
+
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Reads at least one byte into an empty buffer, waiting for it if need be.
+		 */
+		private int fill(ByteBuffer target) throws IOException {
+
+			if(ended)
+				return -1;
+
+			boolean ahead = target == buffer;
+
+			if(ahead){
+
+				// Whatever it grew to while a writer waited, it is no longer needed.
+				if(buffer.capacity() > READ_AHEAD)
+					buffer = ByteBuffer.allocateDirect(READ_AHEAD);
+
+				buffer.clear();
+
+				target = buffer;
+			}
+
+			try {
+
+				int read;
+
+				while((read = channel.read(target)) == 0)
+					waiter.await(SelectionKey.OP_READ, timeout);
+
+				return read;
+
+			} finally {
+
+				if(ahead)
+					buffer.flip();
+			}
+		}
+
+		/**
+		 * Takes in whatever has arrived without waiting, growing the buffer to make room.
+		 * The caller must hold the lock.
+		 *
+		 * @return True if anything was read.
+		 */
+		boolean absorb() throws IOException {
+
+			if(ended)
+				return false;
+
+			buffer.compact();
+
+			try {
+
+				if(!buffer.hasRemaining()){
+
+					ByteBuffer grown = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+
+					buffer.flip();
+					grown.put(buffer);
+
+					buffer = grown;
+				}
+
+				int read = channel.read(buffer);
+
+				if(read < 0)
+					ended = true;
+
+				return read > 0;
+
+			} finally {
+
+				buffer.flip();
+			}
+		}
+
+		void release() throws IOException {
+
+			waiter.release();
+		}
+
+		@Override
+		public void close() throws IOException {
+
+			UnixDomainSocket.this.close();
+		}
+	}
+
+	private class ChannelOutput extends OutputStream {
+
+		private Waiter waiter = new Waiter();
+
+		@Override
+		public void write(int b) throws IOException {
+
+			write(new byte[]{ (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+
+			write(new ByteBuffer[]{ ByteBuffer.wrap(b, off, len) });
+		}
+
+		synchronized void write(ByteBuffer[] buffers) throws IOException {
+
+			while(hasRemaining(buffers)){
+
+				if(channel.write(buffers) > 0)
+					continue;
+
+				// The peer may be stuck writing to this socket just the same, and only read
+				// once it is done. Unless a reader is already at it, what the peer sends
+				// is taken in meanwhile so that neither waits on the other for good.
+				if(!input.lock.tryLock()){
+
+					waiter.await(SelectionKey.OP_WRITE, 0);
+					continue;
+				}
+
+				try {
+
+					while(hasRemaining(buffers) && channel.write(buffers) == 0){
+
+						if(!input.absorb())
+							waiter.await(input.ended ? SelectionKey.OP_WRITE : SelectionKey.OP_WRITE | SelectionKey.OP_READ, 0);
+					}
+
+				} finally {
+
+					input.lock.unlock();
+				}
+			}
+		}
+
+		private boolean hasRemaining(ByteBuffer[] buffers){
+
+			for(ByteBuffer buffer : buffers){
+
+				if(buffer.hasRemaining())
+					return true;
+			}
+
+			return false;
+		}
+
+		void release() throws IOException {
+
+			waiter.release();
+		}
+
+		@Override
+		public void close() throws IOException {
+
+			UnixDomainSocket.this.close();
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package postoffice.datatypes;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Reads and writes non-negative integers in as few bytes as they need, seven bits to a
+ * byte with the high bit set on every byte but the last. Values below 128 take a single
+ * byte, and no value takes more than five. The compact framing
+ * ({@link CommFlags#PROTOCOL_COMPACT}) uses them for mailbox handles and letter lengths.
+ */
+public class Varint {
+
+	/** The most bytes an encoded value takes. */
+	public static final int MAX_LENGTH = 5;
+
+	private Varint(){}
+
+	/**
+	 * Returns how many bytes a value takes once encoded.
+	 *
+	 * @param value The value, which must not be negative.
+	 * @return The encoded length in bytes.
+	 */
+	public static int length(int value){
+
+		int length = 1;
+
+		while((value >>>= 7) != 0)
+			length++;
+
+		return length;
+	}
+
+	/**
+	 * Encodes a value into an array.
+	 *
+	 * @param value The value, which must not be negative.
+	 * @param target The array to write to.
+	 * @param offset Where in the array to start.
+	 * @return The offset following the encoded value.
+	 */
+	public static int write(int value, byte[] target, int offset){
+
+		if(value < 0)
+			throw new IllegalArgumentException("Negative values cannot be encoded.");
+
+		while((value & ~0x7F) != 0){
+
+			target[offset++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+
+		target[offset++] = (byte) value;
+
+		return offset;
+	}
+
+	/**
+	 * Encodes a value into a new array.
+	 *
+	 * @param value The value, which must not be negative.
+	 * @return The encoded value.
+	 */
+	public static byte[] toBytes(int value){
+
+		byte[] bytes = new byte[length(value)];
+
+		write(value, bytes, 0);
+
+		return bytes;
+	}
+
+	/**
+	 * Writes a value to a stream.
+	 *
+	 * @param out The stream to write to.
+	 * @param value The value, which must not be negative.
+	 * @throws IOException Thrown if the stream fails.
+	 */
+	public static void write(DataOutput out, int value) throws IOException {
+
+		byte[] bytes = new byte[MAX_LENGTH];
+
+		out.write(bytes, 0, write(value, bytes, 0));
+	}
+
+	/**
+	 * Reads a value from a stream.
+	 *
+	 * @param in The stream to read from.
+	 * @return The value.
+	 * @throws IOException Thrown if the stream fails or the value is malformed.
+	 */
+	public static int read(DataInput in) throws IOException {
+
+		int value = 0;
+
+		for(int shift = 0; shift < 7 * MAX_LENGTH; shift += 7){
+
+			int b = in.readUnsignedByte();
+
+			value |= (b & 0x7F) << shift;
+
+			if((b & 0x80) == 0){
+
+				if(value < 0)
+					throw new IOException("Varint out of range.");
+
+				return value;
+			}
+		}
+
+		throw new IOException("Varint longer than " + MAX_LENGTH + " bytes.");
+	}
+}
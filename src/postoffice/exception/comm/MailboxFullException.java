@@ -0,0 +1,15 @@
+package postoffice.exception.comm;
+
+public class MailboxFullException extends DeliveryFailureException {
+
+	private static final long serialVersionUID = 3355310372584136147L;
+
+	public MailboxFullException(String message, Exception e){
+
+		super(message, e);
+	}
+
+	public MailboxFullException(String message){
+		super(message);
+	}
+}
@@ -0,0 +1,163 @@
+package postoffice.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds, laid out like an HdrHistogram. Values below
+ * 32 have a bucket each, and every doubling above that is split into 16 buckets, so any
+ * value is known to within about 3% in a fixed array of a few hundred counts.
+ *
+ * Recording takes no locks. Threads add to rows of their own, picked like the stripes
+ * of a {@link StripedCounter}, and a snapshot adds the rows together.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 5;
+	private static final int HALF = 1 << (SUB_BITS - 1);
+
+	// Longer durations, over 18 minutes, are counted as this.
+	private static final long HIGHEST = (1L << 40) - 1;
+
+	static final int BUCKETS = index(HIGHEST) + 1;
+
+	private static final int ROWS = Math.min(StripedCounter.STRIPES, 8);
+
+	// Each row holds the buckets followed by the sum, padded to a whole number of cache lines.
+	private static final int STRIDE = (BUCKETS + 1 + StripedCounter.PADDING - 1) / StripedCounter.PADDING * StripedCounter.PADDING;
+
+	private AtomicLongArray cells = new AtomicLongArray(ROWS * STRIDE);
+
+	/**
+	 * @param nanos The duration to record.
+	 */
+	public void record(long nanos){
+
+		int row = (StripedCounter.stripe() & (ROWS - 1)) * STRIDE;
+
+		cells.incrementAndGet(row + index(Math.min(Math.max(nanos, 0), HIGHEST)));
+		cells.addAndGet(row + BUCKETS, nanos);
+	}
+
+	/**
+	 * @return Everything recorded so far. Values recorded while the snapshot is being
+	 * taken may or may not be included.
+	 */
+	public Snapshot snapshot(){
+
+		long[] counts = new long[BUCKETS];
+		long sum = 0;
+
+		for(int row = 0; row < ROWS * STRIDE; row += STRIDE){
+
+			for(int i = 0; i < BUCKETS; i++)
+				counts[i] += cells.get(row + i);
+
+			sum += cells.get(row + BUCKETS);
+		}
+
+		return new Snapshot(counts, sum);
+	}
+
+	static int index(long value){
+
+		int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1));
+
+		return shift * HALF + (int) (value >>> shift);
+	}
+
+	/**
+	 * @return The smallest value counted in a bucket.
+	 */
+	static long lowest(int index){
+
+		int shift = Math.max(0, index / HALF - 1);
+
+		return (long) (index - shift * HALF) << shift;
+	}
+
+	/**
+	 * The contents of a histogram at one moment.
+	 */
+	public static class Snapshot {
+
+		private long[] counts;
+		private long count = 0;
+		private long sum;
+
+		Snapshot(long[] counts, long sum){
+
+			this.counts = counts;
+			this.sum = sum;
+
+			for(long c : counts)
+				count += c;
+		}
+
+		/**
+		 * @return The number of values recorded.
+		 */
+		public long getCount(){
+
+			return count;
+		}
+
+		/**
+		 * @return The sum of the values recorded, in nanoseconds.
+		 */
+		public long getSum(){
+
+			return sum;
+		}
+
+		/**
+		 * @return The mean value in nanoseconds, or zero if nothing was recorded.
+		 */
+		public double getMean(){
+
+			return count == 0 ? 0 : (double) sum / count;
+		}
+
+		/**
+		 * @param quantile A quantile between zero and one.
+		 * @return The largest value that could have been counted in the bucket holding the
+		 * quantile, in nanoseconds, or zero if nothing was recorded.
+		 */
+		public long getValueAtQuantile(double quantile){
+
+			if(count == 0)
+				return 0;
+
+			long rank = Math.max(1, (long) Math.ceil(quantile * count));
+			long seen = 0;
+
+			for(int i = 0; i < counts.length; i++){
+
+				seen += counts[i];
+
+				if(seen >= rank)
+					return highest(i);
+			}
+
+			return highest(counts.length - 1);
+		}
+
+		/**
+		 * @return The largest value that could have been recorded, in nanoseconds.
+		 */
+		public long getMax(){
+
+			for(int i = counts.length - 1; i >= 0; i--){
+
+				if(counts[i] > 0)
+					return highest(i);
+			}
+
+			return 0;
+		}
+
+		private static long highest(int index){
+
+			return index == BUCKETS - 1 ? HIGHEST : lowest(index + 1) - 1;
+		}
+	}
+}
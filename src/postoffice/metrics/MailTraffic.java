@@ -0,0 +1,35 @@
+package postoffice.metrics;
+
+/**
+ * Counts the letters going into and out of every mailbox that shares it. Letters
+ * restored from a journal are not counted as delivered, and letters that are dropped,
+ * expire or are emptied out are not counted as taken.
+ */
+public class MailTraffic {
+
+	private StripedCounter delivered = new StripedCounter();
+	private StripedCounter taken = new StripedCounter();
+
+	public void delivered(){
+
+		delivered.increment();
+	}
+
+	/**
+	 * @param letters The number of letters handed out of a mailbox.
+	 */
+	public void taken(int letters){
+
+		taken.add(letters);
+	}
+
+	public long getDelivered(){
+
+		return delivered.sum();
+	}
+
+	public long getTaken(){
+
+		return taken.sum();
+	}
+}
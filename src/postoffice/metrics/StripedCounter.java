@@ -0,0 +1,75 @@
+package postoffice.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A counter that many threads can add to at once without contending on a single
+ * variable. It starts out as a single value, and spreads over stripes the first time
+ * two updates collide; each thread then adds to a stripe picked by its id, and reading
+ * the counter sums them. This is the idea behind {@code LongAdder}, which the daemon
+ * cannot use while it still builds against Java 7.
+ */
+public class StripedCounter {
+
+	// Longs per stripe, so that every stripe has a cache line of its own.
+	static final int PADDING = 8;
+
+	static final int STRIPES = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+	private AtomicLong base = new AtomicLong();
+
+	private AtomicReference<AtomicLongArray> stripes = new AtomicReference<AtomicLongArray>();
+
+	public void increment(){
+
+		add(1);
+	}
+
+	public void add(long delta){
+
+		AtomicLongArray current = stripes.get();
+
+		if(current == null){
+
+			long value = base.get();
+
+			if(base.compareAndSet(value, value + delta))
+				return;
+
+			stripes.compareAndSet(null, new AtomicLongArray(STRIPES * PADDING));
+			current = stripes.get();
+		}
+
+		current.addAndGet(stripe() * PADDING, delta);
+	}
+
+	/**
+	 * @return The total of everything added. Updates made while it is being read may or
+	 * may not be included.
+	 */
+	public long sum(){
+
+		long sum = base.get();
+
+		AtomicLongArray current = stripes.get();
+
+		if(current != null){
+
+			for(int i = 0; i < STRIPES; i++)
+				sum += current.get(i * PADDING);
+		}
+
+		return sum;
+	}
+
+	/**
+	 * @return The stripe of the current thread. Thread ids are handed out in sequence, so
+	 * threads started together land on different stripes.
+	 */
+	static int stripe(){
+
+		return (int) Thread.currentThread().getId() & (STRIPES - 1);
+	}
+}
@@ -0,0 +1,186 @@
+package postoffice.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * A single memory-mapped file of the mail journal. Records are laid out back to back as
+ * <code>&lt;4-byte length&gt;&lt;4-byte CRC32&gt;&lt;1-byte type&gt;&lt;body&gt;</code>, where the
+ * length counts the type and body. The unwritten tail of a segment is all zeroes, so a
+ * zero length marks the end of its records.
+ */
+class JournalSegment {
+
+	static final int RECORD_HEADER = 8;
+
+	private static final String PREFIX = "segment-";
+	private static final String SUFFIX = ".log";
+
+	private File file;
+	private MappedByteBuffer buffer;
+
+	private JournalSegment(File file, MappedByteBuffer buffer){
+
+		this.file = file;
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Creates and maps a new, empty segment.
+	 *
+	 * @param directory The journal directory.
+	 * @param index The position of the segment in the journal.
+	 * @param size The size of the segment in bytes.
+	 * @return The mapped segment, positioned for appending.
+	 * @throws IOException Thrown if the file cannot be created or mapped.
+	 */
+	static JournalSegment create(File directory, long index, int size) throws IOException {
+
+		return map(new File(directory, fileName(index)), size);
+	}
+
+	/**
+	 * Maps an existing segment for reading.
+	 *
+	 * @param file The segment file.
+	 * @return The mapped segment, positioned at its first record.
+	 * @throws IOException Thrown if the file cannot be mapped.
+	 */
+	static JournalSegment open(File file) throws IOException {
+
+		return map(file, (int) file.length());
+	}
+
+	private static JournalSegment map(File file, int size) throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+		try {
+
+			// The mapping stays valid once the channel is closed.
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+			return new JournalSegment(file, buffer);
+		}
+		finally {
+
+			raf.close();
+		}
+	}
+
+	static String fileName(long index){
+
+		return String.format("%s%020d%s", PREFIX, index, SUFFIX);
+	}
+
+	/**
+	 * @param name A file name.
+	 * @return The index of the segment, or -1 if the name is not that of a segment.
+	 */
+	static long indexOf(String name){
+
+		if(!name.startsWith(PREFIX) || !name.endsWith(SUFFIX))
+			return -1;
+
+		try {
+
+			return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+
+		} catch (NumberFormatException e){
+
+			return -1;
+		}
+	}
+
+	File getFile(){
+
+		return file;
+	}
+
+	void rewind(){
+
+		buffer.position(0);
+	}
+
+	/**
+	 * @return True if reading stopped at a record that failed its checks rather than at
+	 * the zeroed tail of the segment.
+	 */
+	boolean isDamaged(){
+
+		return buffer.remaining() >= 4 && buffer.getInt(buffer.position()) != 0;
+	}
+
+	/**
+	 * Appends an encoded record (type and body) with its header.
+	 *
+	 * @param record The record, from position to limit.
+	 * @param crc A checksum to reuse.
+	 * @return False if the segment does not have room for the record.
+	 */
+	boolean append(ByteBuffer record, CRC32 crc){
+
+		int length = record.remaining();
+
+		if(buffer.remaining() < RECORD_HEADER + length)
+			return false;
+
+		crc.reset();
+		crc.update(record.array(), record.arrayOffset() + record.position(), length);
+
+		buffer.putInt(length);
+		buffer.putInt((int) crc.getValue());
+		buffer.put(record);
+
+		return true;
+	}
+
+	/**
+	 * Reads the next record.
+	 *
+	 * @param crc A checksum to reuse.
+	 * @return The record's type and body, or null at the end of the segment or at a torn record.
+	 */
+	ByteBuffer next(CRC32 crc){
+
+		if(buffer.remaining() < RECORD_HEADER)
+			return null;
+
+		int start = buffer.position();
+		int length = buffer.getInt();
+		int checksum = buffer.getInt();
+
+		if(length <= 0 || length > buffer.remaining()){
+
+			buffer.position(start);
+			return null;
+		}
+
+		byte[] record = new byte[length];
+		buffer.get(record);
+
+		crc.reset();
+		crc.update(record, 0, length);
+
+		if((int) crc.getValue() != checksum){
+
+			buffer.position(start);
+			return null;
+		}
+
+		return ByteBuffer.wrap(record);
+	}
+
+	/**
+	 * Writes the appended records through to the storage device.
+	 */
+	void force(){
+
+		buffer.force();
+	}
+}
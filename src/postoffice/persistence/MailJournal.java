@@ -0,0 +1,1036 @@
+package postoffice.persistence;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import postoffice.datatypes.Letter;
+import postoffice.datatypes.MailQuota;
+import postoffice.datatypes.Mailbox;
+import postoffice.datatypes.SlabPool;
+
+/**
+ * An append-only log of everything needed to rebuild the post office's mailboxes after a
+ * restart: mailbox creation and removal, delivered letters, and how many letters each
+ * mailbox has handed out (its consumer offset), along with any letters taken out of turn
+ * and the topics each mailbox is subscribed to. Letters with a time to live carry their
+ * expiry, and sweeping a mailbox of expired letters is recorded by the time it was swept.
+ *
+ * The log is split into memory-mapped segment files. Appending only copies the record into
+ * the mapping; making it durable is left to {@link #sync()}, which group commits: a single
+ * flusher thread forces the active segment, and every caller waiting on that force is
+ * released together.
+ *
+ * On startup the log is replayed and then compacted into a single checkpoint segment that
+ * holds only the surviving mailboxes and their unread letters. While the post office runs,
+ * a compactor thread does the same in the background whenever enough full segments have
+ * piled up behind the last checkpoint: it folds them into a new checkpoint, which replaces
+ * the newest of them, and deletes the rest.
+ */
+public class MailJournal {
+
+	private static Logger logger = Logger.getLogger(MailJournal.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte CREATE = 1;
+	private static final byte DESTROY = 2;
+	private static final byte LETTER = 3;
+	private static final byte TAKE = 4;
+	private static final byte EMPTY = 5;
+	private static final byte CHECKPOINT = 6;
+	private static final byte TAKE_FROM = 7;
+	private static final byte SUBSCRIBE = 8;
+	private static final byte UNSUBSCRIBE = 9;
+	private static final byte EXPIRE = 10;
+
+	private static final Letter.Priority[] PRIORITIES = Letter.Priority.values();
+	private static final int NORMAL = Letter.Priority.NORMAL.ordinal();
+
+	// How many full segments, counting the last checkpoint, are left behind the active one before they are compacted.
+	private static final int COMPACT_SEGMENTS = 4;
+
+	private File directory;
+	private int segmentSize;
+	private int syncInterval;
+	private int syncBatch;
+
+	private JournalSegment active = null;
+	private long nextIndex = 0;
+
+	// The index of the oldest segment file, which is the last checkpoint once there is one.
+	private long oldest = 0;
+
+	private Encoder encoder = new Encoder();
+
+	// Records are counted as they are appended; everything up to 'durable' has been forced.
+	private long appended = 0;
+	private long durable = 0;
+
+	private boolean closed = false;
+	private boolean failed = false;
+
+	private Thread flusher = null;
+	private Thread compactor = null;
+
+	private Queue<Waiter> waiters = new ArrayDeque<Waiter>();
+
+	/**
+	 * @param directory The directory holding the segment files; created if missing.
+	 * @param segmentSize The size of each segment file in bytes.
+	 * @param syncInterval How long in milliseconds the flusher waits for more records before
+	 * forcing a group. At zero it forces as soon as anything is pending, and whatever arrives
+	 * during a force joins the next group. A negative value never forces, leaving write-back
+	 * to the operating system.
+	 * @param syncBatch The number of pending records that triggers a flush before the window ends.
+	 */
+	public MailJournal(File directory, int segmentSize, int syncInterval, int syncBatch){
+
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.syncInterval = syncInterval;
+		this.syncBatch = Math.max(syncBatch, 1);
+	}
+
+	/**
+	 * Replays the journal, compacts it, and opens it for appending. Must be called once
+	 * before any other method.
+	 *
+	 * @param slabs The pool recovered mailboxes queue letters in, or null to queue them on the heap.
+	 * @param limits The limits on each recovered mailbox, or null for none.
+	 * @param sharedQuota The quota shared by every mailbox, or null for none.
+	 * @return The recovered mailboxes, in order of creation, attached to this journal.
+	 * @throws IOException Thrown if the journal cannot be read or written.
+	 */
+	public synchronized List<Mailbox> recover(SlabPool slabs, MailQuota limits, MailQuota sharedQuota) throws IOException {
+
+		if(!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create the journal directory '" + directory + "'.");
+
+		List<File> files = new ArrayList<File>();
+
+		for(File file : directory.listFiles()){
+
+			if(file.getName().endsWith(".tmp"))
+				file.delete(); // An interrupted compaction.
+			else if(JournalSegment.indexOf(file.getName()) >= 0)
+				files.add(file);
+		}
+
+		Collections.sort(files, new Comparator<File>() {
+
+			@Override
+			public int compare(File a, File b) {
+
+				return Long.compare(JournalSegment.indexOf(a.getName()), JournalSegment.indexOf(b.getName()));
+			}
+		});
+
+		long start = System.nanoTime();
+
+		Map<String, Recovered> boxes = new LinkedHashMap<String, Recovered>();
+		long records = replay(files, boxes);
+
+		// Letters that expired while the post office was down are not worth keeping.
+		long now = System.currentTimeMillis();
+
+		for(Recovered recovered : boxes.values())
+			recovered.removeExpired(now);
+
+		if(!files.isEmpty()){
+
+			nextIndex = JournalSegment.indexOf(files.get(files.size() - 1).getName()) + 1;
+
+			logger.info("Replayed " + records + " journal records into " + boxes.size() + " mailboxes in "
+					+ (System.nanoTime() - start) / 1000000 + "ms.");
+
+			oldest = nextIndex;
+			checkpoint(boxes, new File(directory, JournalSegment.fileName(nextIndex++)));
+
+			for(File file : files)
+				file.delete();
+		}
+
+		else
+			oldest = nextIndex;
+
+		active = JournalSegment.create(directory, nextIndex++, segmentSize);
+
+		if(syncInterval >= 0){
+
+			flusher = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+
+					flush();
+				}
+			}, "postoffice-journal");
+
+			flusher.setDaemon(true);
+			flusher.start();
+		}
+
+		compactor = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+
+				compact();
+			}
+		}, "postoffice-journal-compactor");
+
+		compactor.setDaemon(true);
+		compactor.start();
+
+		List<Mailbox> mailboxes = new ArrayList<Mailbox>();
+
+		for(Map.Entry<String, Recovered> entry : boxes.entrySet()){
+
+			Mailbox mb = new Mailbox(entry.getKey(), entry.getValue().passwordHash, this, slabs, limits, sharedQuota);
+
+			for(ArrayDeque<Letter> letters : entry.getValue().letters){
+
+				for(Letter letter : letters)
+					mb.restore(letter);
+			}
+
+			for(String topic : entry.getValue().topics)
+				mb.restoreSubscription(topic);
+
+			mailboxes.add(mb);
+		}
+
+		return mailboxes;
+	}
+
+	/**
+	 * Replays segment files, in order of their index, from the last of them that starts
+	 * with a checkpoint; everything before it is already summarised by it.
+	 *
+	 * @return The number of records replayed.
+	 */
+	private long replay(List<File> files, Map<String, Recovered> boxes) throws IOException {
+
+		CRC32 crc = new CRC32();
+		List<JournalSegment> segments = new ArrayList<JournalSegment>();
+
+		for(File file : files){
+
+			JournalSegment segment = JournalSegment.open(file);
+			ByteBuffer record = segment.next(crc);
+
+			if(record != null && record.get(0) == CHECKPOINT)
+				segments.clear();
+
+			segment.rewind();
+			segments.add(segment);
+		}
+
+		long records = 0;
+
+		for(JournalSegment segment : segments){
+
+			ByteBuffer record;
+
+			while((record = segment.next(crc)) != null){
+
+				replay(record, boxes);
+				records++;
+			}
+
+			// Normally a torn write left by a crash at the end of the last segment.
+			if(segment.isDamaged())
+				logger.warn("Journal segment '" + segment.getFile().getName() + "' ends in a damaged record; the rest of it was skipped.");
+		}
+
+		return records;
+	}
+
+	private void replay(ByteBuffer record, Map<String, Recovered> boxes){
+
+		byte type = record.get();
+
+		if(type == CHECKPOINT){
+
+			boxes.clear();
+			return;
+		}
+
+		String box = getString(record);
+
+		switch(type){
+
+			case CREATE:
+
+				byte[] passwordHash = new byte[record.remaining()];
+				record.get(passwordHash);
+
+				boxes.put(box, new Recovered(passwordHash));
+				break;
+
+			case DESTROY:
+
+				boxes.remove(box);
+				break;
+
+			case LETTER:
+
+				Recovered recipient = boxes.get(box);
+
+				if(recipient != null){
+
+					String sender = getString(record);
+
+					byte[] payload = new byte[record.getInt()];
+					record.get(payload);
+
+					Letter letter = new Letter(sender, box, payload);
+
+					// Only letters with a time to live or a priority carry an expiry, and
+					// only those with a priority carry that.
+					if(record.remaining() >= 8)
+						letter.setExpiry(record.getLong());
+
+					if(record.hasRemaining())
+						letter.setPriority(PRIORITIES[record.get()]);
+
+					recipient.letters.get(letter.getPriority().ordinal()).add(letter);
+				}
+
+				break;
+
+			case TAKE:
+
+				Recovered taker = boxes.get(box);
+
+				if(taker != null){
+
+					int count = record.getInt();
+
+					// Takes of normal letters do not say so.
+					ArrayDeque<Letter> letters = taker.letters.get(record.hasRemaining() ? record.get() : NORMAL);
+
+					for(int i = count; i > 0 && !letters.isEmpty(); i--)
+						letters.poll();
+				}
+
+				break;
+
+			case TAKE_FROM:
+
+				Recovered selective = boxes.get(box);
+
+				if(selective != null)
+					selective.removeFrom(getString(record));
+
+				break;
+
+			case SUBSCRIBE:
+
+				Recovered subscriber = boxes.get(box);
+
+				if(subscriber != null)
+					subscriber.topics.add(getString(record));
+
+				break;
+
+			case UNSUBSCRIBE:
+
+				Recovered unsubscriber = boxes.get(box);
+
+				if(unsubscriber != null)
+					unsubscriber.topics.remove(getString(record));
+
+				break;
+
+			case EXPIRE:
+
+				Recovered swept = boxes.get(box);
+
+				if(swept != null)
+					swept.removeExpired(record.getLong());
+
+				break;
+
+			case EMPTY:
+
+				Recovered emptied = boxes.get(box);
+
+				if(emptied != null){
+
+					for(ArrayDeque<Letter> letters : emptied.letters)
+						letters.clear();
+				}
+
+				break;
+
+			default:
+
+				logger.warn("Skipping journal record of unknown type " + type + ".");
+		}
+	}
+
+	/**
+	 * Writes the recovered state to a segment that starts with a checkpoint record. The
+	 * segment is written under a temporary name and renamed over the target once forced, so
+	 * the target is either the old file or the whole checkpoint.
+	 */
+	private void checkpoint(Map<String, Recovered> boxes, File target) throws IOException {
+
+		File temporary = new File(directory, target.getName() + ".tmp");
+		Encoder encoder = new Encoder();
+
+		FileOutputStream out = new FileOutputStream(temporary);
+
+		try {
+
+			FileChannel channel = out.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+
+			encoder.begin(CHECKPOINT);
+			write(channel, buffer, encoder);
+
+			for(Map.Entry<String, Recovered> entry : boxes.entrySet()){
+
+				encoder.begin(CREATE);
+				encoder.putString(entry.getKey());
+				encoder.put(entry.getValue().passwordHash);
+				write(channel, buffer, encoder);
+
+				for(String topic : entry.getValue().topics){
+
+					encoder.begin(SUBSCRIBE);
+					encoder.putString(entry.getKey());
+					encoder.putString(topic);
+					write(channel, buffer, encoder);
+				}
+
+				for(ArrayDeque<Letter> letters : entry.getValue().letters){
+
+					for(Letter letter : letters){
+
+						encoder.putLetter(letter);
+						write(channel, buffer, encoder);
+					}
+				}
+			}
+
+			drain(channel, buffer);
+			channel.force(true);
+		}
+		finally {
+
+			out.close();
+		}
+
+		Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Buffers the encoder's record, with its header, for writing to the channel.
+	 */
+	private static void write(FileChannel channel, ByteBuffer buffer, Encoder encoder) throws IOException {
+
+		ByteBuffer scratch = encoder.scratch;
+		CRC32 crc = encoder.crc;
+
+		scratch.flip();
+
+		crc.reset();
+		crc.update(scratch.array(), 0, scratch.limit());
+
+		if(buffer.remaining() < JournalSegment.RECORD_HEADER + scratch.limit())
+			drain(channel, buffer);
+
+		buffer.putInt(scratch.limit());
+		buffer.putInt((int) crc.getValue());
+
+		if(buffer.remaining() >= scratch.limit()){
+
+			buffer.put(scratch);
+			return;
+		}
+
+		// Too large to buffer.
+		drain(channel, buffer);
+
+		while(scratch.hasRemaining())
+			channel.write(scratch);
+	}
+
+	private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+
+		buffer.flip();
+
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+
+		buffer.clear();
+	}
+
+	/**
+	 * Records the creation of a mailbox.
+	 *
+	 * @param id The mailbox identifier.
+	 * @param passwordHash A hash of the mailbox password.
+	 */
+	public synchronized void mailboxCreated(String id, byte[] passwordHash){
+
+		encoder.begin(CREATE);
+		encoder.putString(id);
+		encoder.put(passwordHash);
+		append();
+	}
+
+	/**
+	 * Records the removal of a mailbox along with any letters left in it.
+	 *
+	 * @param id The mailbox identifier.
+	 */
+	public synchronized void mailboxDestroyed(String id){
+
+		encoder.begin(DESTROY);
+		encoder.putString(id);
+		append();
+	}
+
+	/**
+	 * Records a letter delivered to its recipient's mailbox.
+	 *
+	 * @param letter The letter.
+	 */
+	public synchronized void letterDelivered(Letter letter){
+
+		encoder.putLetter(letter);
+		append();
+	}
+
+	/**
+	 * Advances the consumer offset of a mailbox. Each priority has an offset of its own.
+	 *
+	 * @param id The mailbox identifier.
+	 * @param priority The priority of the letters taken.
+	 * @param count The number of letters taken from the front of the mailbox's letters of that priority.
+	 */
+	public synchronized void lettersTaken(String id, Letter.Priority priority, int count){
+
+		encoder.begin(TAKE);
+		encoder.putString(id);
+		encoder.putInt(count);
+
+		if(priority != Letter.Priority.NORMAL)
+			encoder.putByte((byte) priority.ordinal());
+
+		append();
+	}
+
+	/**
+	 * Records a letter taken out of turn, ahead of letters from other senders.
+	 *
+	 * @param id The mailbox identifier.
+	 * @param sender The sender of the letter, which was the oldest from that sender.
+	 */
+	public synchronized void letterTaken(String id, String sender){
+
+		encoder.begin(TAKE_FROM);
+		encoder.putString(id);
+		encoder.putString(sender);
+		append();
+	}
+
+	/**
+	 * Records a mailbox subscribing to a topic.
+	 *
+	 * @param id The mailbox identifier.
+	 * @param topic The topic name.
+	 */
+	public synchronized void mailboxSubscribed(String id, String topic){
+
+		encoder.begin(SUBSCRIBE);
+		encoder.putString(id);
+		encoder.putString(topic);
+		append();
+	}
+
+	/**
+	 * Records a mailbox unsubscribing from a topic.
+	 *
+	 * @param id The mailbox identifier.
+	 * @param topic The topic name.
+	 */
+	public synchronized void mailboxUnsubscribed(String id, String topic){
+
+		encoder.begin(UNSUBSCRIBE);
+		encoder.putString(id);
+		encoder.putString(topic);
+		append();
+	}
+
+	/**
+	 * Records that every letter in a mailbox that had expired by a time was discarded,
+	 * wherever it was queued.
+	 *
+	 * @param id The mailbox identifier.
+	 * @param now The time the mailbox was swept, in milliseconds since the epoch.
+	 */
+	public synchronized void lettersExpired(String id, long now){
+
+		encoder.begin(EXPIRE);
+		encoder.putString(id);
+		encoder.putLong(now);
+		append();
+	}
+
+	/**
+	 * Records that every letter in a mailbox was discarded.
+	 *
+	 * @param id The mailbox identifier.
+	 */
+	public synchronized void mailboxEmptied(String id){
+
+		encoder.begin(EMPTY);
+		encoder.putString(id);
+		append();
+	}
+
+	/**
+	 * Blocks until every record appended before the call is durable.
+	 */
+	public synchronized void sync(){
+
+		long target = appended;
+
+		while(durable < target && flusher != null && !closed && !failed){
+
+			try {
+
+				wait();
+
+			} catch (InterruptedException e) {
+
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Runs an action once every record appended before the call is durable, without
+	 * blocking the caller. Actions run in the order they were registered, on the flusher
+	 * thread unless they could run straight away.
+	 *
+	 * @param action The action to run.
+	 */
+	public void sync(Runnable action){
+
+		synchronized(this){
+
+			if(durable < appended && flusher != null && !closed && !failed){
+
+				waiters.add(new Waiter(appended, action));
+				return;
+			}
+		}
+
+		action.run();
+	}
+
+	/**
+	 * Forces any pending records and stops the flusher.
+	 */
+	public void close(){
+
+		synchronized(this){
+
+			if(closed)
+				return;
+
+			closed = true;
+
+			if(active != null && !failed)
+				active.force();
+
+			durable = appended;
+
+			notifyAll();
+		}
+
+		for(Thread thread : new Thread[]{ flusher, compactor }){
+
+			if(thread == null)
+				continue;
+
+			try {
+
+				thread.join();
+
+			} catch (InterruptedException e) {
+
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * The flusher loop: waits for pending records, optionally gives other writers up to
+	 * the sync interval to join the group, and forces them all at once. Records appended
+	 * while a force is in progress make up the next group.
+	 */
+	private void flush(){
+
+		while(true){
+
+			JournalSegment segment;
+			long target;
+
+			synchronized(this){
+
+				try {
+
+					while(!closed && !failed && durable == appended)
+						wait();
+
+					if(syncInterval > 0 && !closed && !failed && appended - durable < syncBatch)
+						wait(syncInterval);
+
+				} catch (InterruptedException e) {
+
+					closed = true;
+				}
+
+				if(closed || failed)
+					break;
+
+				segment = active;
+				target = appended;
+			}
+
+			// Appends continue into the mapping while it is being forced.
+			segment.force();
+
+			synchronized(this){
+
+				if(target > durable){
+
+					durable = target;
+					notifyAll();
+				}
+			}
+
+			release();
+		}
+
+		release();
+	}
+
+	/**
+	 * Runs the actions waiting on records that are now durable; all of them once the
+	 * journal has been closed or has failed.
+	 */
+	private void release(){
+
+		List<Runnable> ready = new ArrayList<Runnable>();
+
+		synchronized(this){
+
+			while(!waiters.isEmpty() && (closed || failed || waiters.peek().target <= durable))
+				ready.add(waiters.poll().action);
+		}
+
+		for(Runnable action : ready)
+			action.run();
+	}
+
+	private void append(){
+
+		if(failed || closed)
+			return;
+
+		ByteBuffer record = encoder.finish();
+
+		if(!active.append(record, encoder.crc)){
+
+			try {
+
+				// Everything in the full segment is made durable before moving on.
+				active.force();
+				durable = appended;
+
+				active = JournalSegment.create(directory, nextIndex++,
+						Math.max(segmentSize, JournalSegment.RECORD_HEADER + record.remaining()));
+
+			} catch (IOException e) {
+
+				logger.error("Failed to roll the mail journal; letters are no longer persisted. Cause : " + e.getMessage());
+
+				failed = true;
+				notifyAll();
+
+				return;
+			}
+
+			active.append(record, encoder.crc);
+
+			// The compactor waits for full segments to pile up.
+			notifyAll();
+		}
+
+		appended++;
+
+		// Wake the flusher for the first pending record, and again once a batch is ready.
+		if(appended - durable == 1 || appended - durable >= syncBatch)
+			notifyAll();
+	}
+
+	/**
+	 * The compactor loop: waits until enough full segments are left behind the active one,
+	 * then, without holding the journal's lock, replays them into a checkpoint that replaces
+	 * the newest of them and deletes the others. Nothing is deleted unless the checkpoint
+	 * was written, and a failed compaction leaves every segment in place for recovery.
+	 */
+	private void compact(){
+
+		while(true){
+
+			long from;
+			long through;
+
+			synchronized(this){
+
+				try {
+
+					while(!closed && !failed && nextIndex - 1 - oldest <= COMPACT_SEGMENTS)
+						wait();
+
+				} catch (InterruptedException e) {
+
+					return;
+				}
+
+				if(closed || failed)
+					return;
+
+				from = oldest;
+				through = nextIndex - 2;
+			}
+
+			List<File> files = new ArrayList<File>();
+
+			for(long index = from; index <= through; index++)
+				files.add(new File(directory, JournalSegment.fileName(index)));
+
+			try {
+
+				long start = System.nanoTime();
+
+				Map<String, Recovered> boxes = new LinkedHashMap<String, Recovered>();
+				long records = replay(files, boxes);
+
+				checkpoint(boxes, files.get(files.size() - 1));
+
+				for(File file : files.subList(0, files.size() - 1))
+					file.delete();
+
+				logger.info("Compacted " + records + " journal records into " + boxes.size() + " mailboxes in "
+						+ (System.nanoTime() - start) / 1000000 + "ms.");
+
+			} catch (IOException e) {
+
+				logger.error("Failed to compact the mail journal; its segments are kept until the next restart. Cause : " + e.getMessage());
+				return;
+			}
+
+			synchronized(this){
+
+				oldest = through;
+			}
+		}
+	}
+
+	private static String getString(ByteBuffer record){
+
+		byte[] bytes = new byte[record.getShort() & 0xFFFF];
+		record.get(bytes);
+
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Builds one record, its type and body, at a time. Appends share one encoder under the
+	 * journal's lock, and each checkpoint uses its own.
+	 */
+	private static class Encoder {
+
+		ByteBuffer scratch = ByteBuffer.allocate(4096);
+		CRC32 crc = new CRC32();
+
+		void begin(byte type){
+
+			scratch.clear();
+			scratch.put(type);
+		}
+
+		/**
+		 * @return The record, from position to limit.
+		 */
+		ByteBuffer finish(){
+
+			scratch.flip();
+			return scratch;
+		}
+
+		void putLetter(Letter letter){
+
+			ByteBuffer payload = letter.getPayloadBuffer();
+
+			begin(LETTER);
+			putString(letter.getRecipient());
+			putString(letter.getSender());
+			ensure(4 + payload.remaining() + 9);
+			scratch.putInt(payload.remaining());
+			scratch.put(payload);
+
+			boolean normal = letter.getPriority() == Letter.Priority.NORMAL;
+
+			if(letter.getExpiry() != 0 || !normal)
+				scratch.putLong(letter.getExpiry());
+
+			if(!normal)
+				scratch.put((byte) letter.getPriority().ordinal());
+		}
+
+		void putString(String value){
+
+			byte[] bytes = value.getBytes(UTF8);
+
+			ensure(2);
+			scratch.putShort((short) bytes.length);
+			put(bytes);
+		}
+
+		void put(byte[] bytes){
+
+			ensure(bytes.length);
+			scratch.put(bytes);
+		}
+
+		void putByte(byte value){
+
+			ensure(1);
+			scratch.put(value);
+		}
+
+		void putInt(int value){
+
+			ensure(4);
+			scratch.putInt(value);
+		}
+
+		void putLong(long value){
+
+			ensure(8);
+			scratch.putLong(value);
+		}
+
+		private void ensure(int length){
+
+			if(scratch.remaining() >= length)
+				return;
+
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(scratch.capacity() * 2, scratch.position() + length));
+
+			scratch.flip();
+			larger.put(scratch);
+
+			scratch = larger;
+		}
+	}
+
+	/**
+	 * An action waiting for the journal to become durable up to a record.
+	 */
+	private static class Waiter {
+
+		long target;
+		Runnable action;
+
+		Waiter(long target, Runnable action){
+
+			this.target = target;
+			this.action = action;
+		}
+	}
+
+	/**
+	 * A mailbox as rebuilt from the journal.
+	 */
+	private static class Recovered {
+
+		byte[] passwordHash;
+		Set<String> topics = new LinkedHashSet<String>();
+
+		// The unread letters of each priority, oldest first.
+		List<ArrayDeque<Letter>> letters;
+
+		Recovered(byte[] passwordHash){
+
+			this.passwordHash = passwordHash;
+
+			letters = new ArrayList<ArrayDeque<Letter>>(PRIORITIES.length);
+
+			for(int i = 0; i < PRIORITIES.length; i++)
+				letters.add(new ArrayDeque<Letter>());
+		}
+
+		/**
+		 * Removes the oldest letter from a sender, of the highest priority it has sent,
+		 * as the mailbox would have.
+		 */
+		void removeFrom(String sender){
+
+			for(int i = letters.size() - 1; i >= 0; i--){
+
+				for(Iterator<Letter> it = letters.get(i).iterator(); it.hasNext(); ){
+
+					if(it.next().getSender().equals(sender)){
+
+						it.remove();
+						return;
+					}
+				}
+			}
+		}
+
+		void removeExpired(long now){
+
+			for(ArrayDeque<Letter> queue : letters){
+
+				for(Iterator<Letter> it = queue.iterator(); it.hasNext(); ){
+
+					if(it.next().hasExpired(now))
+						it.remove();
+				}
+			}
+		}
+	}
+}
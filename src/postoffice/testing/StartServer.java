@@ -1,5 +1,6 @@
 package postoffice.testing;
 
+import java.io.File;
 import java.io.IOException;
 
 import org.apache.log4j.ConsoleAppender;
@@ -7,7 +8,9 @@ import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
 
+import postoffice.daemon.AsyncLogging;
 import postoffice.daemon.PostOffice;
+import postoffice.daemon.PostOfficeConfig;
 
 public class StartServer {
 
@@ -24,7 +27,28 @@ public class StartServer {
 		console.activateOptions();
 		
 		logger.addAppender(console);
+		
+		// Optionally write the log on a thread of its own, e.g. -Dpostoffice.asyncLogging=true.
+		if(Boolean.getBoolean("postoffice.asyncLogging"))
+			AsyncLogging.install(logger, 8192);
+
+		PostOfficeConfig config = new PostOfficeConfig();
+		
+		// Optionally pick the connection engine, e.g. "SELECTOR".
+		if(args.length > 0)
+			config.setEngine(PostOfficeConfig.Engine.valueOf(args[0].toUpperCase()));
+		
+		// Optionally keep mailboxes in a journal directory across restarts.
+		if(args.length > 1)
+			config.setJournalDirectory(new File(args[1]));
+		
+		// Optionally listen on a Unix domain socket too, e.g. -Dpostoffice.unixSocket=/tmp/postoffice.sock.
+		if(System.getProperty("postoffice.unixSocket") != null)
+			config.setUnixSocketFile(new File(System.getProperty("postoffice.unixSocket")));
+		
+		// Optionally let clients on the same host move into shared memory, with -Dpostoffice.sharedMemory=true.
+		config.setSharedMemory(Boolean.getBoolean("postoffice.sharedMemory"));
 
-		PostOffice.createPostOffice();
+		PostOffice.createPostOffice(config);
 	}
 }
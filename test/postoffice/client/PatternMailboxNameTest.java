@@ -0,0 +1,86 @@
+package postoffice.client;
+
+import postoffice.daemon.PostOffice;
+import postoffice.daemon.PostOfficeConfig;
+import postoffice.daemon.PostOfficeConfig.Engine;
+import postoffice.datatypes.CommFlags;
+import postoffice.testing.StringMessage;
+
+/**
+ * Checks that a mailbox cannot be created with '*' or '#' as a segment of its identifier,
+ * since letters addressed to it would be routed as a pattern, while identifiers that merely
+ * contain those characters are still accepted. The connection must stay usable after a
+ * refusal. Runs every engine that has no newer Java requirement with every protocol
+ * version, and exits with a non-zero status on the first failure.
+ */
+public class PatternMailboxNameTest {
+
+	private static final String[] PATTERNS = { "*", "#", "a.*", "a.#", "*.b", "a.#.b" };
+	private static final String[] IDENTIFIERS = { "a.b*", "a#.b", "a.b" };
+
+	private static final int TIMEOUT = 5000;
+
+	public static void main(String[] args) throws Exception {
+
+		boolean passed = true;
+
+		for(Engine engine : new Engine[]{ Engine.THREAD_PER_CLERK, Engine.SELECTOR })
+			for(int protocol : new int[]{ CommFlags.PROTOCOL_LEGACY, CommFlags.PROTOCOL_FRAMED, CommFlags.PROTOCOL_COMPACT })
+				passed &= check(engine, protocol);
+
+		if(!passed)
+			System.exit(1);
+	}
+
+	private static boolean check(Engine engine, int protocol) throws Exception {
+
+		PostOfficeConfig config = new PostOfficeConfig();
+		config.setPort(0);
+		config.setEngine(engine);
+
+		PostOffice postOffice = PostOffice.createPostOffice(config);
+
+		try {
+
+			PostOfficeClient<StringMessage> client = new PostOfficeClient<StringMessage>(StringMessage.class);
+			client.connect("127.0.0.1", postOffice.getLocalPort(), TIMEOUT, protocol);
+
+			String failure = null;
+
+			for(String pattern : PATTERNS){
+
+				try {
+
+					client.createMailbox(pattern, "password");
+					failure = "created '" + pattern + "'";
+
+				} catch (IllegalArgumentException e) {
+
+					// Expected.
+				}
+			}
+
+			for(String identifier : IDENTIFIERS){
+
+				try {
+
+					client.createMailbox(identifier, "password");
+
+				} catch (IllegalArgumentException e) {
+
+					failure = "refused '" + identifier + "'";
+				}
+			}
+
+			client.disconnect();
+
+			System.out.printf("%s %s protocol=%d%s%n", failure == null ? "PASS" : "FAIL", engine, protocol, failure == null ? "" : ": " + failure);
+
+			return failure == null;
+
+		} finally {
+
+			postOffice.shutdown();
+		}
+	}
+}
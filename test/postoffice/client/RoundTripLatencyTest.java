@@ -0,0 +1,97 @@
+package postoffice.client;
+
+import java.util.Arrays;
+
+import postoffice.daemon.PostOffice;
+import postoffice.daemon.PostOfficeConfig;
+import postoffice.daemon.PostOfficeConfig.Engine;
+import postoffice.datatypes.CommFlags;
+import postoffice.testing.StringMessage;
+
+/**
+ * Checks that a round trip over loopback TCP, a letter sent and then fetched, takes well
+ * under the 40 ms a delayed acknowledgement holds a reply back for. A reply written in
+ * pieces on a socket with Nagle's algorithm on waits for exactly that on every round trip.
+ * Runs every engine that has no newer Java requirement with every protocol version, and
+ * exits with a non-zero status on the first failure.
+ */
+public class RoundTripLatencyTest {
+
+	private static final int WARMUP = 50;
+	private static final int ROUND_TRIPS = 200;
+
+	// Well under the delayed acknowledgement, and well over any loopback round trip.
+	private static final long LIMIT_NANOS = 10000000;
+
+	private static final int TIMEOUT = 5000;
+
+	public static void main(String[] args) throws Exception {
+
+		boolean passed = true;
+
+		for(Engine engine : new Engine[]{ Engine.THREAD_PER_CLERK, Engine.SELECTOR })
+			for(int protocol : new int[]{ CommFlags.PROTOCOL_LEGACY, CommFlags.PROTOCOL_FRAMED, CommFlags.PROTOCOL_COMPACT })
+				passed &= check(engine, protocol);
+
+		if(!passed)
+			System.exit(1);
+	}
+
+	private static boolean check(Engine engine, int protocol) throws Exception {
+
+		PostOfficeConfig config = new PostOfficeConfig();
+		config.setPort(0);
+		config.setEngine(engine);
+
+		PostOffice postOffice = PostOffice.createPostOffice(config);
+
+		try {
+
+			PostOfficeClient<StringMessage> sender = connect(postOffice, "sender", protocol);
+			PostOfficeClient<StringMessage> recipient = connect(postOffice, "recipient", protocol);
+
+			StringMessage message = new StringMessage();
+			message.setMessage("ping");
+
+			long[] nanos = new long[ROUND_TRIPS];
+
+			for(int i = 0; i < WARMUP + ROUND_TRIPS; i++){
+
+				long started = System.nanoTime();
+
+				sender.sendMessage("recipient", message);
+				recipient.getMessage(TIMEOUT);
+
+				if(i >= WARMUP)
+					nanos[i - WARMUP] = System.nanoTime() - started;
+			}
+
+			sender.disconnect();
+			recipient.disconnect();
+
+			Arrays.sort(nanos);
+
+			long median = nanos[ROUND_TRIPS / 2];
+			boolean passed = median < LIMIT_NANOS;
+
+			System.out.printf("%s %s protocol=%d: median round trip %.3f ms%n", passed ? "PASS" : "FAIL", engine, protocol, median / 1e6);
+
+			return passed;
+
+		} finally {
+
+			postOffice.shutdown();
+		}
+	}
+
+	private static PostOfficeClient<StringMessage> connect(PostOffice postOffice, String mailbox, int protocol) throws Exception {
+
+		PostOfficeClient<StringMessage> client = new PostOfficeClient<StringMessage>(StringMessage.class);
+
+		client.connect("127.0.0.1", postOffice.getLocalPort(), TIMEOUT, protocol);
+		client.createMailbox(mailbox, "password");
+		client.checkoutMailbox(mailbox, "password");
+
+		return client;
+	}
+}